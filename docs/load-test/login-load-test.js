@@ -0,0 +1,42 @@
+// k6 load test of blocking resolvers under many concurrent requests.
+// Run it once with virtual threads and once with the platform worker pool (the default). See "Virtual threads" in docs/README-tech.md
+//
+//   k6 run -e BASE_URL=https://localhost:8443 -e EMAIL=admin@liquido.vote -e PASSWORD=... -e VUS=200 docs/load-test/login-load-test.js
+//
+// Each virtual user logs in with email and password (bcrypt + JPA) and then loads the polls of its team (JPA).
+import http from 'k6/http';
+import { check } from 'k6';
+
+const BASE_URL = __ENV.BASE_URL || 'https://localhost:8443';
+const VUS = parseInt(__ENV.VUS || '200');
+
+export const options = {
+	insecureSkipTLSVerify: true,   // local self-signed certificate
+	scenarios: {
+		constantConcurrency: {
+			executor: 'constant-vus',
+			vus: VUS,
+			duration: __ENV.DURATION || '60s',
+		},
+	},
+};
+
+function graphql(query, variables, jwt) {
+	const headers = { 'Content-Type': 'application/json' };
+	if (jwt) headers['Authorization'] = 'Bearer ' + jwt;
+	return http.post(BASE_URL + '/graphql', JSON.stringify({ query, variables }), { headers });
+}
+
+export default function () {
+	const loginRes = graphql(
+		'query login($email: String!, $password: String!) { loginWithEmailPassword(email: $email, password: $password) { jwt } }',
+		{ email: __ENV.EMAIL, password: __ENV.PASSWORD });
+	const loggedIn = check(loginRes, {
+		'login status 200': (r) => r.status === 200,
+		'login has jwt': (r) => !!(r.json('data.loginWithEmailPassword.jwt')),
+	});
+	if (!loggedIn) return;
+
+	const pollsRes = graphql('query { polls { id title status numBallots } }', {}, loginRes.json('data.loginWithEmailPassword.jwt'));
+	check(pollsRes, { 'polls without errors': (r) => r.status === 200 && !r.json('errors') });
+}
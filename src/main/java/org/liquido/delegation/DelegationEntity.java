@@ -12,7 +12,7 @@ import org.liquido.user.UserEntity;
 import org.liquido.vote.RightToVoteEntity;
 
 import java.time.LocalDateTime;
-import java.util.List;
+import java.util.*;
 
 /**
  * Delegation from a user to a proxy in a given area.
@@ -87,6 +87,75 @@ public class DelegationEntity extends LiquidoBaseEntity {
 		return list("id in ?1", ids);
 	}
 
+	/**
+	 * Find the requested rightToVotes of delegation requests to this proxy, without loading the entities.
+	 * @param proxy the proxy
+	 * @param ids IDs of delegation requests. IDs of requests to other proxies and of already accepted delegations are ignored.
+	 * @return hash of the requested rightToVote by delegation request ID
+	 */
+	public static Map<Long, String> findRequestedRightToVotes(UserEntity proxy, Collection<Long> ids) {
+		Map<Long, String> result = new LinkedHashMap<>();
+		if (ids.isEmpty()) return result;
+		getEntityManager().createQuery("select d.id, d.requestedDelegationFrom.hashedVoterInfo from delegations d " +
+						"where d.id in :ids and d.toProxy = :proxy and d.requestedDelegationFrom is not null", Object[].class)
+				.setParameter("ids", ids)
+				.setParameter("proxy", proxy)
+				.getResultList()
+				.forEach(row -> result.put((Long) row[0], (String) row[1]));
+		return result;
+	}
+
+	/**
+	 * The teams of the voters that requested these delegations.
+	 * @param ids IDs of delegation requests
+	 * @return IDs of all teams that these voters are members of
+	 */
+	public static Set<Long> findTeamIdsOfRequestingVoters(Collection<Long> ids) {
+		if (ids.isEmpty()) return Set.of();
+		return new HashSet<>(getEntityManager().createQuery("select distinct tm.team.id from team_members tm, delegations d " +
+						"where d.id in :ids and tm.user = d.fromUser", Long.class)
+				.setParameter("ids", ids)
+				.getResultList());
+	}
+
+	/** Turn delegation requests into delegations with one bulk update */
+	public static int clearDelegationRequests(Collection<Long> ids) {
+		if (ids.isEmpty()) return 0;
+		return update("requestedDelegationFrom = null, requestedDelegationAt = null where id in ?1", ids);
+	}
+
+	/**
+	 * The user ids of the proxies above a voter, in the order of the chain. (depth 1 is the voter's direct proxy)
+	 * Delegation requests that the proxy has not yet accepted are not delegations. They are skipped.
+	 */
+	static final String SQL_PROXY_USERS = """
+			WITH RECURSIVE proxies(user_id, depth) AS (
+			  SELECT d.toProxy_id, 1 FROM delegations d WHERE d.fromUser_id = :voterId AND d.requestedDelegationFrom_hashedVoterInfo IS NULL
+			  UNION ALL
+			  SELECT d.toProxy_id, p.depth + 1 FROM delegations d JOIN proxies p ON d.fromUser_id = p.user_id
+			  WHERE d.requestedDelegationFrom_hashedVoterInfo IS NULL AND p.depth < :maxDepth
+			)
+			SELECT user_id FROM proxies ORDER BY depth
+			""";
+
+	/**
+	 * Walk up the accepted delegations from a voter in one query.
+	 * @param voter a voter
+	 * @param maxDepth maximum length of the returned chain
+	 * @return the voter's direct proxy, its proxy and so on. Empty if the voter has not delegated.
+	 */
+	public static List<UserEntity> findProxies(UserEntity voter, int maxDepth) {
+		List<?> rows = getEntityManager().createNativeQuery(SQL_PROXY_USERS)
+				.setParameter("voterId", voter.id)
+				.setParameter("maxDepth", maxDepth)
+				.getResultList();
+		List<Long> userIds = rows.stream().map(id -> ((Number) id).longValue()).distinct().toList();
+		if (userIds.isEmpty()) return List.of();
+		Map<Long, UserEntity> users = new HashMap<>();
+		for (UserEntity user : UserEntity.<UserEntity>list("id in ?1", userIds)) users.put(user.id, user);
+		return userIds.stream().map(users::get).filter(Objects::nonNull).toList();
+	}
+
 	/**
 	 * @return true if this delegation is requested. Proxy must still confirm.
 	 */
@@ -0,0 +1,295 @@
+package org.liquido.delegation;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The delegations between rightToVotes as a forest of primitive int ids.
+ *
+ * <ul>
+ *   <li>Each rightToVote hash is mapped to an int id.</li>
+ *   <li>parent[id] is the id of the proxy that this rightToVote is delegated to, or NONE.</li>
+ *   <li>subtreeSize[id] is the number of rightToVotes in the subtree below (and including) this one.
+ *       So subtreeSize - 1 is the number of direct and transitive delegations to this proxy.</li>
+ *   <li>The children of each node are kept in compressed sparse row (CSR) form: The children of id are
+ *       childList[childStart[id] .. childStart[id+1]-1]. This is rebuilt lazily after changes.</li>
+ * </ul>
+ *
+ * Delegations can never form a cycle. Cycles in loaded data are cut, {@link #setProxy(String, String)} refuses to create one.
+ *
+ * This class is not thread safe. See {@link DelegationIndex}
+ */
+public class DelegationForest {
+
+	public static final int NONE = -1;
+
+	private final Map<String, Integer> ids = new HashMap<>();
+	private String[] hashes;
+	private int[] parent;
+	private int[] subtreeSize;
+	private int size = 0;
+
+	private int[] childStart;
+	private int[] childList = new int[0];
+	private boolean childrenStale = false;
+
+	public DelegationForest(int initialCapacity) {
+		int capacity = Math.max(16, initialCapacity);
+		hashes = new String[capacity];
+		parent = new int[capacity];
+		subtreeSize = new int[capacity];
+		childStart = new int[capacity + 1];
+	}
+
+	/**
+	 * Build a forest from (hashedVoterInfo, delegatedTo) pairs as they are stored in the DB.
+	 * @param delegations list of [hashedVoterInfo, delegatedTo or null]
+	 * @return the forest. Any cycles in the data have been cut.
+	 */
+	public static DelegationForest build(List<String[]> delegations) {
+		DelegationForest forest = new DelegationForest(delegations.size());
+		for (String[] row : delegations) forest.idOrAdd(row[0]);
+		for (String[] row : delegations) {
+			if (row[1] != null) forest.parent[forest.ids.get(row[0])] = forest.idOrAdd(row[1]);
+		}
+		forest.cutCycles();
+		forest.rebuildChildren();
+		forest.calcSubtreeSizes();
+		return forest;
+	}
+
+	/** @return number of rightToVotes in this forest */
+	public int size() {
+		return size;
+	}
+
+	/** @return the int id of this rightToVote hash or NONE */
+	public int id(String hash) {
+		Integer id = ids.get(hash);
+		return id != null ? id : NONE;
+	}
+
+	public String hash(int id) {
+		return hashes[id];
+	}
+
+	/** @return id of the direct proxy or NONE */
+	public int parentId(int id) {
+		return parent[id];
+	}
+
+	/** @return number of rightToVotes in the subtree below and including this one */
+	public int subtreeSize(int id) {
+		return subtreeSize[id];
+	}
+
+	/**
+	 * Would a delegation from -> toProxy create a cycle?
+	 * That is the case, when "from" is toProxy itself or one of toProxy's (transitive) proxies.
+	 */
+	public boolean wouldCauseCycle(String from, String toProxy) {
+		if (from.equals(toProxy)) return true;
+		int f = id(from);
+		if (f == NONE) return false;   // from is not in the forest yet, so nobody delegates to it
+		for (int x = id(toProxy); x != NONE; x = parent[x]) {
+			if (x == f) return true;
+		}
+		return false;
+	}
+
+	/** @return number of direct and transitive delegations to this proxy */
+	public int countDelegationsTo(String proxyHash) {
+		int id = id(proxyHash);
+		return id == NONE ? 0 : subtreeSize[id] - 1;
+	}
+
+	/** @return hash of the direct proxy of this rightToVote, or null if it is not delegated or unknown */
+	public String proxyOf(String hash) {
+		int x = id(hash);
+		return x == NONE || parent[x] == NONE ? null : hashes[parent[x]];
+	}
+
+	/** @return the chain of proxies from this rightToVote (first element) up to its top proxy (last element). Empty if hash is unknown. */
+	public List<String> proxyChain(String hash) {
+		List<String> chain = new ArrayList<>();
+		for (int x = id(hash); x != NONE; x = parent[x]) chain.add(hashes[x]);
+		return chain;
+	}
+
+	/** @return the hash of the top proxy. This is the hash itself, if it is not delegated. null if hash is unknown. */
+	public String topProxy(String hash) {
+		int x = id(hash);
+		if (x == NONE) return null;
+		while (parent[x] != NONE) x = parent[x];
+		return hashes[x];
+	}
+
+	/** @return true when the child lists must be rebuilt before {@link #children(String)} or {@link #subtree(String)} can be called */
+	public boolean isChildrenStale() {
+		return childrenStale;
+	}
+
+	/** @return hashes of the rightToVotes that are directly delegated to this proxy */
+	public List<String> children(String proxyHash) {
+		if (childrenStale) throw new IllegalStateException("Children are stale. Call rebuildChildren() first.");
+		int id = id(proxyHash);
+		if (id == NONE) return List.of();
+		List<String> result = new ArrayList<>(childStart[id + 1] - childStart[id]);
+		for (int i = childStart[id]; i < childStart[id + 1]; i++) result.add(hashes[childList[i]]);
+		return result;
+	}
+
+	/** @return hashes of all rightToVotes in the subtree below this proxy (breadth first, without the proxy itself) */
+	public List<String> subtree(String proxyHash) {
+		if (childrenStale) throw new IllegalStateException("Children are stale. Call rebuildChildren() first.");
+		int id = id(proxyHash);
+		if (id == NONE) return List.of();
+		int[] queue = new int[subtreeSize[id]];
+		int head = 0, tail = 0;
+		queue[tail++] = id;
+		List<String> result = new ArrayList<>(subtreeSize[id] - 1);
+		while (head < tail) {
+			int x = queue[head++];
+			for (int i = childStart[x]; i < childStart[x + 1]; i++) {
+				queue[tail++] = childList[i];
+				result.add(hashes[childList[i]]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Change the proxy of a rightToVote. The subtree sizes of the old and new ancestors are adjusted.
+	 * @param hash the delegated rightToVote
+	 * @param proxyHash the new proxy or null to remove the delegation
+	 * @throws IllegalArgumentException when this would cause a cycle
+	 */
+	public void setProxy(String hash, String proxyHash) {
+		if (proxyHash != null && wouldCauseCycle(hash, proxyHash))
+			throw new IllegalArgumentException("Delegation would cause a cycle");
+		int x = idOrAdd(hash);
+		int newParent = proxyHash == null ? NONE : idOrAdd(proxyHash);
+		int oldParent = parent[x];
+		if (oldParent == newParent) return;
+		int delta = subtreeSize[x];
+		for (int a = oldParent; a != NONE; a = parent[a]) subtreeSize[a] -= delta;
+		parent[x] = newParent;
+		for (int a = newParent; a != NONE; a = parent[a]) subtreeSize[a] += delta;
+		childrenStale = true;
+	}
+
+	/** Rebuild the CSR child lists from the parent array. O(n) */
+	public void rebuildChildren() {
+		int[] start = new int[hashes.length + 1];   // room for nodes that are added later
+		for (int x = 0; x < size; x++) {
+			if (parent[x] != NONE) start[parent[x] + 1]++;
+		}
+		for (int x = 0; x < size; x++) start[x + 1] += start[x];
+		int[] list = new int[start[size]];
+		int[] fill = Arrays.copyOf(start, size);
+		for (int x = 0; x < size; x++) {
+			if (parent[x] != NONE) list[fill[parent[x]]++] = x;
+		}
+		childStart = start;
+		childList = list;
+		childrenStale = false;
+	}
+
+	//---------- compact binary form. Used for the delegation snapshots of polls.
+
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Serialize this forest: the hashes in the order of their ids and the parent array. Deflate compressed.
+	 * The child lists are not stored. They can be rebuilt from the parent array in O(n).
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(size * 40 + 16);
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(size);
+			for (int x = 0; x < size; x++) out.writeUTF(hashes[x]);
+			for (int x = 0; x < size; x++) out.writeInt(parent[x]);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot serialize DelegationForest", e);  // cannot happen in memory
+		}
+		return bytes.toByteArray();
+	}
+
+	/** Deserialize a forest that was stored with {@link #toBytes()}. Subtree sizes and child lists are rebuilt. */
+	public static DelegationForest fromBytes(byte[] data) {
+		try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+			int version = in.readInt();
+			if (version != FORMAT_VERSION) throw new IllegalArgumentException("Unknown DelegationForest format version " + version);
+			int n = in.readInt();
+			DelegationForest forest = new DelegationForest(n);
+			for (int x = 0; x < n; x++) forest.idOrAdd(in.readUTF());
+			for (int x = 0; x < n; x++) forest.parent[x] = in.readInt();
+			forest.rebuildChildren();
+			forest.calcSubtreeSizes();
+			return forest;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Cannot deserialize DelegationForest", e);
+		}
+	}
+
+	//---------- internals
+
+	private int idOrAdd(String hash) {
+		Integer id = ids.get(hash);
+		if (id != null) return id;
+		if (size == hashes.length) {
+			int capacity = hashes.length * 2;
+			hashes = Arrays.copyOf(hashes, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+			subtreeSize = Arrays.copyOf(subtreeSize, capacity);
+			childStart = Arrays.copyOf(childStart, capacity + 1);   // new nodes have no children until the next rebuild
+		}
+		int newId = size++;
+		ids.put(hash, newId);
+		hashes[newId] = hash;
+		parent[newId] = NONE;
+		subtreeSize[newId] = 1;
+		childStart[newId + 1] = childStart[newId];
+		return newId;
+	}
+
+	/** Walk up from every node. When a walk runs into itself, then cut the cycle at that node. */
+	private void cutCycles() {
+		int[] walk = new int[size];      // 0 = not visited, otherwise the number of the walk + 1
+		for (int start = 0; start < size; start++) {
+			if (walk[start] != 0) continue;
+			int x = start;
+			while (x != NONE && walk[x] == 0) {
+				walk[x] = start + 1;
+				if (parent[x] != NONE && walk[parent[x]] == start + 1) {
+					parent[x] = NONE;       // cycle in data
+					break;
+				}
+				x = parent[x];
+			}
+		}
+	}
+
+	/** Post-order over the CSR child lists from every root */
+	private void calcSubtreeSizes() {
+		int[] order = new int[size];
+		int n = 0;
+		for (int root = 0; root < size; root++) {
+			if (parent[root] != NONE) continue;
+			int head = n;
+			order[n++] = root;
+			while (head < n) {
+				int x = order[head++];
+				for (int i = childStart[x]; i < childStart[x + 1]; i++) order[n++] = childList[i];
+			}
+		}
+		for (int x = 0; x < size; x++) subtreeSize[x] = 1;
+		for (int i = n - 1; i >= 0; i--) {
+			int x = order[i];
+			if (parent[x] != NONE) subtreeSize[parent[x]] += subtreeSize[x];
+		}
+	}
+}
@@ -1,9 +1,11 @@
 package org.liquido.delegation;
 
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.inject.Inject;
 import jakarta.transaction.Transactional;
 import org.eclipse.microprofile.graphql.*;
+import org.liquido.poll.PollsGraphQL;
 import org.liquido.security.JwtTokenUtils;
 import org.liquido.user.UserEntity;
 import org.liquido.util.LiquidoConfig;
@@ -15,6 +17,7 @@ import java.util.List;
  * In LIQUIDO, a voter can delegate his right to vote to a proxy
  */
 @GraphQLApi
+@RunOnVirtualThread
 public class DelegationGraphQL {
 
 	@Inject
@@ -26,6 +29,9 @@ public class DelegationGraphQL {
 	@Inject
 	DelegationService delegationService;
 
+	@Inject
+	DelegationMetricsService delegationMetricsService;
+
 	@Mutation
 	@RolesAllowed(JwtTokenUtils.LIQUIDO_USER_ROLE)
 	@Description("Delegate your right to vote to a proxy.")
@@ -70,5 +76,20 @@ public class DelegationGraphQL {
 		return delegationService.countDelegationsTo(proxy);
 	}
 
+	@Query
+	@RolesAllowed(JwtTokenUtils.LIQUIDO_USER_ROLE)
+	@Description("Public proxies with the highest voting power.")
+	public List<ProxyVotingPower> topProxies(@Name("limit") @DefaultValue("10") int limit) {
+		return delegationService.getTopPublicProxies(Math.max(1, Math.min(limit, PollsGraphQL.MAX_PAGE_SIZE)));
+	}
+
+	@Query
+	@RolesAllowed(JwtTokenUtils.LIQUIDO_ADMIN_ROLE)
+	@Description("Key figures of the delegation topology: longest chain, fan-in distribution, share of the top proxies and orphaned rightToVotes. " +
+			"Recalculated in the background. null until the first calculation has finished.")
+	public DelegationMetrics delegationMetrics() {
+		return delegationMetricsService.getMetrics();
+	}
+
 
 }
\ No newline at end of file
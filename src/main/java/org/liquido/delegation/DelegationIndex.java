@@ -0,0 +1,176 @@
+package org.liquido.delegation;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.control.ActivateRequestContext;
+import jakarta.enterprise.event.Observes;
+import jakarta.enterprise.event.TransactionPhase;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.util.LiquidoConfig;
+import org.liquido.vote.RightToVoteEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * In-memory index of all delegations between rightToVotes in this deployment. See {@link DelegationForest}
+ *
+ * Cycle checks, delegation counts, proxy chains and the delegees of a proxy are answered from memory,
+ * instead of walking the delegation tree in the DB.
+ *
+ * <ul>
+ *   <li>The index is loaded on startup with one query.</li>
+ *   <li>It is kept up to date with {@link DelegationsChangedEvent}s. They are applied after their transaction has been committed.</li>
+ *   <li>It is reloaded completely every liquido.delegation-index.reload-interval, in case any change was missed.</li>
+ * </ul>
+ *
+ * Changes made by other backend nodes only become visible with the next reload!
+ * In a multi node deployment keep the reload interval short or disable the index. Then the recursive queries
+ * in {@link RightToVoteEntity} are used.
+ */
+@Slf4j
+@ApplicationScoped
+public class DelegationIndex {
+
+	@Inject
+	LiquidoConfig config;
+
+	/** null until the index has been loaded */
+	private DelegationForest forest = null;
+
+	/** Changes that are applied while a reload is running. They are applied again to the reloaded forest. null when not reloading. */
+	private List<DelegationsChangedEvent.Change> changesDuringReload = null;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	@ActivateRequestContext   // the Hibernate session needs a request context to choose its datasource. See ReplicaTenantResolver
+	void onStart(@Observes StartupEvent ev) {
+		if (!config.delegationIndex().enabled()) return;
+		reload();
+	}
+
+	/** @return true when the index is enabled and loaded. Otherwise callers must query the DB. */
+	public boolean isReady() {
+		return forest != null;
+	}
+
+	/**
+	 * Load all delegations from the DB and replace the current forest.
+	 * Changes that are committed while loading are applied to the new forest before it is swapped in.
+	 */
+	@Scheduled(every = "${liquido.delegation-index.reload-interval:1h}", delayed = "${liquido.delegation-index.reload-interval:1h}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	public void reload() {
+		if (!config.delegationIndex().enabled()) return;
+		lock.writeLock().lock();
+		try {
+			changesDuringReload = new ArrayList<>();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		try {
+			long start = System.currentTimeMillis();
+			List<String[]> delegations = QuarkusTransaction.requiringNew().call(RightToVoteEntity::findAllDelegations);
+			DelegationForest newForest = DelegationForest.build(delegations);
+			lock.writeLock().lock();
+			try {
+				for (DelegationsChangedEvent.Change change : changesDuringReload) applyChange(newForest, change);
+				newForest.rebuildChildren();
+				forest = newForest;
+			} finally {
+				changesDuringReload = null;
+				lock.writeLock().unlock();
+			}
+			log.info("DelegationIndex loaded {} rightToVotes in {} ms", newForest.size(), System.currentTimeMillis() - start);
+		} catch (RuntimeException e) {
+			lock.writeLock().lock();
+			try {
+				changesDuringReload = null;
+			} finally {
+				lock.writeLock().unlock();
+			}
+			log.error("Cannot load DelegationIndex. Delegations will be queried from the DB.", e);
+		}
+	}
+
+	/** Apply changed delegations, after they have been committed. */
+	void onDelegationsChanged(@Observes(during = TransactionPhase.AFTER_SUCCESS) DelegationsChangedEvent event) {
+		lock.writeLock().lock();
+		try {
+			if (changesDuringReload != null) changesDuringReload.addAll(event.changes());
+			if (forest == null) return;
+			for (DelegationsChangedEvent.Change change : event.changes()) applyChange(forest, change);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static void applyChange(DelegationForest forest, DelegationsChangedEvent.Change change) {
+		try {
+			forest.setProxy(change.rightToVoteHash(), change.proxyHash());
+		} catch (IllegalArgumentException e) {
+			// Cannot happen, because cycles are checked before a delegation is saved. Then the next reload will fix the index.
+			log.warn("DelegationIndex: Ignoring change that would cause a cycle: {}", change);
+		}
+	}
+
+	//---------- queries. Callers must check isReady() first
+
+	public boolean wouldCauseCycle(String fromHash, String toProxyHash) {
+		return read(f -> f.wouldCauseCycle(fromHash, toProxyHash));
+	}
+
+	public int countDelegationsTo(String proxyHash) {
+		return read(f -> f.countDelegationsTo(proxyHash));
+	}
+
+	/** @return hashes from this rightToVote up to its top proxy */
+	public List<String> proxyChain(String hash) {
+		return read(f -> f.proxyChain(hash));
+	}
+
+	/** @return hash of the top proxy or null if unknown */
+	public String topProxy(String hash) {
+		return read(f -> f.topProxy(hash));
+	}
+
+	/** @return hashes of the rightToVotes that are directly delegated to this proxy */
+	public List<String> children(String proxyHash) {
+		return readChildren(f -> f.children(proxyHash));
+	}
+
+	/** @return hashes of all rightToVotes that are directly or transitively delegated to this proxy */
+	public List<String> subtree(String proxyHash) {
+		return readChildren(f -> f.subtree(proxyHash));
+	}
+
+	private <T> T read(Function<DelegationForest, T> query) {
+		lock.readLock().lock();
+		try {
+			return query.apply(forest);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** The child lists are rebuilt lazily on the first read after a change. */
+	private <T> T readChildren(Function<DelegationForest, T> query) {
+		lock.readLock().lock();
+		try {
+			if (!forest.isChildrenStale()) return query.apply(forest);
+		} finally {
+			lock.readLock().unlock();
+		}
+		lock.writeLock().lock();
+		try {
+			if (forest.isChildrenStale()) forest.rebuildChildren();
+			return query.apply(forest);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
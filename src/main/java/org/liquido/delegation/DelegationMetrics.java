@@ -0,0 +1,133 @@
+package org.liquido.delegation;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Key figures of the delegation topology in this deployment. For operators' dashboards.
+ * All figures are calculated in one pass over a {@link DelegationForest}. See {@link DelegationMetricsService}
+ */
+@Data
+@NoArgsConstructor
+public class DelegationMetrics {
+
+	/** Proxies are grouped by their number of direct delegations into these buckets: 1, 2-5, 6-10, 11-100, 101-1000, more */
+	static final int[] FAN_IN_BUCKETS = { 1, 2, 6, 11, 101, 1001 };
+
+	/** Number of the top proxies in topProxiesShare */
+	static final int NUM_TOP_PROXIES = 10;
+
+	/** Number of proxies that have this many direct delegations */
+	@Data
+	@NoArgsConstructor
+	@AllArgsConstructor
+	public static class FanInBucket {
+		int minDelegations;
+		/** null for the last bucket */
+		Integer maxDelegations;
+		long numProxies;
+	}
+
+	/** Number of all rightToVotes */
+	long numRightToVotes;
+
+	/** Number of rightToVotes that are delegated to a proxy */
+	long numDelegated;
+
+	/** Number of rightToVotes that at least one other rightToVote is directly delegated to */
+	long numProxies;
+
+	/** Number of delegations in the longest chain from a voter up to their top proxy */
+	int longestChain;
+
+	/** Maximum number of direct delegations to one proxy */
+	long maxFanIn;
+
+	/** How many proxies have how many direct delegations */
+	List<FanInBucket> fanIn = new ArrayList<>();
+
+	/** Votes controlled by the NUM_TOP_PROXIES top proxies, including their own */
+	long topProxiesVotingPower;
+
+	/** topProxiesVotingPower / numRightToVotes. Between 0 and 1 */
+	double topProxiesShare;
+
+	/** RightToVotes that are delegated to an expired rightToVote. Their proxy cannot vote for them anymore. */
+	long numOrphaned;
+
+	LocalDateTime calculatedAt;
+
+	long calculationMillis;
+
+	/**
+	 * Calculate the metrics of this forest.
+	 * @param forest all delegations
+	 * @param expiredHashes hashes of the rightToVotes that have expired
+	 */
+	public static DelegationMetrics calculate(DelegationForest forest, Set<String> expiredHashes) {
+		long start = System.currentTimeMillis();
+		int n = forest.size();
+		DelegationMetrics metrics = new DelegationMetrics();
+		metrics.numRightToVotes = n;
+
+		int[] directDelegations = new int[n];
+		int[] depth = new int[n];          // number of delegations up to the top proxy. -1 = not yet known
+		int[] path = new int[n];
+		Arrays.fill(depth, -1);
+		PriorityQueue<Integer> topProxies = new PriorityQueue<>(NUM_TOP_PROXIES + 1);   // smallest voting power first
+
+		for (int x = 0; x < n; x++) {
+			int p = forest.parentId(x);
+			if (p == DelegationForest.NONE) {
+				if (forest.subtreeSize(x) > 1) {
+					topProxies.add(forest.subtreeSize(x));
+					if (topProxies.size() > NUM_TOP_PROXIES) topProxies.poll();
+				}
+			} else {
+				metrics.numDelegated++;
+				directDelegations[p]++;
+				if (expiredHashes.contains(forest.hash(p))) metrics.numOrphaned++;
+			}
+
+			//----- depth: walk up until a node with known depth, then fill in the path downwards. O(n) over all x
+			int len = 0;
+			int a = x;
+			while (a != DelegationForest.NONE && depth[a] < 0) {
+				path[len++] = a;
+				a = forest.parentId(a);
+			}
+			int d = a == DelegationForest.NONE ? -1 : depth[a];
+			for (int i = len - 1; i >= 0; i--) depth[path[i]] = ++d;
+			metrics.longestChain = Math.max(metrics.longestChain, depth[x]);
+		}
+
+		long[] bucketCounts = new long[FAN_IN_BUCKETS.length];
+		for (int x = 0; x < n; x++) {
+			int fanIn = directDelegations[x];
+			if (fanIn == 0) continue;
+			metrics.numProxies++;
+			metrics.maxFanIn = Math.max(metrics.maxFanIn, fanIn);
+			int bucket = FAN_IN_BUCKETS.length - 1;
+			while (FAN_IN_BUCKETS[bucket] > fanIn) bucket--;
+			bucketCounts[bucket]++;
+		}
+		for (int i = 0; i < FAN_IN_BUCKETS.length; i++) {
+			Integer max = i + 1 < FAN_IN_BUCKETS.length ? FAN_IN_BUCKETS[i + 1] - 1 : null;
+			metrics.fanIn.add(new FanInBucket(FAN_IN_BUCKETS[i], max, bucketCounts[i]));
+		}
+
+		for (int votingPower : topProxies) metrics.topProxiesVotingPower += votingPower;
+		metrics.topProxiesShare = n == 0 ? 0 : (double) metrics.topProxiesVotingPower / n;
+		metrics.calculatedAt = LocalDateTime.now();
+		metrics.calculationMillis = System.currentTimeMillis() - start;
+		return metrics;
+	}
+}
@@ -0,0 +1,48 @@
+package org.liquido.delegation;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.util.LiquidoConfig;
+import org.liquido.vote.RightToVoteEntity;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Calculates the {@link DelegationMetrics} in the background.
+ *
+ * Calculating them needs a full scan over all rightToVotes. So requests never do that inline. They only get the last calculated metrics.
+ * The metrics are recalculated every liquido.delegation-metrics.refresh-interval. calculatedAt tells how old they are.
+ */
+@Slf4j
+@ApplicationScoped
+public class DelegationMetricsService {
+
+	@Inject
+	LiquidoConfig config;
+
+	/** null until the first calculation has finished */
+	private volatile DelegationMetrics metrics = null;
+
+	/** @return the last calculated metrics or null if they have not been calculated yet */
+	public DelegationMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Scheduled(every = "${liquido.delegation-metrics.refresh-interval:5m}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	public void refresh() {
+		if (!config.delegationMetrics().enabled()) return;
+		try {
+			Set<String> expiredHashes = new HashSet<>();
+			List<String[]> delegations = QuarkusTransaction.requiringNew().call(() -> RightToVoteEntity.findAllDelegations(expiredHashes));
+			metrics = DelegationMetrics.calculate(DelegationForest.build(delegations), expiredHashes);
+			log.debug("DelegationMetrics of {} rightToVotes calculated in {} ms", metrics.getNumRightToVotes(), metrics.getCalculationMillis());
+		} catch (RuntimeException e) {
+			log.error("Cannot calculate DelegationMetrics. Keeping the previous ones.", e);
+		}
+	}
+}
@@ -1,19 +1,21 @@
 package org.liquido.delegation;
 
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Event;
 import jakarta.inject.Inject;
 import jakarta.transaction.Transactional;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityKey;
 import org.liquido.security.JwtTokenUtils;
+import org.liquido.team.TeamMemberEntity;
 import org.liquido.user.UserEntity;
 import org.liquido.util.LiquidoConfig;
 import org.liquido.util.LiquidoException;
 import org.liquido.vote.RightToVoteEntity;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 @Slf4j
 @ApplicationScoped
@@ -25,6 +27,12 @@ public class DelegationService {
 	@Inject
 	LiquidoConfig config;
 
+	@Inject
+	DelegationIndex delegationIndex;
+
+	@Inject
+	Event<DelegationsChangedEvent> delegationsChanged;
+
 	/**
 	 * A voter delegates his RightToVote to a proxy.
 	 * Then the proxy will cast ballots for him.
@@ -56,7 +64,12 @@ public class DelegationService {
 			DelegationEntity.buildDelegationRequest(currentUser, proxy, usersRightToVote);
 		} else {
 			log.info("Delegation: {} delegates to proxy {}", currentUser.toStringShort(), proxy.toStringShort());
+			LockedChains chains = lockChains(usersRightToVote.getHashedVoterInfo(), proxyRightToVote.getHashedVoterInfo());
+			if (chains.newChain().contains(usersRightToVote.getHashedVoterInfo()))
+				throw new LiquidoException(LiquidoException.Errors.CANNOT_ASSIGN_CIRCULAR_PROXY, "Delegation to this proxy would cause a circle. This proxy or one of his proxies already delegate his RightToVote to you. You can already vote for this user.");
+			moveVotingPower(chains.votingPower(), chains.oldChain(), chains.newChain());
 			usersRightToVote.delegateToProxy(proxyRightToVote);
+			delegationsChanged.fire(DelegationsChangedEvent.of(teamIdsOf(currentUser), usersRightToVote.getHashedVoterInfo(), proxyRightToVote.getHashedVoterInfo()));
 		}
 
 		proxyRightToVote.persist();
@@ -77,9 +90,12 @@ public class DelegationService {
 		if (proxiesRightToVote == null) return;
 
 		log.info("Delegations: {} removes his delegation", currentUser.toStringShort());  // We don't know the proxy user here.
+		LockedChains chains = lockChains(usersRightToVote.getHashedVoterInfo(), null);
+		moveVotingPower(chains.votingPower(), chains.oldChain(), chains.newChain());
 		usersRightToVote.removeDelegationToProxy();
 		proxiesRightToVote.persist();
 		usersRightToVote.persist();
+		delegationsChanged.fire(DelegationsChangedEvent.of(teamIdsOf(currentUser), usersRightToVote.getHashedVoterInfo(), null));
 	}
 
 	public List<DelegationEntity> getDelegationRequests() throws LiquidoException {
@@ -88,48 +104,253 @@ public class DelegationService {
 		return DelegationEntity.findDelegationRequestsTo(proxy);
 	}
 
-	public void acceptDelegationRequests(List<Long> delegationRequestIds) throws LiquidoException {
+	/**
+	 * The current user (a proxy) accepts delegation requests. This is set based, so that a public proxy can accept thousands of requests at once:
+	 * <ol>
+	 *   <li>Load the requested rightToVotes, this proxy and all proxies above them with one recursive query and lock their rows.</li>
+	 *   <li>Check for cycles in one pass: A request would cause a cycle, when the requesting rightToVote is this proxy or one of the proxies above it.
+	 *       All accepted delegations point to this proxy. So the chain above this proxy does not change within the batch.</li>
+	 *   <li>Update righttovote.delegated_to of all accepted rightToVotes with one statement and clear the accepted requests.
+	 *       The proxy's collection of delegations is never loaded.</li>
+	 *   <li>Update the voting power of all affected proxies and fire one {@link DelegationsChangedEvent}.</li>
+	 *   <li>Refresh the affected entities that are already loaded in this transaction, because the bulk updates bypass them.</li>
+	 * </ol>
+	 * Requests that would cause a cycle stay pending. IDs of requests to other proxies are ignored.
+	 *
+	 * @param delegationRequestIds IDs of delegation requests to the current user
+	 * @return number of accepted delegation requests
+	 */
+	@Transactional
+	public int acceptDelegationRequests(List<Long> delegationRequestIds) throws LiquidoException {
 		UserEntity proxy = jwtTokenUtils.getCurrentUser()
 				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.UNAUTHORIZED, "Must be logged in to accept delegation requests"));
 		RightToVoteEntity proxyRightToVote = RightToVoteEntity.findByVoter(proxy, config.hashSecret())
 				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.CANNOT_ASSIGN_PROXY, "Cannot delegate to Proxy. Cannot find RightToVote"));
+		String proxyHash = proxyRightToVote.getHashedVoterInfo();
 
-		DelegationEntity.findByIds(delegationRequestIds).forEach(delegationRequest -> {
-			RightToVoteEntity requestedDelegationFrom = delegationRequest.getRequestedDelegationFrom();
-			if (requestedDelegationFrom == null) return;
-			requestedDelegationFrom.delegateToProxy(proxyRightToVote);
-		});
+		Map<Long, String> requests = DelegationEntity.findRequestedRightToVotes(proxy, delegationRequestIds);
+		if (requests.isEmpty()) return 0;
+		Set<String> startHashes = new HashSet<>(requests.values());
+		startHashes.add(proxyHash);
+		Map<String, RightToVoteEntity.DelegationRow> rows = lockAncestors(startHashes);
+
+		//----- cycle check for the whole batch
+		Set<String> proxyChain = new HashSet<>();
+		String chainHash = proxyHash;
+		while (chainHash != null && proxyChain.add(chainHash)) {
+			RightToVoteEntity.DelegationRow row = rows.get(chainHash);
+			chainHash = row != null ? row.delegatedTo() : null;
+		}
+		List<Long> acceptedIds = new ArrayList<>();
+		Set<String> accepted = new LinkedHashSet<>();
+		for (Map.Entry<Long, String> request : requests.entrySet()) {
+			if (proxyChain.contains(request.getValue())) {
+				log.info("Delegation request id={} to {} would cause a circle. It stays pending.", request.getKey(), proxy.toStringShort());
+				continue;
+			}
+			acceptedIds.add(request.getKey());
+			accepted.add(request.getValue());
+		}
+		if (acceptedIds.isEmpty()) return 0;
+
+		//----- bulk updates
+		Set<Long> teamIds = DelegationEntity.findTeamIdsOfRequestingVoters(acceptedIds);
+		Map<String, Long> deltas = votingPowerDeltas(rows, accepted, proxyHash);
+		RightToVoteEntity.update("delegatedTo = ?1 where hashedVoterInfo in ?2", proxyRightToVote, accepted);
+		DelegationEntity.clearDelegationRequests(acceptedIds);
+		Map<Long, List<String>> hashesByDelta = new HashMap<>();
+		deltas.forEach((hash, delta) -> hashesByDelta.computeIfAbsent(delta, d -> new ArrayList<>()).add(hash));
+		hashesByDelta.forEach((delta, hashes) -> RightToVoteEntity.addVotingPower(hashes, delta));
+		Set<String> changedHashes = new HashSet<>(accepted);
+		changedHashes.addAll(deltas.keySet());
+		refreshLoaded(RightToVoteEntity.class, changedHashes);
+		refreshLoaded(DelegationEntity.class, new HashSet<>(acceptedIds));
+
+		log.info("Delegation: {} accepted {} delegation requests", proxy.toStringShort(), acceptedIds.size());
+		List<DelegationsChangedEvent.Change> changes = new ArrayList<>();
+		for (String hash : accepted) changes.add(new DelegationsChangedEvent.Change(hash, proxyHash));
+		delegationsChanged.fire(new DelegationsChangedEvent(teamIds, changes));
+		return acceptedIds.size();
+	}
+
+	/**
+	 * Bulk updates bypass the persistence context. Entities that were already loaded in this transaction, e.g. the proxy's own rightToVote,
+	 * would still show their old delegation and voting power. Refresh them. Entities that are not loaded are not touched.
+	 * @param entityClass the class of the updated entities
+	 * @param ids IDs of all updated rows
+	 */
+	private static void refreshLoaded(Class<?> entityClass, Set<?> ids) {
+		Session session = RightToVoteEntity.getEntityManager().unwrap(Session.class);
+		for (Object loaded : new ArrayList<>(session.getStatistics().getEntityKeys())) {
+			EntityKey key = (EntityKey) loaded;
+			if (key.getEntityName().equals(entityClass.getName()) && ids.contains(key.getIdentifier())) {
+				session.refresh(session.getReference(entityClass, key.getIdentifier()));
+			}
+		}
+	}
+
+	/**
+	 * Calculate how the voting power of proxies changes, when these rightToVotes are delegated to one proxy.
+	 * The delegations are applied one after the other, because a rightToVote may be in the subtree of another one in the same batch.
+	 * @param rows the moved rightToVotes, the new proxy and all proxies above them
+	 * @param moved hashes of the rightToVotes that are now delegated to proxyHash. Must not cause a cycle.
+	 * @param proxyHash the new proxy
+	 * @return change of voting power by hash. Only contains changes that are not zero.
+	 */
+	static Map<String, Long> votingPowerDeltas(Map<String, RightToVoteEntity.DelegationRow> rows, Collection<String> moved, String proxyHash) {
+		Map<String, String> parent = new HashMap<>();
+		Map<String, Long> power = new HashMap<>();
+		for (RightToVoteEntity.DelegationRow row : rows.values()) {
+			parent.put(row.hashedVoterInfo(), row.delegatedTo());
+			power.put(row.hashedVoterInfo(), row.votingPower());
+		}
+		int maxSteps = rows.size();   // guard against cycles in the data
+		Map<String, Long> deltas = new HashMap<>();
+		for (String hash : moved) {
+			long votingPower = power.getOrDefault(hash, 1L);
+			int steps = 0;
+			for (String a = parent.get(hash); a != null && steps++ <= maxSteps; a = parent.get(a)) {
+				power.merge(a, -votingPower, Long::sum);
+				deltas.merge(a, -votingPower, Long::sum);
+			}
+			parent.put(hash, proxyHash);
+			steps = 0;
+			for (String a = proxyHash; a != null && steps++ <= maxSteps; a = parent.get(a)) {
+				power.merge(a, votingPower, Long::sum);
+				deltas.merge(a, votingPower, Long::sum);
+			}
+		}
+		deltas.values().removeIf(delta -> delta == 0);
+		return deltas;
 	}
 
 	/**
 	 * Count how many voters delegate to this proxy, including transitive delegations.
+	 * This is read from the proxy's maintained voting power.
 	 */
 	public long countDelegationsTo(@NonNull UserEntity proxy) throws LiquidoException {
 		RightToVoteEntity proxyRightToVote = RightToVoteEntity.findByVoter(proxy, config.hashSecret())
 				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.CANNOT_ASSIGN_PROXY, "Cannot count delegations. Cannot find RightToVote for proxy."));
-		return countDelegationsRec(proxyRightToVote, new HashSet<>());
+		return proxyRightToVote.getVotingPower() - 1;
+	}
+
+	/**
+	 * The public proxies with the most voting power
+	 * @param limit maximum number of proxies
+	 * @return public proxies and their voting power, highest first
+	 */
+	public List<ProxyVotingPower> getTopPublicProxies(int limit) {
+		List<ProxyVotingPower> result = new ArrayList<>();
+		for (RightToVoteEntity rightToVote : RightToVoteEntity.findTopPublicProxies(limit)) {
+			result.add(new ProxyVotingPower(rightToVote.getPublicProxy(), rightToVote.getVotingPower()));
+		}
+		return result;
 	}
 
-	private long countDelegationsRec(RightToVoteEntity proxyRightToVote, Set<String> visited) {
-		if (!visited.add(proxyRightToVote.getHashedVoterInfo())) return 0;
+	/**
+	 * When a rightToVote is (re)delegated, then its voting power moves from the proxies above its old proxy to the proxies above its new one.
+	 * Proxies that are in both chains keep their voting power. Call this BEFORE the delegation is changed.
+	 * @param votingPower voting power of the delegated rightToVote
+	 * @param oldChain hashes of the old proxy and the proxies above it
+	 * @param newChain hashes of the new proxy and the proxies above it
+	 */
+	private void moveVotingPower(long votingPower, Collection<String> oldChain, Collection<String> newChain) {
+		Set<String> lose = new HashSet<>(oldChain);
+		newChain.forEach(lose::remove);
+		Set<String> gain = new HashSet<>(newChain);
+		oldChain.forEach(gain::remove);
+		RightToVoteEntity.addVotingPower(lose, -votingPower);
+		RightToVoteEntity.addVotingPower(gain, votingPower);
+	}
 
-		long count = 0;
-		for (RightToVoteEntity delegatedRightToVote : proxyRightToVote.getDelegations()) {
-			count += 1 + countDelegationsRec(delegatedRightToVote, visited);
+	/** The rightToVote of a voter is used in all teams that the voter is a member of. So a change of their delegation affects the polls of all these teams. */
+	private static Set<Long> teamIdsOf(UserEntity voter) {
+		Set<Long> teamIds = new HashSet<>();
+		for (TeamMemberEntity.Membership membership : TeamMemberEntity.findMembershipsOfUser(voter.id)) teamIds.add(membership.teamId());
+		return teamIds;
+	}
+
+	/** How often the chains are read again, when they changed while they were locked */
+	private static final int MAX_LOCK_ATTEMPTS = 5;
+
+	/**
+	 * The proxy chains of a rightToVote as they are stored in the DB. All their rows are locked until the end of the transaction.
+	 * @param votingPower current voting power of the rightToVote
+	 * @param oldChain its current proxy and all proxies above it
+	 * @param newChain the new proxy and all proxies above it. Empty when the delegation is removed.
+	 */
+	record LockedChains(long votingPower, List<String> oldChain, List<String> newChain) {}
+
+	/**
+	 * Read the current and the new chain of proxies of a rightToVote from the DB and lock the rightToVote and all these proxies.
+	 *
+	 * Voting power must be moved along the chains as they are committed. The {@link DelegationIndex} is only a cache of this node
+	 * and may be stale. So the chains are read with a recursive query in the writing transaction. A link in a chain can only change,
+	 * when the delegation of that rightToVote changes. That transaction must lock the same row. So we read the chains, lock their rows
+	 * and read them again. If they did not change in between, then they are stable until we commit.
+	 *
+	 * @param rightToVoteHash the rightToVote that is (re)delegated. Its delegation in the DB is the old one.
+	 * @param newProxyHash the new proxy or null when the delegation is removed
+	 * @throws LiquidoException when the chains keep changing
+	 */
+	private LockedChains lockChains(String rightToVoteHash, String newProxyHash) throws LiquidoException {
+		for (int attempt = 0; attempt < MAX_LOCK_ATTEMPTS; attempt++) {
+			List<String> oldChain = proxyChainAbove(rightToVoteHash);
+			List<String> newChain = proxyChain(newProxyHash);
+			Set<String> hashes = new HashSet<>(oldChain);
+			hashes.addAll(newChain);
+			hashes.add(rightToVoteHash);
+			Map<String, Long> votingPower = RightToVoteEntity.lockVotingPower(hashes);
+			if (oldChain.equals(proxyChainAbove(rightToVoteHash)) && newChain.equals(proxyChain(newProxyHash))) {
+				return new LockedChains(votingPower.getOrDefault(rightToVoteHash, 1L), oldChain, newChain);
+			}
+			log.debug("Delegation chains of a rightToVote changed while they were locked. Reading them again.");
+		}
+		throw new LiquidoException(LiquidoException.Errors.CANNOT_ASSIGN_PROXY, "Delegations above this proxy are currently changing. Please try again.");
+	}
+
+	/**
+	 * Load these rightToVotes and all proxies above them and lock all their rows. Same as {@link #lockChains(String, String)} for many rightToVotes.
+	 * @return the locked rows with their current delegation and voting power
+	 */
+	private Map<String, RightToVoteEntity.DelegationRow> lockAncestors(Set<String> startHashes) throws LiquidoException {
+		for (int attempt = 0; attempt < MAX_LOCK_ATTEMPTS; attempt++) {
+			Map<String, RightToVoteEntity.DelegationRow> rows = RightToVoteEntity.findDelegationAncestors(startHashes);
+			RightToVoteEntity.lockVotingPower(rows.keySet());
+			Map<String, RightToVoteEntity.DelegationRow> lockedRows = RightToVoteEntity.findDelegationAncestors(startHashes);
+			if (proxies(rows).equals(proxies(lockedRows))) return lockedRows;
+			log.debug("Delegation chains of {} rightToVotes changed while they were locked. Reading them again.", startHashes.size());
 		}
-		return count;
+		throw new LiquidoException(LiquidoException.Errors.CANNOT_ASSIGN_PROXY, "Delegations above this proxy are currently changing. Please try again.");
 	}
 
+	private static Map<String, String> proxies(Map<String, RightToVoteEntity.DelegationRow> rows) {
+		Map<String, String> proxies = new HashMap<>();
+		rows.forEach((hash, row) -> proxies.put(hash, row.delegatedTo()));
+		return proxies;
+	}
+
+	/** This proxy and all proxies above it, as currently stored in the DB */
+	private List<String> proxyChain(String proxyHash) {
+		if (proxyHash == null) return List.of();
+		return RightToVoteEntity.findProxyChain(proxyHash, null).stream()
+				.map(RightToVoteEntity.ProxyChainLink::hashedVoterInfo)
+				.toList();
+	}
+
+	/** All proxies above this rightToVote, as currently stored in the DB */
+	private List<String> proxyChainAbove(String rightToVoteHash) {
+		List<String> chain = proxyChain(rightToVoteHash);
+		return chain.isEmpty() ? chain : chain.subList(1, chain.size());
+	}
 
 	/**
 	 * Check if adding this delegation would create a cycle.
+	 * That is the case, when the user is already in the chain of proxies above this proxy.
 	 */
 	public boolean delegationWouldCauseCycle(RightToVoteEntity usersRightToVote, RightToVoteEntity proxy) {
-		RightToVoteEntity current = proxy;
-		while (current != null) {
-			if (usersRightToVote.equals(current)) return true;
-			current = current.getDelegatedTo();
-		}
-		return false;
+		if (delegationIndex.isReady()) return delegationIndex.wouldCauseCycle(usersRightToVote.getHashedVoterInfo(), proxy.getHashedVoterInfo());
+		return RightToVoteEntity.findProxyChain(proxy.getHashedVoterInfo(), null).stream()
+				.anyMatch(link -> link.hashedVoterInfo().equals(usersRightToVote.getHashedVoterInfo()));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package org.liquido.delegation;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.TypedQuery;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+import org.liquido.poll.PollEntity;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The delegations between all rightToVotes, copied when the voting phase of a poll started and kept up to date by the {@link RepropagationService}.
+ * Stored as a compact {@link DelegationForest#toBytes() blob}. See {@link DelegationSnapshotService}
+ */
+@Data
+@NoArgsConstructor
+@EqualsAndHashCode(callSuper = false)
+@Entity(name = "poll_delegation_snapshots")
+public class DelegationSnapshotEntity extends PanacheEntityBase {
+
+	/** ID of the poll. There is exactly one snapshot per poll. */
+	@Id
+	Long pollId;
+
+	/** The serialized {@link DelegationForest} */
+	@Column(nullable = false)
+	@JdbcTypeCode(SqlTypes.LONG32VARBINARY)
+	byte[] data;
+
+	/** Number of rightToVotes in the snapshot */
+	int numRightToVotes;
+
+	LocalDateTime createdAt;
+
+	/** Incremented every time the snapshot is changed. Cached snapshots with an older revision are reloaded. */
+	long revision = 0;
+
+	/**
+	 * @param teamIds only polls of these teams. null for all teams.
+	 * @return IDs of the polls that are in voting and have a delegation snapshot
+	 */
+	public static List<Long> findPollIdsInVoting(Collection<Long> teamIds) {
+		if (teamIds != null && teamIds.isEmpty()) return List.of();
+		String teamFilter = teamIds != null ? " and p.team.id in :teamIds" : "";
+		TypedQuery<Long> query = getEntityManager().createQuery("select s.pollId from poll_delegation_snapshots s " +
+						"where s.pollId in (select p.id from polls p where p.status = :status" + teamFilter + ")", Long.class)
+				.setParameter("status", PollEntity.PollStatus.VOTING);
+		if (teamIds != null) query.setParameter("teamIds", teamIds);
+		return query.getResultList();
+	}
+
+	/**
+	 * Lock the snapshot of a poll for casting votes and get its revision. Votes share this lock. The {@link RepropagationService}
+	 * needs an exclusive lock to change the snapshot. So a vote never propagates along a snapshot that is being changed.
+	 * @return the current revision of the snapshot or Optional.empty() if the poll has no snapshot
+	 */
+	public static Optional<Long> lockForVoting(long pollId) {
+		return getEntityManager().createQuery("select s.revision from poll_delegation_snapshots s where s.pollId = :pollId", Long.class)
+				.setParameter("pollId", pollId)
+				.setLockMode(LockModeType.PESSIMISTIC_READ)
+				.getResultStream()
+				.findFirst();
+	}
+}
@@ -0,0 +1,143 @@
+package org.liquido.delegation;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.LockModeType;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.poll.PollEntity;
+import org.liquido.util.LiquidoConfig;
+import org.liquido.vote.RightToVoteEntity;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Per poll snapshots of the delegations.
+ *
+ * When the voting phase of a poll starts, then the delegations between all rightToVotes are copied into a {@link DelegationForest}
+ * and stored with the poll. Casting votes, propagating a proxy's ballot to their delegees and finding the effective proxy of a voter
+ * then only read this snapshot. No entity graph needs to be loaded per vote.
+ *
+ * The snapshot is not frozen for the whole voting phase: Delegations that are changed during voting are applied to the snapshot
+ * by the {@link RepropagationService}, together with the ballots that change because of them. So the ballots of a poll always match
+ * its snapshot, and the final result counts the delegations as they were when the voting phase ended.
+ * Each change increments the snapshot's revision. Votes lock the snapshot row with {@link #lockForVoting(PollEntity)}
+ * and reload the cached forest when the revision changed.
+ *
+ * The last recently used snapshots are cached in memory for liquido.delegation-snapshot.cache-ttl.
+ * Polls that were started before snapshots existed have none. Then callers fall back to the live delegations.
+ */
+@Slf4j
+@ApplicationScoped
+public class DelegationSnapshotService {
+
+	@Inject
+	LiquidoConfig config;
+
+	/** A loaded snapshot. forest is empty for polls without a snapshot. */
+	private record CachedSnapshot(Optional<DelegationForest> forest, long revision, long loadedAt) {}
+
+	/** LRU cache of loaded snapshots by poll.id */
+	private Map<Long, CachedSnapshot> cache = null;
+
+	private synchronized Map<Long, CachedSnapshot> cache() {
+		if (cache == null) {
+			int maxCached = config.delegationSnapshot().cacheSize();
+			cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, CachedSnapshot> eldest) {
+					return size() > maxCached;
+				}
+			});
+		}
+		return cache;
+	}
+
+	/**
+	 * Freeze the current delegations for this poll. Must be called inside the transaction that starts the voting phase.
+	 * @param poll a poll that is just being started
+	 */
+	public void createSnapshot(PollEntity poll) {
+		if (!config.delegationSnapshot().enabled()) return;
+		long start = System.currentTimeMillis();
+		DelegationForest forest = DelegationForest.build(RightToVoteEntity.findAllDelegations());
+		DelegationSnapshotEntity snapshot = DelegationSnapshotEntity.<DelegationSnapshotEntity>findByIdOptional(poll.id).orElseGet(DelegationSnapshotEntity::new);
+		snapshot.setPollId(poll.id);
+		snapshot.setData(forest.toBytes());
+		snapshot.setNumRightToVotes(forest.size());
+		snapshot.setCreatedAt(LocalDateTime.now());
+		snapshot.persist();
+		cache().put(poll.id, new CachedSnapshot(Optional.of(forest), snapshot.getRevision(), System.currentTimeMillis()));
+		log.info("Delegation snapshot of poll.id={}: {} rightToVotes, {} bytes, {} ms", poll.id, forest.size(), snapshot.getData().length, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @param poll a poll in voting or finished
+	 * @return the delegations of this poll or Optional.empty() if it has no snapshot
+	 */
+	public Optional<DelegationForest> getSnapshot(PollEntity poll) {
+		if (poll == null || poll.id == null || !config.delegationSnapshot().enabled()) return Optional.empty();
+		long now = System.currentTimeMillis();
+		long ttl = config.delegationSnapshot().cacheTtl().toMillis();
+		CachedSnapshot cached = cache().get(poll.id);
+		if (cached == null || now - cached.loadedAt() > ttl) cached = load(poll.id);
+		return cached.forest();
+	}
+
+	/**
+	 * Lock the snapshot of a poll for casting votes. Must be called in the transaction that casts the votes, before the snapshot is read.
+	 * Votes share this lock. Changes of the snapshot by the {@link RepropagationService} wait until the votes are committed, and vice versa.
+	 * When the snapshot has been changed since it was cached, e.g. by another backend node, then it is reloaded.
+	 * @param poll a poll in voting
+	 */
+	public void lockForVoting(PollEntity poll) {
+		if (poll == null || poll.id == null || !config.delegationSnapshot().enabled()) return;
+		Optional<Long> revision = DelegationSnapshotEntity.lockForVoting(poll.id);
+		CachedSnapshot cached = cache().get(poll.id);
+		if (revision.isPresent() && (cached == null || cached.forest().isEmpty() || cached.revision() != revision.get())) load(poll.id);
+	}
+
+	private CachedSnapshot load(long pollId) {
+		Optional<DelegationSnapshotEntity> snapshot = DelegationSnapshotEntity.findByIdOptional(pollId);
+		CachedSnapshot cached = new CachedSnapshot(snapshot.map(s -> DelegationForest.fromBytes(s.getData())),
+				snapshot.map(DelegationSnapshotEntity::getRevision).orElse(-1L), System.currentTimeMillis());
+		cache().put(pollId, cached);
+		return cached;
+	}
+
+	/**
+	 * Load the snapshot of a poll for changing it. The row is locked until the end of the transaction.
+	 * The returned forest is a new copy. It is not shared with readers.
+	 */
+	public Optional<DelegationForest> loadForUpdate(long pollId) {
+		return DelegationSnapshotEntity.<DelegationSnapshotEntity>findByIdOptional(pollId, LockModeType.PESSIMISTIC_WRITE)
+				.map(s -> DelegationForest.fromBytes(s.getData()));
+	}
+
+	/**
+	 * Store a changed snapshot. Must be called in the transaction of {@link #loadForUpdate(long)}
+	 * @return the new revision of the snapshot
+	 */
+	public long saveSnapshot(long pollId, DelegationForest forest) {
+		DelegationSnapshotEntity snapshot = DelegationSnapshotEntity.findById(pollId);
+		snapshot.setData(forest.toBytes());
+		snapshot.setNumRightToVotes(forest.size());
+		snapshot.setRevision(snapshot.getRevision() + 1);
+		return snapshot.getRevision();
+	}
+
+	/** Replace the cached snapshot of a poll after the changed snapshot has been committed */
+	public void updateCache(long pollId, DelegationForest forest, long revision) {
+		if (forest.isChildrenStale()) forest.rebuildChildren();   // cached forests are only read
+		cache().put(pollId, new CachedSnapshot(Optional.of(forest), revision, System.currentTimeMillis()));
+	}
+
+	/** Delete the snapshot of a poll that is deleted */
+	public void deleteSnapshot(PollEntity poll) {
+		DelegationSnapshotEntity.deleteById(poll.id);
+		cache().remove(poll.id);
+	}
+}
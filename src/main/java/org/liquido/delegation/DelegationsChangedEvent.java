@@ -0,0 +1,25 @@
+package org.liquido.delegation;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Fired when delegations between rightToVotes have been changed.
+ * The {@link DelegationIndex} applies these changes after the transaction has been committed successfully.
+ * The {@link RepropagationService} re-propagates the ballots in the polls of the affected teams.
+ *
+ * @param teamIds the teams of the voters whose delegations changed. Only polls of these teams are affected. null if unknown, then all polls are.
+ * @param changes the changed delegations
+ */
+public record DelegationsChangedEvent(Collection<Long> teamIds, List<Change> changes) {
+
+	/**
+	 * @param rightToVoteHash the delegated rightToVote
+	 * @param proxyHash the rightToVote of its new proxy. null when the delegation was removed.
+	 */
+	public record Change(String rightToVoteHash, String proxyHash) {}
+
+	public static DelegationsChangedEvent of(Collection<Long> teamIds, String rightToVoteHash, String proxyHash) {
+		return new DelegationsChangedEvent(teamIds, List.of(new Change(rightToVoteHash, proxyHash)));
+	}
+}
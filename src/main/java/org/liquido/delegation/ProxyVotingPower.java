@@ -0,0 +1,17 @@
+package org.liquido.delegation;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.liquido.user.UserEntity;
+
+/**
+ * A public proxy and their voting power, i.e. for how many voters (including themselves) they vote.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProxyVotingPower {
+	UserEntity proxy;
+	long votingPower;
+}
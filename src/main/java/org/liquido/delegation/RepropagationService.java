@@ -0,0 +1,269 @@
+package org.liquido.delegation;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.poll.PollEntity;
+import org.liquido.poll.ProposalEntity;
+import org.liquido.util.LiquidoConfig;
+import org.liquido.vote.BallotEntity;
+import org.liquido.vote.RightToVoteEntity;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-propagate ballots when delegations change while a poll is in voting.
+ *
+ * Example: A voter delegates to a proxy that has already voted. Then the proxy's ballot must also be cast for the voter
+ * and for everyone who delegates to the voter. Or a voter removes their delegation. Then the ballots that their former proxy
+ * cast for them must be removed. This can be a large subtree. So it is not done synchronously in delegateTo.
+ * <ol>
+ *   <li>When delegations change, then a {@link RepropagationTaskEntity} is stored for every poll in voting in the teams of the
+ *       delegating voters. This happens in the same transaction as the delegation change.</li>
+ *   <li>A background worker applies the tasks of each poll in order, in one transaction per poll:
+ *       The change is applied to the poll's delegation snapshot. Then the ballots in the subtree below the changed rightToVote are
+ *       recalculated from the ballot of its (new) proxy.</li>
+ *   <li>The worker locks the snapshot row exclusively. Casting a vote holds a shared lock on the same row and reloads the cached snapshot
+ *       when its revision changed. See {@link DelegationSnapshotService#lockForVoting}. So votes and re-propagation never interleave.</li>
+ *   <li>Recalculating is idempotent. When a transaction fails, then the tasks are retried one by one.
+ *       A task that failed liquido.repropagation.max-attempts times is dropped.</li>
+ *   <li>A poll can only be finished when all its tasks have been applied. See {@link #processPendingTasks(long)}</li>
+ * </ol>
+ * Ballots that voters cast for themselves (level 0) are never changed. The number of pending tasks is exposed as the
+ * metric liquido.delegation.repropagation.pending
+ */
+@Slf4j
+@ApplicationScoped
+public class RepropagationService {
+
+	@Inject
+	LiquidoConfig config;
+
+	@Inject
+	DelegationSnapshotService delegationSnapshotService;
+
+	@Inject
+	MeterRegistry registry;
+
+	/** Maximum number of hashes in one IN query */
+	static final int CHUNK_SIZE = 1000;
+
+	private final AtomicLong pendingTasks = new AtomicLong();
+
+	@PostConstruct
+	void initMetrics() {
+		registry.gauge("liquido.delegation.repropagation.pending", pendingTasks);
+	}
+
+	/**
+	 * Enqueue tasks inside the transaction that changes the delegations. So tasks exist if and only if the change is committed.
+	 * Only polls of the teams of the delegating voters are affected. A rightToVote never has a ballot in the polls of other teams.
+	 */
+	void onDelegationsChanged(@Observes DelegationsChangedEvent event) {
+		if (!config.delegationSnapshot().enabled()) return;
+		for (Long pollId : DelegationSnapshotEntity.findPollIdsInVoting(event.teamIds())) {
+			for (DelegationsChangedEvent.Change change : event.changes()) {
+				new RepropagationTaskEntity(pollId, change.rightToVoteHash(), change.proxyHash()).persist();
+				pendingTasks.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Background worker: apply pending tasks.
+	 */
+	@Scheduled(every = "${liquido.repropagation.interval:2s}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	public synchronized void processPendingTasks() {
+		List<RepropagationTaskEntity> tasks = findPendingTasks(null);
+		if (tasks.isEmpty()) {
+			pendingTasks.set(0);
+			return;
+		}
+		Map<Long, List<RepropagationTaskEntity>> tasksByPoll = new LinkedHashMap<>();
+		for (RepropagationTaskEntity task : tasks) tasksByPoll.computeIfAbsent(task.getPollId(), id -> new ArrayList<>()).add(task);
+		tasksByPoll.forEach(this::applyInOrder);
+		pendingTasks.set(countPendingTasks());
+	}
+
+	/**
+	 * Apply all pending tasks of one poll. This must be done before the poll is finished, so that all delegation changes are counted.
+	 * @param pollId a poll
+	 * @return true when no task of this poll is pending anymore. false when a task failed and will be retried later.
+	 */
+	public synchronized boolean processPendingTasks(long pollId) {
+		while (true) {
+			List<RepropagationTaskEntity> tasks = findPendingTasks(pollId);
+			if (tasks.isEmpty()) return true;
+			if (!applyInOrder(pollId, tasks)) return false;
+		}
+	}
+
+	/**
+	 * Apply the tasks of one poll in one transaction. If that fails, then apply them one by one.
+	 * Stops at the first task that fails and is not dropped, because the changes of one poll must be applied in their order.
+	 * @return true if all tasks were applied or dropped
+	 */
+	boolean applyInOrder(long pollId, List<RepropagationTaskEntity> pollTasks) {
+		try {
+			applyTasks(pollId, pollTasks);
+			return true;
+		} catch (RuntimeException batchFailed) {
+			log.warn("Re-propagating {} delegation changes in poll.id={} failed. Will retry them one by one: {}", pollTasks.size(), pollId, batchFailed.toString());
+			for (RepropagationTaskEntity task : pollTasks) {
+				try {
+					applyTasks(pollId, List.of(task));
+				} catch (RuntimeException e) {
+					if (!recordFailure(task, e)) return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/** @return the oldest pending tasks of this poll, or of all polls when pollId is null */
+	List<RepropagationTaskEntity> findPendingTasks(Long pollId) {
+		int limit = config.repropagation().batchSize();
+		return QuarkusTransaction.requiringNew().call(() -> RepropagationTaskEntity.findPending(pollId, limit));
+	}
+
+	long countPendingTasks() {
+		return QuarkusTransaction.requiringNew().call(RepropagationTaskEntity::count);
+	}
+
+	private record ChangedSnapshot(DelegationForest forest, long revision) {}
+
+	/**
+	 * Apply the tasks of one poll in one transaction
+	 * @param pollId a poll
+	 * @param tasks the tasks of this poll in the order of their IDs
+	 */
+	void applyTasks(long pollId, List<RepropagationTaskEntity> tasks) {
+		List<Long> taskIds = tasks.stream().map(task -> task.id).toList();
+		ChangedSnapshot changedSnapshot = QuarkusTransaction.requiringNew().call(() -> {
+			PollEntity poll = PollEntity.findById(pollId);
+			Optional<DelegationForest> snapshot = poll != null && PollEntity.PollStatus.VOTING.equals(poll.getStatus())
+					? delegationSnapshotService.loadForUpdate(pollId)
+					: Optional.empty();
+			if (snapshot.isEmpty()) {
+				// Poll has been finished or deleted in the meantime. Nothing to re-propagate anymore.
+				RepropagationTaskEntity.delete("id in ?1", taskIds);
+				return null;
+			}
+			DelegationForest forest = snapshot.get();
+			Set<String> changedRightToVotes = new LinkedHashSet<>();
+			for (RepropagationTaskEntity task : tasks) {
+				try {
+					forest.setProxy(task.getRightToVoteHash(), task.getProxyHash());
+					changedRightToVotes.add(task.getRightToVoteHash());
+				} catch (IllegalArgumentException e) {
+					log.warn("Ignoring delegation change in poll.id={}, because it would cause a cycle in the poll's snapshot.", pollId);
+				}
+			}
+			forest.rebuildChildren();
+			long revision = delegationSnapshotService.saveSnapshot(pollId, forest);
+
+			long numNewBallots = 0;
+			for (String hash : changedRightToVotes) numNewBallots += repropagateSubtree(poll, forest, hash);
+			PollEntity.incrementNumBallots(poll, numNewBallots);
+			RepropagationTaskEntity.delete("id in ?1", taskIds);
+			log.debug("Re-propagated {} delegation changes in poll.id={}. Change of number of ballots: {}", tasks.size(), pollId, numNewBallots);
+			return new ChangedSnapshot(forest, revision);
+		});
+		if (changedSnapshot != null) delegationSnapshotService.updateCache(pollId, changedSnapshot.forest(), changedSnapshot.revision());
+	}
+
+	/**
+	 * Recalculate the ballots of a rightToVote and its whole subtree from the ballot of its proxy.
+	 * A proxy is always handled before their delegees. Ballots with level 0 are kept, and the ballots below them are derived from them.
+	 * @return change of the number of ballots in this poll (inserted minus deleted)
+	 */
+	long repropagateSubtree(PollEntity poll, DelegationForest forest, String rootHash) {
+		List<String> hashes = new ArrayList<>();
+		hashes.add(rootHash);
+		hashes.addAll(forest.subtree(rootHash));    // breadth first
+
+		List<String> toLoad = new ArrayList<>(hashes);
+		String rootProxy = forest.proxyOf(rootHash);
+		if (rootProxy != null) toLoad.add(rootProxy);
+		Map<String, BallotEntity> ballots = loadBallots(poll, toLoad);
+
+		long numNewBallots = 0;
+		for (String hash : hashes) {
+			BallotEntity existing = ballots.get(hash);
+			if (existing != null && existing.getLevel() == 0) continue;    // voted for themselves
+			String proxyHash = forest.proxyOf(hash);
+			BallotEntity proxyBallot = proxyHash != null ? ballots.get(proxyHash) : null;
+			if (proxyBallot == null) {
+				//----- nobody above votes for this rightToVote anymore
+				if (existing != null) {
+					deleteBallot(existing);
+					ballots.remove(hash);
+					numNewBallots--;
+				}
+			} else if (existing == null) {
+				//----- proxy's ballot is cast for this rightToVote
+				Optional<BallotEntity> ballot = insertBallot(poll, proxyBallot.getLevel() + 1, new ArrayList<>(proxyBallot.getVoteOrder()), hash);
+				if (ballot.isEmpty()) continue;
+				ballots.put(hash, ballot.get());
+				numNewBallots++;
+			} else if (existing.getLevel() != proxyBallot.getLevel() + 1 || !existing.getVoteOrder().equals(proxyBallot.getVoteOrder())) {
+				//----- update the ballot to the (new) proxy's vote
+				existing.setVoteOrder(new ArrayList<>(proxyBallot.getVoteOrder()));
+				existing.setLevel(proxyBallot.getLevel() + 1);
+			}
+		}
+		return numNewBallots;
+	}
+
+	/** Load the rightToVotes and the ballots of these hashes in chunks. @return ballots by rightToVote hash */
+	Map<String, BallotEntity> loadBallots(PollEntity poll, List<String> hashes) {
+		Map<String, BallotEntity> ballots = new HashMap<>();
+		for (int i = 0; i < hashes.size(); i += CHUNK_SIZE) {
+			List<String> chunk = hashes.subList(i, Math.min(hashes.size(), i + CHUNK_SIZE));
+			RightToVoteEntity.list("hashedVoterInfo in ?1", chunk);
+			for (BallotEntity ballot : BallotEntity.<BallotEntity>list("poll.id = ?1 and rightToVote.hashedVoterInfo in ?2", poll.id, chunk)) {
+				ballots.put(ballot.getRightToVote().getHashedVoterInfo(), ballot);
+			}
+		}
+		return ballots;
+	}
+
+	void deleteBallot(BallotEntity ballot) {
+		ballot.delete();
+	}
+
+	/** @return the new ballot or Optional.empty() if there is no rightToVote with this hash (anymore) */
+	Optional<BallotEntity> insertBallot(PollEntity poll, int level, List<ProposalEntity> voteOrder, String rightToVoteHash) {
+		Optional<RightToVoteEntity> rightToVote = RightToVoteEntity.findByIdOptional(rightToVoteHash);
+		if (rightToVote.isEmpty()) return Optional.empty();
+		BallotEntity ballot = new BallotEntity(poll, level, voteOrder, rightToVote.get());
+		ballot.persist();
+		return Optional.of(ballot);
+	}
+
+	/**
+	 * Count a failed attempt of this task.
+	 * @return true if the task was dropped, because it failed too often. Then the following tasks of that poll can be applied.
+	 */
+	boolean recordFailure(RepropagationTaskEntity task, RuntimeException e) {
+		int maxAttempts = config.repropagation().maxAttempts();
+		return QuarkusTransaction.requiringNew().call(() -> {
+			RepropagationTaskEntity stored = RepropagationTaskEntity.findById(task.id);
+			if (stored == null) return true;
+			stored.setAttempts(stored.getAttempts() + 1);
+			stored.setLastError(String.valueOf(e).substring(0, Math.min(1000, String.valueOf(e).length())));
+			if (stored.getAttempts() >= maxAttempts) {
+				log.error("Dropping re-propagation task id={} in poll.id={} after {} attempts: {}", stored.id, stored.getPollId(), stored.getAttempts(), e.toString());
+				stored.delete();
+				return true;
+			}
+			return false;
+		});
+	}
+}
@@ -0,0 +1,58 @@
+package org.liquido.delegation;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntity;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * A delegation was changed while a poll is in voting. The ballots in the subtree of that rightToVote must be propagated again.
+ * Tasks are stored in the DB, so that they survive restarts and can be retried. See {@link RepropagationService}
+ */
+@Data
+@NoArgsConstructor
+@EqualsAndHashCode(callSuper = true)
+@Entity(name = "repropagation_tasks")
+@Table(indexes = @Index(name = "idx_repropagation_poll", columnList = "pollId"))
+public class RepropagationTaskEntity extends PanacheEntity {
+
+	/** The poll in voting */
+	Long pollId;
+
+	/** The rightToVote whose delegation was changed */
+	String rightToVoteHash;
+
+	/** Its new proxy. null when the delegation was removed. */
+	String proxyHash;
+
+	LocalDateTime createdAt;
+
+	/** How often this task failed */
+	int attempts = 0;
+
+	@Column(length = 1000)
+	String lastError;
+
+	public RepropagationTaskEntity(Long pollId, String rightToVoteHash, String proxyHash) {
+		this.pollId = pollId;
+		this.rightToVoteHash = rightToVoteHash;
+		this.proxyHash = proxyHash;
+		this.createdAt = LocalDateTime.now();
+	}
+
+	/**
+	 * @param pollId only the tasks of this poll, or of all polls when null
+	 * @return the oldest pending tasks. They must be applied in this order.
+	 */
+	public static List<RepropagationTaskEntity> findPending(Long pollId, int limit) {
+		if (pollId == null) return RepropagationTaskEntity.<RepropagationTaskEntity>find("order by id").page(0, limit).list();
+		return RepropagationTaskEntity.<RepropagationTaskEntity>find("pollId = ?1 order by id", pollId).page(0, limit).list();
+	}
+}
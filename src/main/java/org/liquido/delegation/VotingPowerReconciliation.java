@@ -0,0 +1,84 @@
+package org.liquido.delegation;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.util.LiquidoConfig;
+import org.liquido.vote.RightToVoteEntity;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recalculate the maintained voting power of rightToVotes from the actual delegations.
+ *
+ * RightToVoteEntity.votingPower is only updated with deltas when delegations change. See {@link DelegationService}
+ * A delta that was ever lost or applied twice, e.g. by a bug or a manual change in the DB, would stay forever.
+ * And clients see it in countDelegationsTo. So this job regularly counts the delegations of every proxy with
+ * {@link RightToVoteEntity#countDelegationsTo(String)} and corrects the voting power where it differs.
+ *
+ * Each batch of proxies is locked while it is counted. Delegation changes lock the same rows. So a count never overwrites a delta
+ * that is committed at the same time. Corrected rows are counted in the metric liquido.delegation.voting-power.corrected
+ */
+@Slf4j
+@ApplicationScoped
+public class VotingPowerReconciliation {
+
+	@Inject
+	LiquidoConfig config;
+
+	@Inject
+	MeterRegistry registry;
+
+	private Counter corrected;
+
+	@PostConstruct
+	void initMetrics() {
+		corrected = Counter.builder("liquido.delegation.voting-power.corrected").register(registry);
+	}
+
+	@Scheduled(every = "${liquido.voting-power-reconciliation.interval:1h}", delayed = "1m", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	public void reconcile() {
+		if (!config.votingPowerReconciliation().enabled()) return;
+		try {
+			List<String> candidates = QuarkusTransaction.requiringNew().call(RightToVoteEntity::findVotingPowerCandidates);
+			int batchSize = Math.max(1, config.votingPowerReconciliation().batchSize());
+			long numCorrected = 0;
+			for (int i = 0; i < candidates.size(); i += batchSize) {
+				List<String> batch = candidates.subList(i, Math.min(candidates.size(), i + batchSize));
+				numCorrected += QuarkusTransaction.requiringNew().call(() -> reconcileBatch(batch));
+			}
+			if (numCorrected > 0) {
+				log.warn("Corrected the voting power of {} of {} rightToVotes", numCorrected, candidates.size());
+			} else {
+				log.debug("Voting power of {} rightToVotes is correct", candidates.size());
+			}
+		} catch (RuntimeException e) {
+			log.error("Cannot reconcile voting power. Will try again in the next run.", e);
+		}
+	}
+
+	/**
+	 * Lock these rightToVotes and set their voting power to 1 plus the number of their direct and transitive delegations.
+	 * @return number of corrected rightToVotes
+	 */
+	private long reconcileBatch(List<String> hashes) {
+		long numCorrected = 0;
+		Map<String, Long> votingPowers = RightToVoteEntity.lockVotingPower(hashes);
+		for (Map.Entry<String, Long> entry : votingPowers.entrySet()) {
+			long votingPower = 1 + RightToVoteEntity.countDelegationsTo(entry.getKey());
+			if (votingPower != entry.getValue()) {
+				log.info("Voting power of a rightToVote was {}, but {} are delegated to it. Corrected.", entry.getValue(), votingPower - 1);
+				RightToVoteEntity.setVotingPower(entry.getKey(), votingPower);
+				corrected.increment();
+				numCorrected++;
+			}
+		}
+		return numCorrected;
+	}
+}
@@ -3,6 +3,7 @@ package org.liquido.model;
 import io.quarkus.runtime.annotations.RegisterForReflection;
 import jakarta.enterprise.context.RequestScoped;
 import jakarta.enterprise.inject.spi.CDI;
+import org.hibernate.Session;
 import org.hibernate.engine.spi.SharedSessionContractImplementor;
 import org.hibernate.generator.BeforeExecutionGenerator;
 import org.hibernate.generator.EventType;
@@ -28,8 +29,11 @@ public class LoggedInUserGenerator implements BeforeExecutionGenerator {
 		// Cannot simply "@Inject JwtTokenUtils" but there is a cool workaround:
 		//https://stackoverflow.com/questions/61154494/dependency-injection-does-not-work-in-restclientbuilderlistener
 		JwtTokenUtils jwtTokenUtils = CDI.current().select(JwtTokenUtils.class).get();
-		Optional<UserEntity> userOpt = jwtTokenUtils.getCurrentUser();
-		return userOpt.orElse(null);
+		Optional<Long> userIdOpt = jwtTokenUtils.getCurrentUserId();
+		if (userIdOpt.isEmpty()) return null;
+		// Only the ID is needed for the foreign key. No need to load the user from the DB.
+		if (session instanceof Session s) return s.getReference(UserEntity.class, userIdOpt.get());
+		return jwtTokenUtils.getCurrentUser().orElse(null);
 	}
 
 	@Override
@@ -3,30 +3,45 @@ package org.liquido.poll;
 import com.fasterxml.jackson.annotation.JsonBackReference;
 import jakarta.persistence.*;
 import jakarta.validation.constraints.NotNull;
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import jakarta.transaction.Synchronization;
+import org.hibernate.Session;
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.query.NativeQuery;
 import org.liquido.model.LiquidoBaseEntity;
 import org.liquido.poll.converter.MatrixConverter;
+import io.quarkus.panache.common.Parameters;
 import org.liquido.team.TeamEntity;
+import org.liquido.team.TeamSnapshot;
+import org.liquido.util.DoogiesUtil;
 import org.liquido.vote.BallotEntity;
 import org.liquido.vote.Matrix;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
  * This Team entity is the data model of a team in the backend database.
  * See UserGraphQL for the representation of a Team in the GraphQL API.
  */
+@Slf4j
 @Data
 @NoArgsConstructor(force = true)                // Lombok's Data does NOT include a default no args constructor!
 @RequiredArgsConstructor                        // And then does not create a required args constructor :-(  https://stackoverflow.com/questions/37671467/lombok-requiredargsconstructor-is-not-working
 //TODO: create a test for this!
 @EqualsAndHashCode(of={"title"}, callSuper = true)    	// Compare polls by their Id and title only. This is important! Cannot compare proposals. This leads to a StackOverflow in hashCode()!
 @Entity(name = "polls")
+@Cacheable      // numBallots is updated with native SQL that only evicts the one poll. See incrementNumBallots
+@Table(indexes = @Index(name = "idx_polls_team_status_id", columnList = "team_id, status, id"))     // for paginated polls of a team. See findPage()
 public class PollEntity extends LiquidoBaseEntity {
 
 	/**
@@ -51,7 +66,8 @@ public class PollEntity extends LiquidoBaseEntity {
      This is the ONE side of a bidirectional ManyToOne relationship.
      Keep in mind that you must not call  poll.proposals.add(prop). Because this circumvents all the restrictions that there are for adding a proposals to a poll!
      Instead use PollService.addProposalToPoll(proposals, poll) !
-	   We deliberately fetch all proposals in this poll EAGERly, so that getNumCompetingProposals can be called on the returned entity.
+	   Proposals used to be fetched EAGERly, so that getNumCompetingProposals can be called on the returned entity. But then loading a team loaded all its polls
+	   with all their proposals. Now they are LAZY. GraphQL resolves proposals and numCompetingProposals with one query for all polls in a response.
 	   When creating a new poll via POST /polls/add  , then the first proposal can be passed as URI:   {"title":"Poll created by test 1582701066468","proposals":["/laws/405"]}
 	   To make that work, the content of the HashSet, ie. the URI will be deserialized with LawModelDeserializer.class
 	   https://vladmihalcea.com/the-best-way-to-map-a-onetomany-association-with-jpa-and-hibernate/            <== BEST BLOG POST ABOUT THIS TOPIC!!!
@@ -60,8 +76,9 @@ public class PollEntity extends LiquidoBaseEntity {
 
 		 Do not simply add to this Set. Instead, use PollService.addProposal(...)
 	*/
-	@OneToMany(cascade = CascadeType.ALL, mappedBy="poll", fetch = FetchType.EAGER) //, orphanRemoval = true/false ?? Should a proposals be removed when the poll is deleted? => NO. Liquido Proposals may join other polls ...
-	Set<ProposalEntity> proposals = new HashSet<>();
+	@OneToMany(cascade = CascadeType.ALL, mappedBy="poll", fetch = FetchType.LAZY) //, orphanRemoval = true/false ?? Should a proposals be removed when the poll is deleted? => NO. Liquido Proposals may join other polls ...
+	@BatchSize(size = 100)
+	Set<ProposalEntity> proposals = new HashSet<>();   // Loaded lazily. In GraphQL this field is resolved for all polls in a response at once. See PollsGraphQL.proposals()
 
 	// Some older notes, when proposals still was a SortedSet.  Not relevant anymore, but still very interesting reads!
 	// I had problems with ArrayList: https://stackoverflow.com/questions/1995080/hibernate-criteria-returns-children-multiple-times-with-fetchtype-eager
@@ -100,8 +117,144 @@ public class PollEntity extends LiquidoBaseEntity {
 
 	// Implementation note: A poll does not contain a link to its BallotModels. We do not want to expose the ballots while the voting phase is still running.
 	// But clients are allowed to get the number of already cast ballots.
-	public long getNumBallots() {
-		return BallotEntity.count("poll", this);
+	/**
+	 * Number of ballots cast in this poll. This counter is maintained when ballots are inserted, so that serializing a poll
+	 * does not need a COUNT query. It is never written when the poll entity is flushed. It is only changed with
+	 * {@link #incrementNumBallots(PollEntity, long)} and reconciled when the voting phase is finished.
+	 */
+	@Column(nullable = false, updatable = false)
+	@Setter(AccessLevel.NONE)
+	long numBallots = 0;
+
+	// numBallots is updated with native SQL that is only synchronized with this query space. An HQL update of PollEntity
+	// would evict the whole PollEntity cache region on every vote. Instead only the changed poll is evicted.
+	private static final String BALLOT_COUNTER_SPACE = "poll_ballot_counter";
+
+	/**
+	 * Atomically increment the ballot counter of a poll in the DB. Must be called inside the transaction that inserted the ballots.
+	 * @param poll a poll (its in-memory counter is also updated)
+	 * @param delta number of newly inserted ballots
+	 */
+	public static void incrementNumBallots(PollEntity poll, long delta) {
+		if (delta == 0) return;
+		updateNumBallots("UPDATE polls SET numBallots = numBallots + :value WHERE id = :id", poll, delta);
+		poll.numBallots += delta;
+		// No bump of the team's content version here. That would lock the team row on every vote. See TeamSnapshotService
+	}
+
+	/**
+	 * Set the ballot counter of a poll to the actual number of ballots in the DB.
+	 * @param poll a poll
+	 * @return the number of ballots in this poll
+	 */
+	public static long reconcileNumBallots(PollEntity poll) {
+		long count = BallotEntity.count("poll.id", poll.id);
+		updateNumBallots("UPDATE polls SET numBallots = :value WHERE id = :id", poll, count);
+		if (count != poll.numBallots) {
+			log.warn("Ballot counter of poll.id={} was {}, but there are {} ballots.", poll.id, poll.numBallots, count);
+			TeamEntity.bumpContentVersion(poll.getTeam() != null ? poll.getTeam().getId() : null);
+		}
+		poll.numBallots = count;
+		return count;
+	}
+
+	/** Run the update and evict only this poll from the second level cache, now and again after the transaction has completed. */
+	private static void updateNumBallots(String sql, PollEntity poll, long value) {
+		getEntityManager().createNativeQuery(sql)
+				.unwrap(NativeQuery.class)
+				.addSynchronizedQuerySpace(BALLOT_COUNTER_SPACE)
+				.setParameter("value", value)
+				.setParameter("id", poll.id)
+				.executeUpdate();
+		Cache cache = getEntityManager().getEntityManagerFactory().getCache();
+		Long pollId = poll.id;
+		cache.evict(PollEntity.class, pollId);
+		// Another transaction may put the old row into the cache before this one commits
+		getEntityManager().unwrap(Session.class).getTransaction().registerSynchronization(new Synchronization() {
+			@Override
+			public void beforeCompletion() {}
+
+			@Override
+			public void afterCompletion(int status) {
+				cache.evict(PollEntity.class, pollId);
+			}
+		});
+	}
+
+	/**
+	 * Load the polls of several teams with one query
+	 * @param teamIds IDs of teams
+	 * @return the polls of these teams ordered by their ID
+	 */
+	public static List<PollEntity> findByTeamIds(Collection<Long> teamIds) {
+		if (teamIds.isEmpty()) return List.of();
+		return PollEntity.list("team.id in ?1 order by id", teamIds);
+	}
+
+	/**
+	 * One page of the polls in a team, newest first. This is keyset pagination: The next page starts after the last ID of the previous page.
+	 * So a page is always one index range scan, no matter how many polls there are before it.
+	 * @param teamId the team
+	 * @param filter optional filters. May be null
+	 * @param afterId ID of the last poll of the previous page or null for the first page
+	 * @param limit maximum number of polls
+	 * @return polls ordered by ID descending
+	 */
+	public static List<PollEntity> findPage(Long teamId, PollFilter filter, Long afterId, int limit) {
+		StringBuilder query = new StringBuilder("team.id = :teamId");
+		Parameters params = Parameters.with("teamId", teamId);
+		if (filter != null) {
+			if (filter.getStatus() != null) {
+				query.append(" and status = :status");
+				params.and("status", filter.getStatus());
+			}
+			if (filter.getVotingEndFrom() != null) {
+				query.append(" and votingEndAt >= :votingEndFrom");
+				params.and("votingEndFrom", filter.getVotingEndFrom());
+			}
+			if (filter.getVotingEndTo() != null) {
+				query.append(" and votingEndAt < :votingEndTo");
+				params.and("votingEndTo", filter.getVotingEndTo());
+			}
+			if (!DoogiesUtil.isEmpty(filter.getSearch())) {
+				query.append(" and lower(title) like :search escape '\\'");
+				params.and("search", DoogiesUtil.likeContains(filter.getSearch()));
+			}
+		}
+		if (afterId != null) {
+			query.append(" and id < :afterId");
+			params.and("afterId", afterId);
+		}
+		return PollEntity.<PollEntity>find(query + " order by id desc", params).page(0, limit).list();
+	}
+
+	/**
+	 * Summaries of all polls in a team, newest first. One query. No proposals are loaded.
+	 * @param teamId the team
+	 * @return a PollSummary for each poll
+	 */
+	public static List<PollSummary> findSummaries(Long teamId) {
+		return getEntityManager().createQuery(
+						"select new org.liquido.poll.PollSummary(p.id, p.title, p.status, p.votingStartAt, p.votingEndAt, p.numBallots, size(p.proposals)) " +
+								"from polls p where p.team.id = :teamId order by p.id desc", PollSummary.class)
+				.setParameter("teamId", teamId)
+				.getResultList();
+	}
+
+	/**
+	 * The live ballot counters of all polls of a team that are currently in their voting phase.
+	 * One query on idx_polls_team_status_id. See TeamSnapshotService
+	 * @param teamId the team
+	 * @return pollId and numBallots for each poll in voting
+	 */
+	public static List<TeamSnapshot.NumBallots> findNumBallotsInVoting(Long teamId) {
+		return getEntityManager()
+				.createQuery("select p.id, p.numBallots from polls p where p.team.id = :teamId and p.status = :status order by p.id", Object[].class)
+				.setParameter("teamId", teamId)
+				.setParameter("status", PollStatus.VOTING)
+				.getResultList().stream()
+				.map(row -> new TeamSnapshot.NumBallots((Long) row[0], (Long) row[1]))
+				.toList();
 	}
 
 	/** return the number of competing proposals */
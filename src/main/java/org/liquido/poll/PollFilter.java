@@ -0,0 +1,27 @@
+package org.liquido.poll;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Optional filters for paginated polls. All set filters must match.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PollFilter {
+	/** Only polls in this status */
+	PollEntity.PollStatus status;
+
+	/** Only polls whose voting phase ends at or after this time */
+	LocalDateTime votingEndFrom;
+
+	/** Only polls whose voting phase ends before this time */
+	LocalDateTime votingEndTo;
+
+	/** Only polls whose title contains this text (case insensitive) */
+	String search;
+}
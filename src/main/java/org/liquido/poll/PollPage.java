@@ -0,0 +1,22 @@
+package org.liquido.poll;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One page of polls. Pass nextCursor as "after" to get the next page.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PollPage {
+	List<PollEntity> polls;
+
+	/** ID of the last poll in this page. null when there are no more polls. */
+	Long nextCursor;
+
+	boolean hasMore;
+}
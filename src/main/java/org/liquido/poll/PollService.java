@@ -9,9 +9,14 @@ import jakarta.validation.constraints.NotNull;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.microprofile.graphql.NonNull;
 import org.liquido.delegation.DelegationEntity;
+import org.liquido.delegation.DelegationForest;
+import org.liquido.delegation.DelegationIndex;
+import org.liquido.delegation.DelegationSnapshotService;
+import org.liquido.delegation.RepropagationService;
 import org.liquido.model.LiquidoBaseEntity;
 import org.liquido.security.JwtTokenUtils;
 import org.liquido.team.TeamEntity;
+import org.liquido.team.TeamMemberEntity;
 import org.liquido.user.UserEntity;
 import org.liquido.util.LiquidoConfig;
 import org.liquido.util.LiquidoException;
@@ -20,8 +25,7 @@ import org.liquido.vote.*;
 
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -45,6 +49,18 @@ public class PollService {
 	@Inject
 	CastVoteService castVoteService;
 
+	@Inject
+	BallotIngestionService ballotIngestionService;
+
+	@Inject
+	DelegationIndex delegationIndex;
+
+	@Inject
+	DelegationSnapshotService delegationSnapshotService;
+
+	@Inject
+	RepropagationService repropagationService;
+
 	/**
 	 * Create a new poll inside a team. Only the admin is allowed to create a poll in a team
 	 * @param title Title of the new poll
@@ -67,6 +83,7 @@ public class PollService {
 		 */
 
 		poll.persist();
+		TeamEntity.bumpContentVersion(team.getId());
 		log.info("Created new " + poll);
 		return poll;
 	}
@@ -110,7 +127,7 @@ public class PollService {
 		UserEntity currentUser = jwtTokenUtils.getCurrentUser()
 				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.UNAUTHORIZED, "Cannot add proposal. Must be logged in!"));
 
-		if (!jwtTokenUtils.isAdmin() && poll.getProposals().stream().anyMatch(prop -> currentUser.equals(prop.createdBy)))
+		if (!jwtTokenUtils.isAdmin() && poll.getProposals().stream().anyMatch(prop -> jwtTokenUtils.isCurrentUser(prop.createdBy)))
 			throw new LiquidoException(LiquidoException.Errors.CANNOT_ADD_PROPOSAL, "Cannot addProposal: " + currentUser.toStringShort() + " already has a proposal in poll(id="+poll.getId()+")");
 		// Admin could also be fetched this way: poll.getTeam().isAdmin(currentUser);   But who knows how old the passed poll is.
 		// Keep in mind that proposal.getCreatedBy() might not be filled yet!
@@ -119,13 +136,15 @@ public class PollService {
 		poll.getProposals().add(proposal);
 		proposal.setPoll(poll); // also update the in-memory poll object
 		poll.persist();
+		TeamEntity.bumpContentVersion(poll.getTeam().getId());
 		log.debug("Added "+proposal+" to poll(id="+poll.getId()+")");
 		return poll;
 	}
 
 	/**
 	 * Start the voting phase of the given poll.
-	 * Poll must be in elaboration phase and must have at least two proposals
+	 * Poll must be in elaboration phase and must have at least two proposals.
+	 * The current delegations are copied into a snapshot for this poll. See {@link DelegationSnapshotService}
 	 * @param poll a poll in elaboration phase with at least two proposals
 	 * @return the poll that is now in status VOTING
 	 */
@@ -145,6 +164,8 @@ public class PollService {
 		poll.setVotingStartAt(votingStart);   //record the exact datetime when the voting phase started.
 		poll.setVotingEndAt(votingStart.truncatedTo(ChronoUnit.DAYS).plusDays(config.durationOfVotingPhase()));     //voting ends in n days at midnight
 		poll.persist();
+		TeamEntity.bumpContentVersion(poll.getTeam().getId());
+		delegationSnapshotService.createSnapshot(poll);
 
 		//----- schedule a Job that will finish the voting phase at poll.votingEndAt() date
 		/* DOES NOT WORK
@@ -226,6 +247,12 @@ public class PollService {
 		if (!PollEntity.PollStatus.VOTING.equals(poll.getStatus()))
 			throw new LiquidoException(LiquidoException.Errors.CANNOT_FINISH_POLL, "Cannot finishVotingPhase: Poll must be in status VOTING.");
 
+		// Ballots that were accepted in write-behind mode and delegations that changed during voting must be counted too.
+		if (!repropagationService.processPendingTasks(poll.getId()))
+			throw new LiquidoException(LiquidoException.Errors.CANNOT_FINISH_POLL, "Cannot finishVotingPhase: Delegation changes in this poll could not be applied yet. Please try again later.");
+		ballotIngestionService.commitPendingBallots();
+		PollEntity.reconcileNumBallots(poll);
+
 		poll.setStatus(PollEntity.PollStatus.FINISHED);
 		poll.setVotingEndAt(LocalDateTime.now());
 		poll.getProposals().forEach(p -> p.setStatus(ProposalEntity.LawStatus.LOST));
@@ -242,6 +269,7 @@ public class PollService {
 			winningProposal.persist();
 		}
 		poll.persist();
+		TeamEntity.bumpContentVersion(poll.getTeam().getId());
 		return winningProposal;
 	}
 
@@ -288,10 +316,9 @@ public class PollService {
 
 
 	public Lson calcPollResults(PollEntity poll) {
-		Long ballotCount = BallotEntity.count("poll", poll);
 		return Lson.builder()
 				.put("winner", poll.getWinner())
-				.put("numBallots", ballotCount)
+				.put("numBallots", poll.getNumBallots())
 				.put("duelMatrix", poll.getDuelMatrix());
 	}
 
@@ -358,25 +385,30 @@ public class PollService {
 		if (PollEntity.PollStatus.ELABORATION.equals(poll.getStatus()))
 			throw new LiquidoException(LiquidoException.Errors.INVALID_POLL_STATUS, "Cannot get ballot of poll in ELABORATION");
 		if (rightToVote.getDelegatedTo() == null) return Optional.empty();
-		RightToVoteEntity topRightToVote = findTopChecksumRec(rightToVote);
-		return BallotEntity.findByPollAndRightToVote(poll, topRightToVote);
-	}
-
-	private RightToVoteEntity findTopChecksumRec(RightToVoteEntity rightToVote) {
-		if (rightToVote.getDelegatedTo() == null) return rightToVote;
-		return findTopChecksumRec(rightToVote.getDelegatedTo());
+		Optional<DelegationForest> snapshot = delegationSnapshotService.getSnapshot(poll);
+		String topProxyHash = snapshot.isPresent() ? snapshot.get().topProxy(rightToVote.getHashedVoterInfo())
+				: delegationIndex.isReady() ? delegationIndex.topProxy(rightToVote.getHashedVoterInfo()) : null;
+		Optional<RightToVoteEntity> topRightToVote = topProxyHash != null
+				? RightToVoteEntity.findByHash(topProxyHash)
+				: RightToVoteEntity.findTopProxy(rightToVote);
+		if (topRightToVote.isEmpty()) return Optional.empty();
+		return BallotEntity.findByPollAndRightToVote(poll, topRightToVote.get());
 	}
 
 	/**
 	 * Find the proxy that cast the vote in this poll.
-	 * This recursive method walks up the tree of DelegationModels and RightToVote delegations in parallel
-	 * until it reaches a ballot with level == 0. That is the ballot cast by the effective proxy.
+	 * This walks up the tree of RightToVote delegations until it reaches a ballot with level == 0.
+	 * That is the ballot cast by the effective proxy.
 	 *
 	 * This may be the voter himself, if he voted himself.
 	 * This may be the voters direct proxy
 	 * Or this may be any other proxy up in the tree, not necessarily the top proxy.
 	 * Or there might be no effective proxy yet, when not the voter nor his proxies voted yet in this poll.
-	 * *
+	 *
+	 * The chain of rightToVotes comes from the poll's delegation snapshot or the {@link DelegationIndex} and their ballots are loaded with one query.
+	 * (Or both with one recursive query, when the index is not available.) Then the user of the effective proxy's rightToVote
+	 * is found by hashing candidates. See {@link #findUserOfRightToVote(String, UserEntity, int, PollEntity)}
+	 *
 	 * @param poll a poll in voting or finished
 	 * @param voter The voter to check who may have delegated his right to vote to a proxy.
 	 * @return Optional.empty() IF there is no ballot for this checksum, ie. user has not voted yet at all.
@@ -389,39 +421,72 @@ public class PollService {
 			throw new LiquidoException(LiquidoException.Errors.CANNOT_FIND_ENTITY, "Cannot find effective proxy, because poll is not in voting phase or finished");
 		RightToVoteEntity rightToVote = RightToVoteEntity.findByVoter(voter, config.hashSecret())
 				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.CANNOT_FIND_ENTITY, "Cannot find effective Proxy, you have no RightTotVote"));
-		return findEffectiveProxyRec(poll, voter, rightToVote);
+
+		List<RightToVoteEntity.ProxyChainLink> chain = loadProxyChain(rightToVote.getHashedVoterInfo(), poll);
+		for (int depth = 0; depth < chain.size(); depth++) {
+			RightToVoteEntity.ProxyChainLink link = chain.get(depth);
+			//----- Check if there is a ballot for this RightToVote. If not, this voter did not vote yet.
+			if (link.ballotLevel() == null) return Optional.empty();
+
+			//----- If a ballot has level 0, then this voter/proxy voted for himself.
+			//----- If a voter has a ballot with level > 0, ie. casted by his proxy, but currently has not delegated his RightToVote to any proxy, then this his vote.
+			// This exceptional case may happen when the voter removed his delegation, after his proxy voted for him, and the
+			// RepropagationService has not yet removed that ballot. When a voter changes his delegation to another proxy during voting,
+			// then the RepropagationService recalculates his ballot from his new proxy's ballot and updates the poll's snapshot.
+			boolean isLast = depth == chain.size() - 1;
+			if (link.ballotLevel() == 0 || isLast) {
+				if (depth == 0) return Optional.of(voter);
+				//----- Get the user of the proxy's rightToVote in that chain
+				return Optional.of(findUserOfRightToVote(link.hashedVoterInfo(), voter, chain.size(), poll));
+			}
+		}
+		return Optional.empty();
 	}
 
 	/**
-	 * Private recursive part of finding the effective proxy. This walks up the tree of delegations until you we find
-	 * the proxy that actually cast the vote.
-	 * @return the proxy that cast the vote or the voter if he cast a vote himself.
+	 * Find the user that a proxy's rightToVote belongs to.
+	 * A rightToVote cannot be turned back into its user. But the server can hash a user and compare. So we hash candidates:
+	 * <ol>
+	 *   <li>The proxies above the voter in the current, accepted delegations. One of them matches, unless the delegations
+	 *       changed after they were applied to the poll's snapshot.</li>
+	 *   <li>The user of a public proxy, which is linked to its rightToVote.</li>
+	 *   <li>All members of the poll's team.</li>
+	 * </ol>
+	 * @param proxyHash the rightToVote of the proxy from the voter's chain
+	 * @param voter the voter
+	 * @param maxDepth length of the voter's chain
+	 * @param poll the poll. Its team is searched last.
+	 * @return the proxy user
+	 * @throws LiquidoException when no user matches this rightToVote
 	 */
-	private Optional<UserEntity> findEffectiveProxyRec(PollEntity poll, UserEntity voter, RightToVoteEntity rightToVote) {
-		if (rightToVote.getPublicProxy() != null &&	!rightToVote.getPublicProxy().equals(voter))
-			throw new RuntimeException("Data inconsistency: " + rightToVote + " is not the checksum of public proxy="+voter);
-
-		//----- Check if there is a ballot for this RightToVote. If not, this voter did not vote yet.
-		Optional<BallotEntity> ballot = BallotEntity.findByPollAndRightToVote(poll, rightToVote);
-		if (ballot.isEmpty()) return Optional.empty();
-
-		//----- If a ballot has level 0, then this voter/proxy voted for himself.
-		if (ballot.get().getLevel() == 0) return Optional.of(voter);
-
-		//----- If a voter has a ballot with level > 0, ie. casted by his proxy, but currently has not delegated his RightToVote to any proxy, then this his vote.
-		// This exceptional case may happen when the voter removed his delegation, after his proxy voted for him.     //TODO: create a Test for this
-		if (rightToVote.getDelegatedTo() == null) return Optional.of(voter);
-
-		//TODO: very very edge case: What shall happen when a voter's proxy already voted and the voter then changes his delegation to another proxy.
-
-		//----- Get voters direct proxy, which must exist because the voters checksum is delegated
-		DelegationEntity delegation = DelegationEntity.<DelegationEntity>find("fromUser", voter).firstResultOptional()
-				.orElseThrow(() -> new RuntimeException("Data inconsistency: Voter has a delegated checksum but no direct proxy! "+voter+", "+rightToVote));
-
-		//----- at last recursively check for that proxy up in the tree.
-		return findEffectiveProxyRec(poll, delegation.getToProxy(), rightToVote.getDelegatedTo());
+	private UserEntity findUserOfRightToVote(String proxyHash, UserEntity voter, int maxDepth, PollEntity poll) throws LiquidoException {
+		for (UserEntity proxy : DelegationEntity.findProxies(voter, maxDepth)) {
+			if (proxyHash.equals(RightToVoteEntity.hashOf(proxy, config.hashSecret()))) return proxy;
+		}
+		Optional<UserEntity> publicProxy = RightToVoteEntity.findByHash(proxyHash).map(RightToVoteEntity::getPublicProxy);
+		if (publicProxy.isPresent()) return publicProxy.get();
+		if (poll.getTeam() != null) {
+			for (TeamMemberEntity member : TeamMemberEntity.findByTeamIds(List.of(poll.getTeam().getId()))) {
+				if (proxyHash.equals(RightToVoteEntity.hashOf(member.getUser(), config.hashSecret()))) return member.getUser();
+			}
+		}
+		throw new LiquidoException(LiquidoException.Errors.CANNOT_FIND_ENTITY, "Cannot find the proxy that voted for you in poll.id=" + poll.getId());
+	}
 
-		//of course the order of all the IF statements in this method is extremely important. Managed to do it without any "else" !! :-)
+	/** The chain of proxies upwards from this rightToVote with the level of their ballots in this poll */
+	private List<RightToVoteEntity.ProxyChainLink> loadProxyChain(String hash, PollEntity poll) {
+		long pollId = poll.getId();
+		Optional<DelegationForest> snapshot = delegationSnapshotService.getSnapshot(poll);
+		List<String> hashes = snapshot.isPresent() ? snapshot.get().proxyChain(hash)
+				: delegationIndex.isReady() ? delegationIndex.proxyChain(hash) : List.of();
+		if (hashes.isEmpty()) return RightToVoteEntity.findProxyChain(hash, pollId);   // also when this rightToVote is not known yet
+		Map<String, Integer> levels = new HashMap<>();
+		for (BallotEntity ballot : BallotEntity.<BallotEntity>list("poll.id = ?1 and rightToVote.hashedVoterInfo in ?2", pollId, hashes)) {
+			levels.put(ballot.getRightToVote().getHashedVoterInfo(), ballot.getLevel());
+		}
+		List<RightToVoteEntity.ProxyChainLink> chain = new ArrayList<>(hashes.size());
+		for (String h : hashes) chain.add(new RightToVoteEntity.ProxyChainLink(h, levels.get(h)));
+		return chain;
 	}
 
 	/**
@@ -452,7 +517,9 @@ public class PollService {
 			ballot.delete();
 		}
 
-		// Delete the poll
+		// Delete the poll and its delegation snapshot
+		delegationSnapshotService.deleteSnapshot(poll);
+		TeamEntity.bumpContentVersion(poll.getTeam() != null ? poll.getTeam().getId() : null);
 		poll.delete();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package org.liquido.poll;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Lightweight projection of a poll for lists. Loaded with one query without any proposals.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PollSummary {
+	Long id;
+	String title;
+	PollEntity.PollStatus status;
+	LocalDateTime votingStartAt;
+	LocalDateTime votingEndAt;
+	long numBallots;
+	int numProposals;
+}
@@ -1,5 +1,6 @@
 package org.liquido.poll;
 
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.inject.Inject;
 import jakarta.transaction.Transactional;
@@ -8,14 +9,18 @@ import org.eclipse.microprofile.graphql.*;
 import org.liquido.security.JwtTokenUtils;
 import org.liquido.team.TeamEntity;
 import org.liquido.user.UserEntity;
+import org.liquido.util.DoogiesUtil;
+import org.liquido.util.LiquidoConfig;
 import org.liquido.util.LiquidoException;
 import org.liquido.vote.BallotEntity;
+import org.liquido.vote.BallotIngestionService;
+import org.liquido.vote.CastVoteAdmissionControl;
+import org.liquido.vote.CastVoteRequest;
 import org.liquido.vote.CastVoteResponse;
+import org.liquido.vote.CastVoteResult;
 import org.liquido.vote.CastVoteService;
 
-import java.util.List;
-import java.util.Optional;
-import java.util.Set;
+import java.util.*;
 
 /**
  * This adapter only handles the GraphQL API specifics.
@@ -23,8 +28,12 @@ import java.util.Set;
  */
 @Slf4j
 @GraphQLApi
+@RunOnVirtualThread    // Resolvers are blocking JPA code. See quarkus.virtual-threads.enabled in application.properties
 public class PollsGraphQL {
 
+	@Inject
+	LiquidoConfig config;
+
 	@Inject
 	JwtTokenUtils jwtTokenUtils;
 
@@ -34,6 +43,12 @@ public class PollsGraphQL {
 	@Inject
 	CastVoteService castVoteService;
 
+	@Inject
+	BallotIngestionService ballotIngestionService;
+
+	@Inject
+	CastVoteAdmissionControl castVoteAdmissionControl;
+
 	/**
 	 * Get one poll by its ID
 	 * @param pollId pollId (mandatory)
@@ -56,7 +71,73 @@ public class PollsGraphQL {
 	public Set<PollEntity> polls() throws LiquidoException {
 		TeamEntity team = jwtTokenUtils.getCurrentTeam()
 				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.UNAUTHORIZED, "Cannot get polls of team: Must be logged into a team!"));
-		return team.getPolls();
+		return new LinkedHashSet<>(PollEntity.findByTeamIds(List.of(team.id)));
+	}
+
+	/** Maximum number of polls or proposals in one page */
+	public static final int MAX_PAGE_SIZE = 100;
+
+	/**
+	 * Get one page of the polls in the current user's team, newest first.
+	 * @param first number of polls in this page (max 100)
+	 * @param after nextCursor of the previous page. Omit for the first page.
+	 * @param filter optional filters
+	 * @return the page and the cursor for the next page
+	 * @throws LiquidoException when no one is logged in.
+	 */
+	@Query
+	@Description("Get one page of the polls in your team, newest first. Can be filtered by status, end of voting phase and title.")
+	@RolesAllowed(JwtTokenUtils.LIQUIDO_USER_ROLE)
+	public PollPage pollsPage(
+			@Name("first") @DefaultValue("20") int first,
+			@Name("after") Long after,
+			@Name("filter") PollFilter filter
+	) throws LiquidoException {
+		Long teamId = jwtTokenUtils.getCurrentTeamId()
+				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.UNAUTHORIZED, "Cannot get polls of team: Must be logged into a team!"));
+		int limit = Math.max(1, Math.min(first, MAX_PAGE_SIZE));
+		List<PollEntity> polls = PollEntity.findPage(teamId, filter, after, limit + 1);
+		boolean hasMore = polls.size() > limit;
+		if (hasMore) polls = polls.subList(0, limit);
+		return new PollPage(polls, hasMore ? polls.get(limit - 1).getId() : null, hasMore);
+	}
+
+	/**
+	 * Get one page of the proposals in a poll, in the order they were added
+	 * @param pollId a poll
+	 * @param first number of proposals in this page (max 100)
+	 * @param after nextCursor of the previous page. Omit for the first page.
+	 * @param search optional text that the proposal's title must contain
+	 * @return the page and the cursor for the next page
+	 */
+	@Query
+	@Description("Get one page of the proposals in a poll. Can be filtered by title.")
+	@RolesAllowed(JwtTokenUtils.LIQUIDO_USER_ROLE)
+	public ProposalPage proposalsPage(
+			@Name("pollId") @NonNull Long pollId,
+			@Name("first") @DefaultValue("20") int first,
+			@Name("after") Long after,
+			@Name("search") String search
+	) {
+		int limit = Math.max(1, Math.min(first, MAX_PAGE_SIZE));
+		List<ProposalEntity> proposals = ProposalEntity.findPage(pollId, search, after, limit + 1);
+		boolean hasMore = proposals.size() > limit;
+		if (hasMore) proposals = proposals.subList(0, limit);
+		return new ProposalPage(proposals, hasMore ? proposals.get(limit - 1).getId() : null, hasMore);
+	}
+
+	/**
+	 * Lightweight list of all polls in the current user's team. Without proposals.
+	 * @return a summary of each poll, newest first
+	 * @throws LiquidoException when no one is logged in.
+	 */
+	@Query
+	@Description("Summaries of all polls in your team, without their proposals. Newest first.")
+	@RolesAllowed(JwtTokenUtils.LIQUIDO_USER_ROLE)
+	public List<PollSummary> pollSummaries() throws LiquidoException {
+		Long teamId = jwtTokenUtils.getCurrentTeamId()
+				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.UNAUTHORIZED, "Cannot get polls of team: Must be logged into a team!"));
+		return PollEntity.findSummaries(teamId);
 	}
 
 	/**
@@ -135,40 +216,45 @@ public class PollsGraphQL {
 
 		proposal.getSupporters().add(user);
 		proposal.persist();
+		TeamEntity.bumpContentVersion(poll.getTeam().getId());
 
 		log.info("likeProposal: {} likes proposal.id={} in poll.id={}", user.toStringShort(), proposalId, poll.id);
 		return poll;
 	}
 
 	/**
-	 * Is a proposal already liked by the currently logged in user?
+	 * Are proposals already liked by the currently logged in user?
+	 * This is resolved for all proposals in a GraphQL response at once: One query over proposal_supporters.
+	 * The supporters of the proposals are not loaded.
 	 *
-	 * @param proposal GraphQL context: the ProposalEntity
-	 * @return true, if currently logged in user is already a supporter of this proposal
+	 * @param proposals GraphQL context: all ProposalEntities in the response
+	 * @return for each proposal: true, if currently logged in user is already a supporter of this proposal
 	 */
 	@Query
 	@Description("Is a proposal already liked by the currently logged in user?")
-	public boolean isLikedByCurrentUser(@Source(name = "isLikedByCurrentUser")
+	public List<Boolean> isLikedByCurrentUser(@Source(name = "isLikedByCurrentUser")
 																				@Description("Is a proposal already liked by the currently logged in user?")
-																				ProposalEntity proposal) {
-		Optional<UserEntity> voter = jwtTokenUtils.getCurrentUser();
-		if (voter.isEmpty()) return false;
-		return proposal.getSupporters().contains(voter.get());
+																				List<ProposalEntity> proposals) {
+		Optional<Long> voterId = jwtTokenUtils.getCurrentUserId();
+		Set<Long> liked = voterId.isEmpty()
+				? Set.of()
+				: ProposalEntity.findSupportedBy(voterId.get(), proposals.stream().map(ProposalEntity::getId).toList());
+		return proposals.stream().map(prop -> liked.contains(prop.getId())).toList();
 	}
 
 	/**
-	 * Is a proposal created by the currently logged-in user
+	 * Are proposals created by the currently logged-in user
 	 * This of course assumes that there is a currently logged-in user. But polls and proposals can only be fetched by authenticated users.
+	 * The ID of the current user comes from the JWT. The creators of the proposals are not loaded, only their IDs are compared.
 	 *
-	 * @param proposal A proposal in a poll.
-	 * @return true if proposal was created by the currently logged-in user.
+	 * @param proposals all proposals in the response
+	 * @return for each proposal: true if proposal was created by the currently logged-in user.
 	 */
 	@Query
 	@Description("Is a proposal created by the currently logged in user?")
 	@RolesAllowed(JwtTokenUtils.LIQUIDO_USER_ROLE)
-	public boolean isCreatedByCurrentUser(@Source ProposalEntity proposal) {
-		Optional<UserEntity> user = jwtTokenUtils.getCurrentUser();
-		return proposal != null && user.isPresent() && user.get().equals(proposal.createdBy);
+	public List<Boolean> isCreatedByCurrentUser(@Source List<ProposalEntity> proposals) {
+		return proposals.stream().map(prop -> prop != null && jwtTokenUtils.isCurrentUser(prop.createdBy)).toList();
 	}
 
 	//Reminder: It is not possible to check if a user has already voted in a poll. Pools and ballots are not linked via username! Only via hashedVoterTokens
@@ -214,6 +300,8 @@ public class PollsGraphQL {
 	 * A user may overwrite his previous ballot as long as the poll is still in its VOTING phase.
 	 * <b>This request can be sent anonymously!</b>
 	 *
+	 * In write-behind mode the ballot is only queued. Then the response is just a receipt with the ballot's checksum.
+	 *
 	 * @param pollId poll id that must exist
 	 * @param voteOrderIds list of proposals IDs as sorted by the voter in his ballot
 	 * @param voterToken a valid voter token
@@ -223,7 +311,7 @@ public class PollsGraphQL {
 	@Mutation
 	@Description("Cast a vote in a poll. With the proposals as sorted by the user.")
 	// casting a vote can be called anonymously!!! The anonymous voter is only validated by the voteToken
-	@Transactional
+	// No @Transactional here! The vote must first be admitted. Only then a transaction is started.
 	public CastVoteResponse castVote(
 			@Description("The poll you want to cast a vote in")
 			@NonNull long pollId,
@@ -232,13 +320,68 @@ public class PollsGraphQL {
 			@Description("The plain voter token that the voter has received for this poll.")
 			@NonNull String voterToken
 	) throws LiquidoException {
-		PollEntity poll = PollEntity.<PollEntity>findByIdOptional(pollId)
-				.orElseThrow(LiquidoException.notFound("Cannot cast vote. Poll(id="+pollId+") not found!"));
-		CastVoteResponse res = castVoteService.castVote(voterToken, poll, voteOrderIds);
+		if (ballotIngestionService.isWriteBehindEnabled()) {
+			log.info("castVote: poll.id={} (write-behind)", pollId);
+			return castVoteAdmissionControl.admit(pollId, () -> ballotIngestionService.castVote(voterToken, pollId, voteOrderIds));
+		}
+		CastVoteResponse res = castVoteAdmissionControl.admit(pollId, () -> castVoteService.castVote(voterToken, pollId, voteOrderIds));
 		log.info("castVote: poll.id={}", pollId);		//TODO: log all user actions into separate file or even better into some business process data mining analytics tool. (buzzword bingo)
 		return res;
 	}
 
+	/**
+	 * Cast many votes at once. This is for voting terminals that collect ballots offline and then upload them in one go.
+	 * Each vote is checked on its own. When one vote is invalid, then the other votes are still cast.
+	 * <b>This request can be sent anonymously!</b> Each vote is only validated by its voter token.
+	 *
+	 * The votes are grouped by poll. The votes of each poll are admitted by the {@link CastVoteAdmissionControl} like one castVote
+	 * and then cast in one transaction. When a poll is overloaded, then all votes of that poll fail with TOO_MANY_REQUESTS.
+	 * When the ballots of a poll cannot be written, then its transaction is rolled back and all votes of that poll fail.
+	 *
+	 * @param votes list of (pollId, voteOrderIds, voterToken)
+	 * @return one result per vote in the same order. Each result contains either the CastVoteResponse or an error.
+	 * @throws LiquidoException when there are too many votes in one request
+	 */
+	@Mutation
+	@Description("Cast many votes at once, e.g. from an offline voting terminal. Returns one result per vote in the same order.")
+	public List<CastVoteResult> castVotes(
+			@Description("The votes to cast")
+			@NonNull List<CastVoteRequest> votes
+	) throws LiquidoException {
+		int maxBulkSize = config.voteIngestion().maxBulkSize();
+		if (votes.size() > maxBulkSize)
+			throw new LiquidoException(LiquidoException.Errors.CANNOT_CAST_VOTE, "Cannot cast more than " + maxBulkSize + " votes at once.");
+
+		//----- group the votes by poll, but remember their position in the request
+		Map<Long, List<Integer>> indexesByPoll = new LinkedHashMap<>();
+		for (int i = 0; i < votes.size(); i++) indexesByPoll.computeIfAbsent(votes.get(i).getPollId(), id -> new ArrayList<>()).add(i);
+
+		CastVoteResult[] results = new CastVoteResult[votes.size()];
+		for (Map.Entry<Long, List<Integer>> entry : indexesByPoll.entrySet()) {
+			Long pollId = entry.getKey();
+			List<Integer> indexes = entry.getValue();
+			List<CastVoteRequest> pollVotes = indexes.stream().map(votes::get).toList();
+			List<CastVoteResult> pollResults;
+			try {
+				pollResults = pollId == null
+						? castVoteService.castVotes(pollVotes)     // all of them will fail with "poll not found"
+						: castVoteAdmissionControl.admit(pollId, () -> ballotIngestionService.isWriteBehindEnabled()
+								? ballotIngestionService.castVotes(pollId, pollVotes)
+								: castVoteService.castVotes(pollVotes));
+			} catch (LiquidoException e) {
+				pollResults = new ArrayList<>();
+				for (int i = 0; i < pollVotes.size(); i++) pollResults.add(CastVoteResult.failed(i, e));
+			}
+			for (CastVoteResult res : pollResults) {
+				int index = indexes.get(res.getIndex());
+				res.setIndex(index);
+				results[index] = res;
+			}
+		}
+		log.info("castVotes: {} votes in {} polls, {} failed", votes.size(), indexesByPoll.size(), Arrays.stream(results).filter(res -> !res.isSuccess()).count());
+		return Arrays.asList(results);
+	}
+
 	/**
 	 * Finish the voting phase of a poll
 	 * @param pollId poll.id
@@ -298,5 +441,31 @@ public class PollsGraphQL {
 				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.CANNOT_VERIFY_CHECKSUM, "No known ballot for that checksum."));
 	}
 
-	
-}
\ No newline at end of file
+	// ========== Batched field resolvers ==========
+	// Proposals and supporters are loaded lazily. These resolvers load a field for all polls or proposals in a GraphQL response with one IN query.
+
+	@Description("The proposals in this poll")
+	public List<List<ProposalEntity>> proposals(@Source List<PollEntity> polls) {
+		List<Long> pollIds = polls.stream().map(PollEntity::getId).toList();
+		return DoogiesUtil.groupByParent(polls, PollEntity::getId, ProposalEntity.findByPollIds(pollIds), prop -> prop.getPoll().getId());
+	}
+
+	@Description("Number of proposals in this poll")
+	public List<Integer> numCompetingProposals(@Source List<PollEntity> polls) {
+		Map<Long, Long> counts = ProposalEntity.countByPollIds(polls.stream().map(PollEntity::getId).toList());
+		return polls.stream().map(poll -> counts.getOrDefault(poll.getId(), 0L).intValue()).toList();
+	}
+
+	@Description("Users that support this proposal")
+	public List<List<UserEntity>> supporters(@Source List<ProposalEntity> proposals) {
+		Map<Long, List<UserEntity>> supporters = ProposalEntity.findSupporters(proposals.stream().map(ProposalEntity::getId).toList());
+		return proposals.stream().map(prop -> supporters.getOrDefault(prop.getId(), List.of())).toList();
+	}
+
+	@Description("Number of users that support this proposal")
+	public List<Integer> numSupporters(@Source List<ProposalEntity> proposals) {
+		Map<Long, Long> counts = ProposalEntity.countSupporters(proposals.stream().map(ProposalEntity::getId).toList());
+		return proposals.stream().map(prop -> counts.getOrDefault(prop.getId(), 0L).intValue()).toList();
+	}
+
+}
@@ -9,17 +9,21 @@ import jakarta.validation.constraints.NotNull;
 import jakarta.validation.constraints.Size;
 import lombok.*;
 import org.liquido.model.LiquidoBaseEntity;
+import io.quarkus.panache.common.Parameters;
+import org.hibernate.annotations.BatchSize;
 import org.liquido.user.UserEntity;
+import org.liquido.util.DoogiesUtil;
 
 import java.time.LocalDateTime;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 @Data
 @EqualsAndHashCode(of={"title", "status"}, callSuper = true)  // Two proposals are equal when their ID, their title and status match
 @NoArgsConstructor(force = true)      // Lombok's Data does NOT include a default no args constructor!
 @RequiredArgsConstructor
 @Entity(name = "proposals")
+@Cacheable      // Proposals rarely change once they are in a poll. Their supporters are not cached.
+@Table(indexes = @Index(name = "idx_proposals_poll_id", columnList = "poll_id, id"))     // for paginated proposals of a poll. See findPage()
 @JsonIgnoreProperties(ignoreUnknown = true)  // ignore eg. isLikedByCurrentUser when deserializing
 public class ProposalEntity extends LiquidoBaseEntity {
 
@@ -78,8 +82,9 @@ public class ProposalEntity extends LiquidoBaseEntity {
 	 * Instead you must use LawService.addSupporter()   or POST to /laws/{id}/like
 	 */
 	@JsonIgnore  // do not serialize when returning JSON. Only return this.getNumSupporters()
-	@ManyToMany(fetch = FetchType.EAGER)
-	@JoinTable(name = "proposal_supporters")
+	@ManyToMany(fetch = FetchType.LAZY)      // In GraphQL supporters and numSupporters are resolved for all proposals in a response at once. See PollsGraphQL
+	@JoinTable(name = "proposal_supporters", indexes = @Index(name = "idx_proposal_supporters_user", columnList = "supporters_id, proposals_id"))
+	@BatchSize(size = 100)
 	private Set<UserEntity> supporters = new HashSet<>();
 
 	/**
@@ -150,6 +155,100 @@ public class ProposalEntity extends LiquidoBaseEntity {
 
 	 */
 
+	// =================== Active Record - query methods ================
+
+	/**
+	 * Load the proposals of several polls with one query
+	 * @param pollIds IDs of polls
+	 * @return the proposals in these polls ordered by their ID
+	 */
+	public static List<ProposalEntity> findByPollIds(Collection<Long> pollIds) {
+		if (pollIds.isEmpty()) return List.of();
+		return ProposalEntity.list("poll.id in ?1 order by id", pollIds);
+	}
+
+	/**
+	 * One page of the proposals in a poll, in the order they were added. Keyset pagination over the proposal's ID.
+	 * @param pollId the poll
+	 * @param search optional text that the title must contain (case insensitive). May be null
+	 * @param afterId ID of the last proposal of the previous page or null for the first page
+	 * @param limit maximum number of proposals
+	 * @return proposals ordered by ID
+	 */
+	public static List<ProposalEntity> findPage(Long pollId, String search, Long afterId, int limit) {
+		StringBuilder query = new StringBuilder("poll.id = :pollId");
+		Parameters params = Parameters.with("pollId", pollId);
+		if (!DoogiesUtil.isEmpty(search)) {
+			query.append(" and lower(title) like :search escape '\\'");
+			params.and("search", DoogiesUtil.likeContains(search));
+		}
+		if (afterId != null) {
+			query.append(" and id > :afterId");
+			params.and("afterId", afterId);
+		}
+		return ProposalEntity.<ProposalEntity>find(query + " order by id", params).page(0, limit).list();
+	}
+
+	/**
+	 * Count the proposals in several polls with one query
+	 * @return number of proposals by poll.id. Polls without proposals are missing.
+	 */
+	public static Map<Long, Long> countByPollIds(Collection<Long> pollIds) {
+		if (pollIds.isEmpty()) return Map.of();
+		return toCountMap(getEntityManager()
+				.createQuery("select p.poll.id, count(p) from proposals p where p.poll.id in :ids group by p.poll.id", Object[].class)
+				.setParameter("ids", pollIds)
+				.getResultList());
+	}
+
+	/**
+	 * Load the supporters of several proposals with one query
+	 * @return supporters by proposal.id. Proposals without supporters are missing.
+	 */
+	public static Map<Long, List<UserEntity>> findSupporters(Collection<Long> proposalIds) {
+		if (proposalIds.isEmpty()) return Map.of();
+		List<Object[]> rows = getEntityManager()
+				.createQuery("select p.id, s from proposals p join p.supporters s where p.id in :ids order by s.id", Object[].class)
+				.setParameter("ids", proposalIds)
+				.getResultList();
+		Map<Long, List<UserEntity>> supporters = new HashMap<>();
+		for (Object[] row : rows) supporters.computeIfAbsent((Long) row[0], id -> new ArrayList<>()).add((UserEntity) row[1]);
+		return supporters;
+	}
+
+	/**
+	 * Count the supporters of several proposals with one query
+	 * @return number of supporters by proposal.id. Proposals without supporters are missing.
+	 */
+	public static Map<Long, Long> countSupporters(Collection<Long> proposalIds) {
+		if (proposalIds.isEmpty()) return Map.of();
+		return toCountMap(getEntityManager()
+				.createQuery("select p.id, count(s) from proposals p join p.supporters s where p.id in :ids group by p.id", Object[].class)
+				.setParameter("ids", proposalIds)
+				.getResultList());
+	}
+
+	/**
+	 * Which of these proposals does a user support? One query over the proposal_supporters join table. The supporters are not loaded.
+	 * @param userId a user
+	 * @param proposalIds IDs of proposals
+	 * @return the IDs of those proposals that this user supports
+	 */
+	public static Set<Long> findSupportedBy(Long userId, Collection<Long> proposalIds) {
+		if (userId == null || proposalIds.isEmpty()) return Set.of();
+		return new HashSet<>(getEntityManager()
+				.createQuery("select p.id from proposals p join p.supporters s where s.id = :userId and p.id in :ids", Long.class)
+				.setParameter("userId", userId)
+				.setParameter("ids", proposalIds)
+				.getResultList());
+	}
+
+	private static Map<Long, Long> toCountMap(List<Object[]> rows) {
+		Map<Long, Long> counts = new HashMap<>();
+		for (Object[] row : rows) counts.put((Long) row[0], ((Number) row[1]).longValue());
+		return counts;
+	}
+
 	/**
 	 * Description can only be changed when in status IDEA or PROPOSAL
 	 * @param description the new description (HTML)
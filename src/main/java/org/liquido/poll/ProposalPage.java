@@ -0,0 +1,22 @@
+package org.liquido.poll;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One page of proposals in a poll. Pass nextCursor as "after" to get the next page.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProposalPage {
+	List<ProposalEntity> proposals;
+
+	/** ID of the last proposal in this page. null when there are no more proposals. */
+	Long nextCursor;
+
+	boolean hasMore;
+}
@@ -5,14 +5,17 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleIdTokenVerifier;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.gson.GsonFactory;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.annotation.security.PermitAll;
 import jakarta.inject.Inject;
+import jakarta.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.microprofile.graphql.Description;
 import org.eclipse.microprofile.graphql.GraphQLApi;
 import org.eclipse.microprofile.graphql.Name;
 import org.eclipse.microprofile.graphql.Query;
 import org.liquido.team.TeamDataResponse;
+import org.liquido.team.TeamEntity;
 import org.liquido.user.UserEntity;
 import org.liquido.util.LiquidoConfig;
 import org.liquido.util.LiquidoException;
@@ -26,6 +29,7 @@ import java.util.Collections;
  */
 @Slf4j
 @GraphQLApi
+@RunOnVirtualThread
 public class GoogleLogin {
 
 	@Inject
@@ -37,6 +41,7 @@ public class GoogleLogin {
 	@Query
 	@Description("Google OneTap login: This callback method is called by the google server after a google user successfully authenticates in the google one tap login screen. The passed google-IdToken will then be validated here. If successful and user is already registered in LIQUIDO, then a standard LIQUIDO TeamDataResponse will be returned. This contains a custom LIQUIDO JWT. Which is different from the google-IdToken. We have our own sessions!")
 	@PermitAll
+	@Transactional
 	public TeamDataResponse googleOneTapLogin(
 			@Name("googleIdToken") @Description("The idToken that was returned by Google oneTapLogin through our SPA") String googleIdToken
 	) throws LiquidoException {
@@ -84,6 +89,7 @@ public class GoogleLogin {
 		if (user.picture == null) {
 			user.setPicture(pictureUrl);
 			user.persist();
+			TeamEntity.bumpContentVersionOfTeamsOf(user.id);   // the picture is part of the team snapshot
 		}
 		log.info("Successful Google OneTap login: googleUserId={} googleEmail={}", userId, email);
 		return jwtTokenUtils.doLoginInternal(user, null);
@@ -0,0 +1,149 @@
+package org.liquido.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Central SHA3-256 hashing for voter tokens, rights to vote and ballot checksums.
+ *
+ * The result is exactly the same as <pre>DigestUtils.sha3_256Hex(a + b + c)</pre>
+ * But hashing is on the hot path when casting votes. So this does not allocate a new MessageDigest,
+ * a concatenated String and byte arrays for every call. Each thread has its own hasher with a reusable
+ * digest, input buffer and output buffers. Only the resulting hex String is allocated.
+ *
+ * <pre>
+ *   String hash = HashServiceSha3.start().add(plainVoterToken).add(pollId).add(secret).toHex();
+ * </pre>
+ *
+ * A hasher is bound to its thread. Do not keep a reference to it and do not interleave two hash calculations in one thread.
+ *
+ * Virtual threads live only for one request. A ThreadLocal would create a new hasher for each of them.
+ * So virtual threads borrow a hasher from a small pool in start() and give it back in toHex().
+ */
+public final class HashServiceSha3 {
+
+	private static final ThreadLocal<HashServiceSha3> HASHERS = ThreadLocal.withInitial(HashServiceSha3::new);
+	private static final BlockingQueue<HashServiceSha3> POOL = new ArrayBlockingQueue<>(64);   // for virtual threads
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final int HASH_LEN = 32;   // SHA3-256
+
+	private final MessageDigest digest;
+	private final StringBuilder input = new StringBuilder(256);
+	private byte[] utf8 = new byte[768];
+	private final byte[] hash = new byte[HASH_LEN];
+	private final byte[] hex = new byte[2 * HASH_LEN];
+
+	/** true when this hasher was borrowed from the POOL */
+	private boolean pooled = false;
+
+	private HashServiceSha3() {
+		try {
+			digest = MessageDigest.getInstance("SHA3-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA3-256 is not available in this JVM", e);
+		}
+	}
+
+	/** Start a new hash calculation with this thread's hasher */
+	public static HashServiceSha3 start() {
+		HashServiceSha3 hasher;
+		if (Thread.currentThread().isVirtual()) {
+			hasher = POOL.poll();
+			if (hasher == null) hasher = new HashServiceSha3();
+			hasher.pooled = true;
+		} else {
+			hasher = HASHERS.get();
+		}
+		hasher.input.setLength(0);
+		return hasher;
+	}
+
+	/** SHA3-256 hex of the concatenation a + b + c */
+	public static String sha3_256Hex(String a, String b, String c) {
+		return start().add(a).add(b).add(c).toHex();
+	}
+
+	/** SHA3-256 hex of the concatenation a + b + c */
+	public static String sha3_256Hex(String a, Long b, String c) {
+		return start().add(a).add(b).add(c).toHex();
+	}
+
+	/** Append a String. null is appended as "null", just like in String concatenation. */
+	public HashServiceSha3 add(String s) {
+		input.append(s);
+		return this;
+	}
+
+	public HashServiceSha3 add(long l) {
+		input.append(l);
+		return this;
+	}
+
+	public HashServiceSha3 add(Long l) {
+		if (l == null) input.append("null"); else input.append(l.longValue());
+		return this;
+	}
+
+	public HashServiceSha3 add(char c) {
+		input.append(c);
+		return this;
+	}
+
+	/** @return lowercase hex of the SHA3-256 hash of everything that has been added */
+	public String toHex() {
+		int len = encodeUtf8();
+		digest.update(utf8, 0, len);
+		try {
+			digest.digest(hash, 0, HASH_LEN);
+		} catch (DigestException e) {
+			throw new IllegalStateException("Cannot calculate SHA3-256", e);  // cannot happen, buffer is large enough
+		}
+		for (int i = 0; i < HASH_LEN; i++) {
+			hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0x0F];
+			hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0x0F];
+		}
+		String result = new String(hex, StandardCharsets.ISO_8859_1);
+		if (pooled) {
+			pooled = false;
+			POOL.offer(this);   // when the pool is full, then this hasher is simply dropped
+		}
+		return result;
+	}
+
+	/**
+	 * Encode input into the reusable utf8 buffer. Same result as String.getBytes(UTF_8):
+	 * Malformed surrogates are replaced with '?'.
+	 * @return number of bytes
+	 */
+	private int encodeUtf8() {
+		int n = input.length();
+		if (utf8.length < 3 * n) utf8 = new byte[3 * n];   // max 3 bytes per char. Surrogate pairs need 4 bytes for 2 chars.
+		int pos = 0;
+		for (int i = 0; i < n; i++) {
+			char c = input.charAt(i);
+			if (c < 0x80) {
+				utf8[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				utf8[pos++] = (byte) (0xC0 | (c >> 6));
+				utf8[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(input.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, input.charAt(++i));
+				utf8[pos++] = (byte) (0xF0 | (cp >> 18));
+				utf8[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				utf8[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				utf8[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				utf8[pos++] = (byte) '?';
+			} else {
+				utf8[pos++] = (byte) (0xE0 | (c >> 12));
+				utf8[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				utf8[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return pos;
+	}
+}
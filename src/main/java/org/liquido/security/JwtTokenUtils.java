@@ -6,10 +6,13 @@ import jakarta.inject.Inject;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.microprofile.jwt.JsonWebToken;
+import org.hibernate.Hibernate;
 import org.liquido.team.TeamDataResponse;
 import org.liquido.team.TeamEntity;
 import org.liquido.team.TeamMemberEntity;
 import org.liquido.user.UserEntity;
+import org.liquido.user.UserSnapshot;
+import org.liquido.user.UserSnapshotCache;
 import org.liquido.util.DoogiesUtil;
 import org.liquido.util.LiquidoConfig;
 import org.liquido.util.LiquidoException;
@@ -17,12 +20,18 @@ import org.liquido.util.LiquidoException;
 import java.time.LocalDateTime;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 
 /**
  * Utility class to generate and then validate JsonWebTokens for Liquido.
- * Each JWT contains the user's <b>ID</b> as JWT "subject" claim.
+ * Each JWT contains the user's <b>email</b> as JWT "subject" claim, the user's ID and the ID of the team that the user is logged into.
+ * The role is in the JWT "groups".
+ *
+ * So the current user's ID, team and role are known from the JWT alone. Authorization checks do not need the DB.
+ * When you need the user's name or email use {@link #getCurrentUserSnapshot()}, which is cached per node.
+ * Only load the managed UserEntity with {@link #getCurrentUser()} when you want to change something.
  */
 @Slf4j
 @RequestScoped
@@ -44,14 +53,20 @@ public class JwtTokenUtils {
 	@Inject
 	JsonWebToken jwt;
 
+	@Inject
+	UserSnapshotCache userSnapshotCache;
+
 	/** Key for teamId Claim in JWT. Keep in mind that the teamId is stored as a String in JWT claim! */
 	public static final String TEAM_ID_CLAIM = "teamId";
 
+	/** Key for userId Claim in JWT. Also stored as a String. */
+	public static final String USER_ID_CLAIM = "userId";
+
 	/**
 	 * This generates a new JWT. This needs jwtSecret as input, so that only the server can
-	 * generate JWTs. The userId becomes the JWT.subject and teamId is set as additional claim.
+	 * generate JWTs. The email becomes the JWT.subject. userId and teamId are set as additional claims.
 	 */
-	public String generateToken(@NonNull String email, @NonNull Long teamId, boolean isAdmin) {
+	public String generateToken(@NonNull String email, @NonNull Long userId, @NonNull Long teamId, boolean isAdmin) {
 		Set<String> groups = new HashSet<>();
 		groups.add(LIQUIDO_USER_ROLE);
 		if (isAdmin) groups.add(LIQUIDO_ADMIN_ROLE);
@@ -60,7 +75,8 @@ public class JwtTokenUtils {
 				//.upn("upn@liquido.vote")  // if upn is set, this will be used instead of subject   see JWTCallerPrincipal.getName()
 				.issuer(LIQUIDO_ISSUER)     // this is important. It will be verified by quarkus-security
 				.groups(groups)
-				.claim(TEAM_ID_CLAIM, String.valueOf(teamId))  // better put strings into claims
+				.claim(USER_ID_CLAIM, String.valueOf(userId))  // better put strings into claims
+				.claim(TEAM_ID_CLAIM, String.valueOf(teamId))
 				.expiresIn(config.jwt().expirationSecs())
 				//.jws().algorithm(SignatureAlgorithm.HS256)
 				.sign();  // uses liquidoJwtKey.json configured in application.properties
@@ -90,25 +106,25 @@ public class JwtTokenUtils {
 	 *   or when user with that email is not member of this team
 	 */
 	public TeamDataResponse doLoginInternal(UserEntity user, TeamEntity team) throws LiquidoException {
+		// Only the (teamId, role) of the user is needed for the JWT. The members of the team are not loaded.
+		TeamMemberEntity.Membership membership;
 		if (team == null) {
-			List<TeamEntity> teams = TeamMemberEntity.findTeamsByMember(user);
-			if (teams.isEmpty()) {
+			List<TeamMemberEntity.Membership> memberships = TeamMemberEntity.findMembershipsOfUser(user.id);
+			if (memberships.isEmpty()) {
 				log.warn("User ist not member of any team. Maybe his team was deleted? {}", user);
 				throw new LiquidoException(LiquidoException.Errors.CANNOT_LOGIN_USER_NOT_MEMBER_OF_TEAM, "Cannot login. User is not member of any team " + user);
-			} else if (teams.size() == 1) {
-				team = teams.get(0);
-			} else {
-				team = teams.stream().filter(t -> t.id == user.lastTeamId).findFirst().orElse(teams.get(0));
 			}
-		}
-		if (team.getMemberByEmail(user.email, null).isEmpty()) {
-			throw new LiquidoException(LiquidoException.Errors.CANNOT_LOGIN_USER_NOT_MEMBER_OF_TEAM, "Cannot login. User is not member of this team! " + user);
+			membership = memberships.stream().filter(m -> m.teamId() == user.lastTeamId).findFirst().orElse(memberships.get(0));
+			team = TeamEntity.findById(membership.teamId());   // just the team row, mostly from the second level cache
+		} else {
+			membership = new TeamMemberEntity.Membership(team.id, findRole(team, user)
+					.orElseThrow(LiquidoException.supply(LiquidoException.Errors.CANNOT_LOGIN_USER_NOT_MEMBER_OF_TEAM, "Cannot login. User is not member of this team! " + user)));
 		}
 		user.setLastLogin(LocalDateTime.now());
 		user.setLastTeamId(team.getId());
 		user.persist();
 		log.debug("doLoginInternal(): {} into team '{}'", user.toStringShort(), team.getTeamName());
-		String jwt = generateToken(user.email, team.id, team.isAdmin(user));
+		String jwt = generateToken(user.email, user.id, team.id, membership.role() == TeamMemberEntity.Role.ADMIN);
 		// MUST programmatically log in the user, because we already need it to create TeamDataResponse.poll.proposal.isCreatedByCurrentUser
 		setCurrentUserAndTeam(user, team);
 		//TODO: authenticateInSecurityContext(user.getId(), team.getId(), jwt);
@@ -117,19 +133,69 @@ public class JwtTokenUtils {
 
 
 	/**
-	 * Get the currently logged-in liquido user.
-	 * The UserEntity will lazily be loaded the first time you call this
-	 * and then cached for succeeding calls.
+	 * Role of the user in this team. A team that has just been created or joined already has its members in memory.
+	 * Otherwise only the role is queried. The team's members are never loaded here.
+	 */
+	private Optional<TeamMemberEntity.Role> findRole(TeamEntity team, UserEntity user) {
+		if (Hibernate.isInitialized(team.getMembers())) {
+			return team.getMembers().stream().filter(tm -> Objects.equals(tm.getUser().id, user.id)).map(TeamMemberEntity::getRole).findFirst();
+		}
+		return TeamMemberEntity.findRole(team.id, user.id);
+	}
+
+	/**
+	 * Get the ID of the currently logged-in user from the JWT. This does not need the DB.
+	 * Older JWTs without a userId claim are resolved once by the user's email.
+	 * @return the user's ID or Optional.empty() if not logged in
+	 */
+	public Optional<Long> getCurrentUserId() {
+		if (this.currentUser != null) return Optional.ofNullable(currentUser.id);
+		if (jwt == null || DoogiesUtil.isEmpty(jwt.getName())) return Optional.empty();
+		String userIdClaim = jwt.getClaim(USER_ID_CLAIM);
+		if (userIdClaim != null) return Optional.of(Long.valueOf(userIdClaim));
+		return getCurrentUser().map(u -> u.id);
+	}
+
+	/**
+	 * Is this the currently logged-in user? Compares only the IDs. Nothing is loaded from the DB.
+	 * @param user any user, may also be an uninitialized proxy or null
+	 * @return true if user is the currently logged-in user
+	 */
+	public boolean isCurrentUser(UserEntity user) {
+		if (user == null) return false;
+		Optional<Long> userId = getCurrentUserId();
+		return userId.isPresent() && userId.get().equals(user.getId());
+	}
+
+	/**
+	 * Get a read-only snapshot of the currently logged-in user. This is cached per node for a short time.
+	 * Use this, when you only need to read the user's attributes.
+	 * @return Optional.of(UserSnapshot) or Optional.empty() if not logged in or if the user does not exist anymore
+	 */
+	public Optional<UserSnapshot> getCurrentUserSnapshot() {
+		if (this.currentUser != null) return Optional.of(UserSnapshot.of(currentUser));
+		return getCurrentUserId().flatMap(userSnapshotCache::get);
+	}
+
+	/**
+	 * Get the currently logged-in liquido user as a managed entity, e.g. because you want to change it
+	 * or link it to another entity. The UserEntity will lazily be loaded by its ID the first time you call this
+	 * (mostly from the second level cache) and then cached for succeeding calls in this request.
 	 * @return Optional.of(UserEntity) or Optional.empty() if not logged in
 	 */
 	public Optional<UserEntity> getCurrentUser() {
 		if (this.currentUser != null) return Optional.of(currentUser);
 		if (jwt == null || DoogiesUtil.isEmpty(jwt.getName())) return Optional.empty();
-		String email = jwt.getName();   //TODO: or getClaim(Claims.sub)   ?
-		log.debug("Loading current user from DB ... " + email);
-		Optional<UserEntity> userOpt = UserEntity.findByEmail(email);
+		String userIdClaim = jwt.getClaim(USER_ID_CLAIM);
+		Optional<UserEntity> userOpt;
+		if (userIdClaim != null) {
+			userOpt = UserEntity.findByIdOptional(Long.valueOf(userIdClaim));
+		} else {
+			log.debug("JWT without userId claim. Loading current user by email ... " + jwt.getName());
+			userOpt = UserEntity.findByEmail(jwt.getName());
+		}
 		if (userOpt.isEmpty()) {
-			log.warn("Valid JWT, but user <" + email + "> not found in DB!");
+			log.warn("Valid JWT, but user <" + jwt.getName() + "> not found in DB!");
 			return userOpt;
 		}
 		this.currentUser = userOpt.get();
@@ -160,17 +226,26 @@ public class JwtTokenUtils {
 	 */
 	public Optional<TeamEntity> getCurrentTeam() {
 		if (this.currentTeam != null) return Optional.of(currentTeam);
-		Optional<UserEntity> userOpt = getCurrentUser();
-		if (userOpt.isEmpty()) return Optional.empty();
-		Long teamId = Long.valueOf(jwt.getClaim(JwtTokenUtils.TEAM_ID_CLAIM));
-		Optional<TeamEntity> teamOpt = TeamEntity.findByIdOptional(teamId);
+		Optional<Long> teamId = getCurrentTeamId();
+		if (teamId.isEmpty()) return Optional.empty();
+		Optional<TeamEntity> teamOpt = TeamEntity.findByIdOptional(teamId.get());   // mostly from the second level cache
 		if (teamOpt.isEmpty()) {
-			log.warn("Valid JWT for " + userOpt.get().toStringShort() + ", but not logged into any team. This should not happen.");
+			log.warn("Valid JWT for <" + jwt.getName() + ">, but not logged into any team. This should not happen.");
 			return teamOpt;
 		}
 		this.currentTeam = teamOpt.get();
 		return teamOpt;
 	}
 
+	/**
+	 * Get the ID of the team that the user is currently logged into, without loading the team.
+	 * @return the teamId from the JWT or Optional.empty() if not logged into a team
+	 */
+	public Optional<Long> getCurrentTeamId() {
+		if (this.currentTeam != null) return Optional.ofNullable(currentTeam.id);
+		if (jwt == null || jwt.getClaim(JwtTokenUtils.TEAM_ID_CLAIM) == null) return Optional.empty();
+		return Optional.of(Long.valueOf(jwt.<String>getClaim(JwtTokenUtils.TEAM_ID_CLAIM)));
+	}
+
 
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package org.liquido.security;
 
 import io.quarkus.mailer.Mailer;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import io.vertx.core.json.JsonObject;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -32,6 +33,7 @@ import org.liquido.util.Lson;
  */
 @Slf4j
 @Path("/login")
+@RunOnVirtualThread    // bcrypt and sending mails block for a long time. Do not tie up worker threads with that.
 @ApplicationScoped
 public class LoginRestAPI {
 
@@ -1,6 +1,7 @@
 package org.liquido.team;
 
 import com.fasterxml.jackson.annotation.JsonManagedReference;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Entity;
 import jakarta.persistence.FetchType;
@@ -10,6 +11,11 @@ import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import lombok.RequiredArgsConstructor;
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.jpa.HibernateHints;
+import org.hibernate.query.NativeQuery;
 import org.liquido.model.LiquidoBaseEntity;
 import org.liquido.poll.PollEntity;
 import org.liquido.user.UserEntity;
@@ -23,12 +29,15 @@ import java.util.Set;
 /**
  * This Team entity is the data model of a team in the backend database.
  * See UserGraphQL for the representation of a Team in the GraphQL API.
+ *
+ * Teams and their members are read on nearly every request. So they are kept in the second level cache.
  */
 @Data
 @RequiredArgsConstructor
 @NoArgsConstructor(force = true)                              // Lombok's Data does NOT include a default no args constructor!
 @EqualsAndHashCode(of={"teamName"}, callSuper = true)    			// Compare teams by their teamName and the DB ID.
 @Entity(name = "teams")
+@Cacheable
 public class TeamEntity extends LiquidoBaseEntity {
 
 	//ID field is already defined in PanacheEntity
@@ -50,14 +59,20 @@ public class TeamEntity extends LiquidoBaseEntity {
 	 * Members and Admins of this team. Each team must have at least one admin.
 	 *
 	 * Team -> TeamMember(with role and joinedAt) -> User
+	 *
+	 * Loaded lazily. In GraphQL this field is resolved for all teams in a response at once. See TeamGraphQL.members()
    */
-	@OneToMany(fetch = FetchType.EAGER, cascade = CascadeType.ALL, mappedBy = "team")
+	@OneToMany(fetch = FetchType.LAZY, cascade = CascadeType.ALL, mappedBy = "team")
+	@BatchSize(size = 100)
+	@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
   public Set<TeamMemberEntity> members = new HashSet<>();
 
 	/** The polls in this team */
 	//This is the one side of a bidirectional OneToMany relationship. Keep in mind that you then MUST add mappedBy to map the reverse direction.
 	//And don't forget the @JsonBackReference on the many-side of the relation (in PollModel) to prevent StackOverflowException when serializing a TeamModel
-	@OneToMany(mappedBy = "team", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
+	//Loaded lazily. In GraphQL this field is resolved for all teams in a response at once. See TeamGraphQL.polls()
+	@OneToMany(mappedBy = "team", cascade = CascadeType.ALL, fetch = FetchType.LAZY)
+	@BatchSize(size = 100)
 	@JsonManagedReference
 	Set<PollEntity> polls = new HashSet<>();   //BUGFIX: Changed from List to Set https://stackoverflow.com/questions/4334970/hibernate-throws-multiplebagfetchexception-cannot-simultaneously-fetch-multipl
 
@@ -133,8 +148,59 @@ public class TeamEntity extends LiquidoBaseEntity {
 		return find("teamName", teamName).firstResultOptional();
 	}
 
+	/**
+	 * Find a team by its invite code. The result is kept in the query cache.
+	 * It is invalidated by Hibernate whenever the teams table is changed.
+	 */
 	public static Optional<TeamEntity> findByInviteCode(String inviteCode) {
-		return find("inviteCode", inviteCode).firstResultOptional();
+		return find("inviteCode", inviteCode).withHint(HibernateHints.HINT_CACHEABLE, true).firstResultOptional();
+	}
+
+	// The content version of a team is stored in teams.contentVersion, but it is not mapped in this entity.
+	// It changes often, e.g. with every new proposal or like. An HQL update of TeamEntity would evict the whole TeamEntity cache region each time.
+	// Native queries that are synchronized only with this query space do not evict any cache region.
+	private static final String CONTENT_VERSION_SPACE = "team_content_version";
+
+	/**
+	 * Atomically increment the content version of a team in the DB. Must be called inside the transaction that changed the team's content:
+	 * its members, polls, proposals or likes. But not for cast votes. See TeamSnapshotService
+	 * @param teamId a team (may be null, e.g. for a poll that is not yet in a team)
+	 */
+	public static void bumpContentVersion(Long teamId) {
+		if (teamId == null) return;
+		getEntityManager().createNativeQuery("UPDATE teams SET contentVersion = contentVersion + 1 WHERE id = :id")
+				.unwrap(NativeQuery.class)
+				.addSynchronizedQuerySpace(CONTENT_VERSION_SPACE)
+				.setParameter("id", teamId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Increment the content version of all teams of a user. Must be called when profile data of the user changes,
+	 * that is part of the team's payload: name, email, picture, website or mobilephone. See TeamSnapshotService
+	 * @param userId a user
+	 */
+	public static void bumpContentVersionOfTeamsOf(Long userId) {
+		if (userId == null) return;
+		getEntityManager().createNativeQuery("UPDATE teams SET contentVersion = contentVersion + 1 WHERE id IN (SELECT team_id FROM team_members WHERE user_id = :userId)")
+				.unwrap(NativeQuery.class)
+				.addSynchronizedQuerySpace(CONTENT_VERSION_SPACE)
+				.setParameter("userId", userId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Only load the content version of a team. The team itself is not loaded.
+	 * @param teamId a team
+	 * @return the current content version or Optional.empty() if there is no team with this id
+	 */
+	public static Optional<Long> findContentVersion(Long teamId) {
+		Object version = getEntityManager().createNativeQuery("SELECT contentVersion FROM teams WHERE id = :id")
+				.unwrap(NativeQuery.class)
+				.addSynchronizedQuerySpace(CONTENT_VERSION_SPACE)
+				.setParameter("id", teamId)
+				.uniqueResult();
+		return version == null ? Optional.empty() : Optional.of(((Number) version).longValue());
 	}
 
 	/**
@@ -147,6 +213,7 @@ public class TeamEntity extends LiquidoBaseEntity {
 		TeamMemberEntity tm = new TeamMemberEntity(this, member, role);
 		tm.persist();
 		members.add(tm);
+		bumpContentVersion(this.id);
 		return this;
 	}
 
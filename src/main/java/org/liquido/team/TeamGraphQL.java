@@ -1,5 +1,6 @@
 package org.liquido.team;
 
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.annotation.security.PermitAll;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.inject.Inject;
@@ -7,21 +8,25 @@ import jakarta.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.microprofile.graphql.*;
 import org.eclipse.microprofile.jwt.JsonWebToken;
+import org.liquido.poll.PollEntity;
 import org.liquido.security.JwtTokenUtils;
 import org.liquido.security.PasswordServiceBcrypt;
 import org.liquido.user.UserEntity;
+import org.liquido.user.UserSnapshot;
 import org.liquido.util.DoogiesUtil;
 import org.liquido.util.LiquidoConfig;
 import org.liquido.util.LiquidoException;
 import org.liquido.vote.RightToVoteEntity;
 
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Optional;
 
 import static org.liquido.util.LiquidoException.Errors;
 
 @Slf4j
 @GraphQLApi
+@RunOnVirtualThread
 public class TeamGraphQL {
 
 	@Inject
@@ -30,6 +35,9 @@ public class TeamGraphQL {
 	@Inject
 	LiquidoConfig config;
 
+	@Inject
+	TeamSnapshotService teamSnapshotService;
+
 	/** Json Web Token that has been sent with request. */
 	@Inject
 	JsonWebToken jwt;
@@ -56,7 +64,7 @@ public class TeamGraphQL {
 			@Name("password")  @NonNull String plainPassword
 	) throws LiquidoException {
 		// IF calling user is already logged in, then he must use addAnotherTeam()
-		if (jwtTokenUtils.getCurrentUser().isPresent())
+		if (jwtTokenUtils.getCurrentUserId().isPresent())
 			throw new LiquidoException(Errors.CANNOT_CREATE_TEAM_ALREADY_REGISTERED, "You are already registered. Call the GraphQl mutation 'addAnotherTeam()' !");
 
 		// IF team with same name exist, then throw error
@@ -116,14 +124,15 @@ public class TeamGraphQL {
 
 		//TODO: make it configurable so that join team requests must be confirmed by an admin first.
 
-		Optional<UserEntity> currentUserOpt = jwtTokenUtils.getCurrentUser();
+		Optional<UserSnapshot> currentUserOpt = jwtTokenUtils.getCurrentUserSnapshot();
 		if (currentUserOpt.isPresent()) {
 			// IF user is already logged in, then he CAN join another team, but he MUST provide his already registered email, mobilephone
-			if (!DoogiesUtil.isEqual(currentUserOpt.get().email, member.email) ||
-					!DoogiesUtil.isEqual(currentUserOpt.get().mobilephone, member.mobilephone)) {
+			if (!DoogiesUtil.isEqual(currentUserOpt.get().getEmail(), member.email) ||
+					!DoogiesUtil.isEqual(currentUserOpt.get().getMobilephone(), member.mobilephone)) {
 				throw new LiquidoException(Errors.USER_EMAIL_EXISTS, "Your are already registered. You must provide your email and mobilephone to join another team!");
 			}
-			member = currentUserOpt.get();  // with db ID!
+			member = jwtTokenUtils.getCurrentUser()   // with db ID!
+					.orElseThrow(LiquidoException.supply(Errors.UNAUTHORIZED, "Cannot join team. Current user not found."));
 			//TODO: sanity check RightToVoteEntity.findByVoter(member).orElseThrow(...)   -> Or create a separate RightToVote per team?
 		} else {
 			// Anonymous request. Must provide new email and mobilephone
@@ -208,6 +217,24 @@ public class TeamGraphQL {
 		return teamOpt.orElseThrow(LiquidoException.supply(Errors.UNAUTHORIZED, "Cannot get team. User must be logged into a team!"));
 	}
 
+	/**
+	 * Get the user's own team as one JSON payload, but only if it has changed.
+	 * Clients should keep the version of the last snapshot and pass it as knownVersion.
+	 * When the team has not changed since then, only notModified=true is returned. See {@link TeamSnapshotService}
+	 * @param knownVersion the version that the client already has (optional)
+	 * @return the team's current version and its payload, if it has changed
+	 * @throws LiquidoException when not logged into a team
+	 */
+	@Query
+	@Description("Get your own team as JSON, but only if it has changed since knownVersion.")
+	@RolesAllowed(JwtTokenUtils.LIQUIDO_USER_ROLE)
+	@Transactional
+	public TeamSnapshot teamSnapshot(@Name("knownVersion") Long knownVersion) throws LiquidoException {
+		Long teamId = jwtTokenUtils.getCurrentTeamId()
+				.orElseThrow(LiquidoException.supply(Errors.UNAUTHORIZED, "Cannot get team. User must be logged into a team!"));
+		return teamSnapshotService.getSnapshot(teamId, jwtTokenUtils.isAdmin(), knownVersion);
+	}
+
 	/**
 	 * When a user gets invited to a team with an inviteCode,
 	 * then the frontend can fetch the full team info here.
@@ -225,5 +252,30 @@ public class TeamGraphQL {
 				.orElseThrow(LiquidoException.supply(Errors.CANNOT_JOIN_TEAM_INVITE_CODE_INVALID, "Invalid invite code!"));
 	}
 
+	// ========== Batched field resolvers ==========
+	// Collections of entities are loaded lazily. These resolvers load a field for all entities in a GraphQL response with one IN query.
+	// So the number of queries depends on the depth of the GraphQL query, not on the number of entities. And only selected fields are loaded.
+
+	/**
+	 * Members and admins of teams
+	 * @param teams all teams in the response
+	 * @return the members of each team
+	 */
+	@Description("Members and admins of this team")
+	public List<List<TeamMemberEntity>> members(@Source List<TeamEntity> teams) {
+		List<Long> teamIds = teams.stream().map(TeamEntity::getId).toList();
+		return DoogiesUtil.groupByParent(teams, TeamEntity::getId, TeamMemberEntity.findByTeamIds(teamIds), tm -> tm.getTeam().getId());
+	}
+
+	/**
+	 * Polls of teams
+	 * @param teams all teams in the response
+	 * @return the polls of each team
+	 */
+	@Description("The polls in this team")
+	public List<List<PollEntity>> polls(@Source List<TeamEntity> teams) {
+		List<Long> teamIds = teams.stream().map(TeamEntity::getId).toList();
+		return DoogiesUtil.groupByParent(teams, TeamEntity::getId, PollEntity.findByTeamIds(teamIds), poll -> poll.getTeam().getId());
+	}
 
-}
\ No newline at end of file
+}
@@ -2,9 +2,7 @@ package org.liquido.team;
 
 import com.fasterxml.jackson.annotation.JsonBackReference;
 import io.quarkus.hibernate.orm.panache.PanacheEntity;
-import jakarta.persistence.Entity;
-import jakarta.persistence.ManyToOne;
-import jakarta.persistence.OneToOne;
+import jakarta.persistence.*;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
@@ -13,7 +11,9 @@ import org.hibernate.annotations.CreationTimestamp;
 import org.liquido.user.UserEntity;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 
 /**
  * Link between a Team and its members and admins.
@@ -23,6 +23,8 @@ import java.util.List;
 @RequiredArgsConstructor
 @EqualsAndHashCode(of={}, callSuper = true)    	// Compare teams by their Id only. teamName may change.
 @Entity(name = "team_members")
+@Table(indexes = @Index(name = "idx_team_members_user_team", columnList = "user_id, team_id"))     // for login. See findMembershipsOfUser()
+@Cacheable
 public class TeamMemberEntity extends PanacheEntity {
 	@ManyToOne
 	@lombok.NonNull
@@ -44,6 +46,9 @@ public class TeamMemberEntity extends PanacheEntity {
 		ADMIN
 	}
 
+	/** The ID of a team and the role that a user has in it. Nothing more is needed to issue a JWT. */
+	public record Membership(Long teamId, Role role) {}
+
 	/**
 	 * Find all teams that a user is member (or admin) of.
 	 * @param user a user (team member or admin)
@@ -53,4 +58,43 @@ public class TeamMemberEntity extends PanacheEntity {
 		return TeamMemberEntity.<TeamMemberEntity>find("user", user).stream().map(tm -> tm.getTeam()).toList();
 	}
 
+	/**
+	 * All teams that a user is member (or admin) of and his role in each of them.
+	 * This is a projection. No team and no other member is loaded.
+	 * @param userId ID of a user
+	 * @return the user's memberships in the order he joined the teams
+	 */
+	public static List<Membership> findMembershipsOfUser(Long userId) {
+		List<Object[]> rows = getEntityManager()
+				.createQuery("select tm.team.id, tm.role from team_members tm where tm.user.id = :userId order by tm.id", Object[].class)
+				.setParameter("userId", userId)
+				.getResultList();
+		return rows.stream().map(row -> new Membership((Long) row[0], (Role) row[1])).toList();
+	}
+
+	/**
+	 * The role of a user in one team. This is a projection. No team and no other member is loaded.
+	 * @param teamId ID of a team
+	 * @param userId ID of a user
+	 * @return the user's role or Optional.empty() if the user is not a member of that team
+	 */
+	public static Optional<Role> findRole(Long teamId, Long userId) {
+		return getEntityManager()
+				.createQuery("select tm.role from team_members tm where tm.user.id = :userId and tm.team.id = :teamId", Role.class)
+				.setParameter("userId", userId)
+				.setParameter("teamId", teamId)
+				.getResultStream()
+				.findFirst();
+	}
+
+	/**
+	 * Load the members of several teams with one query. Their users are fetched in the same query.
+	 * @param teamIds IDs of teams
+	 * @return the members of these teams
+	 */
+	public static List<TeamMemberEntity> findByTeamIds(Collection<Long> teamIds) {
+		if (teamIds.isEmpty()) return List.of();
+		return TeamMemberEntity.<TeamMemberEntity>find("from team_members tm join fetch tm.user where tm.team.id in ?1 order by tm.id", teamIds).list();
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package org.liquido.team;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * The user's own team as one JSON payload, together with the team's content version.
+ * When the client already has the current version, then notModified is true and there is no payload.
+ * The ballot counters of polls in voting change with every vote. They are not part of the payload and its version.
+ * They are always sent separately in numBallots.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TeamSnapshot {
+	Long teamId;
+	long version;
+	boolean notModified;
+	/** JSON of the team with its members, polls and proposals. null when notModified */
+	String payload;
+	/** live number of ballots of each poll that is currently in its voting phase. Also set when notModified */
+	List<NumBallots> numBallots;
+
+	/** The ballot counter of one poll */
+	@Data
+	@NoArgsConstructor
+	@AllArgsConstructor
+	public static class NumBallots {
+		Long pollId;
+		long numBallots;
+	}
+}
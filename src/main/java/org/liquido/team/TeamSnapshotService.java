@@ -0,0 +1,179 @@
+package org.liquido.team;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.poll.PollEntity;
+import org.liquido.poll.ProposalEntity;
+import org.liquido.user.UserEntity;
+import org.liquido.util.LiquidoConfig;
+import org.liquido.util.LiquidoException;
+import org.liquido.util.Lson;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Versioned snapshots of teams.
+ *
+ * Clients fetch their team on nearly every screen change. But most of the time nothing has changed.
+ * So every team has a content version that is incremented whenever members, their profiles, polls, proposals or likes change. Then
+ * <ul>
+ *   <li>a client that sends the version it already has, only gets notModified=true back. That costs one lookup by primary key.</li>
+ *   <li>otherwise the serialized team is returned from an LRU cache by (team, role), as long as its version is still current.</li>
+ *   <li>only when the version has changed, the team is loaded with a few batched queries and serialized again.</li>
+ * </ul>
+ *
+ * The number of ballots of a poll in voting changes with every vote. Bumping the version for it would lock the team row on every vote
+ * and would invalidate the cached payload all the time. So these counters are not in the payload. They are read with one more small query
+ * on every request, also when the client's version is still current. Finished polls keep their numBallots in the payload.
+ *
+ * The version is always read from the DB. So this is also correct when several backend nodes change the same team.
+ * Admins additionally see the inviteCode and the mobilephone of members. So the payload is cached per role.
+ */
+@Slf4j
+@ApplicationScoped
+public class TeamSnapshotService {
+
+	@Inject
+	LiquidoConfig config;
+
+	@Inject
+	MeterRegistry registry;
+
+	/** A serialized team and the content version it was built for */
+	private record CachedPayload(long version, String payload) {}
+
+	/** LRU cache of serialized teams by "teamId:role" */
+	private Map<String, CachedPayload> cache = null;
+
+	private Counter notModified;
+	private Counter cacheHit;
+	private Counter cacheMiss;
+
+	@PostConstruct
+	void initMetrics() {
+		notModified = Counter.builder("liquido.team.snapshot").tag("result", "not_modified").register(registry);
+		cacheHit    = Counter.builder("liquido.team.snapshot").tag("result", "hit").register(registry);
+		cacheMiss   = Counter.builder("liquido.team.snapshot").tag("result", "miss").register(registry);
+	}
+
+	private synchronized Map<String, CachedPayload> cache() {
+		if (cache == null) {
+			int maxCached = config.teamSnapshot().cacheSize();
+			cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedPayload> eldest) {
+					return size() > maxCached;
+				}
+			});
+		}
+		return cache;
+	}
+
+	/**
+	 * Get the current snapshot of a team. Must be called inside a transaction.
+	 * @param teamId the user's team
+	 * @param isAdmin whether the user is an admin of this team
+	 * @param knownVersion the version that the client already has (optional)
+	 * @return the snapshot. Without payload when knownVersion is still current.
+	 * @throws LiquidoException when the team does not exist
+	 */
+	public TeamSnapshot getSnapshot(Long teamId, boolean isAdmin, Long knownVersion) throws LiquidoException {
+		// Read the version first. If the team changes while it is being loaded, then the payload is newer than its version. The client will simply fetch it again.
+		long version = TeamEntity.findContentVersion(teamId)
+				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.UNAUTHORIZED, "Cannot get team. User must be logged into a team!"));
+		List<TeamSnapshot.NumBallots> numBallots = PollEntity.findNumBallotsInVoting(teamId);
+		if (knownVersion != null && knownVersion == version) {
+			notModified.increment();
+			return new TeamSnapshot(teamId, version, true, null, numBallots);
+		}
+		String key = teamId + ":" + (isAdmin ? "admin" : "user");
+		CachedPayload cached = cache().get(key);
+		if (cached != null && cached.version() == version) {
+			cacheHit.increment();
+			return new TeamSnapshot(teamId, version, false, cached.payload(), numBallots);
+		}
+		cacheMiss.increment();
+		String payload = buildPayload(teamId, version, isAdmin);
+		cache().put(key, new CachedPayload(version, payload));
+		return new TeamSnapshot(teamId, version, false, payload, numBallots);
+	}
+
+	/**
+	 * Load a team with its members, polls and proposals and serialize it to JSON.
+	 * The team and its members mostly come from the second level cache.
+	 * Collections are loaded with one query each, like in the batched GraphQL resolvers.
+	 */
+	String buildPayload(Long teamId, long version, boolean isAdmin) {
+		TeamEntity team = TeamEntity.findById(teamId);
+		List<Long> teamIds = List.of(teamId);
+
+		List<Lson> members = new ArrayList<>();
+		for (TeamMemberEntity tm : TeamMemberEntity.findByTeamIds(teamIds)) {
+			members.add(Lson.builder()
+					.put("id", tm.id)
+					.put("role", tm.getRole())
+					.put("joinedAt", format(tm.getJoinedAt()))
+					.put("user", user(tm.getUser(), isAdmin)));
+		}
+
+		List<PollEntity> polls = PollEntity.findByTeamIds(teamIds);
+		List<ProposalEntity> proposals = ProposalEntity.findByPollIds(polls.stream().map(PollEntity::getId).toList());
+		Map<Long, Long> numSupporters = ProposalEntity.countSupporters(proposals.stream().map(ProposalEntity::getId).toList());
+		Map<Long, List<Lson>> proposalsByPoll = new HashMap<>();
+		for (ProposalEntity prop : proposals) {
+			proposalsByPoll.computeIfAbsent(prop.getPoll().getId(), id -> new ArrayList<>()).add(Lson.builder()
+					.put("id", prop.getId())
+					.put("title", prop.getTitle())
+					.put("description", prop.getDescription())
+					.put("icon", prop.getIcon())
+					.put("status", prop.getStatus())
+					.put("createdAt", format(prop.createdAt))
+					.put("numSupporters", numSupporters.getOrDefault(prop.getId(), 0L))
+					.put("createdBy", user(prop.createdBy, isAdmin)));
+		}
+
+		List<Lson> pollList = new ArrayList<>();
+		for (PollEntity poll : polls) {
+			pollList.add(Lson.builder()
+					.put("id", poll.getId())
+					.put("title", poll.getTitle())
+					.put("status", poll.getStatus())
+					.put("votingStartAt", format(poll.getVotingStartAt()))
+					.put("votingEndAt", format(poll.getVotingEndAt()))
+					.put("numBallots", poll.getStatus() == PollEntity.PollStatus.VOTING ? null : poll.getNumBallots())   // live counters are in TeamSnapshot.numBallots
+					.put("winnerId", poll.getWinner() != null ? poll.getWinner().getId() : null)
+					.put("proposals", proposalsByPoll.getOrDefault(poll.getId(), List.of())));
+		}
+
+		Lson json = Lson.builder()
+				.put("id", team.getId())
+				.put("teamName", team.getTeamName())
+				.put("contentVersion", version)
+				.put("members", members)
+				.put("polls", pollList);
+		if (isAdmin) json.put("inviteCode", team.getInviteCode());
+		return json.toString();
+	}
+
+	private static Lson user(UserEntity user, boolean isAdmin) {
+		if (user == null) return null;
+		Lson json = Lson.builder()
+				.put("id", user.getId())
+				.put("name", user.getName())
+				.put("email", user.getEmail())
+				.put("picture", user.getPicture())
+				.put("website", user.getWebsite());
+		if (isAdmin) json.put("mobilephone", user.getMobilephone());
+		return json;
+	}
+
+	/** Lson's ObjectMapper has no module for java.time */
+	private static String format(LocalDateTime dateTime) {
+		return dateTime != null ? dateTime.toString() : null;
+	}
+}
@@ -2,6 +2,7 @@ package org.liquido.user;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.quarkus.hibernate.orm.panache.PanacheEntity;
+import jakarta.enterprise.inject.spi.CDI;
 import jakarta.persistence.*;
 import jakarta.validation.constraints.NotNull;
 import lombok.Data;
@@ -9,16 +10,16 @@ import lombok.NoArgsConstructor;
 import lombok.NonNull;
 import org.eclipse.microprofile.graphql.DefaultValue;
 import org.eclipse.microprofile.graphql.Ignore;
+import org.hibernate.annotations.BatchSize;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
+import org.hibernate.jpa.HibernateHints;
 import org.liquido.security.PasswordServiceBcrypt;
 import org.liquido.security.webauthn.WebAuthnCredential;
 import org.liquido.util.DoogiesUtil;
 
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 
 /**
  * <h1>A LIQUIDO voter</h1>
@@ -44,7 +45,7 @@ import java.util.Optional;
 @Table(name = "liquido_user", indexes = {
 		@Index(name="idx_user_email", columnList = "email")
 })
-//TODO: @Cacheable Can a user be cached?  For how long?
+@Cacheable     // Users are read on nearly every request. See quarkus.hibernate-orm.cache.* in application.properties
 //DEPRECATED: @GraphQLType(name="user", description = "A LiquidoUser that can be an admin or member in a team.")  // Don't need to manually name the GraphQL DTO. It will be named "userInput" by graphql-spqr
 //BUGFIX: UserEntity does not extend LiquidoBaseEntity. Yes we want createdAt and updatedAt. But we cant have a createdBy, because this would lead to a circular dependency.
 public class UserEntity extends PanacheEntity {
@@ -169,7 +170,8 @@ public class UserEntity extends PanacheEntity {
 	 * Passwordless authentication with FaceID, fingerprint or hardware token.
 	 * One user may have more than one credential registered.
 	 */
-	@OneToMany(mappedBy = "liquidoUser", cascade = CascadeType.ALL, orphanRemoval = true, fetch = FetchType.EAGER)
+	@OneToMany(mappedBy = "liquidoUser", cascade = CascadeType.ALL, orphanRemoval = true, fetch = FetchType.LAZY)
+	@BatchSize(size = 100)
 	@Ignore  //SECURITY IMPORTANT: ignore in GraphQL and JSON
 	@JsonIgnore
 	public List<WebAuthnCredential> webAuthnCredentials = new ArrayList<>();
@@ -195,13 +197,13 @@ public class UserEntity extends PanacheEntity {
 	// ====================== Active Record - query methods ===================
 
 	/**
-	 * Find a user by email
+	 * Find a user by email. The result is kept in the query cache. It is invalidated by Hibernate whenever the users table is changed.
 	 * @param email will be converted to lowercase
 	 * @return the found user or Optional.empty()
 	 */
 	public static Optional<UserEntity> findByEmail(String email) {
 		if (email == null || email.trim().isEmpty()) return Optional.empty();
-		return UserEntity.find("email", email.toLowerCase()).firstResultOptional();
+		return UserEntity.find("email", email.toLowerCase()).withHint(HibernateHints.HINT_CACHEABLE, true).firstResultOptional();
 	}
 
 	public static Optional<UserEntity> findByMobilephone(String mobilephone) {
@@ -209,6 +211,29 @@ public class UserEntity extends PanacheEntity {
 		return UserEntity.find("mobilephone", mobilephone).firstResultOptional();
 	}
 
+	/**
+	 * Which of these users have registered a webauthn authenticator? One query for all of them.
+	 * @param userIds IDs of users
+	 * @return the IDs of those users that have at least one webauthn credential
+	 */
+	public static Set<Long> findIdsWithWebAuthn(Collection<Long> userIds) {
+		if (userIds.isEmpty()) return Set.of();
+		return new HashSet<>(getEntityManager()
+				.createQuery("select distinct c.liquidoUser.id from WebAuthnCredential c where c.liquidoUser.id in :ids", Long.class)
+				.setParameter("ids", userIds)
+				.getResultList());
+	}
+
+	/**
+	 * Evict the cached snapshot of this user on this node, when the user is changed or deleted.
+	 * Other backend nodes will see the change after liquido.user-snapshot.ttl.
+	 */
+	@PostUpdate
+	@PostRemove
+	void evictSnapshot() {
+		CDI.current().select(UserSnapshotCache.class).get().evict(this.id);
+	}
+
 	/**
 	 * We assume that two persisted liquido voters entities are the same human being, if
 	 * <ul>
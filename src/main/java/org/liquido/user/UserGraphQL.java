@@ -3,6 +3,7 @@ package org.liquido.user;
 import io.quarkus.runtime.LaunchMode;
 import io.quarkus.runtime.configuration.ConfigUtils;
 import io.quarkus.vertx.http.runtime.CurrentVertxRequest;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.annotation.security.PermitAll;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.inject.Inject;
@@ -19,12 +20,16 @@ import org.liquido.util.DoogiesUtil;
 import org.liquido.util.LiquidoConfig;
 import org.liquido.util.LiquidoException;
 
+import java.util.List;
+import java.util.Set;
+
 import static org.liquido.util.LiquidoException.Errors;
 
 /**
  * GraphQL queries related to authentication of liquido users.
  */
 @GraphQLApi
+@RunOnVirtualThread
 @Slf4j
 public class UserGraphQL {
 
@@ -272,4 +277,15 @@ public class UserGraphQL {
 	//================== Login via Email Link ===============
 	// are now in LoginRestAPI.java
 
+	/**
+	 * Webauthn credentials are loaded lazily. This checks all users in a GraphQL response with one query.
+	 * @param users all users in the response
+	 * @return for each user whether they have registered a webauthn authenticator
+	 */
+	@Description("Has this user registered a webauthn authenticator?")
+	public List<Boolean> hasWebauthn(@Source List<UserEntity> users) {
+		Set<Long> withWebAuthn = UserEntity.findIdsWithWebAuthn(users.stream().map(UserEntity::getId).toList());
+		return users.stream().map(user -> withWebAuthn.contains(user.getId())).toList();
+	}
+
 }
\ No newline at end of file
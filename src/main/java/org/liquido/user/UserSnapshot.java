@@ -0,0 +1,25 @@
+package org.liquido.user;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Read-only copy of the public attributes of a user. This is not an entity and never attached to a session.
+ * Use it for checks and responses that do not change the user. (No passwordHash in here!)
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserSnapshot {
+	Long id;
+	String name;
+	String email;
+	String mobilephone;
+	String website;
+	String picture;
+
+	public static UserSnapshot of(UserEntity user) {
+		return new UserSnapshot(user.id, user.name, user.email, user.mobilephone, user.website, user.picture);
+	}
+}
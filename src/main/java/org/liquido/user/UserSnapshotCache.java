@@ -0,0 +1,94 @@
+package org.liquido.user;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.util.LiquidoConfig;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Small per-node cache of {@link UserSnapshot}s by user id.
+ *
+ * The user id, team id and role of the current user are already in the JWT. So most requests do not need the user at all.
+ * When they need the user's name or email, then they get a snapshot from here, without a DB round trip.
+ * Only requests that actually change something load the managed UserEntity.
+ *
+ * <ul>
+ *   <li>Snapshots expire after liquido.user-snapshot.ttl. Then changes that were made by other backend nodes become visible.</li>
+ *   <li>When a user is updated or deleted on this node, then its snapshot is evicted immediately. See {@link UserEntity#evictSnapshot()}</li>
+ * </ul>
+ */
+@Slf4j
+@ApplicationScoped
+public class UserSnapshotCache {
+
+	@Inject
+	LiquidoConfig config;
+
+	@Inject
+	MeterRegistry registry;
+
+	/** A snapshot and when it expires */
+	private record CachedUser(UserSnapshot user, long expiresAt) {}
+
+	/** LRU cache of snapshots by user id */
+	private Map<Long, CachedUser> cache = null;
+
+	private Counter cacheHit;
+	private Counter cacheMiss;
+
+	@PostConstruct
+	void initMetrics() {
+		cacheHit  = Counter.builder("liquido.user.snapshot").tag("result", "hit").register(registry);
+		cacheMiss = Counter.builder("liquido.user.snapshot").tag("result", "miss").register(registry);
+	}
+
+	private synchronized Map<Long, CachedUser> cache() {
+		if (cache == null) {
+			int maxCached = config.userSnapshot().cacheSize();
+			cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, CachedUser> eldest) {
+					return size() > maxCached;
+				}
+			});
+		}
+		return cache;
+	}
+
+	/**
+	 * Get a snapshot of a user. It is loaded from the DB when it is not cached or has expired.
+	 * @param userId ID of a user
+	 * @return the snapshot or Optional.empty() if there is no user with that id
+	 */
+	public Optional<UserSnapshot> get(Long userId) {
+		if (userId == null) return Optional.empty();
+		CachedUser cached = cache().get(userId);
+		long now = System.currentTimeMillis();
+		if (cached != null && cached.expiresAt() > now) {
+			cacheHit.increment();
+			return Optional.of(cached.user());
+		}
+		cacheMiss.increment();
+		Optional<UserSnapshot> snapshot = UserEntity.<UserEntity>findByIdOptional(userId).map(UserSnapshot::of);
+		if (snapshot.isPresent()) {
+			cache().put(userId, new CachedUser(snapshot.get(), now + config.userSnapshot().ttl().toMillis()));
+		} else {
+			cache().remove(userId);
+		}
+		return snapshot;
+	}
+
+	/** Remove the snapshot of this user, e.g. because the user has been changed. */
+	public void evict(Long userId) {
+		if (userId == null || cache == null) return;
+		cache.remove(userId);
+	}
+}
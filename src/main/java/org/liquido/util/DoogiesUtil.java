@@ -272,4 +272,32 @@ public class DoogiesUtil {
 		if (email == null) return null;
 		return email.toLowerCase().trim();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Pattern for a case insensitive "contains" search with SQL LIKE. Wildcards in the text are escaped with a backslash.
+	 * Use it as: lower(column) like :pattern escape '\\'
+	 * @param text the text to search for
+	 * @return lowercase %text%
+	 */
+	public static String likeContains(String text) {
+		String escaped = text.trim().toLowerCase().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+		return "%" + escaped + "%";
+	}
+
+	/**
+	 * Group children by their parent, in the order of the parents. This is the result format of batched GraphQL @Source resolvers.
+	 * @param parents list of parents
+	 * @param parentKey key of a parent, e.g. its ID
+	 * @param children all children of all these parents, e.g. loaded with one IN query
+	 * @param childKey key of the parent of a child, e.g. child.getParent().getId()
+	 * @return for each parent the list of its children (maybe empty)
+	 */
+	public static <P, C, K> List<List<C>> groupByParent(List<P> parents, Function<P, K> parentKey, Collection<C> children, Function<C, K> childKey) {
+		Map<K, List<C>> byKey = new HashMap<>();
+		for (C child : children) byKey.computeIfAbsent(childKey.apply(child), k -> new ArrayList<>()).add(child);
+		List<List<C>> result = new ArrayList<>(parents.size());
+		for (P parent : parents) result.add(byKey.getOrDefault(parentKey.apply(parent), List.of()));
+		return result;
+	}
+
+}
@@ -0,0 +1,190 @@
+package org.liquido.util;
+
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.analysis.FieldComplexityCalculator;
+import graphql.analysis.FieldComplexityEnvironment;
+import graphql.analysis.QueryComplexityCalculator;
+import graphql.execution.AbortExecutionException;
+import graphql.execution.CoercedVariables;
+import graphql.execution.ExecutionContext;
+import graphql.execution.instrumentation.ChainedInstrumentation;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.InstrumentationState;
+import graphql.execution.instrumentation.SimplePerformantInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationExecuteOperationParameters;
+import graphql.language.Document;
+import graphql.schema.GraphQLOutputType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLTypeUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.ContextNotActiveException;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.microprofile.jwt.JsonWebToken;
+import org.liquido.poll.PollsGraphQL;
+import org.liquido.security.JwtTokenUtils;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static cost and depth limits for GraphQL queries.
+ *
+ * Our graph is nested: team { polls { proposals { supporters { ... } } } }. One valid, but malicious query could load
+ * huge amounts of entities. And some queries, e.g. getTeamForInviteCode, are even allowed for anonymous users.
+ * So every query is analyzed after it has been validated, but <b>before</b> any data fetcher is called:
+ *
+ * <ul>
+ *   <li>Scalar fields cost nothing. Object fields cost 1.</li>
+ *   <li>The weight of expensive fields can be configured in liquido.query-limits.field-weights."Type.field"</li>
+ *   <li>The cost of a list field's children is multiplied with its "first" or "limit" argument (also from the parent field, e.g. pollsPage(first: 20) { polls { ... } }).
+ *       Like in the resolvers, this is clamped to 1 ... {@link PollsGraphQL#MAX_PAGE_SIZE}.
+ *       Lists without such an argument count as liquido.query-limits.default-list-size elements.</li>
+ *   <li>The cost of one field is capped at {@link #MAX_FIELD_COST}. A query with a field that reaches this cap is always rejected.
+ *       graphql-java sums up the cost of sibling fields as int. The parser allows at most 15000 tokens per document.
+ *       So with this cap these sums can never overflow, not even with thousands of aliased fields.</li>
+ *   <li>Introspection fields (__schema, __typename, ...) are not counted.</li>
+ * </ul>
+ *
+ * Queries that are deeper or more expensive than allowed for the current role (anonymous, LIQUIDO_USER, LIQUIDO_ADMIN) are rejected
+ * with an ExecutionAborted error. Rejections are counted in liquido.graphql.rejected and their cost in liquido.graphql.rejected.cost.
+ */
+@Slf4j
+@ApplicationScoped
+public class GraphQLQueryLimits {
+
+	@Inject
+	LiquidoConfig config;
+
+	@Inject
+	MeterRegistry registry;
+
+	@Inject
+	JsonWebToken jwt;
+
+	/** Maximum cost of one field. 15000 fields with this cost still fit into an int. */
+	static final int MAX_FIELD_COST = (1 << 17) - 1;
+
+	/** cost and depth of one query */
+	record QueryCost(int cost, int depth) {}
+
+	/** Add our instrumentation to the ones that SmallRye GraphQL has already configured, e.g. its query cache. */
+	void addInstrumentation(@Observes GraphQL.Builder builder) {
+		if (!config.queryLimits().enabled()) return;
+		builder.instrumentation(new ChainedInstrumentation(builder.build().getInstrumentation(), new LimitsInstrumentation()));
+		log.info("GraphQL query limits: anonymous={}, user={}, admin={}",
+				format(config.queryLimits().anonymous()), format(config.queryLimits().user()), format(config.queryLimits().admin()));
+	}
+
+	class LimitsInstrumentation extends SimplePerformantInstrumentation {
+		@Override
+		public InstrumentationContext<ExecutionResult> beginExecuteOperation(InstrumentationExecuteOperationParameters parameters, InstrumentationState state) {
+			ExecutionContext ctx = parameters.getExecutionContext();
+			checkLimits(ctx.getGraphQLSchema(), ctx.getDocument(), ctx.getOperationDefinition().getName(), ctx.getCoercedVariables());
+			return super.beginExecuteOperation(parameters, state);
+		}
+	}
+
+	/**
+	 * Check the query against the limits of the current role
+	 * @throws AbortExecutionException when the query is too deep or too expensive
+	 */
+	void checkLimits(GraphQLSchema schema, Document document, String operationName, CoercedVariables variables) {
+		String role = currentRole();
+		LiquidoConfig.QueryLimits.Limit limit = switch (role) {
+			case JwtTokenUtils.LIQUIDO_ADMIN_ROLE -> config.queryLimits().admin();
+			case JwtTokenUtils.LIQUIDO_USER_ROLE -> config.queryLimits().user();
+			default -> config.queryLimits().anonymous();
+		};
+		QueryCost queryCost = calculate(schema, document, operationName, variables, config.queryLimits().fieldWeights(), config.queryLimits().defaultListSize());
+		String reason = null;
+		if (queryCost.depth() > limit.maxDepth()) reason = "depth";
+		else if (queryCost.cost() > limit.maxCost()) reason = "cost";
+		if (reason == null) return;
+
+		Counter.builder("liquido.graphql.rejected").tag("role", role).tag("reason", reason).register(registry).increment();
+		DistributionSummary.builder("liquido.graphql.rejected.cost").tag("role", role).register(registry).record(queryCost.cost());
+		log.debug("Rejected GraphQL query {} for role {}: depth={}, cost={}", operationName, role, queryCost.depth(), queryCost.cost());
+		throw new AbortExecutionException(String.format("Query is too %s: depth %d (max %d), cost %d (max %d)",
+				reason.equals("depth") ? "deep" : "expensive", queryCost.depth(), limit.maxDepth(), queryCost.cost(), limit.maxCost()));
+	}
+
+	/** @return LIQUIDO_ADMIN, LIQUIDO_USER or "anonymous" */
+	private String currentRole() {
+		try {
+			Set<String> groups = jwt.getGroups();
+			if (groups == null) return "anonymous";
+			if (groups.contains(JwtTokenUtils.LIQUIDO_ADMIN_ROLE)) return JwtTokenUtils.LIQUIDO_ADMIN_ROLE;
+			if (groups.contains(JwtTokenUtils.LIQUIDO_USER_ROLE)) return JwtTokenUtils.LIQUIDO_USER_ROLE;
+		} catch (ContextNotActiveException e) {
+			// no request, e.g. a query that is executed internally
+		}
+		return "anonymous";
+	}
+
+	/**
+	 * Calculate the cost and depth of a query. This only walks the AST of the document. Nothing is loaded.
+	 * @param fieldWeights weight of expensive fields by "Type.field"
+	 * @param defaultListSize assumed number of elements of a list field without a "first" or "limit" argument
+	 */
+	static QueryCost calculate(GraphQLSchema schema, Document document, String operationName, CoercedVariables variables,
+	                           Map<String, Integer> fieldWeights, int defaultListSize) {
+		int[] maxDepth = { 0 };
+		boolean[] saturated = { false };
+		FieldComplexityCalculator fieldCost = (env, childCost) -> {
+			if (env.getField().getName().startsWith("__")) return 0;
+			maxDepth[0] = Math.max(maxDepth[0], depthOf(env));
+			GraphQLOutputType type = env.getFieldDefinition().getType();
+			Integer weight = fieldWeights.get(env.getParentType().getName() + "." + env.getField().getName());
+			if (weight == null) weight = GraphQLTypeUtil.isLeaf(GraphQLTypeUtil.unwrapAll(type)) ? 0 : 1;
+			long multiplier = GraphQLTypeUtil.isList(GraphQLTypeUtil.unwrapNonNull(type)) ? listSize(env, defaultListSize) : 1;
+			long cost = weight + multiplier * childCost;
+			if (cost >= MAX_FIELD_COST) {
+				saturated[0] = true;
+				return MAX_FIELD_COST;
+			}
+			return (int) cost;
+		};
+		int cost = QueryComplexityCalculator.newCalculator()
+				.fieldComplexityCalculator(fieldCost)
+				.schema(schema)
+				.document(document)
+				.operationName(operationName)
+				.variables(variables)
+				.build()
+				.calculate();
+		return new QueryCost(saturated[0] ? Integer.MAX_VALUE : cost, maxDepth[0]);
+	}
+
+	/** @return number of (non introspection) fields from the root down to this one */
+	private static int depthOf(FieldComplexityEnvironment env) {
+		int depth = 0;
+		for (FieldComplexityEnvironment e = env; e != null; e = e.getParentEnvironment()) {
+			if (!e.getField().getName().startsWith("__")) depth++;
+		}
+		return depth;
+	}
+
+	/** Expected number of list elements: the "first" or "limit" argument of this field or of its parent, clamped like in the resolvers */
+	private static long listSize(FieldComplexityEnvironment env, int defaultListSize) {
+		Long size = sizeArgument(env);
+		if (size == null && env.getParentEnvironment() != null) size = sizeArgument(env.getParentEnvironment());
+		return size != null ? size : defaultListSize;
+	}
+
+	private static Long sizeArgument(FieldComplexityEnvironment env) {
+		Object size = env.getArguments().get("first");
+		if (size == null) size = env.getArguments().get("limit");
+		if (size instanceof Number n) return Math.max(1, Math.min(n.longValue(), PollsGraphQL.MAX_PAGE_SIZE));
+		return null;
+	}
+
+	private static String format(LiquidoConfig.QueryLimits.Limit limit) {
+		return "depth " + limit.maxDepth() + "/cost " + limit.maxCost();
+	}
+}
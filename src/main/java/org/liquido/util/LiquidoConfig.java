@@ -6,7 +6,10 @@ import io.smallrye.config.WithName;
 import jakarta.validation.constraints.NotNull;
 import lombok.NonNull;
 
+import java.time.Duration;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 /**
  * LIQUIDO configurations from application.properties
@@ -85,4 +88,218 @@ public interface LiquidoConfig {
 		String serviceSid();
 	}
 
+	/** Where one-time voter tokens are stored */
+	VoterTokens voterTokens();
+	interface VoterTokens {
+		/** "jpa" (default) stores voter tokens in the DB. "in-memory" keeps them only in memory. Only use that in single node deployments! */
+		@WithDefault("jpa")
+		String store();
+
+		/** Maximum number of open voter tokens in the in-memory store */
+		@WithDefault("100000")
+		int maxInMemory();
+	}
+
+	/** Optional write-behind ingestion of cast votes. See {@link org.liquido.vote.BallotIngestionService} */
+	VoteIngestion voteIngestion();
+	interface VoteIngestion {
+		/** If true, then castVote only validates the voter token and appends the ballot to a local log. Ballots are committed to the DB in the background. */
+		@WithDefault("false")
+		boolean writeBehind();
+
+		/** Directory for the append-only ballot log. MUST be on durable local storage! */
+		@WithDefault("data/ballot-log")
+		String logDir();
+
+		/** Maximum number of ballots that are committed to the DB in one transaction */
+		@WithDefault("500")
+		int batchSize();
+
+		/** How often the background committer drains the ballot log */
+		@WithDefault("1s")
+		String commitInterval();
+
+		/** Maximum number of votes in one bulk castVotes request */
+		@WithDefault("1000")
+		int maxBulkSize();
+	}
+
+	/** Admission control for castVote. See {@link org.liquido.vote.CastVoteAdmissionControl} */
+	CastVoteAdmission castVoteAdmission();
+	interface CastVoteAdmission {
+		@WithDefault("true")
+		boolean enabled();
+
+		/** Maximum number of votes that are cast concurrently in one poll. Keep this below the size of the JDBC connection pool. */
+		@WithDefault("8")
+		int maxConcurrentPerPoll();
+
+		/** Maximum number of votes that wait for admission (over all polls). Further votes are rejected immediately. */
+		@WithDefault("200")
+		int maxQueue();
+
+		/** How long a vote may wait for admission before it is rejected */
+		@WithDefault("500")
+		long queueWaitMillis();
+
+		/** Hint for clients when they should retry a rejected vote */
+		@WithDefault("2")
+		int retryAfterSecs();
+	}
+
+	/** In-memory index of delegations. See {@link org.liquido.delegation.DelegationIndex} */
+	DelegationIndex delegationIndex();
+	interface DelegationIndex {
+		/** If false, then delegations are always queried from the DB. */
+		@WithDefault("true")
+		boolean enabled();
+
+		/** How often the index is reloaded completely from the DB */
+		@WithDefault("1h")
+		String reloadInterval();
+	}
+
+	/** The maintained voting power of rightToVotes is regularly recalculated from the delegations. See {@link org.liquido.delegation.VotingPowerReconciliation} */
+	VotingPowerReconciliation votingPowerReconciliation();
+	interface VotingPowerReconciliation {
+		@WithDefault("true")
+		boolean enabled();
+
+		/** How often the voting power is reconciled. Each run counts the delegations of every proxy. */
+		@WithDefault("1h")
+		String interval();
+
+		/** Number of proxies that are locked and reconciled in one transaction */
+		@WithDefault("100")
+		int batchSize();
+	}
+
+	/** Delegations are copied into a snapshot when a poll starts. See {@link org.liquido.delegation.DelegationSnapshotService} */
+	DelegationSnapshot delegationSnapshot();
+	interface DelegationSnapshot {
+		/** If false, then no snapshots are created and votes are propagated along the live delegations. */
+		@WithDefault("true")
+		boolean enabled();
+
+		/** Number of snapshots that are kept in memory. One for each poll that is currently in voting should fit. */
+		@WithDefault("16")
+		int cacheSize();
+
+		/** Cached snapshots are reloaded after this time. Then changes that were made by other backend nodes become visible. */
+		@WithDefault("60s")
+		Duration cacheTtl();
+	}
+
+	/** Re-propagation of ballots when delegations change during voting. See {@link org.liquido.delegation.RepropagationService} */
+	Repropagation repropagation();
+	interface Repropagation {
+		/** How often the worker looks for pending tasks */
+		@WithDefault("2s")
+		String interval();
+
+		/** Maximum number of tasks that are processed in one run */
+		@WithDefault("200")
+		int batchSize();
+
+		/** A task that failed this often is dropped */
+		@WithDefault("5")
+		int maxAttempts();
+	}
+
+	/** Key figures of the delegation topology for admins. See {@link org.liquido.delegation.DelegationMetricsService} */
+	DelegationMetrics delegationMetrics();
+	interface DelegationMetrics {
+		@WithDefault("true")
+		boolean enabled();
+
+		/** How often the metrics are recalculated in the background. Each run scans all rightToVotes. */
+		@WithDefault("5m")
+		String refreshInterval();
+	}
+
+	/** Clients can send the hash of a GraphQL document instead of the document. See {@link org.liquido.util.PersistedOperations} */
+	PersistedOperations persistedOperations();
+	interface PersistedOperations {
+		@WithDefault("true")
+		boolean enabled();
+
+		/** If true, then only the operations in the manifest can be executed. */
+		@WithDefault("false")
+		boolean allowListOnly();
+
+		/** (optional) apollo-persisted-query-manifest JSON file that is generated by the client build */
+		Optional<String> manifest();
+
+		/** Maximum number of documents that clients can register at runtime */
+		@WithDefault("1000")
+		int cacheSize();
+	}
+
+	/** Cached and versioned team payloads. See {@link org.liquido.team.TeamSnapshotService} */
+	TeamSnapshot teamSnapshot();
+	interface TeamSnapshot {
+		/** Number of serialized teams that are kept in memory. Each team is cached once per role. */
+		@WithDefault("1000")
+		int cacheSize();
+	}
+
+	/** Per-node cache of users that are referenced in JWTs. See {@link org.liquido.user.UserSnapshotCache} */
+	UserSnapshot userSnapshot();
+	interface UserSnapshot {
+		/** Maximum number of cached users */
+		@WithDefault("10000")
+		int cacheSize();
+
+		/** Cached users are reloaded after this time. Then changes that were made by other backend nodes become visible. */
+		@WithDefault("30s")
+		Duration ttl();
+	}
+
+	/** Maximum depth and cost of GraphQL queries per role. See {@link org.liquido.util.GraphQLQueryLimits} */
+	QueryLimits queryLimits();
+	interface QueryLimits {
+		@WithDefault("true")
+		boolean enabled();
+
+		/** Number of elements that are assumed for a list field without a "first" or "limit" argument */
+		@WithDefault("10")
+		int defaultListSize();
+
+		/** Weight of expensive fields by "Type.field". All other object fields cost 1, scalar fields cost nothing. */
+		Map<String, Integer> fieldWeights();
+
+		Limit anonymous();
+		Limit user();
+		Limit admin();
+
+		interface Limit {
+			int maxDepth();
+			int maxCost();
+		}
+	}
+
+	/** Read-only GraphQL queries can be answered by a read replica. Only with the "replica" build profile. See {@link org.liquido.util.ReadReplicaRouting} */
+	ReadReplica readReplica();
+	interface ReadReplica {
+		/** Root query fields that never write. A query operation is sent to the replica, when all its root fields are in this list. */
+		@WithDefault("poll,polls,pollsPage,proposalsPage,pollSummaries,team,teamSnapshot,getTeamForInviteCode,myBallot,verifyBallot")
+		Set<String> queries();
+
+		/** "lsn" compares the WAL positions of primary and replica (PostgreSQL only). "time" just waits for read-your-writes-window after a mutation. */
+		@WithDefault("lsn")
+		String lagTracking();
+
+		/** How long a user's queries go to the primary after a mutation, when the LSN cannot be compared */
+		@WithDefault("5s")
+		Duration readYourWritesWindow();
+
+		/** The replica's WAL position is queried at most this often */
+		@WithDefault("200ms")
+		Duration lagCheckInterval();
+
+		/** Maximum number of users whose last write is remembered on this node */
+		@WithDefault("10000")
+		int maxTrackedUsers();
+	}
+
 }
\ No newline at end of file
@@ -8,6 +8,8 @@ import jakarta.json.JsonValue;
 import jakarta.ws.rs.ext.Provider;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Map;
+
 /**
  * Add liquido specific error codes to the GraphQL response.
  * This class MUST be registered in
@@ -37,6 +39,16 @@ public class LiquidoErrorExtensionProvider implements io.smallrye.graphql.api.Er
 					.add("liquidoErrorName", le.getErrorName())
 					.add("liquidoErrorCode", le.getErrorCodeAsInt())
 					.add("liquidoErrorMessage", le.getMessage());
+			if (le.getPayload() != null) {
+				// e.g. retryAfterSecs when the server is under high load
+				JsonObjectBuilder payload = Json.createObjectBuilder();
+				for (Object entry : le.getPayload().entrySet()) {
+					Map.Entry<?, ?> e = (Map.Entry<?, ?>) entry;
+					if (e.getValue() instanceof Number n) payload.add(String.valueOf(e.getKey()), n.longValue());
+					else payload.add(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+				}
+				builder.add("payload", payload);
+			}
 		} else
 		if (throwable instanceof UnauthorizedException) {
 			builder
@@ -71,6 +71,7 @@ public class LiquidoException extends Exception {
 	 * Do not add sensitive data to this!!!
 	 * This data will be serialized to the resulting JSON at will be returned to the client.
 	 */
+	@Getter
 	Map payload;
 
 	/**
@@ -136,6 +137,7 @@ public class LiquidoException extends Exception {
 
 		CANNOT_CALCULATE_UNIQUE_RANKED_PAIR_WINNER(70, Response.Status.INTERNAL_SERVER_ERROR),    // this is only used in the exceptional situation, that no unique winner can be calculated in RankedPairVoting
 		CANNOT_VERIFY_CHECKSUM(80, Response.Status.NOT_FOUND),              // ballot's checksum could not be verified
+		TOO_MANY_REQUESTS(90, Response.Status.TOO_MANY_REQUESTS),           // 429: server is under high load. Client should retry after payload.retryAfterSecs
 
 		// general errors
 		GRAPHQL_ERROR(400, Response.Status.BAD_REQUEST),                     // e.g. missing required fields, invalid GraphQL query, ...
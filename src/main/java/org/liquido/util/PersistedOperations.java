@@ -0,0 +1,230 @@
+package org.liquido.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Persisted GraphQL operations.
+ *
+ * Our mobile clients send the same few GraphQL documents over and over again. With persisted operations they only send
+ * the SHA-256 hash of the document. This is the "automatic persisted queries" protocol of Apollo:
+ * <pre>
+ *   { "extensions": { "persistedQuery": { "version": 1, "sha256Hash": "..." } }, "variables": { ... } }
+ * </pre>
+ * <ul>
+ *   <li>Known hash: The document is put into the request. Then the request continues to the normal GraphQL endpoint.</li>
+ *   <li>Unknown hash: The response is the error PersistedQueryNotFound. Then the client sends the hash together with the full query once.
+ *       That registers the document in a bounded LRU cache.</li>
+ *   <li>allow-list-only: Only the operations from the manifest may be executed, by hash or with their full text. Everything else is rejected
+ *       before it is parsed. Nothing is registered at runtime.</li>
+ * </ul>
+ *
+ * The manifest is the JSON file that the client build generates (apollo-persisted-query-manifest): operations with their id (the hash) and body.
+ *
+ * Parsing and validating is not repeated for known documents: SmallRye GraphQL already keeps parsed and validated documents
+ * in an LRU cache by their text (system property io.smallrye.graphql.execution.queryCacheMaxSize).
+ * So a resolved persisted operation always hits that cache.
+ *
+ * A resolved document is passed on as the URL parameter "query", also for POST requests. The GraphQL endpoint merges URL parameters
+ * over the JSON body when quarkus.smallrye-graphql.http.post.queryparameters.enabled=true. Because URL parameters win,
+ * the effective document of a POST request is also taken from the URL when it is there. Otherwise a client could bypass the allow list.
+ */
+@Slf4j
+@ApplicationScoped
+public class PersistedOperations {
+
+	@Inject
+	LiquidoConfig config;
+
+	@Inject
+	MeterRegistry registry;
+
+	@ConfigProperty(name = "quarkus.http.root-path", defaultValue = "/")
+	String httpRootPath;
+
+	@ConfigProperty(name = "quarkus.smallrye-graphql.root-path", defaultValue = "graphql")
+	String graphqlPath;
+
+	/** Requests with a larger body are rejected by the BodyHandler with 413 Request Entity Too Large */
+	static final long MAX_BODY_SIZE = 10 * 1024 * 1024;
+
+	enum Outcome { PASS, RESOLVED, REGISTERED, NOT_FOUND, NOT_ALLOWED, HASH_MISMATCH }
+
+	/** @param query the GraphQL document to execute when outcome is RESOLVED */
+	record Resolution(Outcome outcome, String query) {
+		static Resolution of(Outcome outcome) {
+			return new Resolution(outcome, null);
+		}
+	}
+
+	/** Documents from the manifest by their hash. Read only after startup. */
+	private Map<String, String> allowList = Map.of();
+
+	/** Documents that were registered by clients at runtime. LRU */
+	private Map<String, String> registered = Map.of();
+
+	private boolean allowListOnly = false;
+
+	private final Map<Outcome, Counter> counters = new EnumMap<>(Outcome.class);
+
+	void init(@Observes Router router) {
+		if (!config.persistedOperations().enabled()) return;
+		Map<String, String> manifest = config.persistedOperations().manifest().map(PersistedOperations::loadManifest).orElse(Map.of());
+		configure(config.persistedOperations().allowListOnly(), config.persistedOperations().cacheSize(), manifest);
+		for (Outcome outcome : Outcome.values()) {
+			counters.put(outcome, Counter.builder("liquido.graphql.persisted").tag("outcome", outcome.name().toLowerCase()).register(registry));
+		}
+		String path = (httpRootPath.endsWith("/") ? httpRootPath : httpRootPath + "/") + (graphqlPath.startsWith("/") ? graphqlPath.substring(1) : graphqlPath);
+		router.route(path).order(-100)
+				.handler(BodyHandler.create().setBodyLimit(MAX_BODY_SIZE))
+				.handler(this::handle);
+		log.info("Persisted GraphQL operations on {}: {} in manifest, allowListOnly={}", path, manifest.size(), allowListOnly);
+	}
+
+	void configure(boolean allowListOnly, int cacheSize, Map<String, String> allowList) {
+		this.allowListOnly = allowListOnly;
+		this.allowList = Map.copyOf(allowList);
+		this.registered = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > cacheSize;
+			}
+		});
+	}
+
+	/**
+	 * Decide what to do with a GraphQL request
+	 * @param query the document in the request or null
+	 * @param sha256Hash hash from extensions.persistedQuery or null
+	 */
+	Resolution resolve(String query, String sha256Hash) {
+		boolean hasQuery = query != null && !query.isBlank();
+		if (sha256Hash == null) {
+			if (!allowListOnly) return Resolution.of(Outcome.PASS);
+			return hasQuery && allowList.containsKey(sha256Hex(query)) ? Resolution.of(Outcome.PASS) : Resolution.of(Outcome.NOT_ALLOWED);
+		}
+		if (hasQuery) {
+			if (!sha256Hex(query).equalsIgnoreCase(sha256Hash)) return Resolution.of(Outcome.HASH_MISMATCH);
+			if (allowList.containsKey(sha256Hash)) return Resolution.of(Outcome.PASS);
+			if (allowListOnly) return Resolution.of(Outcome.NOT_ALLOWED);
+			registered.put(sha256Hash, query);
+			return Resolution.of(Outcome.REGISTERED);
+		}
+		String document = allowList.get(sha256Hash);
+		if (document == null && !allowListOnly) document = registered.get(sha256Hash);
+		return document != null ? new Resolution(Outcome.RESOLVED, document) : Resolution.of(Outcome.NOT_FOUND);
+	}
+
+	void handle(RoutingContext ctx) {
+		boolean isGet = HttpMethod.GET.equals(ctx.request().method());
+		if (!isGet && !HttpMethod.POST.equals(ctx.request().method())) {
+			ctx.next();
+			return;
+		}
+		String contentType = Objects.requireNonNullElse(ctx.request().getHeader("Content-Type"), "");
+		String query;
+		String hash;
+		try {
+			// The GraphQL endpoint URL-decodes parameters once more. See SmallRyeGraphQLExecutionHandler.readQueryParameter
+			query = urlParam(ctx, "query");
+			String extensions = urlParam(ctx, "extensions");
+			hash = extensions == null ? null : persistedQueryHash(new JsonObject(extensions));
+			if (!isGet && contentType.startsWith("application/graphql")) {
+				if (query == null) query = ctx.body().asString();
+			} else if (!isGet) {
+				JsonObject body = ctx.body().asJsonObject();
+				if (body != null && query == null) query = body.getString("query");
+				if (body != null && extensions == null) hash = persistedQueryHash(body.getJsonObject("extensions"));
+			}
+		} catch (DecodeException | ClassCastException | IllegalArgumentException e) {
+			// Not a single GraphQL request, e.g. a batch. Only allowed when not restricted to the allow list.
+			if (allowListOnly) sendError(ctx, Outcome.NOT_ALLOWED); else ctx.next();
+			return;
+		}
+
+		Resolution resolution = resolve(query, hash);
+		counters.get(resolution.outcome()).increment();
+		switch (resolution.outcome()) {
+			case PASS, REGISTERED -> ctx.next();
+			case RESOLVED -> {
+				ctx.queryParams().set("query", URLEncoder.encode(resolution.query(), StandardCharsets.UTF_8));
+				ctx.next();
+			}
+			default -> sendError(ctx, resolution.outcome());
+		}
+	}
+
+	/** A URL parameter as the GraphQL endpoint will see it, or null */
+	private static String urlParam(RoutingContext ctx, String name) {
+		String value = ctx.queryParams().get(name);
+		return value == null ? null : URLDecoder.decode(value, StandardCharsets.UTF_8);
+	}
+
+	private static String persistedQueryHash(JsonObject extensions) {
+		if (extensions == null) return null;
+		JsonObject persistedQuery = extensions.getJsonObject("persistedQuery");
+		return persistedQuery == null ? null : persistedQuery.getString("sha256Hash");
+	}
+
+	/** Errors in the format of the Apollo protocol. Clients resend the full query on PERSISTED_QUERY_NOT_FOUND. */
+	private static void sendError(RoutingContext ctx, Outcome outcome) {
+		String message = switch (outcome) {
+			case NOT_FOUND -> "PersistedQueryNotFound";
+			case HASH_MISMATCH -> "provided sha does not match query";
+			default -> "PersistedQueryNotAllowed";
+		};
+		String code = switch (outcome) {
+			case NOT_FOUND -> "PERSISTED_QUERY_NOT_FOUND";
+			case HASH_MISMATCH -> "INVALID_PERSISTED_QUERY_HASH";
+			default -> "PERSISTED_QUERY_NOT_ALLOWED";
+		};
+		JsonObject error = new JsonObject().put("message", message).put("extensions", new JsonObject().put("code", code));
+		ctx.response()
+				.putHeader("Content-Type", "application/json")
+				.end(new JsonObject().put("errors", List.of(error)).encode());
+	}
+
+	/** Load the operations from an apollo-persisted-query-manifest JSON file */
+	static Map<String, String> loadManifest(String file) {
+		try {
+			JsonObject manifest = new JsonObject(Files.readString(Path.of(file)));
+			Map<String, String> operations = new HashMap<>();
+			manifest.getJsonArray("operations").forEach(op -> {
+				JsonObject operation = (JsonObject) op;
+				operations.put(operation.getString("id"), operation.getString("body"));
+			});
+			return operations;
+		} catch (IOException | DecodeException e) {
+			throw new IllegalStateException("Cannot load persisted GraphQL operations from " + file, e);
+		}
+	}
+
+	static String sha256Hex(String text) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available in this JVM", e);
+		}
+	}
+}
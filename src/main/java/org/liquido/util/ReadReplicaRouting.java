@@ -0,0 +1,320 @@
+package org.liquido.util;
+
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.execution.ExecutionContext;
+import graphql.execution.instrumentation.ChainedInstrumentation;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.InstrumentationState;
+import graphql.execution.instrumentation.SimpleInstrumentationContext;
+import graphql.execution.instrumentation.SimplePerformantInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationExecuteOperationParameters;
+import graphql.language.*;
+import io.agroal.api.AgroalDataSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.agroal.DataSource;
+import io.quarkus.arc.profile.IfBuildProfile;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.ContextNotActiveException;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.microprofile.jwt.JsonWebToken;
+import org.liquido.security.JwtTokenUtils;
+import org.liquido.vote.BallotIngestionService;
+import org.liquido.vote.BallotsCommittedEvent;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+/**
+ * Send read-only GraphQL queries to a read replica of the DB.
+ *
+ * Casting votes and all other mutations must go to the primary DB. But most requests only read polls and teams.
+ * These can be answered by a replica. Then they do not compete with the vote writes for the primary.
+ * This is only active, when the app is built with the "replica" profile. See application.properties
+ *
+ * <ul>
+ *   <li>A query operation is read-only, when all its root fields are listed in liquido.read-replica.queries.
+ *       Some queries, e.g. the logins or voterToken, do write. They are not listed and always use the primary.</li>
+ *   <li>For read-only operations the Hibernate session of the request is opened on the "replica" datasource. See {@link ReplicaTenantResolver}
+ *       These sessions do not use the second level cache. See {@link ReplicaCacheModeIntegrator}</li>
+ *   <li>Read your writes: After a mutation has been committed, we remember the WAL position (LSN) of the primary as high-water mark
+ *       for the user (from the JWT) and for every poll that is referenced with a "pollId" in the mutation's arguments.
+ *       Casting a vote is anonymous. But its pollId is recorded. So verifyBallot and myBallot of that poll read from the primary
+ *       until the replica has replayed up to that position.
+ *       With write-behind vote ingestion the ballot is committed later by the {@link BallotIngestionService}.
+ *       Then the poll's high-water mark is recorded when the ballot log is drained. See {@link BallotsCommittedEvent}</li>
+ *   <li>When the LSN cannot be queried (liquido.read-replica.lag-tracking=time, or not PostgreSQL, e.g. H2 in tests),
+ *       then the queries go to the primary for liquido.read-replica.read-your-writes-window after a mutation.</li>
+ * </ul>
+ *
+ * High-water marks are per backend node. Routed queries are counted in liquido.read-replica.routed with target=replica,
+ * or target=primary when the replica might not contain the last write yet.
+ */
+@Slf4j
+@IfBuildProfile("replica")
+@ApplicationScoped
+public class ReadReplicaRouting {
+
+	@Inject
+	LiquidoConfig config;
+
+	@Inject
+	MeterRegistry registry;
+
+	@Inject
+	JsonWebToken jwt;
+
+	@Inject
+	ReplicaTenantResolver tenantResolver;
+
+	@Inject
+	BallotIngestionService ballotIngestionService;
+
+	@Inject
+	AgroalDataSource primary;
+
+	@Inject
+	@DataSource(ReplicaTenantResolver.REPLICA)
+	AgroalDataSource replica;
+
+	/** The primary's WAL position after the last write (or -1 if unknown) and when that write happened */
+	record HighWaterMark(long lsn, long writtenAt) {}
+
+	/** LRU of high-water marks by "user:&lt;id&gt;" or "poll:&lt;id&gt;" */
+	private Map<String, HighWaterMark> highWaterMarks = null;
+
+	/** Set to false when the LSN cannot be queried. Then only the read-your-writes-window is used. */
+	private volatile boolean lsnSupported = true;
+
+	/** Last known replayed WAL position of the replica and when it was checked */
+	private volatile long replicaLsn = -1;
+	private volatile long replicaLsnCheckedAt = 0;
+
+	private Counter routedToReplica;
+	private Counter routedToPrimary;
+
+	@PostConstruct
+	void initMetrics() {
+		routedToReplica = Counter.builder("liquido.read-replica.routed").tag("target", "replica").register(registry);
+		routedToPrimary = Counter.builder("liquido.read-replica.routed").tag("target", "primary").register(registry);
+		if (!"lsn".equals(config.readReplica().lagTracking())) lsnSupported = false;
+	}
+
+	private synchronized Map<String, HighWaterMark> highWaterMarks() {
+		if (highWaterMarks == null) {
+			int maxTracked = config.readReplica().maxTrackedUsers();
+			highWaterMarks = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, HighWaterMark> eldest) {
+					return size() > maxTracked;
+				}
+			});
+		}
+		return highWaterMarks;
+	}
+
+	/** Add our instrumentation to the ones that SmallRye GraphQL has already configured. */
+	void addInstrumentation(@Observes GraphQL.Builder builder) {
+		builder.instrumentation(new ChainedInstrumentation(builder.build().getInstrumentation(), new RoutingInstrumentation()));
+		log.info("Read-only GraphQL queries are sent to the read replica: {}", config.readReplica().queries());
+	}
+
+	class RoutingInstrumentation extends SimplePerformantInstrumentation {
+		@Override
+		public InstrumentationContext<ExecutionResult> beginExecuteOperation(InstrumentationExecuteOperationParameters parameters, InstrumentationState state) {
+			ExecutionContext ctx = parameters.getExecutionContext();
+			OperationDefinition operation = ctx.getOperationDefinition();
+			Set<String> keys = routingKeys(operation, ctx.getCoercedVariables().toMap(), currentUserId());
+			if (operation.getOperation() == OperationDefinition.Operation.MUTATION) {
+				// Mutations are committed when their resolvers return. So the operation is complete after the commit.
+				// Except write-behind votes: their ballots are committed when the ballot log is drained. See onBallotsCommitted
+				Set<String> writtenKeys = writtenKeys(operation, keys, ballotIngestionService.isWriteBehindEnabled());
+				return SimpleInstrumentationContext.whenCompleted((result, ex) -> recordWrite(writtenKeys));
+			}
+			route(operation, keys);
+			return super.beginExecuteOperation(parameters, state);
+		}
+	}
+
+	/**
+	 * Send this operation to the replica, if it only reads and the replica contains the last writes for these keys.
+	 * @return true if the operation is sent to the replica
+	 */
+	boolean route(OperationDefinition operation, Set<String> keys) {
+		if (!isReadOnly(operation, config.readReplica().queries())) return false;
+		if (mustReadFromPrimary(keys)) {
+			routedToPrimary.increment();
+			return false;
+		}
+		tenantResolver.useReplica();
+		routedToReplica.increment();
+		return true;
+	}
+
+	/**
+	 * Does this operation only read?
+	 * @param readOnlyQueries names of root query fields that never write
+	 * @return true if all root fields of the operation are in readOnlyQueries (or introspection fields)
+	 */
+	static boolean isReadOnly(OperationDefinition operation, Set<String> readOnlyQueries) {
+		if (operation.getOperation() != OperationDefinition.Operation.QUERY) return false;
+		for (Selection<?> selection : operation.getSelectionSet().getSelections()) {
+			if (!(selection instanceof Field field)) return false;   // fragments on the root type are not analyzed
+			if (!field.getName().startsWith("__") && !readOnlyQueries.contains(field.getName())) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The keys of the high-water marks that an operation writes or must respect when it reads:
+	 * "user:&lt;id&gt;" of the current user and "poll:&lt;id&gt;" for every pollId in the arguments of the root fields,
+	 * also inside lists and input objects, e.g. castVotes(votes: [{pollId: 1, ...}])
+	 * @param variables the coerced variables of the operation
+	 * @param userId the current user or null when anonymous
+	 */
+	static Set<String> routingKeys(OperationDefinition operation, Map<String, Object> variables, Long userId) {
+		Set<String> keys = new HashSet<>();
+		if (userId != null) keys.add("user:" + userId);
+		Set<Long> pollIds = new HashSet<>();
+		for (Selection<?> selection : operation.getSelectionSet().getSelections()) {
+			if (!(selection instanceof Field field)) continue;
+			for (Argument arg : field.getArguments()) collectPollIds(arg.getName(), arg.getValue(), variables, pollIds);
+		}
+		for (Long pollId : pollIds) keys.add("poll:" + pollId);
+		return keys;
+	}
+
+	private static void collectPollIds(String name, Value<?> value, Map<String, Object> variables, Set<Long> pollIds) {
+		if (value instanceof VariableReference ref) {
+			collectPollIds(name, variables.get(ref.getName()), pollIds);
+		} else if (value instanceof ArrayValue array) {
+			for (Value<?> v : array.getValues()) collectPollIds(name, v, variables, pollIds);
+		} else if (value instanceof ObjectValue obj) {
+			for (ObjectField f : obj.getObjectFields()) collectPollIds(f.getName(), f.getValue(), variables, pollIds);
+		} else if ("pollId".equals(name) && value instanceof IntValue i) {
+			pollIds.add(i.getValue().longValue());
+		} else if ("pollId".equals(name) && value instanceof StringValue s) {
+			collectPollIds(name, s.getValue(), pollIds);
+		}
+	}
+
+	/** Same for values of variables: Maps for input objects, Lists and scalars */
+	private static void collectPollIds(String name, Object value, Set<Long> pollIds) {
+		if (value instanceof Map<?, ?> map) {
+			map.forEach((k, v) -> collectPollIds(String.valueOf(k), v, pollIds));
+		} else if (value instanceof Collection<?> list) {
+			for (Object v : list) collectPollIds(name, v, pollIds);
+		} else if ("pollId".equals(name) && value instanceof Number n) {
+			pollIds.add(n.longValue());
+		} else if ("pollId".equals(name) && value instanceof String s) {
+			try {
+				pollIds.add(Long.valueOf(s));
+			} catch (NumberFormatException ignored) {
+				// not a poll id. The resolver will complain.
+			}
+		}
+	}
+
+	/** Mutations that only cast votes. In write-behind mode they do not write their ballots themselves. */
+	static final Set<String> CAST_VOTE_MUTATIONS = Set.of("castVote", "castVotes");
+
+	/**
+	 * The keys of the high-water marks that a mutation has written when it completes.
+	 * @param keys the routing keys of the mutation
+	 * @param writeBehind true if votes are ingested write-behind
+	 * @return the keys, but without the polls, when the mutation only casts votes write-behind. Their ballots are not committed yet.
+	 */
+	static Set<String> writtenKeys(OperationDefinition operation, Set<String> keys, boolean writeBehind) {
+		if (!writeBehind) return keys;
+		for (Selection<?> selection : operation.getSelectionSet().getSelections()) {
+			if (!(selection instanceof Field field) || !CAST_VOTE_MUTATIONS.contains(field.getName())) return keys;
+		}
+		Set<String> written = new HashSet<>(keys);
+		written.removeIf(key -> key.startsWith("poll:"));
+		return written;
+	}
+
+	/** Write-behind ballots are now in the primary DB. So record the high-water mark of their polls. */
+	void onBallotsCommitted(@Observes BallotsCommittedEvent event) {
+		Set<String> keys = new HashSet<>();
+		for (Long pollId : event.pollIds()) keys.add("poll:" + pollId);
+		recordWrite(keys);
+	}
+
+	/** Remember the position of the primary after a write */
+	void recordWrite(Set<String> keys) {
+		if (keys.isEmpty()) return;
+		long lsn = lsnSupported ? queryLsn(primary, "SELECT pg_current_wal_lsn()::text") : -1;
+		HighWaterMark mark = new HighWaterMark(lsn, System.currentTimeMillis());
+		for (String key : keys) highWaterMarks().put(key, mark);
+	}
+
+	/** @return true if the replica may not yet contain the last write for one of these keys */
+	boolean mustReadFromPrimary(Set<String> keys) {
+		boolean mustReadFromPrimary = false;
+		for (String key : keys) {
+			HighWaterMark mark = highWaterMarks().get(key);
+			if (mark == null) continue;
+			boolean lagging;
+			if (mark.lsn() >= 0 && lsnSupported) {
+				lagging = replicaLsn() < mark.lsn();
+			} else {
+				lagging = System.currentTimeMillis() < mark.writtenAt() + config.readReplica().readYourWritesWindow().toMillis();
+			}
+			if (lagging) mustReadFromPrimary = true;
+			else highWaterMarks().remove(key);
+		}
+		return mustReadFromPrimary;
+	}
+
+	/** Replayed WAL position of the replica. Checked at most every liquido.read-replica.lag-check-interval */
+	private long replicaLsn() {
+		long now = System.currentTimeMillis();
+		if (now - replicaLsnCheckedAt > config.readReplica().lagCheckInterval().toMillis()) {
+			// A server that is not in recovery, e.g. when the replica is the primary itself, has no replay position. Then it is always up to date.
+			long lsn = queryLsn(replica, "SELECT COALESCE(pg_last_wal_replay_lsn(), pg_current_wal_lsn())::text");
+			replicaLsn = lsn;
+			replicaLsnCheckedAt = now;
+		}
+		return replicaLsn;
+	}
+
+	/** @return the LSN from this query or -1. When the LSN cannot be queried at all, then lag tracking falls back to the time window. */
+	private long queryLsn(AgroalDataSource dataSource, String sql) {
+		try (Connection con = dataSource.getConnection(); Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+			return rs.next() ? parseLsn(rs.getString(1)) : -1;
+		} catch (SQLException | IllegalArgumentException e) {
+			if (lsnSupported) log.warn("Cannot query WAL position. Read-your-writes falls back to liquido.read-replica.read-your-writes-window. {}", e.getMessage());
+			lsnSupported = false;
+			return -1;
+		}
+	}
+
+	/**
+	 * Parse a PostgreSQL LSN, e.g. "16/B374D848"
+	 * @return the LSN as one number. Larger is newer.
+	 * @throws IllegalArgumentException when lsn is not a valid LSN
+	 */
+	static long parseLsn(String lsn) {
+		if (lsn == null) throw new IllegalArgumentException("LSN is null");
+		int slash = lsn.indexOf('/');
+		if (slash < 0) throw new IllegalArgumentException("Invalid LSN: " + lsn);
+		return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+	}
+
+	private Long currentUserId() {
+		try {
+			String userId = jwt.getClaim(JwtTokenUtils.USER_ID_CLAIM);
+			return userId != null ? Long.valueOf(userId) : null;
+		} catch (ContextNotActiveException e) {
+			return null;   // no request
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package org.liquido.util;
+
+import org.hibernate.CacheMode;
+import org.hibernate.boot.Metadata;
+import org.hibernate.boot.spi.BootstrapContext;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.integrator.spi.Integrator;
+
+/**
+ * Sessions on the read replica must not use the second level cache.
+ *
+ * Hibernate keeps a separate cache entry per tenant. Entities that a replica session puts into the cache would never be
+ * updated or evicted by writes on the primary. And the replica may still be lagging behind when it is read.
+ * So before the first entity or collection of a replica session is loaded, its CacheMode is set to IGNORE.
+ * Sessions on the primary are not touched.
+ *
+ * Registered in META-INF/services/org.hibernate.integrator.spi.Integrator
+ */
+public class ReplicaCacheModeIntegrator implements Integrator {
+
+	@Override
+	public void integrate(Metadata metadata, BootstrapContext bootstrapContext, SessionFactoryImplementor sessionFactory) {
+		EventListenerRegistry registry = sessionFactory.getEventListenerRegistry();
+		registry.prependListeners(EventType.PRE_LOAD, event -> ignoreCacheOnReplica(event.getSession()));
+		registry.prependListeners(EventType.INIT_COLLECTION, event -> ignoreCacheOnReplica(event.getSession()));
+	}
+
+	static void ignoreCacheOnReplica(SharedSessionContractImplementor session) {
+		if (ReplicaTenantResolver.REPLICA.equals(session.getTenantIdentifier()) && session.getCacheMode() != CacheMode.IGNORE) {
+			session.setCacheMode(CacheMode.IGNORE);
+		}
+	}
+}
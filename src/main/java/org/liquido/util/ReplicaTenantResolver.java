@@ -0,0 +1,47 @@
+package org.liquido.util;
+
+import io.quarkus.arc.profile.IfBuildProfile;
+import io.quarkus.datasource.common.runtime.DataSourceUtil;
+import io.quarkus.hibernate.orm.PersistenceUnitExtension;
+import io.quarkus.hibernate.orm.runtime.tenant.TenantResolver;
+import jakarta.enterprise.context.RequestScoped;
+
+/**
+ * Chooses the datasource for the Hibernate session of the current request.
+ *
+ * We (mis)use Hibernate's DATABASE multitenancy for this: The "tenant" is the name of the datasource.
+ * By default every request uses the primary datasource. {@link ReadReplicaRouting} switches read-only GraphQL queries
+ * to the "replica" datasource, before any data is loaded. The session is opened with the datasource that is chosen at that time.
+ *
+ * Multitenancy and the replica datasource are only configured in the "replica" build profile. See application.properties
+ * Sessions on the replica do not use the second level cache. See {@link ReplicaCacheModeIntegrator}
+ */
+@IfBuildProfile("replica")
+@PersistenceUnitExtension
+@RequestScoped
+public class ReplicaTenantResolver implements TenantResolver {
+
+	/** Name of the datasource for the read replica. See quarkus.datasource.replica.* in application.properties */
+	public static final String REPLICA = "replica";
+
+	private boolean useReplica = false;
+
+	@Override
+	public String getDefaultTenantId() {
+		return DataSourceUtil.DEFAULT_DATASOURCE_NAME;
+	}
+
+	@Override
+	public String resolveTenantId() {
+		return useReplica ? REPLICA : getDefaultTenantId();
+	}
+
+	/** Read from the replica in this request. Must be called before the first entity is loaded. */
+	public void useReplica() {
+		this.useReplica = true;
+	}
+
+	public boolean isUsingReplica() {
+		return useReplica;
+	}
+}
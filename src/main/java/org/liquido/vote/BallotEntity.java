@@ -6,9 +6,9 @@ import io.quarkus.hibernate.orm.panache.PanacheEntity;
 import jakarta.persistence.*;
 import jakarta.validation.constraints.NotNull;
 import lombok.*;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.liquido.poll.PollEntity;
 import org.liquido.poll.ProposalEntity;
+import org.liquido.security.HashServiceSha3;
 
 import java.util.List;
 import java.util.Optional;
@@ -29,6 +29,9 @@ import java.util.stream.Collectors;
 @NoArgsConstructor(force = true)
 @RequiredArgsConstructor                      //BUGFIX: https://jira.spring.io/browse/DATAREST-884
 @EqualsAndHashCode(callSuper = true)
+@Table(indexes = {
+		@Index(name = "idx_ballot_poll_checksum", columnList = "poll_id, checksum")    // verifyBallot is a point lookup
+})
 //@Table(uniqueConstraints = {
 //		@UniqueConstraint(columnNames = {"poll_id", "hashedVoterInfo"})   // a voter is only allowed to vote once per poll with his hashedVoterToken!
 //})
@@ -76,6 +79,8 @@ public class BallotEntity extends PanacheEntity {
 		if (voteOrder == null || voteOrder.isEmpty())
 			throw new IllegalArgumentException("Vote Order must not be null or empty!");
 		this.voteOrder = voteOrder;
+		// A changed voteOrder alone does not trigger @PreUpdate. So recalculate the checksum right here.
+		if (this.poll != null && this.rightToVote != null) calcSha256Checksum();
 	}
 
 	/**
@@ -92,22 +97,41 @@ public class BallotEntity extends PanacheEntity {
 
 	/**
 	 * The checksum of a ballot uniquely identifies this ballot.
-	 * The checksum is calculated from the voteOrder, poll.hashCode and rightToVote.hash.
+	 * The checksum is calculated from the poll.id, the ordered proposal ids in voteOrder and rightToVote.hash.
 	 * It deliberately does not depend on level or rightToVote.delegatedTo !
+	 * Format: <pre>v2:sha3hex</pre>  (Old ballots may still have an unversioned checksum. They can still be verified.)
 	 */
 	public String checksum;
 
+	/** Version prefix of the checksum format. Change this, when the checksum input ever changes. */
+	public static final String CHECKSUM_VERSION = "v2";
+
 	/**
 	 * This automatically calculates the checksum when the ballot is saved.
 	 */
-	@PostUpdate
+	@PreUpdate
 	@PrePersist
 	public void calcSha256Checksum() {
-		this.checksum = DigestUtils.sha3_256Hex(
-				// Cannot include this.ID in checksum. It's not present when saving a new Ballot!
-				this.getVoteOrder().hashCode() +
-						this.getPoll().hashCode() +
-						this.getRightToVote().hashedVoterInfo);
+		// Cannot include this.ID in checksum. It's not present when saving a new Ballot!
+		// Only use IDs. They are stable across JVMs and getting the id of a (lazy) entity does not load it from the DB.
+		List<Long> proposalIds = this.getVoteOrder().stream().map(ProposalEntity::getId).toList();
+		this.checksum = calcChecksum(this.getPoll().getId(), proposalIds, this.getRightToVote().hashedVoterInfo);
+	}
+
+	/**
+	 * Calculate the checksum of a ballot from primitive values only
+	 * @param pollId the poll the ballot is cast in
+	 * @param voteOrderIds ordered proposal ids
+	 * @param rightToVoteHash hash of the ballot's right to vote
+	 * @return versioned checksum, e.g. "v2:3f2a..."
+	 */
+	public static String calcChecksum(long pollId, List<Long> voteOrderIds, String rightToVoteHash) {
+		HashServiceSha3 hasher = HashServiceSha3.start().add(CHECKSUM_VERSION).add('|').add(pollId).add('|');
+		for (int i = 0; i < voteOrderIds.size(); i++) {
+			if (i > 0) hasher.add(',');
+			hasher.add(voteOrderIds.get(i));
+		}
+		return CHECKSUM_VERSION + ":" + hasher.add('|').add(rightToVoteHash).toHex();
 	}
 
 
@@ -116,7 +140,7 @@ public class BallotEntity extends PanacheEntity {
 	}
 
 	public static Optional<BallotEntity> findByPollAndChecksum(PollEntity poll, String checksum) {
-		return BallotEntity.find("poll = ?1 and checksum = ?2", poll, checksum).firstResultOptional();
+		return BallotEntity.find("poll.id = ?1 and checksum = ?2", poll.getId(), checksum).firstResultOptional();
 	}
 
 	@Override
@@ -0,0 +1,305 @@
+package org.liquido.vote;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.control.ActivateRequestContext;
+import jakarta.enterprise.event.Event;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import jakarta.transaction.Transactional;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.delegation.DelegationSnapshotService;
+import org.liquido.poll.PollEntity;
+import org.liquido.poll.ProposalEntity;
+import org.liquido.util.LiquidoConfig;
+import org.liquido.util.LiquidoException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind ingestion of cast votes.
+ *
+ * At the end of a voting phase there can be bursts of votes. In write-behind mode castVote does not
+ * hold a full DB transaction for every ballot. Instead:
+ * <ol>
+ *   <li>The voter token is validated and consumed synchronously.</li>
+ *   <li>The ballot is appended to a local durable {@link BallotLog}.</li>
+ *   <li>The voter immediately gets a receipt with the ballot's checksum.</li>
+ *   <li>A background committer drains the log into the DB in batches. One transaction per batch.</li>
+ * </ol>
+ * Ballots that have not yet been committed when the backend goes down are replayed on the next startup.
+ *
+ * Ballots are upserted per rightToVote. So replaying an entry that has already been committed is harmless.
+ * And a voter can never get their vote counted twice.
+ *
+ * A ballot is only dropped from the log when it can never be committed, i.e. when committing it fails with a LiquidoException,
+ * for example because its poll is not in VOTING anymore. When the DB is not available, then the committer stops
+ * and retries the same entries later with an increasing backoff.
+ *
+ * Write-behind mode is disabled by default. See liquido.vote-ingestion.* in application.properties.
+ */
+@Slf4j
+@ApplicationScoped
+public class BallotIngestionService {
+
+	@Inject
+	LiquidoConfig config;
+
+	@Inject
+	CastVoteService castVoteService;
+
+	@Inject
+	DelegationSnapshotService delegationSnapshotService;
+
+	@Inject
+	TransactionSynchronizationRegistry txRegistry;
+
+	@Inject
+	Event<BallotsCommittedEvent> ballotsCommitted;
+
+	/** Maximum wait before the committer retries after the DB was not available */
+	static final Duration MAX_RETRY_BACKOFF = Duration.ofMinutes(1);
+
+	Clock clock = Clock.systemUTC();
+	private int consecutiveFailures = 0;
+	private Instant retryNotBefore = Instant.MIN;
+
+	/** null when there is no ballot log, i.e. write-behind mode was never used */
+	BallotLog ballotLog = null;
+
+	/** Only one committer may drain the log at the same time. */
+	private final ReentrantLock commitLock = new ReentrantLock();
+
+	/**
+	 * Open the ballot log on startup and replay ballots that were not committed yet.
+	 * The log is also opened when write-behind mode has been switched off in the meantime.
+	 */
+	@ActivateRequestContext   // the Hibernate session needs a request context to choose its datasource. See ReplicaTenantResolver
+	void onStart(@Observes StartupEvent ev) throws IOException {
+		Path logDir = Path.of(config.voteIngestion().logDir());
+		if (!config.voteIngestion().writeBehind() && !Files.exists(logDir.resolve(BallotLog.LOG_FILE))) return;
+		ballotLog = new BallotLog(logDir);
+		log.info("Write-behind vote ingestion is {}. Ballot log in {}", config.voteIngestion().writeBehind() ? "enabled" : "disabled", logDir.toAbsolutePath());
+		if (ballotLog.numPending() > 0) {
+			log.info("Replaying {} uncommitted ballots from ballot log", ballotLog.numPending());
+			commitPendingBallots();
+		}
+	}
+
+	void onStop(@Observes ShutdownEvent ev) throws IOException {
+		if (ballotLog != null) ballotLog.close();
+	}
+
+	public boolean isWriteBehindEnabled() {
+		return config.voteIngestion().writeBehind() && ballotLog != null;
+	}
+
+	/**
+	 * Accept a vote in write-behind mode.
+	 * The voter token is consumed and the ballot is checked just like in {@link CastVoteService#castVote(String, PollEntity, List)}.
+	 * But the ballot is only appended to the local ballot log. It will be committed to the DB by the background committer.
+	 *
+	 * @param plainVoterToken the voter's plain voter token for this poll
+	 * @param pollId the poll to cast the vote in
+	 * @param voteOrderIds ordered list of proposal.IDs
+	 * @return CastVoteResponse with the (not yet persisted) ballot and its checksum as receipt. voteCount is always 0, because delegations are only resolved when the ballot is committed.
+	 * @throws LiquidoException when voterToken or ballot is invalid, or when the ballot could not be written to the log.
+	 */
+	@Transactional
+	public CastVoteResponse castVote(String plainVoterToken, long pollId, List<Long> voteOrderIds) throws LiquidoException {
+		if (!isWriteBehindEnabled())
+			throw new LiquidoException(LiquidoException.Errors.INTERNAL_ERROR, "Write-behind vote ingestion is not enabled.");
+		PollEntity poll = PollEntity.<PollEntity>findByIdOptional(pollId)
+				.orElseThrow(LiquidoException.notFound("Cannot cast vote. Poll(id="+pollId+") not found!"));
+		return acceptVote(plainVoterToken, poll, voteOrderIds);
+	}
+
+	/**
+	 * Accept many votes in one poll in write-behind mode, in one transaction. Each vote is checked on its own.
+	 * One invalid vote does not fail the others.
+	 * @param pollId the poll of all these votes
+	 * @param votes votes in this poll
+	 * @return one result per vote. Their index is the position in votes.
+	 * @throws LiquidoException when write-behind is not enabled
+	 */
+	@Transactional
+	public List<CastVoteResult> castVotes(long pollId, List<CastVoteRequest> votes) throws LiquidoException {
+		if (!isWriteBehindEnabled())
+			throw new LiquidoException(LiquidoException.Errors.INTERNAL_ERROR, "Write-behind vote ingestion is not enabled.");
+		Optional<PollEntity> poll = PollEntity.findByIdOptional(pollId);
+		List<CastVoteResult> results = new ArrayList<>(votes.size());
+		for (int i = 0; i < votes.size(); i++) {
+			try {
+				PollEntity votePoll = poll.orElseThrow(LiquidoException.notFound("Cannot cast vote. Poll(id="+pollId+") not found!"));
+				results.add(CastVoteResult.ok(i, acceptVote(votes.get(i).getVoterToken(), votePoll, votes.get(i).getVoteOrderIds())));
+			} catch (LiquidoException e) {
+				results.add(CastVoteResult.failed(i, e));
+			}
+		}
+		return results;
+	}
+
+	/** Check the vote, consume the voter token and append the ballot to the log. Must be called inside a transaction. */
+	private CastVoteResponse acceptVote(String plainVoterToken, PollEntity poll, List<Long> voteOrderIds) throws LiquidoException {
+		List<ProposalEntity> voteOrder = castVoteService.validateVoteOrder(poll, voteOrderIds);
+		RightToVoteEntity rightToVote = castVoteService.consumeVoterToken(plainVoterToken, poll);
+		BallotEntity ballot = new BallotEntity(poll, 0, voteOrder, rightToVote);
+		castVoteService.checkBallot(ballot);
+		ballot.calcSha256Checksum();
+
+		// The ballot must be durable before the voter gets a receipt. But the consumed voter token is only committed afterwards.
+		// So the entry is held back until this transaction has committed. If it is rolled back, then the voter keeps their token and the entry is cancelled.
+		BallotLog.Entry entry;
+		try {
+			entry = ballotLog.appendHeld(poll.id, rightToVote.hashedVoterInfo, voteOrderIds, ballot.getChecksum());
+		} catch (IOException e) {
+			throw new LiquidoException(LiquidoException.Errors.CANNOT_CAST_VOTE, "Cannot cast vote: Ballot could not be stored.", e);
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization() {
+			@Override
+			public void beforeCompletion() {}
+
+			@Override
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					ballotLog.confirm(entry.seq());
+					return;
+				}
+				try {
+					ballotLog.cancel(entry.seq());
+				} catch (IOException e) {
+					log.error("Cannot cancel ballot seq={} in ballot log. It will be replayed after a restart.", entry.seq(), e);
+				}
+			}
+		});
+		log.debug("castVote (write-behind): accepted ballot in poll.id={}, {} ballots pending", poll.id, ballotLog.numPending());
+		CastVoteResponse res = new CastVoteResponse(ballot, 0L);
+		res.setQueued(true);
+		return res;
+	}
+
+	/**
+	 * Background committer: Drain the ballot log into the DB in batches.
+	 * Each batch is committed in one transaction. If a batch fails, then its ballots are retried one by one,
+	 * so that one invalid ballot does not block all the others.
+	 * When the DB is not available, then nothing more is drained until the backoff has passed.
+	 */
+	@Scheduled(every = "${liquido.vote-ingestion.commit-interval:1s}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	public void commitPendingBallots() {
+		if (ballotLog == null || ballotLog.numPending() == 0) return;
+		if (clock.instant().isBefore(retryNotBefore)) return;
+		drain(config.voteIngestion().batchSize());
+	}
+
+	/**
+	 * Commit pending ballots from the log until it is empty, the next entry is held back or the DB fails.
+	 * @param batchSize maximum number of ballots in one transaction
+	 * @return true if no infrastructure error occurred
+	 */
+	boolean drain(int batchSize) {
+		commitLock.lock();
+		try {
+			while (ballotLog.numPending() > 0) {
+				List<BallotLog.Entry> batch = ballotLog.peekPending(batchSize);
+				if (batch.isEmpty()) break;   // the next entry is still held back by its transaction
+				try {
+					commitInNewTransaction(batch);
+					fireCommitted(batch);
+				} catch (RuntimeException batchFailed) {
+					log.warn("Committing batch of {} ballots failed. Will retry them one by one: {}", batch.size(), batchFailed.toString());
+					for (BallotLog.Entry entry : batch) {
+						try {
+							commitInNewTransaction(List.of(entry));
+							fireCommitted(List.of(entry));
+						} catch (RuntimeException e) {
+							if (!isDeterministic(e)) {
+								// DB outage, lock timeout, no connection: keep this entry and everything after it for the next attempt
+								backoff(e);
+								return false;
+							}
+							// A ballot that fails on its own with a LiquidoException can never be committed, e.g. because its poll has been finished in the meantime.
+							log.error("Dropping ballot seq={} in poll.id={} from ballot log: {}", entry.seq(), entry.pollId(), e.toString());
+						}
+						ballotLog.markCommitted(entry.seq());
+					}
+				}
+				ballotLog.markCommitted(batch.get(batch.size() - 1).seq());
+				log.debug("Committed {} ballots from ballot log", batch.size());
+			}
+			consecutiveFailures = 0;
+			return true;
+		} catch (IOException e) {
+			log.error("Cannot write committed marker of ballot log. Ballots will be replayed on next start.", e);
+			return false;
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/** Commit these ballots from the log in one new transaction */
+	void commitInNewTransaction(List<BallotLog.Entry> entries) {
+		QuarkusTransaction.requiringNew().call(() -> {
+			for (BallotLog.Entry entry : entries) castLoggedBallot(entry);
+			return null;
+		});
+	}
+
+	/**
+	 * Tell everyone who reads ballots, that these ballots are now in the DB.
+	 * For example, the {@link org.liquido.util.ReadReplicaRouting} records the high-water mark of their polls only now,
+	 * because in write-behind mode the castVote mutation has already returned long before.
+	 */
+	private void fireCommitted(List<BallotLog.Entry> entries) {
+		Set<Long> pollIds = entries.stream().map(BallotLog.Entry::pollId).collect(Collectors.toSet());
+		ballotsCommitted.fire(new BallotsCommittedEvent(pollIds));
+	}
+
+	/** A LiquidoException will happen again on every retry. Everything else may be temporary. */
+	static boolean isDeterministic(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof LiquidoException) return true;
+		}
+		return false;
+	}
+
+	private void backoff(RuntimeException e) {
+		consecutiveFailures++;
+		Duration wait = Duration.ofSeconds(1L << Math.min(consecutiveFailures - 1, 6));
+		if (wait.compareTo(MAX_RETRY_BACKOFF) > 0) wait = MAX_RETRY_BACKOFF;
+		retryNotBefore = clock.instant().plus(wait);
+		log.warn("Cannot commit ballots from ballot log. {} ballots stay pending. Retry in {}s: {}", ballotLog.numPending(), wait.toSeconds(), e.toString());
+	}
+
+	/** Rebuild the ballot from the log entry and upsert it (and its delegated ballots). Must be called inside a transaction. */
+	private CastVoteResponse castLoggedBallot(BallotLog.Entry entry) throws LiquidoException {
+		PollEntity poll = PollEntity.<PollEntity>findByIdOptional(entry.pollId())
+				.orElseThrow(LiquidoException.notFound("Cannot commit ballot. Poll(id="+entry.pollId()+") not found!"));
+		RightToVoteEntity rightToVote = RightToVoteEntity.findByHash(entry.rightToVoteHash())
+				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.CANNOT_CAST_VOTE, "Cannot commit ballot: RightToVote not found."));
+		List<ProposalEntity> voteOrder = castVoteService.validateVoteOrder(poll, entry.voteOrderIds());
+		delegationSnapshotService.lockForVoting(poll);
+		return castVoteService.castVoteRec(new BallotEntity(poll, 0, voteOrder, rightToVote));
+	}
+
+	/** @return number of accepted ballots that are not yet committed to the DB */
+	public int getNumPendingBallots() {
+		return ballotLog == null ? 0 : ballotLog.numPending();
+	}
+}
@@ -0,0 +1,251 @@
+package org.liquido.vote;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Local, durable, append-only log of ballots that have been accepted but not yet been committed to the DB.
+ * This is used by the {@link BallotIngestionService} in write-behind mode.
+ *
+ * <h3>Files</h3>
+ * <pre>
+ *   ballots.log        one line per accepted ballot:  seq;pollId;rightToVoteHash;proposalId,proposalId,...;checksum
+ *                      or a cancelled ballot:         -seq
+ *   ballots.committed  the highest seq that has been committed to the DB
+ * </pre>
+ *
+ * A ballot can be appended before the transaction that consumes its voter token has committed. Such an entry is held back:
+ * the committer does not see it (nor anything after it) until it is {@link #confirm(long) confirmed}.
+ * When the transaction is rolled back, then the entry is {@link #cancel(long) cancelled}. After a crash,
+ * held entries are replayed like all others, because the outcome of their transaction is unknown.
+ *
+ * Every append is forced to disk before it returns. The committed marker is replaced atomically.
+ * When all entries are committed, then the log file is truncated, so that it never grows without limit.
+ *
+ * The log only contains the anonymous rightToVote hash. Never any user info!
+ */
+@Slf4j
+public class BallotLog implements AutoCloseable {
+
+	static final String LOG_FILE = "ballots.log";
+	static final String COMMITTED_FILE = "ballots.committed";
+
+	/** One accepted ballot in the log */
+	public record Entry(long seq, long pollId, String rightToVoteHash, List<Long> voteOrderIds, String checksum) {
+
+		String toLine() {
+			String ids = voteOrderIds.stream().map(String::valueOf).collect(Collectors.joining(","));
+			return seq + ";" + pollId + ";" + rightToVoteHash + ";" + ids + ";" + checksum + "\n";
+		}
+
+		/** @return the parsed entry or null if line is not a complete entry, e.g. when it was torn by a crash */
+		static Entry fromLine(String line) {
+			String[] parts = line.split(";", -1);
+			if (parts.length != 5 || parts[2].isEmpty() || parts[3].isEmpty() || parts[4].isEmpty()) return null;
+			try {
+				List<Long> ids = Arrays.stream(parts[3].split(",")).map(Long::valueOf).toList();
+				return new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2], ids, parts[4]);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+
+	private final Path logFile;
+	private final Path committedFile;
+	private final FileChannel channel;
+	private final ReentrantLock lock = new ReentrantLock();   // not synchronized: appends block on fsync
+
+	/** Entries that are in the log but not yet committed. Ordered by seq. Guarded by lock. */
+	private final Deque<Entry> pending = new ArrayDeque<>();
+	/** seq of pending entries that are not yet confirmed. Guarded by lock. */
+	private final Set<Long> held = new HashSet<>();
+	private long lastSeq;
+	private long committedSeq;
+
+	/**
+	 * Open (or create) the ballot log in this directory and load all entries that have not yet been committed.
+	 * @param dir directory for the log files. Will be created if necessary.
+	 * @throws IOException when log cannot be opened
+	 */
+	public BallotLog(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		this.logFile = dir.resolve(LOG_FILE);
+		this.committedFile = dir.resolve(COMMITTED_FILE);
+		this.committedSeq = Files.exists(committedFile) ? Long.parseLong(Files.readString(committedFile).trim()) : 0;
+		this.lastSeq = committedSeq;
+
+		// Recover: everything after the committed marker must still be committed to the DB
+		if (Files.exists(logFile)) {
+			Set<Long> cancelled = new HashSet<>();
+			for (String line : Files.readAllLines(logFile, StandardCharsets.UTF_8)) {
+				if (line.startsWith("-")) {
+					try {
+						cancelled.add(Long.parseLong(line.substring(1)));
+					} catch (NumberFormatException e) {
+						log.warn("BallotLog: Ignoring incomplete line in {}", logFile);
+					}
+					continue;
+				}
+				Entry entry = Entry.fromLine(line);
+				if (entry == null) {
+					log.warn("BallotLog: Ignoring incomplete line in {}", logFile);
+					continue;
+				}
+				lastSeq = Math.max(lastSeq, entry.seq());
+				if (entry.seq() > committedSeq) pending.add(entry);
+			}
+			pending.removeIf(entry -> cancelled.contains(entry.seq()));
+		}
+		this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		cutTornTail();
+		if (!pending.isEmpty()) log.info("BallotLog: {} uncommitted ballots found in {}", pending.size(), logFile);
+	}
+
+	/** A crash in the middle of an append may leave an incomplete last line. Cut it off, so that the next append starts on a new line. */
+	private void cutTornTail() throws IOException {
+		byte[] content = Files.readAllBytes(logFile);
+		int validLength = content.length;
+		while (validLength > 0 && content[validLength - 1] != '\n') validLength--;
+		if (validLength < content.length) {
+			channel.truncate(validLength);
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Durably append a ballot to the log. When this method returns, then the entry is on disk.
+	 * @return the appended entry with its new sequence number
+	 * @throws IOException when the entry could not be written. Then the ballot MUST NOT be acknowledged.
+	 */
+	public Entry append(long pollId, String rightToVoteHash, List<Long> voteOrderIds, String checksum) throws IOException {
+		return append(pollId, rightToVoteHash, voteOrderIds, checksum, false);
+	}
+
+	/**
+	 * Durably append a ballot to the log, but hold it back until it is confirmed or cancelled.
+	 * Until then the committer stops in front of this entry.
+	 * @return the appended entry with its new sequence number
+	 * @throws IOException when the entry could not be written. Then the ballot MUST NOT be acknowledged.
+	 */
+	public Entry appendHeld(long pollId, String rightToVoteHash, List<Long> voteOrderIds, String checksum) throws IOException {
+		return append(pollId, rightToVoteHash, voteOrderIds, checksum, true);
+	}
+
+	private Entry append(long pollId, String rightToVoteHash, List<Long> voteOrderIds, String checksum, boolean hold) throws IOException {
+		lock.lock();
+		try {
+			Entry entry = new Entry(lastSeq + 1, pollId, rightToVoteHash, List.copyOf(voteOrderIds), checksum);
+			write(entry.toLine());
+			lastSeq = entry.seq();
+			pending.add(entry);   // enqueue under the lock, so that pending is always ordered by seq
+			if (hold) held.add(entry.seq());
+			return entry;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** The transaction of this held entry has committed. The committer may now commit it to the DB. */
+	public void confirm(long seq) {
+		lock.lock();
+		try {
+			held.remove(seq);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The transaction of this held entry was rolled back. It will never be committed to the DB, not even after a restart.
+	 * @throws IOException when the cancel marker could not be written. Then the entry is still removed from memory, but it would be replayed after a restart.
+	 */
+	public void cancel(long seq) throws IOException {
+		lock.lock();
+		try {
+			held.remove(seq);
+			pending.removeIf(entry -> entry.seq() == seq);
+			write("-" + seq + "\n");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void write(String line) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+		while (buf.hasRemaining()) channel.write(buf);
+		channel.force(false);
+	}
+
+	/**
+	 * @return up to maxEntries of the oldest uncommitted entries. They stay pending until {@link #markCommitted(long)}.
+	 *   Stops in front of the first held entry, because entries are committed in the order of their seq.
+	 */
+	public List<Entry> peekPending(int maxEntries) {
+		lock.lock();
+		try {
+			List<Entry> batch = new ArrayList<>(Math.min(maxEntries, pending.size()));
+			for (Entry entry : pending) {
+				if (batch.size() >= maxEntries || held.contains(entry.seq())) break;
+				batch.add(entry);
+			}
+			return batch;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return number of ballots that are accepted but not yet committed to the DB */
+	public int numPending() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * All entries up to and including seq have been committed to the DB.
+	 * Write the committed marker. When nothing is pending anymore, then truncate the log.
+	 */
+	public void markCommitted(long seq) throws IOException {
+		lock.lock();
+		try {
+			if (seq <= committedSeq) return;
+			Path tmp = committedFile.resolveSibling(COMMITTED_FILE + ".tmp");
+			Files.writeString(tmp, Long.toString(seq));
+			Files.move(tmp, committedFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			committedSeq = seq;
+			while (!pending.isEmpty() && pending.peekFirst().seq() <= seq) pending.removeFirst();
+			if (pending.isEmpty()) {
+				channel.truncate(0);
+				channel.force(true);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,11 @@
+package org.liquido.vote;
+
+import java.util.Set;
+
+/**
+ * Fired when ballots from the write-behind {@link BallotLog} have been committed to the DB.
+ * Only then can reads of these polls see the new ballots. See {@link BallotIngestionService}
+ *
+ * @param pollIds the polls of the committed ballots
+ */
+public record BallotsCommittedEvent(Set<Long> pollIds) {}
@@ -0,0 +1,168 @@
+package org.liquido.vote;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.util.LiquidoConfig;
+import org.liquido.util.LiquidoException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control in front of castVote.
+ *
+ * Just before a poll closes, the vote traffic can spike a lot. When every request competes for a JDBC connection
+ * and a transaction, then latency explodes and votes fail with pool timeouts. Therefore:
+ * <ul>
+ *   <li>Only a limited number of votes per poll are cast concurrently.</li>
+ *   <li>Further votes wait in a bounded queue, but only for a short queue-wait budget.</li>
+ *   <li>When the queue is full or the budget is used up, then the vote is rejected fast with
+ *       {@link LiquidoException.Errors#TOO_MANY_REQUESTS} and a retryAfterSecs hint. The client can simply retry.
+ *       The voter token is not consumed in that case.</li>
+ * </ul>
+ *
+ * Admission happens <b>before</b> the transaction is started. So a waiting vote does not hold a DB connection.
+ * See liquido.cast-vote-admission.* in application.properties
+ */
+@Slf4j
+@ApplicationScoped
+public class CastVoteAdmissionControl {
+
+	/** A call that is executed once it has been admitted */
+	@FunctionalInterface
+	public interface AdmittedCall<T> {
+		T call() throws LiquidoException;
+	}
+
+	@Inject
+	LiquidoConfig config;
+
+	@Inject
+	MeterRegistry registry;
+
+	/**
+	 * One semaphore per poll. Its permits are the concurrent castVote calls for that poll.
+	 * A poll is only in this map while calls for it are running or waiting. So polls that are finished,
+	 * or pollIds that never existed, do not pile up here.
+	 */
+	private final Map<Long, PollPermits> pollPermits = new ConcurrentHashMap<>();
+
+	/** The semaphore of one poll and the number of calls that are currently using it (running or waiting) */
+	private static class PollPermits {
+		final Semaphore permits;
+		int users = 0;   // only changed inside ConcurrentHashMap.compute, which locks this poll's entry
+
+		PollPermits(int maxConcurrent) {
+			this.permits = new Semaphore(maxConcurrent, true);
+		}
+	}
+
+	/** number of calls that are currently waiting for a permit (over all polls) */
+	private final AtomicInteger queueDepth = new AtomicInteger();
+
+	private Counter rejectedQueueFull;
+	private Counter rejectedTimeout;
+	private Timer queueWait;
+
+	@PostConstruct
+	void initMetrics() {
+		registry.gauge("liquido.castvote.admission.queue.depth", queueDepth);
+		rejectedQueueFull = Counter.builder("liquido.castvote.admission.rejected").tag("reason", "queue_full").register(registry);
+		rejectedTimeout   = Counter.builder("liquido.castvote.admission.rejected").tag("reason", "timeout").register(registry);
+		queueWait = Timer.builder("liquido.castvote.admission.queue.wait").register(registry);
+	}
+
+	/**
+	 * Execute call once there is a free slot for this poll.
+	 * @param pollId the poll the vote is cast in
+	 * @param call what to do, e.g. cast the vote in its own transaction
+	 * @return the result of call
+	 * @throws LiquidoException TOO_MANY_REQUESTS when the vote was not admitted, or any exception thrown by call
+	 */
+	public <T> T admit(long pollId, AdmittedCall<T> call) throws LiquidoException {
+		LiquidoConfig.CastVoteAdmission admissionConfig = config.castVoteAdmission();
+		if (!admissionConfig.enabled()) return call.call();
+
+		Semaphore permits = enter(pollId, admissionConfig.maxConcurrentPerPoll());
+		try {
+			// Also a call without waiting must honour the fair order. Plain tryAcquire() would overtake calls in the queue.
+			if (!tryAcquire(permits, 0)) {
+				// No free slot right now. Wait in the queue, if there is still room.
+				if (queueDepth.incrementAndGet() > admissionConfig.maxQueue()) {
+					queueDepth.decrementAndGet();
+					rejectedQueueFull.increment();
+					throw tooManyRequests(pollId, "queue is full");
+				}
+				long start = System.nanoTime();
+				boolean acquired;
+				try {
+					acquired = tryAcquire(permits, admissionConfig.queueWaitMillis());
+				} finally {
+					queueDepth.decrementAndGet();
+					queueWait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+				}
+				if (!acquired) {
+					rejectedTimeout.increment();
+					throw tooManyRequests(pollId, "queue wait budget exceeded");
+				}
+			}
+
+			try {
+				return call.call();
+			} finally {
+				permits.release();
+			}
+		} finally {
+			leave(pollId);
+		}
+	}
+
+	/** Get the semaphore of this poll and count this call as one of its users. The semaphore is created for the first user. */
+	private Semaphore enter(long pollId, int maxConcurrent) {
+		return pollPermits.compute(pollId, (id, p) -> {
+			if (p == null) p = new PollPermits(maxConcurrent);
+			p.users++;
+			return p;
+		}).permits;
+	}
+
+	/** This call does not use the poll's semaphore anymore. The last user removes it. */
+	private void leave(long pollId) {
+		pollPermits.computeIfPresent(pollId, (id, p) -> --p.users == 0 ? null : p);
+	}
+
+	/** Wait at most millis for a permit, in fair order. An interrupted call is not admitted. */
+	private static boolean tryAcquire(Semaphore permits, long millis) {
+		try {
+			return permits.tryAcquire(millis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/** @return number of polls that currently have castVote calls running or waiting */
+	int getNumActivePolls() {
+		return pollPermits.size();
+	}
+
+	/** @return number of castVote calls that are currently waiting for admission */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	private LiquidoException tooManyRequests(long pollId, String reason) {
+		log.debug("castVote for poll.id={} rejected: {}", pollId, reason);
+		return new LiquidoException(LiquidoException.Errors.TOO_MANY_REQUESTS,
+				"Too many votes are being cast right now. Please try again in a few seconds.",
+				null, Map.of("retryAfterSecs", config.castVoteAdmission().retryAfterSecs()));
+	}
+}
@@ -0,0 +1,28 @@
+package org.liquido.vote;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.eclipse.microprofile.graphql.NonNull;
+
+import java.util.List;
+
+/**
+ * One vote in a bulk castVotes request, e.g. from an offline voting terminal.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CastVoteRequest {
+	/** The poll to cast the vote in */
+	@NonNull
+	Long pollId;
+
+	/** The proposals as sorted by the voter */
+	@NonNull
+	List<Long> voteOrderIds;
+
+	/** The plain voter token that the voter has received for this poll. */
+	@NonNull
+	String voterToken;
+}
@@ -17,4 +17,10 @@ public class CastVoteResponse {
 	 */
 	@NonNull
 	Long voteCount;
+
+	/**
+	 * true when the ballot was accepted in write-behind mode and is not yet committed to the DB.
+	 * Then the ballot's checksum is the voter's receipt. And voteCount is not yet known.
+	 */
+	boolean queued = false;
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package org.liquido.vote;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.liquido.util.LiquidoException;
+
+/**
+ * Result for one vote in a bulk castVotes request.
+ * Either response is set, or the error fields tell why this vote could not be cast.
+ */
+@Data
+@NoArgsConstructor
+public class CastVoteResult {
+	/** Position of the vote in the request list */
+	int index;
+
+	/** CastVoteResponse when the vote was cast successfully. null otherwise */
+	CastVoteResponse response;
+
+	/** Name and code of the LiquidoException when the vote could not be cast. null otherwise */
+	String liquidoErrorName;
+	Integer liquidoErrorCode;
+	String liquidoErrorMessage;
+
+	public static CastVoteResult ok(int index, CastVoteResponse response) {
+		CastVoteResult res = new CastVoteResult();
+		res.index = index;
+		res.response = response;
+		return res;
+	}
+
+	public static CastVoteResult failed(int index, LiquidoException ex) {
+		CastVoteResult res = new CastVoteResult();
+		res.index = index;
+		res.liquidoErrorName = ex.getErrorName();
+		res.liquidoErrorCode = ex.getErrorCodeAsInt();
+		res.liquidoErrorMessage = ex.getMessage();
+		return res;
+	}
+
+	public boolean isSuccess() {
+		return response != null;
+	}
+}
@@ -1,12 +1,19 @@
 package org.liquido.vote;
 
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Instance;
 import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.FlushModeType;
 import jakarta.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.codec.digest.DigestUtils;
+import org.liquido.delegation.DelegationForest;
+import org.liquido.delegation.DelegationIndex;
+import org.liquido.delegation.DelegationSnapshotService;
 import org.liquido.poll.PollEntity;
 import org.liquido.poll.ProposalEntity;
+import org.liquido.security.HashServiceSha3;
 import org.liquido.user.UserEntity;
 import org.liquido.util.DoogiesUtil;
 import org.liquido.util.LiquidoConfig;
@@ -14,6 +21,7 @@ import org.liquido.util.LiquidoException;
 
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This service handles everything related to casting a vote.
@@ -25,6 +33,27 @@ public class CastVoteService {
 	@Inject
 	LiquidoConfig config;
 
+	@Inject
+	Instance<VoterTokenStore> voterTokenStores;
+
+	/** the configured VoterTokenStore:  liquido.voter-tokens.store=jpa|in-memory */
+	VoterTokenStore voterTokenStore;
+
+	@Inject
+	DelegationIndex delegationIndex;
+
+	@Inject
+	DelegationSnapshotService delegationSnapshotService;
+
+	/** Maximum number of hashes in one IN query when delegees are preloaded */
+	static final int PRELOAD_CHUNK_SIZE = 1000;
+
+	@PostConstruct
+	void init() {
+		voterTokenStore = voterTokenStores.get();
+		log.info("Using {}", voterTokenStore.getClass().getSimpleName());
+	}
+
 	// Some more resources around secure authentication with tokens:
 	//TODO: create really secure voterTokens like this: U2F  https://blog.trezor.io/why-you-should-never-use-google-authenticator-again-e166d09d4324
 	//TODO: RSA Tokens  https://stackoverflow.com/questions/37722090/java-jwt-with-public-private-keys
@@ -35,7 +64,7 @@ public class CastVoteService {
 	 *   1. A general RightToVote to be allowed to vote at all and
 	 *   2. A one-time voterToken for that specific poll
 	 *
-	 * This method will generate a plainVoterToken, hash it and create a one-time VoterTokenEntity from this hash.
+	 * This method will generate a plainVoterToken, hash it and store this hash in the {@link VoterTokenStore}.
 	 *
 	 * @param voter the currently logged in and correctly authenticated user
 	 * @param poll the voterToken is only valid for one vote in this poll
@@ -56,8 +85,8 @@ public class CastVoteService {
 		// But plainVoterToken is already random. This would only add little security.
 		String plainVoterToken  =  UUID.randomUUID().toString();
 		String hashedVoterToken =  calcHashedVoterToken(plainVoterToken, poll.id);
-		int ttl = config.voterTokenExpirationMinutes();
-		VoterTokenEntity ott = VoterTokenEntity.buildAndPersist(hashedVoterToken, poll, rightToVote, ttl);
+		LocalDateTime expiresAt = LocalDateTime.now().plusMinutes(config.voterTokenExpirationMinutes());
+		voterTokenStore.store(hashedVoterToken, poll.id, rightToVote.hashedVoterInfo, expiresAt);
 
 		// Only return the plainOneTimeToken to the voter. They can then use this token to anonymously cast one vote in this poll.
 		return plainVoterToken;
@@ -65,13 +94,13 @@ public class CastVoteService {
 
 	/**
 	 * Consume the one-time voterToken for a poll.
-	 * Check that the plainVoterToken links to a known VoterTokenEntity.
+	 * Check that the plainVoterToken links to a known voter token in the {@link VoterTokenStore}.
 	 * And that a valid RightToVote is linked.
 	 *
-	 * <pre>plainVoterToken --hashed--> VoterTokenEntity --> RightToVoteEntity</pre>
+	 * <pre>plainVoterToken --hashed--> StoredVoterToken --> RightToVoteEntity</pre>
 	 *
-	 * If everything is fine, then extends the validity of the RightToVoteEntity and
-	 * delete the consumed VoterTokenEntity.
+	 * The token is atomically removed from the store first. It can only be used ONCE, even when it turns out to be invalid.
+	 * If everything is fine, then extends the validity of the RightToVoteEntity.
 	 *
 	 * @param plainVoterToken the plain voter token that the voter sent
 	 * @param poll the poll we want to vote in.
@@ -85,23 +114,34 @@ public class CastVoteService {
 		// check voterToken
 		String hashedVoterToken = calcHashedVoterToken(plainVoterToken, poll.id);
 		//log.debug("consumeVoterToken: plainVoterToken = {} hashedVoterToken = {} in poll.id = {}", "XXXXXX", hashedVoterToken, poll.id);
-		VoterTokenEntity voterToken = VoterTokenEntity.<VoterTokenEntity>findByIdOptional(hashedVoterToken)
-				.orElseThrow(LiquidoException.supply(LiquidoException.Errors.INVALID_VOTER_TOKEN, "Cannot find a voterToken for you in this poll."));
-		if (LocalDateTime.now().isAfter(voterToken.expiresAt))
+		return checkConsumedVoterToken(voterTokenStore.consume(hashedVoterToken).orElse(null), poll);
+	}
+
+	/**
+	 * Check an already consumed voter token and lookup its RightToVote.
+	 * If everything is fine, then extends the validity of the RightToVoteEntity.
+	 * @param voterToken the consumed token or null if there was no token
+	 * @param poll the poll we want to vote in.
+	 * @return the voter's rightToVote if voterToken is valid
+	 * @throws LiquidoException when voterToken is invalid or its corresponding rightToVote is not known.
+	 */
+	private RightToVoteEntity checkConsumedVoterToken(VoterTokenStore.StoredVoterToken voterToken, PollEntity poll) throws LiquidoException {
+		if (voterToken == null)
+			throw new LiquidoException(LiquidoException.Errors.INVALID_VOTER_TOKEN, "Cannot find a voterToken for you in this poll.");
+		if (voterToken.isExpired())
 			throw new LiquidoException(LiquidoException.Errors.INVALID_VOTER_TOKEN, "This voterToken is expired.");
+		if (voterToken.pollId() != poll.id)
+			throw new LiquidoException(LiquidoException.Errors.INVALID_VOTER_TOKEN, "This voterToken is not valid for this poll.");
 
 		// check that the VoterToken linked to a right to vote.
-		RightToVoteEntity rightToVote = voterToken.getRightToVote();
+		RightToVoteEntity rightToVote = voterToken.rightToVoteHash() == null ? null : RightToVoteEntity.<RightToVoteEntity>findById(voterToken.rightToVoteHash());
 		if (rightToVote == null || !rightToVote.isValid())
 			throw new LiquidoException(LiquidoException.Errors.INVALID_VOTER_TOKEN, "You are not allowed to cast a vote.");
 		// and extends the RightToVote's expiration time.
 		rightToVote.setExpiresAt(LocalDateTime.now().plusHours(config.rightToVoteExpirationDays()));
 		rightToVote.persist();
 
-		// Finally delete the consumed voterToken. It may only be used ONCE!
-		voterToken.delete();
-
-		return voterToken.getRightToVote();
+		return rightToVote;
 	}
 
 	/**
@@ -113,7 +153,7 @@ public class CastVoteService {
 	 * @return the hashed voterToken
 	 */
 	private String calcHashedVoterToken(String plainVoterToken, Long pollId) {
-		return DigestUtils.sha3_256Hex(plainVoterToken + pollId + config.hashSecret());
+		return HashServiceSha3.sha3_256Hex(plainVoterToken, pollId, config.hashSecret());
 	}
 
 
@@ -132,6 +172,147 @@ public class CastVoteService {
 		//TODO: For even more security we could implement a challenge response mechanism for verifying plainVoterToken
 		log.info("castVote(poll={}, voteOrderIds={})", poll, voteOrderIds);
 
+		List<ProposalEntity> voteOrder = validateVoteOrder(poll, voteOrderIds);
+		delegationSnapshotService.lockForVoting(poll);   // the RepropagationService must not change the poll's delegations while we propagate this vote
+
+		// Validate voter token and lookup linked RightToVote
+		RightToVoteEntity rightToVote = consumeVoterToken(plainVoterToken, poll);
+
+		// Create a new ballot for the voter himself at level 0.
+		BallotEntity newBallot = new BallotEntity(poll, 0, voteOrder, rightToVote);
+
+		// check this ballot and recursively cast ballots for delegated rightToVotes
+		return castVoteRec(newBallot);
+	}
+
+	/**
+	 * Cast a vote in its own transaction. The poll is loaded inside this transaction.
+	 * This is called by the {@link CastVoteAdmissionControl} once the vote has been admitted.
+	 * @see #castVote(String, PollEntity, List)
+	 */
+	@Transactional
+	public CastVoteResponse castVote(String plainVoterToken, long pollId, List<Long> voteOrderIds) throws LiquidoException {
+		PollEntity poll = PollEntity.<PollEntity>findByIdOptional(pollId)
+				.orElseThrow(LiquidoException.notFound("Cannot cast vote. Poll(id="+pollId+") not found!"));
+		return castVote(plainVoterToken, poll, voteOrderIds);
+	}
+
+	/**
+	 * Cast many votes at once, e.g. from an offline voting terminal that collected ballots.
+	 * Each vote is checked on its own, before any of its ballots is written. An invalid vote is returned as a failed result.
+	 * It does not fail the others.
+	 *
+	 * Once the ballots of a vote are being written, a failure cannot be undone for this one vote only. Then the exception
+	 * is thrown and the whole transaction is rolled back. No vote of the batch is cast. The client may retry.
+	 *
+	 * The DB roundtrips are shared across the whole batch: Polls, voter tokens, rights to vote and existing ballots
+	 * are each loaded with one query. Ballots are only flushed at commit. Then Hibernate can write them in JDBC batches.
+	 * (See quarkus.hibernate-orm.jdbc.statement-batch-size)
+	 *
+	 * @param votes list of votes. Votes may be for different polls.
+	 * @return one result per vote, in the same order as the passed votes
+	 * @throws LiquidoException when there are too many votes in one request, or when writing the ballots failed. Then nothing is cast.
+	 */
+	@Transactional(rollbackOn = LiquidoException.class)
+	public List<CastVoteResult> castVotes(List<CastVoteRequest> votes) throws LiquidoException {
+		if (votes.size() > config.voteIngestion().maxBulkSize())
+			throw new LiquidoException(LiquidoException.Errors.CANNOT_CAST_VOTE, "Cannot cast more than " + config.voteIngestion().maxBulkSize() + " votes at once.");
+		log.info("castVotes({} votes)", votes.size());
+		CastVoteResult[] results = new CastVoteResult[votes.size()];
+
+		//----- load all polls with one query
+		Set<Long> pollIds = new HashSet<>();
+		for (CastVoteRequest vote : votes) if (vote.getPollId() != null) pollIds.add(vote.getPollId());
+		Map<Long, PollEntity> polls = new HashMap<>();
+		if (!pollIds.isEmpty()) {
+			for (PollEntity poll : PollEntity.<PollEntity>list("id in ?1", pollIds)) polls.put(poll.id, poll);
+		}
+
+		//----- lock the delegation snapshots of the polls, in a fixed order. See castVote
+		for (Long pollId : new TreeSet<>(polls.keySet())) delegationSnapshotService.lockForVoting(polls.get(pollId));
+
+		//----- check vote orders and hash voter tokens
+		List<List<ProposalEntity>> voteOrders = new ArrayList<>(Collections.nCopies(votes.size(), null));
+		String[] hashedVoterTokens = new String[votes.size()];
+		for (int i = 0; i < votes.size(); i++) {
+			CastVoteRequest vote = votes.get(i);
+			try {
+				PollEntity poll = Optional.ofNullable(polls.get(vote.getPollId()))
+						.orElseThrow(LiquidoException.notFound("Cannot cast vote. Poll(id=" + vote.getPollId() + ") not found!"));
+				voteOrders.set(i, validateVoteOrder(poll, vote.getVoteOrderIds()));
+				if (vote.getVoterToken() == null || vote.getVoterToken().length() < 10)
+					throw new LiquidoException(LiquidoException.Errors.INVALID_VOTER_TOKEN, "Need plainVoterToken to cast a vote.");
+				hashedVoterTokens[i] = calcHashedVoterToken(vote.getVoterToken(), poll.id);
+			} catch (LiquidoException e) {
+				results[i] = CastVoteResult.failed(i, e);
+			}
+		}
+
+		//----- consume all voter tokens at once
+		Set<String> hashesToConsume = new HashSet<>();
+		for (String hash : hashedVoterTokens) if (hash != null) hashesToConsume.add(hash);
+		Map<String, VoterTokenStore.StoredVoterToken> consumedTokens = voterTokenStore.consumeAll(hashesToConsume);
+
+		//----- load all rights to vote and their existing ballots. Then checkConsumedVoterToken and castVoteRec find them in the persistence context.
+		Set<String> rightToVoteHashes = new HashSet<>();
+		for (VoterTokenStore.StoredVoterToken token : consumedTokens.values()) if (token.rightToVoteHash() != null) rightToVoteHashes.add(token.rightToVoteHash());
+		Map<String, BallotEntity> ballotsInBatch = new HashMap<>();
+		if (!rightToVoteHashes.isEmpty()) {
+			RightToVoteEntity.list("hashedVoterInfo in ?1", rightToVoteHashes);
+			for (VoterTokenStore.StoredVoterToken token : consumedTokens.values()) ballotsInBatch.put(ballotKey(token.pollId(), token.rightToVoteHash()), null);
+			List<BallotEntity> existingBallots = BallotEntity.list("poll.id in ?1 and rightToVote.hashedVoterInfo in ?2", pollIds, rightToVoteHashes);
+			for (BallotEntity ballot : existingBallots) ballotsInBatch.put(ballotKey(ballot.poll.id, ballot.rightToVote.hashedVoterInfo), ballot);
+			Map<Long, Set<String>> rightToVoteHashesByPoll = new HashMap<>();
+			for (VoterTokenStore.StoredVoterToken token : consumedTokens.values()) {
+				if (token.rightToVoteHash() != null) rightToVoteHashesByPoll.computeIfAbsent(token.pollId(), id -> new HashSet<>()).add(token.rightToVoteHash());
+			}
+			rightToVoteHashesByPoll.forEach((pollId, hashes) -> {
+				if (polls.containsKey(pollId)) preloadDelegees(polls.get(pollId), hashes, ballotsInBatch);
+			});
+		}
+
+		//----- cast the ballots. Every ballot of this batch is in ballotsInBatch. So there is no need to flush before each lookup.
+		EntityManager em = BallotEntity.getEntityManager();
+		FlushModeType flushMode = em.getFlushMode();
+		em.setFlushMode(FlushModeType.COMMIT);
+		try {
+			Map<PollEntity, AtomicLong> numNewBallots = new HashMap<>();
+			for (int i = 0; i < votes.size(); i++) {
+				if (results[i] != null) continue;
+				PollEntity poll = polls.get(votes.get(i).getPollId());
+				BallotEntity newBallot;
+				try {
+					// remove() so that the same token cannot be used twice in one batch
+					RightToVoteEntity rightToVote = checkConsumedVoterToken(consumedTokens.remove(hashedVoterTokens[i]), poll);
+					newBallot = new BallotEntity(poll, 0, voteOrders.get(i), rightToVote);
+					checkBallot(newBallot);
+				} catch (LiquidoException e) {
+					results[i] = CastVoteResult.failed(i, e);
+					continue;
+				}
+				// Not caught: this may fail after some ballots of this vote have been written. See above.
+				results[i] = CastVoteResult.ok(i, castVoteRec(newBallot, ballotsInBatch, numNewBallots.computeIfAbsent(poll, p -> new AtomicLong())));
+			}
+			//----- one counter update per poll
+			for (Map.Entry<PollEntity, AtomicLong> entry : numNewBallots.entrySet()) {
+				PollEntity.incrementNumBallots(entry.getKey(), entry.getValue().get());
+			}
+		} finally {
+			em.setFlushMode(flushMode);   // the EntityManager is shared by everything else in this transaction
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Check that votes can be cast in this poll and convert the passed voteOrderIds to the poll's proposals.
+	 * voteOrderIds must only contain proposal.ids from this poll, and it must not contain any ID more than once!
+	 *
+	 * @param poll a poll in VOTING
+	 * @param voteOrderIds ordered list of proposal.IDs as sorted by the voter
+	 * @return the proposals in the voter's order
+	 * @throws LiquidoException when poll is not in VOTING or voteOrderIds are invalid
+	 */
+	public List<ProposalEntity> validateVoteOrder(PollEntity poll, List<Long> voteOrderIds) throws LiquidoException {
 		// We need a poll
 		if (poll == null || poll.getId() == null)
 			throw new LiquidoException(LiquidoException.Errors.CANNOT_CAST_VOTE, "Need poll to cast vote");
@@ -160,15 +341,7 @@ public class CastVoteService {
 				throw new LiquidoException(LiquidoException.Errors.CANNOT_CAST_VOTE, "Your voteOrder must not contain any proposal twice! Proposal(id="+ propId+") appears twice.");
 			voteOrder.add(prop);
 		}
-
-		// Validate voter token and lookup linked RightToVote
-		RightToVoteEntity rightToVote = consumeVoterToken(plainVoterToken, poll);
-
-		// Create a new ballot for the voter himself at level 0.
-		BallotEntity newBallot = new BallotEntity(poll, 0, voteOrder, rightToVote);
-
-		// check this ballot and recursively cast ballots for delegated rightToVotes
-		return castVoteRec(newBallot);
+		return voteOrder;
 	}
 
 	/**
@@ -195,14 +368,32 @@ public class CastVoteService {
 	 *         null if the ballot wasn't stored due to an already existing ballot with a smaller level.
 	 */
 	//@Transactional Do not open a transaction for each recursion!
-	private CastVoteResponse castVoteRec(BallotEntity newBallot) throws LiquidoException {
+	CastVoteResponse castVoteRec(BallotEntity newBallot) throws LiquidoException {
+		AtomicLong numNewBallots = new AtomicLong();
+		Map<String, BallotEntity> preloaded = new HashMap<>();
+		preloadDelegees(newBallot.getPoll(), List.of(newBallot.getRightToVote().hashedVoterInfo), preloaded);
+		CastVoteResponse res = castVoteRec(newBallot, preloaded.isEmpty() ? null : preloaded, numNewBallots);
+		PollEntity.incrementNumBallots(newBallot.getPoll(), numNewBallots.get());
+		return res;
+	}
+
+	/**
+	 * castVoteRec for a batch of ballots in one transaction
+	 * @param ballotsInBatch ballots of this batch by {@link #ballotKey(long, String)}. A key with a null value means: There is no ballot yet.
+	 *                       Keys that are not contained are looked up in the DB. Saved ballots are added. May be null when not in a batch.
+	 * @param numNewBallots counts the newly inserted ballots. The caller must add them to the poll's numBallots.
+	 */
+	private CastVoteResponse castVoteRec(BallotEntity newBallot, Map<String, BallotEntity> ballotsInBatch, AtomicLong numNewBallots) throws LiquidoException {
 		log.debug("   castVoteRec: {}", newBallot);
 
 		//----- check the validity of the ballot
 		checkBallot(newBallot);
 
 		//----- check if there already is a ballot, then update that, otherwise save newBallot
-		Optional<BallotEntity> existingBallotOpt = BallotEntity.findByPollAndRightToVote(newBallot.getPoll(), newBallot.getRightToVote());
+		String key = ballotKey(newBallot.getPoll().id, newBallot.getRightToVote().hashedVoterInfo);
+		Optional<BallotEntity> existingBallotOpt = ballotsInBatch != null && ballotsInBatch.containsKey(key)
+				? Optional.ofNullable(ballotsInBatch.get(key))
+				: BallotEntity.findByPollAndRightToVote(newBallot.getPoll(), newBallot.getRightToVote());
 		BallotEntity savedBallot;
 
 		if (existingBallotOpt.isPresent()) {
@@ -222,15 +413,17 @@ public class CastVoteService {
 			log.debug("   Saving new ballot");
 			newBallot.persist();
 			savedBallot = newBallot;
+			numNewBallots.incrementAndGet();
 		}
+		if (ballotsInBatch != null) ballotsInBatch.put(key, savedBallot);
 
 		//----- When a user is a proxy, then recursively cast a ballot for each delegated rightToVote
 		long voteCount = 0;   // count for how many delegees (that have not voted yet for themselves) the proxy's ballot is also cast
-		for (RightToVoteEntity delegatedRightToVote : savedBallot.rightToVote.delegations) {
+		for (RightToVoteEntity delegatedRightToVote : delegationsTo(newBallot.getPoll(), savedBallot.rightToVote)) {
 			List<ProposalEntity> voteOrderClone = new ArrayList<>(newBallot.getVoteOrder());   // BUGFIX for org.hibernate.HibernateException: Found shared references to a collection
 			BallotEntity childBallot = new BallotEntity(newBallot.getPoll(), newBallot.getLevel() + 1, voteOrderClone, delegatedRightToVote);
 			log.debug("   Proxy casts vote for delegated childBallot {}", childBallot);
-			CastVoteResponse childRes = castVoteRec(childBallot);  // will return null when level of an existing childBallot is smaller than the childBallot that the proxy would cast. => this ends the recursion
+			CastVoteResponse childRes = castVoteRec(childBallot, ballotsInBatch, numNewBallots);  // will return null when level of an existing childBallot is smaller than the childBallot that the proxy would cast. => this ends the recursion
 			if (childRes != null) voteCount += 1 + childRes.getVoteCount();
 		}
 
@@ -238,6 +431,63 @@ public class CastVoteService {
 		return new CastVoteResponse(savedBallot, voteCount);
 	}
 
+	/**
+	 * The rightToVotes that are directly delegated to this proxy in this poll.
+	 * From the poll's delegation snapshot or from the {@link DelegationIndex}. Then they usually are already in the persistence context,
+	 * because of {@link #preloadDelegees}. Otherwise from the live entity graph.
+	 */
+	private Collection<RightToVoteEntity> delegationsTo(PollEntity poll, RightToVoteEntity proxy) {
+		List<String> hashes = delegeeHashes(poll, proxy.hashedVoterInfo, false);
+		if (hashes == null) return proxy.getDelegations();
+		List<RightToVoteEntity> delegations = new ArrayList<>(hashes.size());
+		for (String hash : hashes) {
+			RightToVoteEntity.<RightToVoteEntity>findByIdOptional(hash).ifPresent(delegations::add);
+		}
+		return delegations;
+	}
+
+	/**
+	 * Delegees of a proxy in a poll. The poll's delegation snapshot is used when it has one. Delegations that were changed
+	 * after the voting phase started do not count in this poll. Otherwise the {@link DelegationIndex} is used.
+	 * @param transitive false: only direct delegees. true: the whole subtree below the proxy
+	 * @return hashes of the delegees, or null if neither a snapshot nor the index is available
+	 */
+	private List<String> delegeeHashes(PollEntity poll, String proxyHash, boolean transitive) {
+		Optional<DelegationForest> snapshot = delegationSnapshotService.getSnapshot(poll);
+		if (snapshot.isPresent()) return transitive ? snapshot.get().subtree(proxyHash) : snapshot.get().children(proxyHash);
+		if (delegationIndex.isReady()) return transitive ? delegationIndex.subtree(proxyHash) : delegationIndex.children(proxyHash);
+		return null;
+	}
+
+	/**
+	 * When a proxy votes, then ballots are cast for all their delegees. Instead of loading each delegee's rightToVote and ballot
+	 * one after the other, load all of them in chunks. Does nothing, when there is neither a delegation snapshot nor the index.
+	 * @param poll the poll that is voted in
+	 * @param proxyHashes rightToVotes that cast a vote in this poll
+	 * @param ballotsInBatch existing ballots of delegees are added here. And a null value for delegees that have no ballot yet. Existing entries are kept.
+	 */
+	private void preloadDelegees(PollEntity poll, Collection<String> proxyHashes, Map<String, BallotEntity> ballotsInBatch) {
+		Set<String> delegees = new HashSet<>();
+		for (String proxyHash : proxyHashes) {
+			List<String> subtree = delegeeHashes(poll, proxyHash, true);
+			if (subtree == null) return;
+			delegees.addAll(subtree);
+		}
+		List<String> hashes = new ArrayList<>(delegees);
+		for (int i = 0; i < hashes.size(); i += PRELOAD_CHUNK_SIZE) {
+			List<String> chunk = hashes.subList(i, Math.min(hashes.size(), i + PRELOAD_CHUNK_SIZE));
+			RightToVoteEntity.list("hashedVoterInfo in ?1", chunk);
+			for (BallotEntity ballot : BallotEntity.<BallotEntity>list("poll.id = ?1 and rightToVote.hashedVoterInfo in ?2", poll.id, chunk)) {
+				ballotsInBatch.putIfAbsent(ballotKey(ballot.poll.id, ballot.rightToVote.hashedVoterInfo), ballot);
+			}
+			for (String hash : chunk) ballotsInBatch.putIfAbsent(ballotKey(poll.id, hash), null);
+		}
+	}
+
+	private static String ballotKey(long pollId, String rightToVoteHash) {
+		return pollId + "/" + rightToVoteHash;
+	}
+
 	/**
 	 * Check if a ballot is valid before we store it
 	 * @param ballot a cast vote with a sorted voteOrder inside.
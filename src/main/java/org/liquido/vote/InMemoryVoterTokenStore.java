@@ -0,0 +1,169 @@
+package org.liquido.vote;
+
+import io.quarkus.arc.lookup.LookupIfProperty;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.util.LiquidoConfig;
+import org.liquido.util.LiquidoException;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Voter token store that only keeps tokens in memory. No DB roundtrip when creating or consuming a voter token.
+ *
+ * <ul>
+ *   <li>Tokens are kept in a ConcurrentHashMap. Consuming a token is an atomic remove. So a token can only be used once.</li>
+ *   <li>The map is not part of the DB transaction. When a token is consumed inside a transaction that is rolled back,
+ *       e.g. because the ballot could not be saved, then the token is put back. So the voter can try again.</li>
+ *   <li>Expiry is handled by a hashed timer wheel with one slot per minute. Each tick only looks at the tokens that expire in that minute.</li>
+ *   <li>The number of tokens is bounded. When the store is full, then no new tokens are handed out.
+ *       A slot is reserved atomically before a token is inserted. So concurrent calls cannot overfill the store.</li>
+ * </ul>
+ *
+ * Only use this in single node deployments! Tokens are lost on restart. Then voters simply fetch a new one.
+ */
+@Slf4j
+@ApplicationScoped
+@LookupIfProperty(name = "liquido.voter-tokens.store", stringValue = "in-memory")
+public class InMemoryVoterTokenStore implements VoterTokenStore {
+
+	/** Number of slots in the timer wheel. Tokens that live longer than this many minutes simply go round more than once. */
+	static final int WHEEL_SLOTS = 64;
+
+	private final ConcurrentHashMap<String, StoredVoterToken> tokens = new ConcurrentHashMap<>();
+
+	/** Number of reserved slots. Incremented before a token is inserted, decremented when a token is consumed or removed. */
+	private final AtomicInteger reserved = new AtomicInteger();
+
+	/** wheel[minute % WHEEL_SLOTS] = hashes of tokens that expire in that minute */
+	@SuppressWarnings("unchecked")
+	private final Queue<String>[] wheel = new Queue[WHEEL_SLOTS];
+
+	private final int maxSize;
+	private final Clock clock;
+
+	/** To put back tokens that were consumed in a transaction that is rolled back. null when not running in a container. */
+	private final TransactionSynchronizationRegistry txRegistry;
+
+	/** epoch minute of the last slot that has been swept */
+	private long lastTick;
+
+	@Inject
+	public InMemoryVoterTokenStore(LiquidoConfig config, TransactionSynchronizationRegistry txRegistry) {
+		this(config.voterTokens().maxInMemory(), Clock.systemDefaultZone(), txRegistry);
+	}
+
+	InMemoryVoterTokenStore(int maxSize, Clock clock) {
+		this(maxSize, clock, null);
+	}
+
+	InMemoryVoterTokenStore(int maxSize, Clock clock, TransactionSynchronizationRegistry txRegistry) {
+		this.maxSize = maxSize;
+		this.clock = clock;
+		this.txRegistry = txRegistry;
+		for (int i = 0; i < WHEEL_SLOTS; i++) wheel[i] = new ConcurrentLinkedQueue<>();
+		this.lastTick = epochMinute(LocalDateTime.now(clock));
+	}
+
+	@Override
+	public void store(String hashedVoterToken, long pollId, String rightToVoteHash, LocalDateTime expiresAt) throws LiquidoException {
+		if (reserved.incrementAndGet() > maxSize) {
+			reserved.decrementAndGet();
+			throw new LiquidoException(LiquidoException.Errors.CANNOT_GET_TOKEN, "Too many open voter tokens. Please try again in a few minutes.");
+		}
+		if (tokens.put(hashedVoterToken, new StoredVoterToken(hashedVoterToken, pollId, rightToVoteHash, expiresAt)) != null)
+			reserved.decrementAndGet();   // replaced a token with the same hash. That one's slot is reused.
+		slotFor(epochMinute(expiresAt)).add(hashedVoterToken);
+	}
+
+	@Override
+	public Optional<StoredVoterToken> consume(String hashedVoterToken) {
+		// Its hash stays in the timer wheel. It will simply be skipped there.
+		StoredVoterToken token = tokens.remove(hashedVoterToken);
+		if (token != null) {
+			reserved.decrementAndGet();
+			restoreOnRollback(token);
+		}
+		return Optional.ofNullable(token);
+	}
+
+	/** When we are inside a transaction, then put the consumed token back, if that transaction is rolled back. */
+	private void restoreOnRollback(StoredVoterToken token) {
+		if (txRegistry == null || txRegistry.getTransactionStatus() != Status.STATUS_ACTIVE) return;
+		txRegistry.registerInterposedSynchronization(new Synchronization() {
+			@Override
+			public void beforeCompletion() {}
+
+			@Override
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) return;
+				// Expired tokens are removed by the next sweep of the timer wheel.
+				// The token had a slot before. So it is put back even when the store has filled up in the meantime.
+				if (tokens.putIfAbsent(token.hashedVoterToken(), token) == null) {
+					reserved.incrementAndGet();
+					slotFor(epochMinute(token.expiresAt())).add(token.hashedVoterToken());
+				}
+				log.debug("Transaction was rolled back. Voter token can be used again.");
+			}
+		});
+	}
+
+	/**
+	 * Advance the timer wheel up to the current minute and remove tokens that expired in the meantime.
+	 * @return number of removed tokens
+	 */
+	@Override
+	@Scheduled(every = "60s")
+	public synchronized long deleteExpired() {
+		LocalDateTime now = LocalDateTime.now(clock);
+		long currentMinute = epochMinute(now);
+		long removed = 0;
+		// When the ticker was stuck for more than one full round, then each slot must only be swept once.
+		long from = Math.max(lastTick, currentMinute - WHEEL_SLOTS + 1);
+		for (long minute = from; minute <= currentMinute; minute++) {
+			Queue<String> slot = slotFor(minute);
+			for (int i = slot.size(); i > 0; i--) {
+				String hash = slot.poll();
+				if (hash == null) break;
+				StoredVoterToken token = tokens.get(hash);
+				if (token == null) continue;                       // already consumed
+				if (now.isAfter(token.expiresAt())) {
+					if (tokens.remove(hash, token)) {
+						reserved.decrementAndGet();
+						removed++;
+					}
+				} else {
+					slotFor(epochMinute(token.expiresAt())).add(hash);   // expires in a later round (or later in this minute)
+				}
+			}
+		}
+		lastTick = currentMinute;
+		if (removed > 0) log.debug("Removed {} expired voter tokens. {} tokens left.", removed, tokens.size());
+		return removed;
+	}
+
+	/** @return number of tokens currently in the store (including expired ones that have not yet been swept) */
+	public int size() {
+		return tokens.size();
+	}
+
+	private Queue<String> slotFor(long epochMinute) {
+		return wheel[(int) Math.floorMod(epochMinute, (long) WHEEL_SLOTS)];
+	}
+
+	private static long epochMinute(LocalDateTime dateTime) {
+		return dateTime.toEpochSecond(ZoneOffset.UTC) / 60;
+	}
+}
@@ -0,0 +1,68 @@
+package org.liquido.vote;
+
+import io.quarkus.arc.lookup.LookupUnlessProperty;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.persistence.LockModeType;
+import jakarta.transaction.Transactional;
+import lombok.extern.slf4j.Slf4j;
+import org.liquido.poll.PollEntity;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Default voter token store. Stores each token as a {@link VoterTokenEntity} row in the DB.
+ */
+@Slf4j
+@ApplicationScoped
+@LookupUnlessProperty(name = "liquido.voter-tokens.store", stringValue = "in-memory")
+public class JpaVoterTokenStore implements VoterTokenStore {
+
+	@Override
+	public void store(String hashedVoterToken, long pollId, String rightToVoteHash, LocalDateTime expiresAt) {
+		PollEntity poll = VoterTokenEntity.getEntityManager().getReference(PollEntity.class, pollId);
+		RightToVoteEntity rightToVote = VoterTokenEntity.getEntityManager().getReference(RightToVoteEntity.class, rightToVoteHash);
+		VoterTokenEntity.buildAndPersist(hashedVoterToken, poll, rightToVote, expiresAt);
+	}
+
+	@Override
+	public Optional<StoredVoterToken> consume(String hashedVoterToken) {
+		Optional<VoterTokenEntity> voterTokenOpt = VoterTokenEntity.findByIdOptional(hashedVoterToken);
+		if (voterTokenOpt.isEmpty()) return Optional.empty();
+		VoterTokenEntity voterToken = voterTokenOpt.get();
+		// Only the one who actually deletes the row consumes the token.
+		if (VoterTokenEntity.delete("hashedVoterToken", hashedVoterToken) != 1) return Optional.empty();
+		String rightToVoteHash = voterToken.rightToVote != null ? voterToken.rightToVote.hashedVoterInfo : null;
+		return Optional.of(new StoredVoterToken(hashedVoterToken, voterToken.poll.id, rightToVoteHash, voterToken.expiresAt));
+	}
+
+	/**
+	 * Consume all tokens with one select and one delete.
+	 * The selected rows are locked. So a concurrent consume() of the same token cannot also get it.
+	 */
+	@Override
+	public Map<String, StoredVoterToken> consumeAll(Collection<String> hashedVoterTokens) {
+		Map<String, StoredVoterToken> consumed = new HashMap<>();
+		if (hashedVoterTokens.isEmpty()) return consumed;
+		List<VoterTokenEntity> voterTokens = VoterTokenEntity.<VoterTokenEntity>find("hashedVoterToken in ?1", hashedVoterTokens)
+				.withLock(LockModeType.PESSIMISTIC_WRITE)
+				.list();
+		if (voterTokens.isEmpty()) return consumed;
+		for (VoterTokenEntity voterToken : voterTokens) {
+			String rightToVoteHash = voterToken.rightToVote != null ? voterToken.rightToVote.hashedVoterInfo : null;
+			consumed.put(voterToken.hashedVoterToken, new StoredVoterToken(voterToken.hashedVoterToken, voterToken.poll.id, rightToVoteHash, voterToken.expiresAt));
+		}
+		VoterTokenEntity.delete("hashedVoterToken in ?1", consumed.keySet());
+		return consumed;
+	}
+
+	@Override
+	@Scheduled(every = "P1D")
+	@Transactional
+	public long deleteExpired() {
+		long count = VoterTokenEntity.delete("expiresAt < ?1", LocalDateTime.now());
+		log.debug("Deleted {} expired voter tokens", count);
+		return count;
+	}
+}
@@ -2,17 +2,16 @@ package org.liquido.vote;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import io.quarkus.panache.common.Sort;
 import jakarta.persistence.*;
 import lombok.*;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.liquido.delegation.DelegationEntity;
 import org.liquido.poll.PollEntity;
+import org.liquido.security.HashServiceSha3;
 import org.liquido.user.UserEntity;
 
 import java.time.LocalDateTime;
-import java.util.HashSet;
-import java.util.Optional;
-import java.util.Set;
+import java.util.*;
 
 /**
  * This entity is the digital representation of a voters right to vote.
@@ -30,6 +29,7 @@ import java.util.Set;
 @RequiredArgsConstructor
 @EqualsAndHashCode(onlyExplicitlyIncluded = true, callSuper = true)
 @Entity(name = "righttovote")
+@Table(indexes = @Index(name = "idx_righttovote_voting_power", columnList = "votingPower"))
 //@Table(name = "rightToVote", uniqueConstraints= {
 //TODO:		@UniqueConstraint(columnNames = {"public_proxy_id"})  // A proxy cannot be public proxy more than once in one area.
 //})
@@ -82,12 +82,22 @@ public class RightToVoteEntity extends PanacheEntityBase {
 	@OneToOne
 	UserEntity publicProxy = null;
 
+	/**
+	 * Voting power of this rightToVote: 1 for itself plus the number of direct and transitive delegations to it.
+	 * This is a maintained counter, so that it does not need to be recalculated on every read.
+	 * It is only updated with bulk updates in {@link #addVotingPower(Collection, long)}, under the row locks of {@link #lockVotingPower(Collection)}.
+	 * It is regularly reconciled with the actual delegations. See {@link org.liquido.delegation.VotingPowerReconciliation}
+	 */
+	@Column(nullable = false, updatable = false)
+	@Setter(AccessLevel.NONE)
+	long votingPower = 1;
+
 	/**
 	 * Grant a user the right to vote.
 	 * @return a RightToVote that you still need to persist
 	 */
 	public static RightToVoteEntity build(UserEntity voter, int expirationDays, String salt) {
-		String hashedUserInfo = DigestUtils.sha3_256Hex(voter.email + voter.passwordHash + salt);
+		String hashedUserInfo = hashOf(voter, salt);
 		// ConfigProvider.getConfig().getValue("liquido.right-to-vote-expiration-days", Integer.class); - would be possible but not clean. So we simply pass the salt as parameter.
 		LocalDateTime expiresAt = LocalDateTime.now().plusDays(expirationDays);
 		return new RightToVoteEntity(hashedUserInfo, expiresAt);
@@ -124,6 +134,222 @@ public class RightToVoteEntity extends PanacheEntityBase {
 		}
 	}
 
+	/**
+	 * Add to the voting power of these rightToVotes with one bulk update. Must be called in the transaction that changes the delegation.
+	 * Entities that are already loaded in the persistence context are not updated.
+	 * @param hashes the proxies above a delegation that was added or removed
+	 * @param delta the voting power of the delegated rightToVote. Negative when the delegation was removed.
+	 */
+	public static void addVotingPower(Collection<String> hashes, long delta) {
+		if (hashes.isEmpty() || delta == 0) return;
+		update("votingPower = votingPower + ?1 where hashedVoterInfo in ?2", delta, hashes);
+	}
+
+	/**
+	 * The public proxies with the highest voting power. This is an index scan over votingPower.
+	 * @param limit maximum number of proxies
+	 */
+	public static List<RightToVoteEntity> findTopPublicProxies(int limit) {
+		return RightToVoteEntity.<RightToVoteEntity>find("publicProxy is not null", Sort.descending("votingPower")).page(0, limit).list();
+	}
+
+	// ======= Recursive queries over the delegation tree =======
+	// Each of these is one round-trip with a recursive CTE over righttovote.delegated_to, instead of walking the entity graph
+	// and lazy loading one level after the other. Plain SQL that runs on PostgreSQL and H2.
+
+	/** Recursive delegation queries stop at this depth. This guards against cycles in the data. */
+	public static final int MAX_DELEGATION_DEPTH = 1000;
+
+	/** Number of distinct rightToVotes that are (transitively) delegated to a proxy. The proxy itself is not counted, even when there is a cycle. */
+	static final String SQL_COUNT_DELEGATIONS = """
+			WITH RECURSIVE delegees(hashedVoterInfo, depth) AS (
+			  SELECT r.hashedVoterInfo, 1 FROM righttovote r WHERE r.delegated_to = :proxyHash
+			  UNION ALL
+			  SELECT r.hashedVoterInfo, d.depth + 1 FROM righttovote r JOIN delegees d ON r.delegated_to = d.hashedVoterInfo WHERE d.depth < :maxDepth
+			)
+			SELECT COUNT(DISTINCT hashedVoterInfo) FROM delegees WHERE hashedVoterInfo <> :proxyHash
+			""";
+
+	/** The chain of proxies upwards from a rightToVote (depth 0), with the level of each one's ballot in a poll (null if there is no ballot). */
+	static final String SQL_PROXY_CHAIN = """
+			WITH RECURSIVE proxies(hashedVoterInfo, delegated_to, depth) AS (
+			  SELECT r.hashedVoterInfo, r.delegated_to, 0 FROM righttovote r WHERE r.hashedVoterInfo = :startHash
+			  UNION ALL
+			  SELECT r.hashedVoterInfo, r.delegated_to, p.depth + 1 FROM righttovote r JOIN proxies p ON r.hashedVoterInfo = p.delegated_to WHERE p.depth < :maxDepth
+			)
+			SELECT p.hashedVoterInfo, b.level FROM proxies p
+			LEFT JOIN ballots b ON b.rightToVote_hashedVoterInfo = p.hashedVoterInfo AND b.poll_id = :pollId
+			ORDER BY p.depth
+			""";
+
+	/** These rightToVotes and all proxies above them, with their proxy and voting power. */
+	static final String SQL_DELEGATION_ANCESTORS = """
+			WITH RECURSIVE ancestors(hashedVoterInfo, delegated_to, votingPower, depth) AS (
+			  SELECT r.hashedVoterInfo, r.delegated_to, r.votingPower, 0 FROM righttovote r WHERE r.hashedVoterInfo IN (:startHashes)
+			  UNION ALL
+			  SELECT r.hashedVoterInfo, r.delegated_to, r.votingPower, a.depth + 1 FROM righttovote r JOIN ancestors a ON r.hashedVoterInfo = a.delegated_to WHERE a.depth < :maxDepth
+			)
+			SELECT DISTINCT hashedVoterInfo, delegated_to, votingPower FROM ancestors
+			""";
+
+	/** Lock these rightToVotes and read their current voting power. Rows are locked in the order of their hash, so that concurrent delegation changes cannot deadlock. */
+	static final String SQL_LOCK_VOTING_POWER = """
+			SELECT hashedVoterInfo, votingPower FROM righttovote WHERE hashedVoterInfo IN (:hashes) ORDER BY hashedVoterInfo FOR UPDATE
+			""";
+
+	/** RightToVotes whose voting power may not be 1: all proxies and every rightToVote that currently has another voting power. */
+	static final String SQL_VOTING_POWER_CANDIDATES = """
+			SELECT DISTINCT delegated_to FROM righttovote WHERE delegated_to IS NOT NULL
+			UNION
+			SELECT hashedVoterInfo FROM righttovote WHERE votingPower <> 1
+			""";
+
+	/**
+	 * One link in a chain of proxies
+	 * @param hashedVoterInfo the rightToVote of a voter or proxy
+	 * @param ballotLevel level of its ballot in the requested poll. null when there is no ballot.
+	 */
+	public record ProxyChainLink(String hashedVoterInfo, Integer ballotLevel) {}
+
+	/**
+	 * Count how many rightToVotes are delegated to this proxy, including transitive delegations.
+	 * @param proxyHash the proxy's rightToVote hash
+	 * @return number of direct and transitive delegations
+	 */
+	public static long countDelegationsTo(String proxyHash) {
+		Number count = (Number) getEntityManager().createNativeQuery(SQL_COUNT_DELEGATIONS)
+				.setParameter("proxyHash", proxyHash)
+				.setParameter("maxDepth", MAX_DELEGATION_DEPTH)
+				.getSingleResult();
+		return count.longValue();
+	}
+
+	/**
+	 * Get the chain of proxies from this rightToVote upwards to its top proxy.
+	 * @param startHash a rightToVote hash. This is the first element in the returned chain.
+	 * @param pollId also lookup the level of each one's ballot in this poll. May be null.
+	 * @return the chain of proxies. Empty if startHash does not exist. The chain ends before any cycle.
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<ProxyChainLink> findProxyChain(String startHash, Long pollId) {
+		List<Object[]> rows = getEntityManager().createNativeQuery(SQL_PROXY_CHAIN)
+				.setParameter("startHash", startHash)
+				.setParameter("maxDepth", MAX_DELEGATION_DEPTH)
+				.setParameter("pollId", pollId != null ? pollId : -1L)
+				.getResultList();
+		List<ProxyChainLink> chain = new ArrayList<>(rows.size());
+		Set<String> visited = new HashSet<>();
+		for (Object[] row : rows) {
+			String hash = (String) row[0];
+			if (!visited.add(hash)) break;     // cycle
+			chain.add(new ProxyChainLink(hash, row[1] != null ? ((Number) row[1]).intValue() : null));
+		}
+		return chain;
+	}
+
+	/**
+	 * Lock these rightToVotes with SELECT ... FOR UPDATE until the end of the current transaction.
+	 * Delegations and voting power of locked rows cannot be changed by other transactions. Must be called inside a transaction.
+	 * @param hashes rightToVote hashes
+	 * @return the current voting power by hash of the locked rows, in the order they were locked
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Long> lockVotingPower(Collection<String> hashes) {
+		Map<String, Long> result = new LinkedHashMap<>();
+		List<String> sorted = new ArrayList<>(new TreeSet<>(hashes));
+		for (int i = 0; i < sorted.size(); i += 1000) {
+			List<Object[]> rows = getEntityManager().createNativeQuery(SQL_LOCK_VOTING_POWER)
+					.setParameter("hashes", sorted.subList(i, Math.min(sorted.size(), i + 1000)))
+					.getResultList();
+			for (Object[] row : rows) result.put((String) row[0], ((Number) row[1]).longValue());
+		}
+		return result;
+	}
+
+	/** @return hashes of all rightToVotes whose voting power may have to be reconciled. See {@link #SQL_VOTING_POWER_CANDIDATES} */
+	@SuppressWarnings("unchecked")
+	public static List<String> findVotingPowerCandidates() {
+		return getEntityManager().createNativeQuery(SQL_VOTING_POWER_CANDIDATES).getResultList();
+	}
+
+	/** Overwrite the maintained voting power of one rightToVote. Only used to reconcile it. */
+	public static void setVotingPower(String hash, long votingPower) {
+		update("votingPower = ?1 where hashedVoterInfo = ?2", votingPower, hash);
+	}
+
+	/**
+	 * A rightToVote as it is currently stored in the DB
+	 * @param hashedVoterInfo the rightToVote
+	 * @param delegatedTo hash of its proxy or null
+	 * @param votingPower its voting power
+	 */
+	public record DelegationRow(String hashedVoterInfo, String delegatedTo, long votingPower) {}
+
+	/**
+	 * Load these rightToVotes and all proxies above them with one recursive query per chunk of start hashes.
+	 * Pending changes are flushed before.
+	 * @param startHashes rightToVote hashes
+	 * @return rows by hash. Contains the start hashes (if they exist) and all their direct and transitive proxies.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, DelegationRow> findDelegationAncestors(Collection<String> startHashes) {
+		Map<String, DelegationRow> result = new HashMap<>();
+		List<String> hashes = new ArrayList<>(startHashes);
+		for (int i = 0; i < hashes.size(); i += 1000) {
+			List<Object[]> rows = getEntityManager().createNativeQuery(SQL_DELEGATION_ANCESTORS)
+					.setParameter("startHashes", hashes.subList(i, Math.min(hashes.size(), i + 1000)))
+					.setParameter("maxDepth", MAX_DELEGATION_DEPTH)
+					.getResultList();
+			for (Object[] row : rows) {
+				result.put((String) row[0], new DelegationRow((String) row[0], (String) row[1], ((Number) row[2]).longValue()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Load all delegations with one query, without loading any entities.
+	 * @return list of [hashedVoterInfo, delegatedTo or null] for every rightToVote
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<String[]> findAllDelegations() {
+		List<Object[]> rows = getEntityManager()
+				.createNativeQuery("SELECT hashedVoterInfo, delegated_to FROM righttovote")
+				.getResultList();
+		List<String[]> delegations = new ArrayList<>(rows.size());
+		for (Object[] row : rows) delegations.add(new String[] { (String) row[0], (String) row[1] });
+		return delegations;
+	}
+
+	/**
+	 * Load all delegations and whether each rightToVote has expired. One query without loading any entities.
+	 * @param expiredHashes (out) is filled with the hashes of expired rightToVotes
+	 * @return list of [hashedVoterInfo, delegatedTo or null] for every rightToVote
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<String[]> findAllDelegations(Set<String> expiredHashes) {
+		List<Object[]> rows = getEntityManager()
+				.createNativeQuery("SELECT hashedVoterInfo, delegated_to, CASE WHEN expiresAt < :now THEN 1 ELSE 0 END FROM righttovote")
+				.setParameter("now", LocalDateTime.now())
+				.getResultList();
+		List<String[]> delegations = new ArrayList<>(rows.size());
+		for (Object[] row : rows) {
+			delegations.add(new String[] { (String) row[0], (String) row[1] });
+			if (((Number) row[2]).intValue() == 1) expiredHashes.add((String) row[0]);
+		}
+		return delegations;
+	}
+
+	/**
+	 * Find the top proxy, i.e. the end of the delegation chain. This is the rightToVote itself, if it is not delegated.
+	 * @return the rightToVote at the top of the delegation chain
+	 */
+	public static Optional<RightToVoteEntity> findTopProxy(RightToVoteEntity rightToVote) {
+		List<ProxyChainLink> chain = findProxyChain(rightToVote.hashedVoterInfo, null);
+		if (chain.isEmpty()) return Optional.empty();
+		return findByHash(chain.get(chain.size() - 1).hashedVoterInfo());
+	}
+
 	//REFACTORED: I decided to store delegation requests in the DelegationModel
 
 	/**
@@ -149,8 +375,17 @@ public class RightToVoteEntity extends PanacheEntityBase {
 	 * @return RightToVote of this voter if he has one.
 	 */
 	public static Optional<RightToVoteEntity> findByVoter(UserEntity voter, String salt) {
-		String hashedUserInfo = DigestUtils.sha3_256Hex(voter.email + voter.passwordHash + salt);
-		return RightToVoteEntity.findByIdOptional(hashedUserInfo);
+		return RightToVoteEntity.findByIdOptional(hashOf(voter, salt));
+	}
+
+	/**
+	 * The hashedVoterInfo of a voter's RightToVote. A RightToVote can only be matched to a user by hashing the user.
+	 * @param voter a voter
+	 * @param salt the server's hashSecret
+	 * @return the ID of the voter's RightToVote. It may not exist yet.
+	 */
+	public static String hashOf(UserEntity voter, String salt) {
+		return HashServiceSha3.sha3_256Hex(voter.email, voter.passwordHash, salt);
 	}
 
 	/*
@@ -1,11 +1,9 @@
 package org.liquido.vote;
 
 import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
-import io.quarkus.scheduler.Scheduled;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.ManyToOne;
-import jakarta.transaction.Transactional;
 import jakarta.validation.constraints.NotNull;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -18,6 +16,7 @@ import java.time.LocalDateTime;
 /**
  * One time voter token that grant's a voter the right to cast one vote in this poll.
  * After it has been consumed, this token will be deleted.
+ * Voter tokens are stored via the {@link VoterTokenStore}. This entity is used by the {@link JpaVoterTokenStore}.
  */
 @Data
 @NoArgsConstructor
@@ -53,16 +52,16 @@ public class VoterTokenEntity extends PanacheEntityBase {
 	 * @param hashedVoterToken the already hashed voterToken.
 	 * @param poll A voter can only use this one time token to cast a vote in this poll.
 	 * @param rightToVote link to (anonymous) RightToVote
-	 * @param validHours how long is this OTT valid in HOURS
+	 * @param expiresAt when this OTT expires
 	 * @return the newly created and persisted OTT.
 	 */
-	public static VoterTokenEntity buildAndPersist(@NonNull String hashedVoterToken, @NonNull PollEntity poll, @NonNull RightToVoteEntity rightToVote, int validHours) {
-		if (validHours <= 0) throw new RuntimeException("Cannot build OneTimeToken. ttl must be positive!");
+	public static VoterTokenEntity buildAndPersist(@NonNull String hashedVoterToken, @NonNull PollEntity poll, @NonNull RightToVoteEntity rightToVote, @NonNull LocalDateTime expiresAt) {
+		if (!expiresAt.isAfter(LocalDateTime.now())) throw new RuntimeException("Cannot build OneTimeToken. expiresAt must be in the future!");
 		VoterTokenEntity ott = new VoterTokenEntity();
 		ott.hashedVoterToken = hashedVoterToken;
 		ott.poll = poll;
 		ott.rightToVote = rightToVote;
-		ott.expiresAt = LocalDateTime.now().plusHours(validHours);
+		ott.expiresAt = expiresAt;
 		ott.persist();
 		return ott;
 	}
@@ -74,10 +73,4 @@ public class VoterTokenEntity extends PanacheEntityBase {
 				.append(", rightToVote=").append(this.rightToVote != null ? "yes" : "<NULL>!!! ERROR")
 				.append("]").toString();
 	}
-
-	@Scheduled(every = "P1D")
-	@Transactional
-	public void deleteExpiredTokens() {
-		VoterTokenEntity.delete("expiresAt < ?1", LocalDateTime.now());
-	}
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+package org.liquido.vote;
+
+import org.liquido.util.LiquidoException;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Storage for one-time voter tokens. Only the <b>hashed</b> voter token is stored.
+ *
+ * Which implementation is used can be configured with <pre>liquido.voter-tokens.store=jpa|in-memory</pre>
+ * <ul>
+ *   <li>{@link JpaVoterTokenStore} (default) stores {@link VoterTokenEntity} rows in the DB.</li>
+ *   <li>{@link InMemoryVoterTokenStore} keeps tokens only in memory. This skips the DB on the token path.
+ *       But it can only be used in single node deployments. And tokens are lost on restart.</li>
+ * </ul>
+ */
+public interface VoterTokenStore {
+
+	/** A stored voter token. It is anonymous. It only links to the hash of a RightToVote. */
+	record StoredVoterToken(String hashedVoterToken, long pollId, String rightToVoteHash, LocalDateTime expiresAt) {
+		public boolean isExpired() {
+			return LocalDateTime.now().isAfter(expiresAt);
+		}
+	}
+
+	/**
+	 * Store a new hashed voter token.
+	 * @throws LiquidoException when the token cannot be stored
+	 */
+	void store(String hashedVoterToken, long pollId, String rightToVoteHash, LocalDateTime expiresAt) throws LiquidoException;
+
+	/**
+	 * Atomically remove the token for this hash. A token can only be consumed once.
+	 * When two requests try to consume the same token concurrently, then only one of them will get it.
+	 * @return the consumed token (which might already be expired) or Optional.empty() if there is no token with that hash (anymore)
+	 */
+	Optional<StoredVoterToken> consume(String hashedVoterToken);
+
+	/**
+	 * Atomically consume several tokens at once. Used for bulk castVotes.
+	 * Implementations should do this in one roundtrip. This default simply consumes one token after the other.
+	 * @return map hashedVoterToken -> consumed token. Only contains the tokens that could be consumed.
+	 */
+	default Map<String, StoredVoterToken> consumeAll(Collection<String> hashedVoterTokens) {
+		Map<String, StoredVoterToken> consumed = new HashMap<>();
+		for (String hash : hashedVoterTokens) {
+			consume(hash).ifPresent(token -> consumed.put(hash, token));
+		}
+		return consumed;
+	}
+
+	/**
+	 * Remove expired tokens.
+	 * @return number of removed tokens
+	 */
+	long deleteExpired();
+}
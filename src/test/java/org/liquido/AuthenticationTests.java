@@ -6,17 +6,23 @@ import io.quarkus.mailer.Mail;
 import io.quarkus.mailer.MockMailbox;
 import io.quarkus.test.TestTransaction;
 import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.security.TestSecurity;
+import io.quarkus.test.security.jwt.Claim;
+import io.quarkus.test.security.jwt.JwtSecurity;
 import io.restassured.RestAssured;
 import io.restassured.http.ContentType;
 import io.restassured.response.Response;
 import io.restassured.response.ValidatableResponse;
+import io.smallrye.jwt.auth.principal.JWTParser;
 import io.smallrye.jwt.build.Jwt;
 import jakarta.inject.Inject;
 import jakarta.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
+import org.eclipse.microprofile.jwt.JsonWebToken;
 import org.junit.jupiter.api.*;
 import org.liquido.security.JwtTokenUtils;
 import org.liquido.team.TeamDataResponse;
+import org.liquido.team.TeamMemberEntity;
 import org.liquido.twillio.TwilioVerifyClient;
 import org.liquido.user.UserEntity;
 import org.liquido.util.LiquidoConfig;
@@ -30,6 +36,7 @@ import java.util.Base64;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -63,6 +70,12 @@ public class AuthenticationTests {
 	@Inject
 	TwilioVerifyClient twilioVerifyClient;
 
+	@Inject
+	JwtTokenUtils jwtTokenUtils;
+
+	@Inject
+	JWTParser jwtParser;
+
 
 	@BeforeEach
 	public void beforeEachTest(TestInfo testInfo) {
@@ -174,6 +187,33 @@ public class AuthenticationTests {
 
 	}
 
+	/**
+	 * The ID of the current user is read from the userId claim in the JWT.
+	 * There is no user with this ID in the DB. So this also shows that the DB is not needed.
+	 */
+	@Test
+	@TestSecurity(user = TestFixtures.staticDummyEmail, roles = {JwtTokenUtils.LIQUIDO_USER_ROLE})
+	@JwtSecurity(claims = {
+			@Claim(key = JwtTokenUtils.USER_ID_CLAIM, value = "4711"),
+			@Claim(key = JwtTokenUtils.TEAM_ID_CLAIM, value = "815")
+	})
+	public void testCurrentUserIdFromClaim() {
+		assertEquals(Optional.of(4711L), jwtTokenUtils.getCurrentUserId(), "userId should be read from the JWT claim");
+		assertEquals(Optional.of(815L), jwtTokenUtils.getCurrentTeamId(), "teamId should be read from the JWT claim");
+	}
+
+	/**
+	 * Older JWTs do not have a userId claim. Then the current user is resolved by the email in the JWT subject.
+	 */
+	@Test
+	@TestTransaction
+	@TestSecurity(user = TestFixtures.staticDummyEmail, roles = {JwtTokenUtils.LIQUIDO_USER_ROLE})
+	public void testCurrentUserIdWithoutClaim() {
+		UserEntity user = new UserEntity("Static Dummy", TestFixtures.staticDummyEmail.toLowerCase(), "dummyPassword");
+		user.persist();
+		assertEquals(Optional.of(user.id), jwtTokenUtils.getCurrentUserId(), "Without userId claim the user should be found by email");
+	}
+
 	/**
 	 * The the login that we use during development and testing.
 	 * This is only possible with a secret devLoginToken.
@@ -199,6 +239,35 @@ public class AuthenticationTests {
 
 
 
+	/**
+	 * The JWT of a login contains the team and the role of the user in that team.
+	 * The membership is loaded as a (teamId, role) projection. The team's members are not loaded.
+	 */
+	@Test
+	public void testLoginJwtContainsTeamAndAdminRole() throws Exception {
+		// GIVEN an admin and a member
+		UserEntity admin = util.getRandomAdmin();
+		UserEntity member = TeamMemberEntity.<TeamMemberEntity>find("role", TeamMemberEntity.Role.MEMBER).firstResultOptional()
+				.map(TeamMemberEntity::getUser)
+				.orElseThrow(() -> new Exception("Need a member to test login"));
+
+		// WHEN they log in
+		TeamDataResponse adminRes = util.devLogin(admin.email);
+		TeamDataResponse memberRes = util.devLogin(member.email);
+
+		// THEN the admin's JWT has the admin role, and both JWTs contain the user and the team
+		JsonWebToken adminJwt = jwtParser.parse(adminRes.jwt);
+		assertTrue(adminJwt.getGroups().contains(JwtTokenUtils.LIQUIDO_ADMIN_ROLE), "Admin's JWT should have the admin role");
+		assertEquals(String.valueOf(admin.id), adminJwt.getClaim(JwtTokenUtils.USER_ID_CLAIM));
+		assertEquals(String.valueOf(adminRes.team.id), adminJwt.getClaim(JwtTokenUtils.TEAM_ID_CLAIM));
+
+		JsonWebToken memberJwt = jwtParser.parse(memberRes.jwt);
+		assertTrue(memberJwt.getGroups().contains(JwtTokenUtils.LIQUIDO_USER_ROLE), "Member's JWT should have the user role");
+		assertFalse(memberJwt.getGroups().contains(JwtTokenUtils.LIQUIDO_ADMIN_ROLE), "Member's JWT must not have the admin role");
+		assertEquals(String.valueOf(member.id), memberJwt.getClaim(JwtTokenUtils.USER_ID_CLAIM));
+		assertEquals(String.valueOf(memberRes.team.id), memberJwt.getClaim(JwtTokenUtils.TEAM_ID_CLAIM));
+	}
+
 	/**
 	 * Test login flow via email. This can be tested with the {@link MockMailbox} provided by quarkus.
 	 * The test checks for the actual link in the email body.
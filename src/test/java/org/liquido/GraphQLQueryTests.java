@@ -0,0 +1,166 @@
+package org.liquido;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import io.restassured.path.json.JsonPath;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.liquido.poll.PollEntity;
+import org.liquido.poll.ProposalEntity;
+import org.liquido.team.TeamDataResponse;
+import org.liquido.user.UserEntity;
+import org.liquido.util.Lson;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the GraphQL queries of teams, polls and proposals.
+ * Nested collections are resolved in batches. So the number of SQL statements for one query
+ * must not grow with the number of polls and proposals in the response.
+ */
+@Slf4j
+@QuarkusTest
+public class GraphQLQueryTests {
+
+	/**
+	 * Upper bound of SQL statements for one GraphQL query of a team with its polls, proposals and supporters.
+	 * This is generous, because schedulers may run in the background. Loading per poll or per proposal would need far more.
+	 */
+	static final long MAX_STATEMENTS_PER_QUERY = 20;
+
+	@Inject
+	LiquidoTestUtils util;
+
+	@Inject
+	SessionFactory sessionFactory;
+
+	@Test
+	public void teamWithPollsProposalsAndSupportersNeedsBoundedNumberOfStatements() {
+		UserEntity admin = QuarkusTransaction.requiringNew().call(util::getRandomAdmin);
+		TeamDataResponse adminRes = util.devLogin(admin.email);
+
+		// GIVEN a team with several polls, each with proposals that have supporters
+		for (int i = 0; i < 3; i++) {
+			PollEntity poll = util.createPoll("Poll " + i + " to count statements " + System.currentTimeMillis(), adminRes.jwt);
+			poll = util.seedRandomProposals(poll, adminRes.team, 2);
+			for (ProposalEntity prop : poll.getProposals()) {
+				util.likeProposal(poll, prop.id, adminRes.jwt);
+			}
+		}
+
+		// WHEN the team is queried with all its polls, proposals and supporters
+		String query = "{ team { id polls { id title proposals { id title supporters { id name } } } } }";
+		Statistics stats = sessionFactory.getStatistics();
+		long before = stats.getPrepareStatementCount();
+		JsonPath res = TestFixtures.sendGraphQL(query, null, adminRes.jwt).extract().jsonPath();
+		long statements = stats.getPrepareStatementCount() - before;
+
+		// THEN the number of statements is bounded, no matter how many polls and proposals there are
+		int numPolls = res.getList("data.team.polls").size();
+		int numProposals = res.getInt("data.team.polls.collect { it.proposals.size() }.sum()");
+		log.info("Query of team with {} polls and {} proposals needed {} SQL statements", numPolls, numProposals, statements);
+		assertTrue(numPolls + numProposals > MAX_STATEMENTS_PER_QUERY, "Test precondition: Loading per poll and proposal must need more than " + MAX_STATEMENTS_PER_QUERY + " statements");
+		assertTrue(statements <= MAX_STATEMENTS_PER_QUERY, "Query of team { polls { proposals { supporters } } } needed " + statements + " SQL statements. Expected at most " + MAX_STATEMENTS_PER_QUERY);
+	}
+
+	@Test
+	public void likedAndCreatedByCurrentUserAreResolvedForEachProposal() {
+		UserEntity admin = QuarkusTransaction.requiringNew().call(util::getRandomAdmin);
+		TeamDataResponse adminRes = util.devLogin(admin.email);
+
+		// GIVEN a poll with proposals from different members, where only the first proposal is liked by the admin
+		PollEntity poll = util.createPoll("Poll to test likedByCurrentUser " + System.currentTimeMillis(), adminRes.jwt);
+		poll = util.seedRandomProposals(poll, adminRes.team, 2);
+		Long likedId = poll.getProposals().iterator().next().id;
+		util.likeProposal(poll, likedId, adminRes.jwt);
+
+		// WHEN the proposals are queried by the admin
+		String query = "query poll($pollId: BigInteger!) { poll(pollId: $pollId) { id proposals { id likedByCurrentUser createdByCurrentUser createdBy { id } } } }";
+		Statistics stats = sessionFactory.getStatistics();
+		long before = stats.getPrepareStatementCount();
+		List<Map<String, Object>> proposals = TestFixtures.sendGraphQL(query, new Lson("pollId", poll.id), adminRes.jwt)
+				.extract().jsonPath().getList("data.poll.proposals");
+		long statements = stats.getPrepareStatementCount() - before;
+
+		// THEN each proposal has its own flags
+		assertEquals(2, proposals.size(), "Poll should have two proposals");
+		for (Map<String, Object> prop : proposals) {
+			long propId = ((Number) prop.get("id")).longValue();
+			long creatorId = ((Number) ((Map<?, ?>) prop.get("createdBy")).get("id")).longValue();
+			assertEquals(Objects.equals(propId, likedId), prop.get("likedByCurrentUser"), "likedByCurrentUser of proposal.id=" + propId);
+			assertEquals(Objects.equals(creatorId, admin.id), prop.get("createdByCurrentUser"), "createdByCurrentUser of proposal.id=" + propId);
+		}
+		// AND the flags are resolved in batches
+		assertTrue(statements <= MAX_STATEMENTS_PER_QUERY, "Query of likedByCurrentUser and createdByCurrentUser needed " + statements + " SQL statements. Expected at most " + MAX_STATEMENTS_PER_QUERY);
+	}
+
+	@Test
+	public void pollsPageReturnsAllPollsPageByPage() {
+		UserEntity admin = QuarkusTransaction.requiringNew().call(util::getRandomAdmin);
+		TeamDataResponse adminRes = util.devLogin(admin.email);
+
+		// GIVEN three polls whose titles contain the same marker
+		String marker = "Paged" + System.currentTimeMillis();
+		Long oldest = util.createPoll(marker + " poll one", adminRes.jwt).id;
+		Long middle = util.createPoll(marker + " poll two", adminRes.jwt).id;
+		Long newest = util.createPoll(marker + " poll three", adminRes.jwt).id;
+
+		// WHEN the first page of two polls is queried
+		JsonPath page1 = queryPollsPage(adminRes.jwt, 2, null, marker);
+
+		// THEN it contains the two newest polls and the cursor of the last one
+		assertEquals(List.of(newest, middle), pollIds(page1));
+		assertTrue(page1.getBoolean("data.pollsPage.hasMore"), "First page should have more polls");
+		assertEquals(middle, page1.getLong("data.pollsPage.nextCursor"));
+
+		// WHEN the page after that cursor is queried
+		JsonPath page2 = queryPollsPage(adminRes.jwt, 2, middle, marker);
+
+		// THEN it contains the oldest poll and it is the last page
+		assertEquals(List.of(oldest), pollIds(page2));
+		assertFalse(page2.getBoolean("data.pollsPage.hasMore"), "Second page should be the last one");
+		assertNull(page2.get("data.pollsPage.nextCursor"), "Last page should have no nextCursor");
+	}
+
+	@Test
+	public void pollsPageSearchesPercentAndUnderscoreLiterally() {
+		UserEntity admin = QuarkusTransaction.requiringNew().call(util::getRandomAdmin);
+		TeamDataResponse adminRes = util.devLogin(admin.email);
+
+		// GIVEN polls whose titles would also match, if % and _ were wildcards
+		String marker = "Search" + System.currentTimeMillis();
+		Long percent = util.createPoll(marker + " 50% off", adminRes.jwt).id;
+		util.createPoll(marker + " 50 cents off", adminRes.jwt);
+		Long underscore = util.createPoll(marker + " snake_case", adminRes.jwt).id;
+		util.createPoll(marker + " snakeXcase", adminRes.jwt);
+
+		// WHEN searching for "%" and "_"
+		// THEN only the polls that literally contain them are found
+		assertEquals(List.of(percent), pollIds(queryPollsPage(adminRes.jwt, 10, null, marker + " 50%")));
+		assertEquals(List.of(underscore), pollIds(queryPollsPage(adminRes.jwt, 10, null, marker + " snake_")));
+	}
+
+	private JsonPath queryPollsPage(String jwt, int first, Long after, String search) {
+		String query = "query pollsPage($first: Int!, $after: BigInteger, $filter: PollFilterInput) { " +
+				" pollsPage(first: $first, after: $after, filter: $filter) { polls { id title } nextCursor hasMore } }";
+		Lson vars = Lson.builder()
+				.put("first", first)
+				.putIfValueIsPresent("after", after)
+				.put("filter.search", search);
+		return TestFixtures.sendGraphQL(query, vars, jwt).extract().jsonPath();
+	}
+
+	private List<Long> pollIds(JsonPath page) {
+		return page.getList("data.pollsPage.polls.id", Long.class);
+	}
+}
@@ -0,0 +1,99 @@
+package org.liquido;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.liquido.team.TeamDataResponse;
+import org.liquido.team.TeamEntity;
+import org.liquido.team.TeamMemberEntity;
+import org.liquido.user.UserEntity;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Entities, the members of a team and some queries are kept in Hibernate's second level cache.
+ * These tests check that cached data is used, and that it is invalidated when the data changes.
+ */
+@QuarkusTest
+public class SecondLevelCacheTests {
+
+	@Inject
+	LiquidoTestUtils util;
+
+	@Inject
+	SessionFactory sessionFactory;
+
+	@Test
+	public void cachedUserIsUpdated() {
+		UserEntity user = QuarkusTransaction.requiringNew().call(util::getRandomUser);
+		String oldName = user.getName();
+		String newName = "Cached user " + System.currentTimeMillis();
+		Statistics stats = sessionFactory.getStatistics();
+
+		// GIVEN a user in the cache
+		QuarkusTransaction.requiringNew().run(() -> UserEntity.findById(user.id));
+		assertTrue(sessionFactory.getCache().containsEntity(UserEntity.class, user.id), "User should be cached");
+
+		try {
+			// WHEN the user is loaded again and changed
+			long hits = stats.getDomainDataRegionStatistics(UserEntity.class.getName()).getHitCount();
+			QuarkusTransaction.requiringNew().run(() -> UserEntity.<UserEntity>findById(user.id).setName(newName));
+			assertTrue(stats.getDomainDataRegionStatistics(UserEntity.class.getName()).getHitCount() > hits, "User should have been loaded from the cache");
+
+			// THEN the changed name is read
+			String name = QuarkusTransaction.requiringNew().call(() -> UserEntity.<UserEntity>findById(user.id).getName());
+			assertEquals(newName, name);
+		} finally {
+			QuarkusTransaction.requiringNew().run(() -> UserEntity.<UserEntity>findById(user.id).setName(oldName));
+		}
+	}
+
+	@Test
+	public void findByEmailIsInvalidatedOnUpdate() {
+		UserEntity user = QuarkusTransaction.requiringNew().call(util::getRandomUser);
+		Statistics stats = sessionFactory.getStatistics();
+
+		// GIVEN the result of findByEmail in the query cache
+		QuarkusTransaction.requiringNew().run(() -> UserEntity.findByEmail(user.email));
+		long hits = stats.getQueryCacheHitCount();
+		QuarkusTransaction.requiringNew().run(() -> UserEntity.findByEmail(user.email));
+		assertEquals(hits + 1, stats.getQueryCacheHitCount(), "Second findByEmail should have been a query cache hit");
+
+		// WHEN any user is updated
+		QuarkusTransaction.requiringNew().run(() -> {
+			UserEntity u = UserEntity.findById(user.id);
+			u.setName(u.getName() + " ");
+		});
+
+		// THEN the cached result is not used anymore
+		long misses = stats.getQueryCacheMissCount();
+		UserEntity found = QuarkusTransaction.requiringNew().call(() -> UserEntity.findByEmail(user.email).orElseThrow());
+		assertEquals(misses + 1, stats.getQueryCacheMissCount(), "findByEmail should have been a query cache miss after an update");
+		assertEquals(user.getName() + " ", found.getName());
+
+		QuarkusTransaction.requiringNew().run(() -> UserEntity.<UserEntity>findById(user.id).setName(user.getName()));
+	}
+
+	@Test
+	public void cachedMembersAreInvalidatedWhenSomeoneJoins() {
+		TeamEntity team = QuarkusTransaction.requiringNew().call(util::getRandomTeam);
+
+		// GIVEN the members of a team in the collection cache
+		QuarkusTransaction.requiringNew().run(() -> TeamEntity.<TeamEntity>findById(team.id).getMembers().size());
+		assertTrue(sessionFactory.getCache().containsCollection(TeamEntity.class.getName() + ".members", team.id), "Members of team should be cached");
+
+		// WHEN a new member joins the team
+		TeamDataResponse res = util.joinTeam(team.getInviteCode(), null);
+
+		// THEN the new member is in the team's members
+		Set<String> emails = QuarkusTransaction.requiringNew().call(() -> TeamEntity.<TeamEntity>findById(team.id).getMembers().stream()
+				.map(TeamMemberEntity::getUser).map(UserEntity::getEmail).collect(Collectors.toSet()));
+		assertTrue(emails.contains(res.user.getEmail()), "New member should be in the (cached) members of the team");
+	}
+}
@@ -0,0 +1,84 @@
+package org.liquido;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Test;
+import org.liquido.team.TeamDataResponse;
+import org.liquido.team.TeamSnapshot;
+import org.liquido.user.UserEntity;
+import org.liquido.util.Lson;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A client that already has the current version of its team gets a short "not modified" response.
+ * When the team's members or polls change, then the version changes and the full payload is sent again.
+ */
+@QuarkusTest
+public class TeamSnapshotTests {
+
+	@Inject
+	LiquidoTestUtils util;
+
+	@Test
+	public void notModifiedWhenKnownVersionIsCurrent() {
+		UserEntity admin = QuarkusTransaction.requiringNew().call(util::getRandomAdmin);
+		TeamDataResponse adminRes = util.devLogin(admin.email);
+
+		// GIVEN the current snapshot of a team
+		TeamSnapshot snapshot = getTeamSnapshot(null, adminRes.jwt);
+		assertFalse(snapshot.isNotModified(), "Without knownVersion the snapshot must not be notModified");
+		assertNotNull(snapshot.getPayload(), "Without knownVersion the snapshot must have a payload");
+
+		// WHEN querying again with that version
+		TeamSnapshot again = getTeamSnapshot(snapshot.getVersion(), adminRes.jwt);
+
+		// THEN the team is not modified and there is no payload
+		assertTrue(again.isNotModified(), "Snapshot with current knownVersion should be notModified");
+		assertNull(again.getPayload(), "A notModified snapshot must not have a payload");
+		assertEquals(snapshot.getVersion(), again.getVersion());
+		assertNotNull(again.getNumBallots(), "numBallots must also be sent when notModified");
+	}
+
+	@Test
+	public void versionChangesWhenMemberJoins() {
+		UserEntity admin = QuarkusTransaction.requiringNew().call(util::getRandomAdmin);
+		TeamDataResponse adminRes = util.devLogin(admin.email);
+		TeamSnapshot snapshot = getTeamSnapshot(null, adminRes.jwt);
+
+		// WHEN a new member joins the team
+		util.joinTeam(adminRes.team.getInviteCode(), "snapshotMember" + System.currentTimeMillis() + "@liquido.vote");
+
+		// THEN the snapshot with the old version is modified
+		TeamSnapshot changed = getTeamSnapshot(snapshot.getVersion(), adminRes.jwt);
+		assertFalse(changed.isNotModified(), "Snapshot should be modified after a member joined");
+		assertNotEquals(snapshot.getVersion(), changed.getVersion());
+		assertNotNull(changed.getPayload());
+	}
+
+	@Test
+	public void versionChangesWhenPollIsCreated() {
+		UserEntity admin = QuarkusTransaction.requiringNew().call(util::getRandomAdmin);
+		TeamDataResponse adminRes = util.devLogin(admin.email);
+		TeamSnapshot snapshot = getTeamSnapshot(null, adminRes.jwt);
+
+		// WHEN a poll is created in the team
+		String title = "Poll to test team snapshot " + System.currentTimeMillis();
+		util.createPoll(title, adminRes.jwt);
+
+		// THEN the snapshot with the old version is modified and contains the new poll
+		TeamSnapshot changed = getTeamSnapshot(snapshot.getVersion(), adminRes.jwt);
+		assertFalse(changed.isNotModified(), "Snapshot should be modified after a poll was created");
+		assertNotEquals(snapshot.getVersion(), changed.getVersion());
+		assertTrue(changed.getPayload().contains(title), "Payload should contain the new poll");
+	}
+
+	private TeamSnapshot getTeamSnapshot(Long knownVersion, String jwt) {
+		String query = "query teamSnapshot($knownVersion: BigInteger) { " +
+				" teamSnapshot(knownVersion: $knownVersion) { teamId version notModified payload numBallots { pollId numBallots } } }";
+		Lson vars = new Lson().putIfValueIsPresent("knownVersion", knownVersion);
+		return TestFixtures.sendGraphQL(query, vars, jwt)
+				.extract().jsonPath().getObject("data.teamSnapshot", TeamSnapshot.class);
+	}
+}
@@ -3,6 +3,8 @@ package org.liquido;
 import io.quarkus.test.TestTransaction;
 import io.quarkus.test.junit.QuarkusTest;
 import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.FlushModeType;
 import org.junit.jupiter.api.Test;
 import org.liquido.model.LiquidoBaseEntity;
 import org.liquido.poll.PollEntity;
@@ -10,14 +12,20 @@ import org.liquido.team.TeamDataResponse;
 import org.liquido.team.TeamEntity;
 import org.liquido.team.TeamMemberEntity;
 import org.liquido.user.UserEntity;
+import org.liquido.util.LiquidoException;
 import org.liquido.vote.BallotEntity;
+import org.liquido.vote.CastVoteRequest;
 import org.liquido.vote.CastVoteResponse;
+import org.liquido.vote.CastVoteResult;
+import org.liquido.vote.CastVoteService;
 import org.liquido.vote.VoterTokenEntity;
 
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 /**
@@ -30,6 +38,9 @@ public class UseCaseTests {
 	@Inject
 	LiquidoTestUtils util;
 
+	@Inject
+	CastVoteService castVoteService;
+
 	/**
 	 * Check that a voter can vote in two separate polls.
 	 * This actually was an interesting bug: Initially I wanted to assign exactly one voterToken to each voter.
@@ -126,5 +137,60 @@ public class UseCaseTests {
 		assertEquals(1, memberBallot.getLevel(), "Member's ballot should be at level 1 (delegated)");
 	}
 
+	/**
+	 * The ballot counter of a poll is maintained while votes are cast. It must always match the actual number of ballots.
+	 */
+	@Test
+	@TestTransaction
+	public void numBallotsMatchesCountOfBallots() {
+		TeamEntity team = util.getRandomTeam();
+		UserEntity admin = team.getFirstAdmin();
+		UserEntity member = team.getMembers().stream().filter(m -> m.getRole().equals(TeamMemberEntity.Role.MEMBER)).findFirst()
+				.orElseThrow(() -> new RuntimeException("Need a member in team "+team)).getUser();
+
+		// GIVEN a poll in voting
+		TeamDataResponse adminRes = util.devLogin(admin.email);
+		PollEntity poll;
+		poll = util.createPoll("Poll to test numBallots", adminRes.jwt);
+		poll = util.seedRandomProposals(poll, adminRes.team, 2);
+		poll = util.startVotingPhase(poll.getId(), adminRes.jwt);
+		List<Long> voteOrderIds = poll.getProposals().stream().map(LiquidoBaseEntity::getId).toList();
+		Long pollId = poll.getId();
+
+		// WHEN admin and member cast their votes (delegated ballots are counted too)
+		util.castVote(pollId, voteOrderIds, util.getVoterToken(pollId, adminRes.jwt));
+		TeamDataResponse memberRes = util.devLogin(member.email);
+		util.castVote(pollId, voteOrderIds, util.getVoterToken(pollId, memberRes.jwt));
+
+		// THEN the counter in the DB matches COUNT(*) of the ballots
+		long numBallots = ((Number) PollEntity.getEntityManager().createNativeQuery("SELECT numBallots FROM polls WHERE id = :id")
+				.setParameter("id", pollId).getSingleResult()).longValue();
+		long count = BallotEntity.count("poll.id", pollId);
+		assertTrue(count >= 2, "There should be at least the ballots of admin and member");
+		assertEquals(count, numBallots, "numBallots should match the number of ballots");
+
+		//  AND the poll that is read again (possibly from the second level cache) has the current counter
+		PollEntity.getEntityManager().clear();
+		PollEntity reloaded = PollEntity.findById(pollId);
+		assertEquals(count, reloaded.getNumBallots(), "Cached poll should not have a stale numBallots");
+
+		//  AND reconciling finds nothing to correct
+		assertEquals(count, PollEntity.reconcileNumBallots(reloaded));
+	}
+
+	/**
+	 * castVotes switches the shared EntityManager to FlushMode.COMMIT while it writes the ballots.
+	 * Afterward the previous flush mode must be restored for everything else in the same transaction.
+	 */
+	@Test
+	@TestTransaction
+	public void castVotesRestoresFlushMode() throws LiquidoException {
+		EntityManager em = BallotEntity.getEntityManager();
+		em.setFlushMode(FlushModeType.AUTO);
+
+		List<CastVoteResult> results = castVoteService.castVotes(List.of(new CastVoteRequest(-1L, List.of(1L, 2L), "invalidVoterToken")));
 
-}
\ No newline at end of file
+		assertFalse(results.get(0).isSuccess(), "Vote in a poll that does not exist must fail");
+		assertEquals(FlushModeType.AUTO, em.getFlushMode(), "castVotes must restore the flush mode");
+	}
+}
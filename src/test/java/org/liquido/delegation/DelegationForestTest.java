@@ -0,0 +1,92 @@
+package org.liquido.delegation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DelegationForestTest {
+
+	/**
+	 * <pre>
+	 *   top <- p1 <- v1
+	 *          p1 <- v2
+	 *   top <- v3
+	 *   alone
+	 * </pre>
+	 */
+	DelegationForest buildForest() {
+		return DelegationForest.build(List.of(
+				new String[] { "v1", "p1" },
+				new String[] { "v2", "p1" },
+				new String[] { "p1", "top" },
+				new String[] { "v3", "top" },
+				new String[] { "top", null },
+				new String[] { "alone", null }
+		));
+	}
+
+	@Test
+	void queriesOnLoadedForest() {
+		DelegationForest forest = buildForest();
+		assertEquals(6, forest.size());
+		assertEquals(4, forest.countDelegationsTo("top"));
+		assertEquals(2, forest.countDelegationsTo("p1"));
+		assertEquals(0, forest.countDelegationsTo("v1"));
+		assertEquals(0, forest.countDelegationsTo("unknown"));
+		assertEquals(List.of("v1", "p1", "top"), forest.proxyChain("v1"));
+		assertEquals("top", forest.topProxy("v2"));
+		assertEquals("alone", forest.topProxy("alone"));
+		assertEquals(Set.of("p1", "v3"), Set.copyOf(forest.children("top")));
+		assertEquals(Set.of("p1", "v1", "v2", "v3"), Set.copyOf(forest.subtree("top")));
+
+		assertTrue(forest.wouldCauseCycle("top", "v1"));
+		assertTrue(forest.wouldCauseCycle("p1", "p1"));
+		assertFalse(forest.wouldCauseCycle("v1", "v3"));
+		assertFalse(forest.wouldCauseCycle("unknown", "top"));
+	}
+
+	@Test
+	void setProxyMaintainsSubtreeSizes() {
+		DelegationForest forest = buildForest();
+		forest.setProxy("p1", "alone");          // move a subtree
+		assertEquals(1, forest.countDelegationsTo("top"));
+		assertEquals(3, forest.countDelegationsTo("alone"));
+		assertThrows(IllegalArgumentException.class, () -> forest.setProxy("alone", "v1"));
+
+		forest.setProxy("v1", null);             // remove a delegation
+		forest.setProxy("newVoter", "v1");       // new rightToVote
+		assertEquals(2, forest.countDelegationsTo("alone"));
+		assertEquals(1, forest.countDelegationsTo("v1"));
+
+		assertTrue(forest.isChildrenStale());
+		forest.rebuildChildren();
+		assertEquals(List.of("newVoter"), forest.children("v1"));
+		assertEquals(Set.of("p1", "v2"), Set.copyOf(forest.subtree("alone")));
+	}
+
+	@Test
+	void cyclesInDataAreCut() {
+		DelegationForest forest = DelegationForest.build(List.of(
+				new String[] { "a", "b" },
+				new String[] { "b", "c" },
+				new String[] { "c", "a" },
+				new String[] { "d", "a" }
+		));
+		assertEquals(3, forest.countDelegationsTo(forest.topProxy("d")));
+		assertTrue(forest.proxyChain("a").size() <= 3);
+	}
+
+	@Test
+	void binaryRoundTrip() {
+		DelegationForest forest = buildForest();
+		forest.setProxy("alone", "v3");
+		DelegationForest copy = DelegationForest.fromBytes(forest.toBytes());
+		assertEquals(forest.size(), copy.size());
+		assertEquals(5, copy.countDelegationsTo("top"));
+		assertEquals(List.of("alone", "v3", "top"), copy.proxyChain("alone"));
+		assertEquals(Set.of("p1", "v3"), Set.copyOf(copy.children("top")));
+	}
+}
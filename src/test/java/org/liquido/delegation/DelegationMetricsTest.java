@@ -0,0 +1,55 @@
+package org.liquido.delegation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DelegationMetricsTest {
+
+	/**
+	 * <pre>
+	 *   top <- p1 <- v1
+	 *          p1 <- v2
+	 *   top <- v3
+	 *   p2 <- v4
+	 *   alone
+	 * </pre>
+	 */
+	@Test
+	void metricsOfSmallForest() {
+		DelegationForest forest = DelegationForest.build(List.of(
+				new String[] { "v1", "p1" },
+				new String[] { "v2", "p1" },
+				new String[] { "p1", "top" },
+				new String[] { "v3", "top" },
+				new String[] { "top", null },
+				new String[] { "v4", "p2" },
+				new String[] { "p2", null },
+				new String[] { "alone", null }
+		));
+		DelegationMetrics metrics = DelegationMetrics.calculate(forest, Set.of("p2", "v1"));
+
+		assertEquals(8, metrics.getNumRightToVotes());
+		assertEquals(5, metrics.getNumDelegated());
+		assertEquals(3, metrics.getNumProxies());
+		assertEquals(2, metrics.getLongestChain());
+		assertEquals(2, metrics.getMaxFanIn());
+		assertEquals(1, metrics.getFanIn().get(0).getNumProxies(), "p2 has one delegation");
+		assertEquals(2, metrics.getFanIn().get(1).getNumProxies(), "top and p1 have two delegations each");
+		assertNull(metrics.getFanIn().get(metrics.getFanIn().size() - 1).getMaxDelegations());
+		assertEquals(5 + 2, metrics.getTopProxiesVotingPower());
+		assertEquals(7.0 / 8, metrics.getTopProxiesShare(), 0.0001);
+		assertEquals(1, metrics.getNumOrphaned(), "v4 is delegated to expired p2");
+	}
+
+	@Test
+	void emptyForest() {
+		DelegationMetrics metrics = DelegationMetrics.calculate(DelegationForest.build(List.of()), Set.of());
+		assertEquals(0, metrics.getNumRightToVotes());
+		assertEquals(0, metrics.getLongestChain());
+		assertEquals(0.0, metrics.getTopProxiesShare());
+	}
+}
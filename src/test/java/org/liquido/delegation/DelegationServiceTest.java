@@ -0,0 +1,28 @@
+package org.liquido.delegation;
+
+import org.junit.jupiter.api.Test;
+import org.liquido.vote.RightToVoteEntity.DelegationRow;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DelegationServiceTest {
+
+	@Test
+	void votingPowerDeltasForNestedRequests() {
+		// old <- a <- b    proxy <- (nothing)     a and b both are delegated to proxy in one batch
+		Map<String, DelegationRow> rows = Map.of(
+				"old", new DelegationRow("old", null, 3),
+				"a", new DelegationRow("a", "old", 2),
+				"b", new DelegationRow("b", "a", 1),
+				"proxy", new DelegationRow("proxy", null, 1)
+		);
+		Map<String, Long> deltas = DelegationService.votingPowerDeltas(rows, List.of("a", "b"), "proxy");
+		assertEquals(Map.of("old", -2L, "a", -1L, "proxy", 2L), deltas);
+
+		// Same result in the other order
+		assertEquals(deltas, DelegationService.votingPowerDeltas(rows, List.of("b", "a"), "proxy"));
+	}
+}
@@ -0,0 +1,61 @@
+package org.liquido.delegation;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.liquido.util.H2Schema;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Run {@link DelegationEntity#SQL_PROXY_USERS} against an in-memory H2 DB.
+ * The tables are created from our entity mappings. See {@link H2Schema}
+ */
+class ProxyUsersQueryTest {
+
+	H2Schema db;
+
+	@BeforeEach
+	void openDb() throws SQLException {
+		db = H2Schema.open();
+	}
+
+	@AfterEach
+	void closeDb() throws SQLException {
+		db.close();
+	}
+
+	void delegation(long id, long fromUser, long toProxy, String requestedFrom) throws SQLException {
+		db.execute("INSERT INTO delegations (id, fromUser_id, toProxy_id, requestedDelegationFrom_hashedVoterInfo, createdAt, updatedAt) VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP, CURRENT_TIMESTAMP)",
+				id, fromUser, toProxy, requestedFrom);
+	}
+
+	List<Long> proxyUsers(long voterId, int maxDepth) throws SQLException {
+		return db.query(DelegationEntity.SQL_PROXY_USERS, voterId, maxDepth).stream()
+				.map(row -> ((Number) row[0]).longValue())
+				.toList();
+	}
+
+	@Test
+	void proxiesInTheOrderOfTheChain() throws SQLException {
+		// 1 -> 2 -> 3 -> 4
+		delegation(10, 1, 2, null);
+		delegation(11, 2, 3, null);
+		delegation(12, 3, 4, null);
+		assertEquals(List.of(2L, 3L, 4L), proxyUsers(1, 10));
+		assertEquals(List.of(2L, 3L), proxyUsers(1, 2));
+	}
+
+	@Test
+	void delegationRequestsAreSkipped() throws SQLException {
+		// 1 -> 2 -(requested)-> 3       5 -(requested)-> 1
+		delegation(10, 1, 2, null);
+		delegation(11, 2, 3, "hashOf2");
+		delegation(12, 5, 1, "hashOf5");
+		assertEquals(List.of(2L), proxyUsers(1, 10));
+		assertEquals(List.of(), proxyUsers(5, 10), "a requested delegation is not a delegation");
+	}
+}
@@ -0,0 +1,179 @@
+package org.liquido.delegation;
+
+import org.junit.jupiter.api.Test;
+import org.liquido.poll.PollEntity;
+import org.liquido.poll.ProposalEntity;
+import org.liquido.vote.BallotEntity;
+import org.liquido.vote.RightToVoteEntity;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RepropagationServiceTest {
+
+	PollEntity poll = new PollEntity();
+	ProposalEntity propA = proposal(11L);
+	ProposalEntity propB = proposal(12L);
+
+	/** Ballots of the poll by rightToVote hash. This is the "DB" of the service below. */
+	Map<String, BallotEntity> ballots = new HashMap<>();
+
+	RepropagationServiceTest() {
+		poll.id = 1L;
+	}
+
+	static ProposalEntity proposal(long id) {
+		ProposalEntity prop = new ProposalEntity();
+		prop.id = id;
+		return prop;
+	}
+
+	void vote(String hash, int level, ProposalEntity... voteOrder) {
+		RightToVoteEntity rightToVote = new RightToVoteEntity(hash, LocalDateTime.now().plusDays(1));
+		ballots.put(hash, new BallotEntity(poll, level, new ArrayList<>(List.of(voteOrder)), rightToVote));
+	}
+
+	/** A service that works on the ballots map instead of the DB */
+	RepropagationService service() {
+		return new RepropagationService() {
+			@Override
+			Map<String, BallotEntity> loadBallots(PollEntity poll, List<String> hashes) {
+				Map<String, BallotEntity> loaded = new HashMap<>();
+				hashes.forEach(hash -> { if (ballots.containsKey(hash)) loaded.put(hash, ballots.get(hash)); });
+				return loaded;
+			}
+
+			@Override
+			void deleteBallot(BallotEntity ballot) {
+				ballots.remove(ballot.getRightToVote().getHashedVoterInfo());
+			}
+
+			@Override
+			Optional<BallotEntity> insertBallot(PollEntity poll, int level, List<ProposalEntity> voteOrder, String rightToVoteHash) {
+				BallotEntity ballot = new BallotEntity(poll, level, voteOrder, new RightToVoteEntity(rightToVoteHash, LocalDateTime.now().plusDays(1)));
+				ballots.put(rightToVoteHash, ballot);
+				return Optional.of(ballot);
+			}
+		};
+	}
+
+	/**
+	 * <pre>
+	 *   proxy      (voted)
+	 *   voter <- delegee
+	 * </pre>
+	 */
+	DelegationForest forest() {
+		return DelegationForest.build(List.of(
+				new String[] { "proxy", null },
+				new String[] { "voter", null },
+				new String[] { "delegee", "voter" }
+		));
+	}
+
+	@Test
+	void delegateToProxyThatAlreadyVoted() {
+		vote("proxy", 0, propB, propA);
+		DelegationForest forest = forest();
+		forest.setProxy("voter", "proxy");
+		forest.rebuildChildren();
+
+		assertEquals(2, service().repropagateSubtree(poll, forest, "voter"));
+		assertEquals(1, ballots.get("voter").getLevel());
+		assertEquals(2, ballots.get("delegee").getLevel());
+		assertEquals(List.of(propB, propA), ballots.get("delegee").getVoteOrder());
+	}
+
+	@Test
+	void removeDelegation() {
+		vote("proxy", 0, propB, propA);
+		vote("voter", 1, propB, propA);
+		vote("delegee", 2, propB, propA);
+		DelegationForest forest = forest();    // voter does not delegate anymore
+
+		assertEquals(-2, service().repropagateSubtree(poll, forest, "voter"));
+		assertEquals(Set.of("proxy"), ballots.keySet());
+	}
+
+	@Test
+	void ballotsAtLevelZeroAreNotChanged() {
+		vote("proxy", 0, propB, propA);
+		vote("voter", 0, propA, propB);
+		vote("delegee", 1, propA, propB);
+		DelegationForest forest = forest();
+		forest.setProxy("voter", "proxy");
+		forest.rebuildChildren();
+
+		assertEquals(0, service().repropagateSubtree(poll, forest, "voter"));
+		assertEquals(0, ballots.get("voter").getLevel());
+		assertEquals(List.of(propA, propB), ballots.get("voter").getVoteOrder());
+		assertEquals(1, ballots.get("delegee").getLevel(), "Delegee still gets the ballot of the voter, who voted for themselves");
+		assertEquals(List.of(propA, propB), ballots.get("delegee").getVoteOrder());
+	}
+
+	//---------- processing of tasks
+
+	static RepropagationTaskEntity task(long id, long pollId) {
+		RepropagationTaskEntity task = new RepropagationTaskEntity(pollId, "hash" + id, null);
+		task.id = id;
+		return task;
+	}
+
+	/** Pending tasks ordered by id. The service applies and drops tasks from this list. */
+	List<RepropagationTaskEntity> pending = new ArrayList<>();
+	List<Long> applied = new ArrayList<>();
+
+	/**
+	 * @param failingTaskIds tasks that always fail
+	 * @param dropFailed whether a failed task is dropped, as after its max attempts
+	 */
+	RepropagationService taskService(Set<Long> failingTaskIds, boolean dropFailed) {
+		return new RepropagationService() {
+			@Override
+			List<RepropagationTaskEntity> findPendingTasks(Long pollId) {
+				return pending.stream().filter(task -> pollId == null || task.getPollId().equals(pollId)).toList();
+			}
+
+			@Override
+			long countPendingTasks() {
+				return pending.size();
+			}
+
+			@Override
+			void applyTasks(long pollId, List<RepropagationTaskEntity> tasks) {
+				if (tasks.stream().anyMatch(task -> failingTaskIds.contains(task.id))) throw new IllegalStateException("Lock timeout");
+				tasks.forEach(task -> applied.add(task.id));
+				pending.removeAll(tasks);
+			}
+
+			@Override
+			boolean recordFailure(RepropagationTaskEntity task, RuntimeException e) {
+				if (dropFailed) pending.remove(task);
+				return dropFailed;
+			}
+		};
+	}
+
+	@Test
+	void tasksAfterAFailedTaskOfThePollAreNotApplied() {
+		pending.addAll(List.of(task(1, 1), task(2, 1), task(3, 1), task(4, 2)));
+
+		taskService(Set.of(2L), false).processPendingTasks();
+
+		assertEquals(List.of(1L, 4L), applied, "Task 3 must wait for task 2. Other polls are not blocked.");
+		assertEquals(List.of(2L, 3L), pending.stream().map(task -> task.id).toList());
+	}
+
+	@Test
+	void pollCannotBeFinishedWhileTasksArePending() {
+		pending.addAll(List.of(task(1, 1), task(2, 1), task(3, 1)));
+		assertFalse(taskService(Set.of(2L), false).processPendingTasks(1L));
+		assertEquals(List.of(1L), applied);
+
+		assertTrue(taskService(Set.of(2L), true).processPendingTasks(1L), "Once the failing task is dropped, the remaining tasks are applied");
+		assertEquals(List.of(1L, 3L), applied);
+		assertTrue(pending.isEmpty());
+	}
+}
@@ -0,0 +1,76 @@
+package org.liquido.security;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HashServiceSha3Test {
+
+	@Test
+	void sameHashAsDigestUtils() {
+		String token = UUID.randomUUID().toString();
+		Long pollId = 4711L;
+		assertEquals(DigestUtils.sha3_256Hex(token + pollId + "secret"), HashServiceSha3.sha3_256Hex(token, pollId, "secret"));
+		assertEquals(DigestUtils.sha3_256Hex("user@domain.org" + null + "salt"), HashServiceSha3.sha3_256Hex("user@domain.org", (String) null, "salt"));
+		assertEquals(DigestUtils.sha3_256Hex(""), HashServiceSha3.start().toHex());
+	}
+
+	@Test
+	void sameHashForNonAsciiInput() {
+		String[] inputs = { "Zürich €", "emoji 😀 pair", "lone \uD800 surrogate", "x".repeat(2000) };
+		for (String input : inputs) {
+			assertEquals(DigestUtils.sha3_256Hex(input), HashServiceSha3.start().add(input).toHex(), "Hash mismatch for " + input);
+		}
+	}
+
+	@Test
+	void sameHashOnVirtualThreads() throws InterruptedException {
+		String expected = DigestUtils.sha3_256Hex("token" + 4711L + "secret");
+		String[] results = new String[100];
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			int idx = i;
+			threads[i] = Thread.ofVirtual().start(() -> results[idx] = HashServiceSha3.sha3_256Hex("token", 4711L, "secret"));
+		}
+		for (Thread thread : threads) thread.join();
+		for (String result : results) assertEquals(expected, result);
+	}
+
+	/**
+	 * Simple microbenchmark:  mvn test -Dtest=HashServiceSha3Test -Dbenchmark=true
+	 * (No JMH. Only a rough comparison after some warmup.)
+	 * The Keccak permutation itself dominates the time per hash. The gain is mostly in allocated bytes per hash, i.e. less GC pressure under load.
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+	void benchmarkAgainstDigestUtils() {
+		String token = UUID.randomUUID().toString();
+		String secret = UUID.randomUUID().toString();
+		int iterations = 1_000_000;
+		long sink = 0;
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		for (int round = 0; round < 6; round++) {   // first rounds are warmup
+			long allocated = threadBean.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			for (long i = 0; i < iterations; i++) sink += DigestUtils.sha3_256Hex(token + i + secret).charAt(0);
+			long digestUtilsNanos = System.nanoTime() - start;
+			long digestUtilsBytes = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+
+			allocated = threadBean.getThreadAllocatedBytes(threadId);
+			start = System.nanoTime();
+			for (long i = 0; i < iterations; i++) sink += HashServiceSha3.start().add(token).add(i).add(secret).toHex().charAt(0);
+			long hashServiceNanos = System.nanoTime() - start;
+			long hashServiceBytes = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+
+			System.out.printf("Round %d: DigestUtils %d ns/op %d bytes/op, HashServiceSha3 %d ns/op %d bytes/op%n", round,
+					digestUtilsNanos / iterations, digestUtilsBytes / iterations, hashServiceNanos / iterations, hashServiceBytes / iterations);
+		}
+		System.out.println("(ignore: " + sink + ")");
+	}
+}
@@ -0,0 +1,20 @@
+package org.liquido.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DoogiesUtilTest {
+
+	@Test
+	void likeContainsEscapesWildcards() {
+		assertEquals("%50\\% off%", DoogiesUtil.likeContains("50% off"));
+		assertEquals("%snake\\_case%", DoogiesUtil.likeContains("snake_case"));
+		assertEquals("%back\\\\slash%", DoogiesUtil.likeContains("back\\slash"));
+	}
+
+	@Test
+	void likeContainsIsLowercaseAndTrimmed() {
+		assertEquals("%mixed case%", DoogiesUtil.likeContains("  Mixed Case "));
+	}
+}
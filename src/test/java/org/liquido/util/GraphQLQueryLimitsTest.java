@@ -0,0 +1,84 @@
+package org.liquido.util;
+
+import graphql.execution.CoercedVariables;
+import graphql.language.Document;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GraphQLQueryLimitsTest {
+
+	static final GraphQLSchema SCHEMA = new SchemaGenerator().makeExecutableSchema(new SchemaParser().parse("""
+			type Query { team: Team, pollsPage(first: Int): PollPage, topProxies(limit: Int): [User] }
+			type Team { id: ID, teamName: String, members: [User], polls: [Poll] }
+			type PollPage { polls: [Poll], hasMore: Boolean }
+			type Poll { id: ID, title: String, proposals: [Proposal] }
+			type Proposal { id: ID, title: String, createdBy: User }
+			type User { id: ID, name: String }
+			"""), RuntimeWiring.newRuntimeWiring().build());
+
+	static GraphQLQueryLimits.QueryCost cost(String query, Map<String, Integer> weights) {
+		Document document = Parser.parse(query);
+		return GraphQLQueryLimits.calculate(SCHEMA, document, null, CoercedVariables.emptyVariables(), weights, 10);
+	}
+
+	@Test
+	void listsMultiplyTheCostOfTheirChildren() {
+		// team(1) + members(1 + 10 * 0) + polls(1 + 10 * (proposals(1 + 10 * createdBy(1))))
+		GraphQLQueryLimits.QueryCost queryCost = cost("{ team { id teamName members { id } polls { id proposals { id createdBy { name } } } } }", Map.of());
+		assertEquals(1 + 1 + 1 + 10 * (1 + 10), queryCost.cost());
+		assertEquals(5, queryCost.depth());
+	}
+
+	@Test
+	void firstArgumentOfParentLimitsListSize() {
+		// pollsPage(1 + polls(1 + 3 * proposals(1 + 10 * createdBy(1))))
+		assertEquals(1 + 1 + 3 * 11, cost("{ pollsPage(first: 3) { polls { proposals { createdBy { id } } } hasMore } }", Map.of()).cost());
+		assertEquals(50, cost("{ topProxies(limit: 5) { id name } }", Map.of("Query.topProxies", 50)).cost());
+	}
+
+	@Test
+	void introspectionIsNotCounted() {
+		GraphQLQueryLimits.QueryCost queryCost = cost("{ __typename team { __typename id } }", Map.of());
+		assertEquals(1, queryCost.cost());
+		assertEquals(2, queryCost.depth());
+	}
+
+	@Test
+	void listSizeIsClampedLikeInTheResolvers() {
+		// first: 0 and negative sizes are a page of one element in the resolvers. So they cost at least one element.
+		// pollsPage(1 + polls(1 + 1 * proposals(1)))
+		assertEquals(1 + 1 + 1, cost("{ pollsPage(first: 0) { polls { proposals { id } } } }", Map.of()).cost());
+		assertEquals(1 + 1 + 1, cost("{ pollsPage(first: -5) { polls { proposals { id } } } }", Map.of()).cost());
+		// more than MAX_PAGE_SIZE are never returned
+		assertEquals(cost("{ pollsPage(first: 100) { polls { proposals { id } } } }", Map.of()).cost(),
+				cost("{ pollsPage(first: 100000) { polls { proposals { id } } } }", Map.of()).cost());
+	}
+
+	@Test
+	void costDoesNotOverflow() {
+		String field = "pollsPage(first: 2147483647) { polls { proposals { createdBy { id } } } }";
+		int single = cost("{ " + field + " }", Map.of()).cost();
+		assertEquals(2 * single, cost("{ a: " + field + " b: " + field + " }", Map.of()).cost(), "aliased fields do not overflow");
+
+		// 500 aliased fields that are each just below the cap are summed up exactly
+		Map<String, Integer> weights = Map.of("Proposal.createdBy", 12);
+		int expensive = cost("{ " + field + " }", weights).cost();
+		assertTrue(expensive < GraphQLQueryLimits.MAX_FIELD_COST);
+		StringBuilder query = new StringBuilder("{");
+		for (int i = 0; i < 500; i++) query.append(" p").append(i).append(": ").append(field);
+		query.append(" }");
+		assertEquals(500 * expensive, cost(query.toString(), weights).cost());
+
+		assertEquals(Integer.MAX_VALUE, cost("{ " + field + " }", Map.of("Proposal.createdBy", 1000)).cost(), "a field that reaches the cap is rejected");
+		assertEquals(Integer.MAX_VALUE, cost("{ topProxies(limit: 5) { id } }", Map.of("Query.topProxies", Integer.MAX_VALUE)).cost());
+	}
+}
@@ -0,0 +1,140 @@
+package org.liquido.util;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.liquido.delegation.DelegationEntity;
+import org.liquido.delegation.DelegationSnapshotEntity;
+import org.liquido.delegation.RepropagationTaskEntity;
+import org.liquido.poll.PollEntity;
+import org.liquido.poll.ProposalEntity;
+import org.liquido.security.OneTimeToken;
+import org.liquido.security.webauthn.WebAuthnCredential;
+import org.liquido.team.TeamEntity;
+import org.liquido.team.TeamMemberEntity;
+import org.liquido.user.UserEntity;
+import org.liquido.vote.BallotEntity;
+import org.liquido.vote.RightToVoteEntity;
+import org.liquido.vote.VoterTokenEntity;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory H2 DB with the LIQUIDO schema, for plain JUnit tests of native SQL queries.
+ *
+ * The tables are created by Hibernate from our entity mappings. This is the same source as for the real DB,
+ * which is created with "quarkus.hibernate-orm.database.generation=drop-and-create". See docs/README-tech.md
+ * So tests cannot use table or column names that the real schema does not have.
+ *
+ * Foreign keys are not checked. A test only needs to insert the rows that its query reads.
+ * Close the DB after each test. Then all rows are deleted, but the schema is kept for the next test.
+ */
+public class H2Schema implements AutoCloseable {
+
+	static final String URL = "jdbc:h2:mem:liquido_schema;DB_CLOSE_DELAY=-1";
+
+	/** All our entities. Hibernate needs every entity that is referenced by another one. */
+	static final List<Class<?>> ENTITIES = List.of(
+			UserEntity.class, WebAuthnCredential.class, OneTimeToken.class,
+			TeamEntity.class, TeamMemberEntity.class,
+			PollEntity.class, ProposalEntity.class,
+			RightToVoteEntity.class, VoterTokenEntity.class, BallotEntity.class,
+			DelegationEntity.class, DelegationSnapshotEntity.class, RepropagationTaskEntity.class
+	);
+
+	/** The schema is created only once per test run. Hibernate is only needed for that. */
+	private static SessionFactory schemaCreator = null;
+
+	private final Connection con;
+
+	private H2Schema(Connection con) {
+		this.con = con;
+	}
+
+	/**
+	 * Open a connection to the in-memory DB. The schema is created the first time.
+	 * @return an empty DB with all LIQUIDO tables
+	 * @throws SQLException when H2 is not available
+	 */
+	public static synchronized H2Schema open() throws SQLException {
+		if (schemaCreator == null) {
+			MetadataSources sources = new MetadataSources(new StandardServiceRegistryBuilder()
+					.applySetting("hibernate.connection.url", URL)
+					.applySetting("jakarta.persistence.schema-generation.database.action", "create")
+					.build());
+			ENTITIES.forEach(sources::addAnnotatedClass);
+			schemaCreator = sources.buildMetadata().buildSessionFactory();
+		}
+		Connection con = DriverManager.getConnection(URL);
+		try (Statement stmt = con.createStatement()) {
+			stmt.execute("SET REFERENTIAL_INTEGRITY FALSE");
+		}
+		return new H2Schema(con);
+	}
+
+	public Connection getConnection() {
+		return con;
+	}
+
+	/**
+	 * Execute an insert, update or delete
+	 * @param sql SQL with ? as placeholders
+	 * @param values for the placeholders
+	 * @return number of changed rows
+	 */
+	public int execute(String sql, Object... values) throws SQLException {
+		try (PreparedStatement stmt = con.prepareStatement(sql)) {
+			for (int i = 0; i < values.length; i++) stmt.setObject(i + 1, values[i]);
+			return stmt.executeUpdate();
+		}
+	}
+
+	/**
+	 * Run a query with named parameters, like a native query in Hibernate.
+	 * The values must be passed in the order in which the parameters first appear in the SQL.
+	 * @param sql SQL with :named parameters. A parameter may appear more than once.
+	 * @param values for the parameters
+	 * @return all rows
+	 */
+	public List<Object[]> query(String sql, Object... values) throws SQLException {
+		Matcher m = Pattern.compile("(?<!:):(\\w+)").matcher(sql);
+		List<String> names = new ArrayList<>();
+		while (m.find()) names.add(m.group(1));
+		List<String> distinct = names.stream().distinct().toList();
+		try (PreparedStatement stmt = con.prepareStatement(m.replaceAll("?"))) {
+			for (int i = 0; i < names.size(); i++) stmt.setObject(i + 1, values[distinct.indexOf(names.get(i))]);
+			List<Object[]> rows = new ArrayList<>();
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					Object[] row = new Object[rs.getMetaData().getColumnCount()];
+					for (int c = 0; c < row.length; c++) row[c] = rs.getObject(c + 1);
+					rows.add(row);
+				}
+			}
+			return rows;
+		}
+	}
+
+	/** Delete all rows from all tables and close the connection. */
+	@Override
+	public void close() throws SQLException {
+		try {
+			if (!con.getAutoCommit()) con.rollback();
+			con.setAutoCommit(true);
+			List<String> tables = new ArrayList<>();
+			try (Statement stmt = con.createStatement();
+					 ResultSet rs = stmt.executeQuery("SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_TYPE = 'BASE TABLE'")) {
+				while (rs.next()) tables.add(rs.getString(1));
+			}
+			try (Statement stmt = con.createStatement()) {
+				for (String table : tables) stmt.execute("TRUNCATE TABLE \"" + table + "\"");
+			}
+		} finally {
+			con.close();
+		}
+	}
+}
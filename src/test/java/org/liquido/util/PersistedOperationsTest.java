@@ -0,0 +1,42 @@
+package org.liquido.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PersistedOperationsTest {
+
+	static final String TEAM_QUERY = "query { team { id teamName } }";
+	static final String OTHER_QUERY = "query { polls { id } }";
+
+	@Test
+	void registerAndResolveByHash() {
+		PersistedOperations ops = new PersistedOperations();
+		ops.configure(false, 10, Map.of());
+		String hash = PersistedOperations.sha256Hex(TEAM_QUERY);
+
+		assertEquals(PersistedOperations.Outcome.NOT_FOUND, ops.resolve(null, hash).outcome());
+		assertEquals(PersistedOperations.Outcome.REGISTERED, ops.resolve(TEAM_QUERY, hash).outcome());
+		PersistedOperations.Resolution resolution = ops.resolve(null, hash);
+		assertEquals(PersistedOperations.Outcome.RESOLVED, resolution.outcome());
+		assertEquals(TEAM_QUERY, resolution.query());
+
+		assertEquals(PersistedOperations.Outcome.HASH_MISMATCH, ops.resolve(OTHER_QUERY, hash).outcome());
+		assertEquals(PersistedOperations.Outcome.PASS, ops.resolve(OTHER_QUERY, null).outcome());
+	}
+
+	@Test
+	void allowListOnly() {
+		String hash = PersistedOperations.sha256Hex(TEAM_QUERY);
+		PersistedOperations ops = new PersistedOperations();
+		ops.configure(true, 10, Map.of(hash, TEAM_QUERY));
+
+		assertEquals(TEAM_QUERY, ops.resolve(null, hash).query());
+		assertEquals(PersistedOperations.Outcome.PASS, ops.resolve(TEAM_QUERY, null).outcome());
+		assertEquals(PersistedOperations.Outcome.NOT_ALLOWED, ops.resolve(OTHER_QUERY, null).outcome());
+		assertEquals(PersistedOperations.Outcome.NOT_ALLOWED, ops.resolve(OTHER_QUERY, PersistedOperations.sha256Hex(OTHER_QUERY)).outcome());
+		assertEquals(PersistedOperations.Outcome.NOT_FOUND, ops.resolve(null, PersistedOperations.sha256Hex(OTHER_QUERY)).outcome());
+	}
+}
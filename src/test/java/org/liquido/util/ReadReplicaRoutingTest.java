@@ -0,0 +1,165 @@
+package org.liquido.util;
+
+import graphql.language.OperationDefinition;
+import graphql.parser.Parser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.liquido.vote.BallotsCommittedEvent;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReadReplicaRoutingTest {
+
+	static final Set<String> READ_ONLY = Set.of("polls", "team", "verifyBallot", "myBallot");
+
+	static OperationDefinition parse(String query) {
+		return Parser.parse(query).getDefinitionsOfType(OperationDefinition.class).get(0);
+	}
+
+	static boolean isReadOnly(String query) {
+		return ReadReplicaRouting.isReadOnly(parse(query), READ_ONLY);
+	}
+
+	/** Routing without a DB: lag tracking by time with a short read-your-writes-window */
+	static ReadReplicaRouting createRouting(Duration readYourWritesWindow) {
+		LiquidoConfig.ReadReplica readReplica = (LiquidoConfig.ReadReplica) Proxy.newProxyInstance(
+				LiquidoConfig.class.getClassLoader(), new Class<?>[]{LiquidoConfig.ReadReplica.class}, (proxy, method, args) -> switch (method.getName()) {
+					case "queries" -> READ_ONLY;
+					case "lagTracking" -> "time";
+					case "readYourWritesWindow" -> readYourWritesWindow;
+					case "lagCheckInterval" -> Duration.ofMillis(200);
+					case "maxTrackedUsers" -> 100;
+					default -> throw new UnsupportedOperationException(method.getName());
+				});
+		ReadReplicaRouting routing = new ReadReplicaRouting();
+		routing.config = (LiquidoConfig) Proxy.newProxyInstance(
+				LiquidoConfig.class.getClassLoader(), new Class<?>[]{LiquidoConfig.class}, (proxy, method, args) -> {
+					if (method.getName().equals("readReplica")) return readReplica;
+					throw new UnsupportedOperationException(method.getName());
+				});
+		routing.registry = new SimpleMeterRegistry();
+		routing.initMetrics();
+		return routing;
+	}
+
+	static boolean executeAndRoute(ReadReplicaRouting routing, String query, Map<String, Object> variables, Long userId) {
+		return executeAndRoute(routing, query, variables, userId, false);
+	}
+
+	/** Execute this operation like the instrumentation does. A new ReplicaTenantResolver per request. */
+	static boolean executeAndRoute(ReadReplicaRouting routing, String query, Map<String, Object> variables, Long userId, boolean writeBehind) {
+		routing.tenantResolver = new ReplicaTenantResolver();
+		OperationDefinition operation = parse(query);
+		Set<String> keys = ReadReplicaRouting.routingKeys(operation, variables, userId);
+		if (operation.getOperation() == OperationDefinition.Operation.MUTATION) {
+			routing.recordWrite(ReadReplicaRouting.writtenKeys(operation, keys, writeBehind));
+			return false;
+		}
+		boolean toReplica = routing.route(operation, keys);
+		assertEquals(toReplica, routing.tenantResolver.isUsingReplica());
+		return toReplica;
+	}
+
+	@Test
+	void onlyQueriesWithReadOnlyRootFieldsGoToTheReplica() {
+		assertTrue(isReadOnly("{ polls { id title } }"));
+		assertTrue(isReadOnly("query teamAndPolls { team { id } polls { id } __typename }"));
+		assertFalse(isReadOnly("{ polls { id } voterToken(pollId: 1) }"), "voterToken writes");
+		assertFalse(isReadOnly("mutation { polls { id } }"), "mutations always go to the primary");
+		assertFalse(isReadOnly("{ ... on Query { polls { id } } }"), "fragments on the root type are not analyzed");
+	}
+
+	@Test
+	void readOnlyQueryIsRoutedToTheReplica() {
+		ReadReplicaRouting routing = createRouting(Duration.ofSeconds(5));
+		assertTrue(executeAndRoute(routing, "{ polls { id } }", Map.of(), 1L));
+		assertTrue(executeAndRoute(routing, "{ verifyBallot(pollId: 5, checksum: \"abc\") { level } }", Map.of(), null));
+		assertFalse(executeAndRoute(routing, "{ voterToken(pollId: 5) }", Map.of(), 1L), "voterToken is not read-only");
+		assertEquals(2.0, routing.registry.get("liquido.read-replica.routed").tag("target", "replica").counter().count());
+	}
+
+	@Test
+	void anonymousVoteIsReadFromThePrimary() {
+		ReadReplicaRouting routing = createRouting(Duration.ofSeconds(5));
+		executeAndRoute(routing, "mutation { castVote(pollId: 5, voteOrderIds: [1,2], voterToken: \"secret\") { voteCount } }", Map.of(), null);
+
+		assertFalse(executeAndRoute(routing, "{ verifyBallot(pollId: 5, checksum: \"abc\") { level } }", Map.of(), null),
+				"verifyBallot right after castVote must read from the primary");
+		assertFalse(executeAndRoute(routing, "query verify($pollId: Long) { verifyBallot(pollId: $pollId, checksum: \"abc\") { level } }", Map.of("pollId", 5L), null),
+				"pollId in variables");
+		assertFalse(executeAndRoute(routing, "{ myBallot(pollId: \"5\") { level } }", Map.of(), 2L), "everyone reading the ballots of that poll");
+		assertTrue(executeAndRoute(routing, "{ verifyBallot(pollId: 6, checksum: \"abc\") { level } }", Map.of(), null), "other polls are read from the replica");
+		assertEquals(3.0, routing.registry.get("liquido.read-replica.routed").tag("target", "primary").counter().count());
+	}
+
+	@Test
+	void writeBehindVoteIsReadFromThePrimaryAfterItsBallotIsCommitted() {
+		ReadReplicaRouting routing = createRouting(Duration.ofSeconds(5));
+		executeAndRoute(routing, "mutation { castVote(pollId: 5, voteOrderIds: [1,2], voterToken: \"secret\") { voteCount } }", Map.of(), 1L, true);
+
+		assertFalse(executeAndRoute(routing, "{ polls { id } }", Map.of(), 1L), "the voter still reads their own writes from the primary");
+		assertTrue(executeAndRoute(routing, "{ verifyBallot(pollId: 5, checksum: \"abc\") { level } }", Map.of(), null),
+				"The ballot is not committed yet. So the poll has no high-water mark yet");
+
+		// WHEN the ballot log is drained
+		routing.onBallotsCommitted(new BallotsCommittedEvent(Set.of(5L)));
+
+		// THEN the ballots of that poll are read from the primary
+		assertFalse(executeAndRoute(routing, "{ verifyBallot(pollId: 5, checksum: \"abc\") { level } }", Map.of(), null),
+				"verifyBallot right after the ballot was committed must read from the primary");
+	}
+
+	@Test
+	void onlyMutationsThatJustCastVotesWaitForTheBallotLog() {
+		Set<String> keys = Set.of("poll:5", "user:1");
+		String castVote = "mutation { castVote(pollId: 5, voteOrderIds: [1], voterToken: \"secret\") { voteCount } }";
+		String mixed = "mutation { castVote(pollId: 5, voteOrderIds: [1], voterToken: \"secret\") { voteCount } likeProposal(pollId: 5, proposalId: 1) { id } }";
+		assertEquals(Set.of("user:1"), ReadReplicaRouting.writtenKeys(parse(castVote), keys, true));
+		assertEquals(keys, ReadReplicaRouting.writtenKeys(parse(castVote), keys, false), "without write-behind castVote commits its ballot itself");
+		assertEquals(keys, ReadReplicaRouting.writtenKeys(parse(mixed), keys, true), "likeProposal writes the poll immediately");
+	}
+
+	@Test
+	void userReadsHisOwnWrites() {
+		ReadReplicaRouting routing = createRouting(Duration.ofSeconds(5));
+		executeAndRoute(routing, "mutation { createPoll(title: \"new poll\") { id } }", Map.of(), 1L);
+
+		assertFalse(executeAndRoute(routing, "{ polls { id } }", Map.of(), 1L), "user 1 reads from the primary");
+		assertTrue(executeAndRoute(routing, "{ polls { id } }", Map.of(), 2L), "other users read from the replica");
+		assertTrue(executeAndRoute(routing, "{ polls { id } }", Map.of(), null), "anonymous requests read from the replica");
+	}
+
+	@Test
+	void readFromReplicaAgainAfterReadYourWritesWindow() throws InterruptedException {
+		ReadReplicaRouting routing = createRouting(Duration.ofMillis(50));
+		executeAndRoute(routing, "mutation { castVote(pollId: 5, voteOrderIds: [1], voterToken: \"secret\") { voteCount } }", Map.of(), 1L);
+		assertFalse(executeAndRoute(routing, "{ polls { id } }", Map.of(), 1L));
+		Thread.sleep(100);
+		assertTrue(executeAndRoute(routing, "{ polls { id } }", Map.of(), 1L));
+		assertTrue(executeAndRoute(routing, "{ myBallot(pollId: 5) { level } }", Map.of(), null));
+	}
+
+	@Test
+	void pollIdsAreCollectedFromListsAndInputObjects() {
+		String castVotes = "mutation castVotes($votes: [CastVoteRequestInput]) { castVotes(votes: $votes) { ok } }";
+		Map<String, Object> variables = Map.of("votes", java.util.List.of(
+				Map.of("pollId", 7L, "voterToken", "a"),
+				Map.of("pollId", 8L, "voterToken", "b")));
+		assertEquals(Set.of("poll:7", "poll:8"), ReadReplicaRouting.routingKeys(parse(castVotes), variables, null));
+
+		String inline = "mutation { castVotes(votes: [{pollId: 9, voterToken: \"a\"}, {pollId: \"10\", voterToken: \"b\"}]) { ok } }";
+		assertEquals(Set.of("poll:9", "poll:10", "user:3"), ReadReplicaRouting.routingKeys(parse(inline), Map.of(), 3L));
+	}
+
+	@Test
+	void lsnsAreComparable() {
+		assertEquals(0x16L << 32 | 0xB374D848L, ReadReplicaRouting.parseLsn("16/B374D848"));
+		assertTrue(ReadReplicaRouting.parseLsn("1/0") > ReadReplicaRouting.parseLsn("0/FFFFFFFF"));
+		assertThrows(IllegalArgumentException.class, () -> ReadReplicaRouting.parseLsn("garbage"));
+	}
+}
@@ -0,0 +1,28 @@
+package org.liquido.vote;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BallotChecksumTest {
+
+	@Test
+	void checksumIsDeterministicAndVersioned() {
+		String checksum = BallotEntity.calcChecksum(4711L, List.of(1L, 2L, 3L), "rightToVoteHash");
+		assertEquals(checksum, BallotEntity.calcChecksum(4711L, List.of(1L, 2L, 3L), "rightToVoteHash"));
+		assertTrue(checksum.startsWith(BallotEntity.CHECKSUM_VERSION + ":"), "Checksum must be prefixed with its version");
+	}
+
+	@Test
+	void checksumDependsOnOrderOfProposals() {
+		assertNotEquals(
+				BallotEntity.calcChecksum(4711L, List.of(1L, 2L, 3L), "rightToVoteHash"),
+				BallotEntity.calcChecksum(4711L, List.of(3L, 2L, 1L), "rightToVoteHash"));
+		// ids are separated. So [1, 23] and [12, 3] must not collide
+		assertNotEquals(
+				BallotEntity.calcChecksum(4711L, List.of(1L, 23L), "rightToVoteHash"),
+				BallotEntity.calcChecksum(4711L, List.of(12L, 3L), "rightToVoteHash"));
+	}
+}
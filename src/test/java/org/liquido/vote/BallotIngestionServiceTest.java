@@ -0,0 +1,117 @@
+package org.liquido.vote;
+
+import jakarta.enterprise.event.Event;
+import jakarta.persistence.PersistenceException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.liquido.util.LiquidoException;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BallotIngestionServiceTest {
+
+	@TempDir
+	Path dir;
+
+	BallotLog ballotLog;
+
+	/** rightToVoteHashes of the ballots that were committed to the "DB" */
+	List<String> committed = new ArrayList<>();
+
+	/** pollIds of every fired BallotsCommittedEvent */
+	List<Set<Long>> committedEvents = new ArrayList<>();
+
+	@BeforeEach
+	void openLog() throws Exception {
+		ballotLog = new BallotLog(dir);
+		ballotLog.append(1L, "hashA", List.of(11L), "checksumA");
+		ballotLog.append(1L, "hashB", List.of(12L), "checksumB");
+		ballotLog.append(1L, "hashC", List.of(11L), "checksumC");
+	}
+
+	@AfterEach
+	void closeLog() throws Exception {
+		ballotLog.close();
+	}
+
+	/** A service whose DB transactions fail for the ballots of these rightToVotes with the given exception */
+	BallotIngestionService service(Set<String> failingHashes, RuntimeException failure) {
+		BallotIngestionService service = new BallotIngestionService() {
+			@Override
+			void commitInNewTransaction(List<BallotLog.Entry> entries) {
+				for (BallotLog.Entry entry : entries) {
+					if (failingHashes.contains(entry.rightToVoteHash())) throw failure;
+				}
+				entries.forEach(entry -> committed.add(entry.rightToVoteHash()));
+			}
+		};
+		service.ballotLog = ballotLog;
+		service.ballotsCommitted = committedEvents();
+		return service;
+	}
+
+	@SuppressWarnings("unchecked")
+	Event<BallotsCommittedEvent> committedEvents() {
+		return (Event<BallotsCommittedEvent>) Proxy.newProxyInstance(Event.class.getClassLoader(), new Class<?>[]{Event.class}, (proxy, method, args) -> {
+			if (!method.getName().equals("fire")) throw new UnsupportedOperationException(method.getName());
+			committedEvents.add(((BallotsCommittedEvent) args[0]).pollIds());
+			return null;
+		});
+	}
+
+	@Test
+	void nothingIsMarkedCommittedWhenTheDbFails() throws Exception {
+		BallotIngestionService service = service(Set.of("hashA", "hashB", "hashC"), new PersistenceException("Connection refused"));
+
+		assertFalse(service.drain(10));
+		assertEquals(3, ballotLog.numPending());
+		assertFalse(Files.exists(dir.resolve(BallotLog.COMMITTED_FILE)), "No ballot must be marked as committed");
+		assertTrue(committed.isEmpty());
+	}
+
+	@Test
+	void entriesAfterAnInfrastructureErrorStayPending() {
+		BallotIngestionService service = service(Set.of("hashB"), new PersistenceException("Lock timeout"));
+
+		assertFalse(service.drain(10));
+		assertEquals(List.of("hashA"), committed);
+		assertEquals(List.of("hashB", "hashC"), ballotLog.peekPending(10).stream().map(BallotLog.Entry::rightToVoteHash).toList());
+	}
+
+	@Test
+	void ballotThatFailsWithLiquidoExceptionIsDropped() {
+		// QuarkusTransaction wraps checked exceptions into a RuntimeException
+		RuntimeException invalid = new RuntimeException(new LiquidoException(LiquidoException.Errors.CANNOT_CAST_VOTE, "Poll must be in status VOTING"));
+		BallotIngestionService service = service(Set.of("hashB"), invalid);
+
+		assertTrue(service.drain(10));
+		assertEquals(List.of("hashA", "hashC"), committed);
+		assertEquals(0, ballotLog.numPending());
+	}
+
+	@Test
+	void pollsOfCommittedBallotsAreAnnounced() throws Exception {
+		ballotLog.append(2L, "hashD", List.of(21L), "checksumD");
+		BallotIngestionService service = service(Set.of(), null);
+
+		assertTrue(service.drain(2));
+		assertEquals(List.of(Set.of(1L), Set.of(1L, 2L)), committedEvents, "One event per committed batch");
+	}
+
+	@Test
+	void nothingIsAnnouncedWhenTheDbFails() {
+		BallotIngestionService service = service(Set.of("hashA", "hashB", "hashC"), new PersistenceException("Connection refused"));
+
+		assertFalse(service.drain(10));
+		assertTrue(committedEvents.isEmpty(), "Ballots that are not committed must not be announced");
+	}
+}
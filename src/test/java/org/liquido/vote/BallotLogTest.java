@@ -0,0 +1,93 @@
+package org.liquido.vote;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BallotLogTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void uncommittedEntriesAreReplayedAfterRestart() throws Exception {
+		try (BallotLog ballotLog = new BallotLog(dir)) {
+			ballotLog.append(1L, "hashA", List.of(11L, 12L), "checksumA");
+			ballotLog.append(1L, "hashB", List.of(12L, 11L), "checksumB");
+			ballotLog.append(2L, "hashC", List.of(21L), "checksumC");
+			ballotLog.markCommitted(1);
+		}
+
+		try (BallotLog recovered = new BallotLog(dir)) {
+			List<BallotLog.Entry> pending = recovered.peekPending(10);
+			assertEquals(2, pending.size());
+			assertEquals(new BallotLog.Entry(2, 1L, "hashB", List.of(12L, 11L), "checksumB"), pending.get(0));
+			assertEquals(3, pending.get(1).seq());
+
+			// sequence numbers continue after a restart
+			assertEquals(4, recovered.append(2L, "hashD", List.of(22L), "checksumD").seq());
+		}
+	}
+
+	@Test
+	void logIsTruncatedWhenEverythingIsCommitted() throws Exception {
+		try (BallotLog ballotLog = new BallotLog(dir)) {
+			ballotLog.append(1L, "hashA", List.of(11L), "checksumA");
+			ballotLog.append(1L, "hashB", List.of(12L), "checksumB");
+			ballotLog.markCommitted(2);
+			assertEquals(0, ballotLog.numPending());
+			assertEquals(0, Files.size(dir.resolve(BallotLog.LOG_FILE)));
+			assertEquals(3, ballotLog.append(1L, "hashC", List.of(11L), "checksumC").seq());
+		}
+	}
+
+	@Test
+	void tornLastLineIsIgnored() throws Exception {
+		try (BallotLog ballotLog = new BallotLog(dir)) {
+			ballotLog.append(1L, "hashA", List.of(11L), "checksumA");
+		}
+		Files.writeString(dir.resolve(BallotLog.LOG_FILE), "2;1;hashB;1", StandardOpenOption.APPEND);
+
+		try (BallotLog recovered = new BallotLog(dir)) {
+			assertEquals(1, recovered.numPending());
+			recovered.append(1L, "hashB", List.of(12L), "checksumB");
+		}
+
+		try (BallotLog recovered = new BallotLog(dir)) {
+			assertEquals(2, recovered.numPending());
+		}
+	}
+
+	@Test
+	void heldEntryBlocksCommitterUntilConfirmed() throws Exception {
+		try (BallotLog ballotLog = new BallotLog(dir)) {
+			ballotLog.append(1L, "hashA", List.of(11L), "checksumA");
+			BallotLog.Entry held = ballotLog.appendHeld(1L, "hashB", List.of(12L), "checksumB");
+			ballotLog.append(1L, "hashC", List.of(11L), "checksumC");
+
+			assertEquals(1, ballotLog.peekPending(10).size(), "Committer must stop in front of a held entry");
+			ballotLog.confirm(held.seq());
+			assertEquals(3, ballotLog.peekPending(10).size());
+		}
+	}
+
+	@Test
+	void cancelledEntryIsNotReplayed() throws Exception {
+		try (BallotLog ballotLog = new BallotLog(dir)) {
+			BallotLog.Entry held = ballotLog.appendHeld(1L, "hashA", List.of(11L), "checksumA");
+			ballotLog.append(1L, "hashB", List.of(12L), "checksumB");
+			ballotLog.cancel(held.seq());
+			assertEquals(List.of("hashB"), ballotLog.peekPending(10).stream().map(BallotLog.Entry::rightToVoteHash).toList());
+		}
+
+		try (BallotLog recovered = new BallotLog(dir)) {
+			assertEquals(List.of("hashB"), recovered.peekPending(10).stream().map(BallotLog.Entry::rightToVoteHash).toList());
+		}
+	}
+}
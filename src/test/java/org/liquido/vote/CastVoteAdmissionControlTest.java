@@ -0,0 +1,119 @@
+package org.liquido.vote;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.liquido.util.LiquidoConfig;
+import org.liquido.util.LiquidoException;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CastVoteAdmissionControlTest {
+
+	/** Admission control with a config that only has the castVoteAdmission values */
+	CastVoteAdmissionControl createAdmissionControl(int maxConcurrentPerPoll, int maxQueue, long queueWaitMillis) {
+		Map<String, Object> values = Map.of("enabled", true, "maxConcurrentPerPoll", maxConcurrentPerPoll,
+				"maxQueue", maxQueue, "queueWaitMillis", queueWaitMillis, "retryAfterSecs", 3);
+		LiquidoConfig.CastVoteAdmission admissionConfig = (LiquidoConfig.CastVoteAdmission) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class[]{ LiquidoConfig.CastVoteAdmission.class }, (proxy, method, args) -> values.get(method.getName()));
+		CastVoteAdmissionControl admission = new CastVoteAdmissionControl();
+		admission.config = (LiquidoConfig) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class[]{ LiquidoConfig.class }, (proxy, method, args) -> admissionConfig);
+		admission.registry = new SimpleMeterRegistry();
+		admission.initMetrics();
+		return admission;
+	}
+
+	static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Test
+	void rejectsWhenPollIsBusyAndQueueIsFull() throws Exception {
+		CastVoteAdmissionControl admission = createAdmissionControl(1, 0, 50);
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> first = executor.submit(() -> admission.admit(1L, () -> {
+				running.countDown();
+				await(release);
+				return "first";
+			}));
+			running.await();
+
+			LiquidoException ex = assertThrows(LiquidoException.class, () -> admission.admit(1L, () -> "second"));
+			assertEquals(LiquidoException.Errors.TOO_MANY_REQUESTS, ex.getError());
+			assertEquals(3, ex.getPayload().get("retryAfterSecs"));
+
+			assertEquals("other poll", admission.admit(2L, () -> "other poll"), "Other polls must not be blocked");
+
+			release.countDown();
+			assertEquals("first", first.get());
+			assertEquals("third", admission.admit(1L, () -> "third"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void queuedCallIsRejectedAfterWaitBudget() throws Exception {
+		CastVoteAdmissionControl admission = createAdmissionControl(1, 10, 20);
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(() -> admission.admit(1L, () -> {
+				running.countDown();
+				await(release);
+				return null;
+			}));
+			running.await();
+			LiquidoException ex = assertThrows(LiquidoException.class, () -> admission.admit(1L, () -> "waited too long"));
+			assertEquals(LiquidoException.Errors.TOO_MANY_REQUESTS, ex.getError());
+			assertEquals(0, admission.getQueueDepth());
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void pollIsForgottenWhenNoCallUsesIt() throws Exception {
+		CastVoteAdmissionControl admission = createAdmissionControl(1, 0, 20);
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> first = executor.submit(() -> admission.admit(1L, () -> {
+				running.countDown();
+				await(release);
+				return "first";
+			}));
+			running.await();
+			assertEquals(1, admission.getNumActivePolls());
+
+			assertThrows(LiquidoException.class, () -> admission.admit(1L, () -> "rejected"));
+			assertThrows(LiquidoException.class, () -> admission.admit(2L, () -> { throw new LiquidoException(LiquidoException.Errors.CANNOT_CAST_VOTE, "failed"); }));
+			for (long pollId = 100; pollId < 200; pollId++) admission.admit(pollId, () -> "done");
+			assertEquals(1, admission.getNumActivePolls(), "Only the poll with a running call should be kept");
+
+			release.countDown();
+			assertEquals("first", first.get());
+			assertEquals(0, admission.getNumActivePolls(), "No poll should be kept when no call is running");
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+}
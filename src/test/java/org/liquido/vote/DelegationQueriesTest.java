@@ -0,0 +1,121 @@
+package org.liquido.vote;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.liquido.util.H2Schema;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Run the recursive delegation queries of {@link RightToVoteEntity} against an in-memory H2 DB.
+ * (In production they run on PostgreSQL. So they must only use plain SQL.)
+ * The tables are created from our entity mappings. See {@link H2Schema}
+ */
+class DelegationQueriesTest {
+
+	H2Schema db;
+
+	@BeforeEach
+	void openDb() throws SQLException {
+		db = H2Schema.open();
+	}
+
+	@AfterEach
+	void closeDb() throws SQLException {
+		db.close();
+	}
+
+	void rightToVote(String hash, String delegatedTo) throws SQLException {
+		db.execute("INSERT INTO righttovote (hashedVoterInfo, delegated_to, votingPower) VALUES (?, ?, 1)", hash, delegatedTo);
+	}
+
+	void ballot(long id, long pollId, int level, String hash) throws SQLException {
+		db.execute("INSERT INTO ballots (id, poll_id, level, rightToVote_hashedVoterInfo, checksum) VALUES (?, ?, ?, ?, ?)", id, pollId, level, hash, "checksum" + id);
+	}
+
+	List<Object[]> query(String sql, Object... values) throws SQLException {
+		return db.query(sql, values);
+	}
+
+	@Test
+	void countTransitiveDelegations() throws SQLException {
+		// proxy <- a <- a1, a2    proxy <- b
+		rightToVote("proxy", null);
+		rightToVote("a", "proxy");
+		rightToVote("b", "proxy");
+		rightToVote("a1", "a");
+		rightToVote("a2", "a");
+		rightToVote("other", null);
+		assertEquals(4L, ((Number) query(RightToVoteEntity.SQL_COUNT_DELEGATIONS, "proxy", RightToVoteEntity.MAX_DELEGATION_DEPTH).get(0)[0]).longValue());
+		assertEquals(2L, ((Number) query(RightToVoteEntity.SQL_COUNT_DELEGATIONS, "a", RightToVoteEntity.MAX_DELEGATION_DEPTH).get(0)[0]).longValue());
+		assertEquals(0L, ((Number) query(RightToVoteEntity.SQL_COUNT_DELEGATIONS, "other", RightToVoteEntity.MAX_DELEGATION_DEPTH).get(0)[0]).longValue());
+	}
+
+	@Test
+	void countTerminatesOnCycle() throws SQLException {
+		rightToVote("x", "y");
+		rightToVote("y", "z");
+		rightToVote("z", "x");
+		assertEquals(2L, ((Number) query(RightToVoteEntity.SQL_COUNT_DELEGATIONS, "x", 50).get(0)[0]).longValue());
+	}
+
+	@Test
+	void proxyChainWithBallotLevels() throws SQLException {
+		rightToVote("top", null);
+		rightToVote("mid", "top");
+		rightToVote("voter", "mid");
+		ballot(1, 4711, 0, "mid");
+		ballot(2, 4711, 1, "voter");
+		ballot(3, 999, 0, "top");
+		List<Object[]> chain = query(RightToVoteEntity.SQL_PROXY_CHAIN, "voter", RightToVoteEntity.MAX_DELEGATION_DEPTH, 4711L);
+		assertEquals(3, chain.size());
+		assertEquals("voter", chain.get(0)[0]);
+		assertEquals(1, chain.get(0)[1]);
+		assertEquals("mid", chain.get(1)[0]);
+		assertEquals(0, chain.get(1)[1]);
+		assertEquals("top", chain.get(2)[0]);
+		assertEquals(null, chain.get(2)[1], "top proxy has no ballot in this poll");
+	}
+
+	@Test
+	void ancestorsStopAtCycle() throws SQLException {
+		rightToVote("top", null);
+		rightToVote("mid", "top");
+		rightToVote("voter", "mid");
+		rightToVote("x", "y");
+		rightToVote("y", "x");
+		assertEquals(3, query(RightToVoteEntity.SQL_DELEGATION_ANCESTORS, "voter", RightToVoteEntity.MAX_DELEGATION_DEPTH).size());
+		assertEquals(2, query(RightToVoteEntity.SQL_DELEGATION_ANCESTORS, "x", 50).size());
+	}
+
+	@Test
+	void lockVotingPower() throws SQLException {
+		rightToVote("proxy", null);
+		rightToVote("voter", "proxy");
+		db.getConnection().setAutoCommit(false);
+		List<Object[]> locked = query(RightToVoteEntity.SQL_LOCK_VOTING_POWER, "proxy");
+		assertEquals(1, locked.size());
+		assertEquals(1L, ((Number) locked.get(0)[1]).longValue());
+		db.getConnection().rollback();
+	}
+
+	@Test
+	void votingPowerCandidatesAreProxiesAndWrongVotingPowers() throws SQLException {
+		// proxy <- a <- a1     "wrong" is no proxy, but has a voting power other than 1
+		rightToVote("proxy", null);
+		rightToVote("a", "proxy");
+		rightToVote("a1", "a");
+		rightToVote("other", null);
+		rightToVote("wrong", null);
+		db.execute("UPDATE righttovote SET votingPower = 3 WHERE hashedVoterInfo = 'wrong'");
+		Set<Object> candidates = new HashSet<>();
+		for (Object[] row : query(RightToVoteEntity.SQL_VOTING_POWER_CANDIDATES)) candidates.add(row[0]);
+		assertEquals(Set.of("proxy", "a", "wrong"), candidates);
+	}
+}
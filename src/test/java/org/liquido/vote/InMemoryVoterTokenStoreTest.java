@@ -0,0 +1,160 @@
+package org.liquido.vote;
+
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import org.junit.jupiter.api.Test;
+import org.liquido.util.LiquidoException;
+
+import java.lang.reflect.Proxy;
+import java.time.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryVoterTokenStoreTest {
+
+	/** A clock that we can move forward in tests */
+	static class TestClock extends Clock {
+		Instant now = Instant.parse("2025-01-01T10:00:00Z");
+		@Override public ZoneId getZone() { return ZoneOffset.UTC; }
+		@Override public Clock withZone(ZoneId zone) { return this; }
+		@Override public Instant instant() { return now; }
+	}
+
+	TestClock clock = new TestClock();
+
+	LocalDateTime inMinutes(long minutes) {
+		return LocalDateTime.now(clock).plusMinutes(minutes);
+	}
+
+	@Test
+	void tokenCanOnlyBeConsumedOnce() throws LiquidoException {
+		InMemoryVoterTokenStore store = new InMemoryVoterTokenStore(10, clock);
+		store.store("hash1", 4711L, "rightToVoteHash", inMinutes(20));
+
+		VoterTokenStore.StoredVoterToken token = store.consume("hash1").orElseThrow();
+		assertEquals(4711L, token.pollId());
+		assertEquals("rightToVoteHash", token.rightToVoteHash());
+		assertTrue(store.consume("hash1").isEmpty(), "Voter token must only be consumable once");
+	}
+
+	@Test
+	void timerWheelRemovesOnlyExpiredTokens() throws LiquidoException {
+		InMemoryVoterTokenStore store = new InMemoryVoterTokenStore(10, clock);
+		store.store("short", 1L, "rtv1", inMinutes(5));
+		store.store("long", 1L, "rtv2", inMinutes(20));
+		store.store("veryLong", 1L, "rtv3", inMinutes(InMemoryVoterTokenStore.WHEEL_SLOTS + 10));   // more than one round of the wheel
+
+		clock.now = clock.now.plus(Duration.ofMinutes(6));
+		assertEquals(1, store.deleteExpired());
+		assertEquals(2, store.size());
+
+		clock.now = clock.now.plus(Duration.ofMinutes(20));
+		assertEquals(1, store.deleteExpired());
+		assertTrue(store.consume("veryLong").isPresent(), "Token that lives longer than one round must not be removed too early");
+	}
+
+	@Test
+	void storeIsBounded() throws LiquidoException {
+		InMemoryVoterTokenStore store = new InMemoryVoterTokenStore(2, clock);
+		store.store("hash1", 1L, "rtv1", inMinutes(20));
+		store.store("hash2", 1L, "rtv2", inMinutes(20));
+		LiquidoException ex = assertThrows(LiquidoException.class, () -> store.store("hash3", 1L, "rtv3", inMinutes(20)));
+		assertEquals(LiquidoException.Errors.CANNOT_GET_TOKEN, ex.getError());
+
+		store.consume("hash1");
+		store.store("hash3", 1L, "rtv3", inMinutes(20));
+	}
+
+	@Test
+	void concurrentStoresDoNotOverfillTheStore() throws Exception {
+		int maxSize = 100;
+		InMemoryVoterTokenStore store = new InMemoryVoterTokenStore(maxSize, clock);
+		AtomicInteger stored = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				int thread = t;
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < 50; i++) {
+						try {
+							store.store("hash" + thread + "_" + i, 1L, "rtv", inMinutes(20));
+							stored.incrementAndGet();
+						} catch (LiquidoException e) {
+							assertEquals(LiquidoException.Errors.CANNOT_GET_TOKEN, e.getError());
+						}
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) future.get();
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(maxSize, stored.get(), "Exactly maxSize tokens should have been stored");
+		assertEquals(maxSize, store.size());
+	}
+
+	@Test
+	void consumeAllOnlyReturnsKnownTokens() throws LiquidoException {
+		InMemoryVoterTokenStore store = new InMemoryVoterTokenStore(10, clock);
+		store.store("hash1", 1L, "rtv1", inMinutes(20));
+		store.store("hash2", 1L, "rtv2", inMinutes(20));
+
+		Map<String, VoterTokenStore.StoredVoterToken> consumed = store.consumeAll(List.of("hash1", "hash2", "unknown"));
+		assertEquals(2, consumed.size());
+		assertEquals("rtv2", consumed.get("hash2").rightToVoteHash());
+		assertTrue(store.consumeAll(List.of("hash1", "hash2")).isEmpty(), "Tokens must only be consumable once");
+	}
+
+	/** A transaction that is active until the test completes it */
+	static class TestTransaction {
+		final List<Synchronization> synchronizations = new ArrayList<>();
+		int status = Status.STATUS_ACTIVE;
+
+		TransactionSynchronizationRegistry registry() {
+			return (TransactionSynchronizationRegistry) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[]{TransactionSynchronizationRegistry.class}, (proxy, method, args) -> switch (method.getName()) {
+						case "getTransactionStatus" -> status;
+						case "registerInterposedSynchronization" -> synchronizations.add((Synchronization) args[0]);
+						default -> throw new UnsupportedOperationException(method.getName());
+					});
+		}
+
+		void complete(int status) {
+			this.status = status;
+			synchronizations.forEach(sync -> sync.afterCompletion(status));
+		}
+	}
+
+	@Test
+	void tokenIsRestoredWhenTransactionIsRolledBack() throws LiquidoException {
+		TestTransaction tx = new TestTransaction();
+		InMemoryVoterTokenStore store = new InMemoryVoterTokenStore(10, clock, tx.registry());
+		store.store("hash1", 4711L, "rightToVoteHash", inMinutes(20));
+
+		assertTrue(store.consume("hash1").isPresent());
+		assertTrue(store.consume("hash1").isEmpty(), "Token is consumed while the transaction is running");
+		tx.complete(Status.STATUS_ROLLEDBACK);
+		assertTrue(store.consume("hash1").isPresent(), "Token must be usable again after a rollback");
+
+		TestTransaction committed = new TestTransaction();
+		store = new InMemoryVoterTokenStore(10, clock, committed.registry());
+		store.store("hash3", 4711L, "rightToVoteHash3", inMinutes(20));
+		assertTrue(store.consume("hash3").isPresent());
+		committed.complete(Status.STATUS_COMMITTED);
+		assertTrue(store.consume("hash3").isEmpty(), "Token is gone after commit");
+	}
+}